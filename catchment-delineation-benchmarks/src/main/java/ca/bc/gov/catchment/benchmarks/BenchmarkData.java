@@ -0,0 +1,189 @@
+package ca.bc.gov.catchment.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Generates the inputs of the benchmarks.  Everything is generated from a seed, so every run of a
+ * benchmark gets the same data.  Coordinates are in BC Albers (EPSG:3005) metres, within a square
+ * whose size grows with the number of features (so the density of the data doesn't change with size).
+ */
+public class BenchmarkData {
+
+	public static final int SRID = 3005;
+	public static final long SEED = 42;
+
+	//average area (square metres) per generated feature
+	private static final double AREA_PER_FEATURE = 250 * 250;
+	private static final double ORIGIN_X = 1000000;
+	private static final double ORIGIN_Y = 1000000;
+
+	private static GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+
+	public static CoordinateReferenceSystem getCrs() {
+		try {
+			return CRS.decode("EPSG:"+SRID);
+		} catch (FactoryException e) {
+			throw new IllegalStateException("Unable to lookup CRS EPSG:"+SRID, e);
+		}
+	}
+
+	/**
+	 * @return the extent of generated data with the given number of features
+	 */
+	public static Envelope getBounds(int numFeatures) {
+		double size = Math.sqrt(Math.max(numFeatures, 1) * AREA_PER_FEATURE);
+		return new Envelope(ORIGIN_X, ORIGIN_X + size, ORIGIN_Y, ORIGIN_Y + size);
+	}
+
+	/**
+	 * Random walks with the given number of points, each starting at a random position.  Steps are
+	 * about 25 m long, and turn gradually, so the lines look roughly like streams.
+	 */
+	public static List<LineString> randomLines(int numLines, int pointsPerLine, long seed) {
+		Random random = new Random(seed);
+		Envelope bounds = getBounds(numLines);
+		List<LineString> lines = new ArrayList<LineString>(numLines);
+		for (int i = 0; i < numLines; i++) {
+			Coordinate[] coordinates = new Coordinate[pointsPerLine];
+			double x = bounds.getMinX() + random.nextDouble() * bounds.getWidth();
+			double y = bounds.getMinY() + random.nextDouble() * bounds.getHeight();
+			double heading = random.nextDouble() * 2 * Math.PI;
+			for (int j = 0; j < pointsPerLine; j++) {
+				coordinates[j] = new Coordinate(round(x), round(y));
+				heading += (random.nextDouble() - 0.5) * 0.8;
+				double step = 15 + random.nextDouble() * 20;
+				x = clamp(x + Math.cos(heading) * step, bounds.getMinX(), bounds.getMaxX());
+				y = clamp(y + Math.sin(heading) * step, bounds.getMinY(), bounds.getMaxY());
+			}
+			lines.add(geometryFactory.createLineString(coordinates));
+		}
+		return lines;
+	}
+
+	/**
+	 * About numEdges voronoi-like edges: the edges of a square lattice (with a bent middle vertex,
+	 * so edges aren't all straight), with some edges removed, some dangling spurs, and some exact
+	 * duplicates.  This gives the dangler cleaner several passes of work.
+	 */
+	public static List<LineString> latticeEdges(int numEdges, long seed) {
+		Random random = new Random(seed);
+		Envelope bounds = getBounds(numEdges);
+		//each lattice cell has about two edges
+		int cellsPerSide = Math.max((int)Math.sqrt(numEdges / 2.0), 1);
+		double cellSize = bounds.getWidth() / cellsPerSide;
+		List<LineString> edges = new ArrayList<LineString>(numEdges);
+		for (int i = 0; i < cellsPerSide && edges.size() < numEdges; i++) {
+			for (int j = 0; j < cellsPerSide && edges.size() < numEdges; j++) {
+				double x = bounds.getMinX() + i * cellSize;
+				double y = bounds.getMinY() + j * cellSize;
+				if (random.nextInt(10) < 9) {
+					edges.add(line(x, y, x + cellSize / 2, y + (random.nextDouble() - 0.5) * cellSize / 4, x + cellSize, y));
+				}
+				if (random.nextInt(10) < 9) {
+					edges.add(line(x, y, x + (random.nextDouble() - 0.5) * cellSize / 4, y + cellSize / 2, x, y + cellSize));
+				}
+				if (random.nextInt(20) == 0) {
+					//dangling spur
+					edges.add(line(x, y, x + cellSize / 5, y + cellSize / 7, x + cellSize / 3, y + cellSize / 4));
+				}
+				if (random.nextInt(50) == 0 && !edges.isEmpty()) {
+					//exact duplicate of the previous edge
+					edges.add((LineString)edges.get(edges.size() - 1).copy());
+				}
+			}
+		}
+		return edges;
+	}
+
+	/**
+	 * @return the lines as a feature collection with one attribute: "geometry:LineString"
+	 */
+	public static SimpleFeatureCollection toFeatures(String typeName, List<LineString> lines) {
+		SimpleFeatureType type = null;
+		try {
+			type = DataUtilities.createType(typeName, "geometry:LineString:srid="+SRID);
+		} catch (SchemaException e) {
+			throw new IllegalStateException("Unable to create feature type "+typeName, e);
+		}
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+		ListFeatureCollection features = new ListFeatureCollection(type);
+		for (int i = 0; i < lines.size(); i++) {
+			features.add(builder.buildFeature(typeName+"."+(i+1), new Object[] { lines.get(i) }));
+		}
+		return features;
+	}
+
+	/**
+	 * @return the lines in the WKT format read by WKTList2GeoPackage (one LINESTRING per line)
+	 */
+	public static String[] toWktLines(List<LineString> lines) {
+		String[] result = new String[lines.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = lines.get(i).toText();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the lines in the format read by VoronoiOutput2GeoPackage: x and y values separated by
+	 * spaces, with 8 decimal places, scaled to the given bounds (the voronoi-catchments tool's
+	 * normalized coordinate space)
+	 */
+	public static String[] toVoronoiOutputLines(List<LineString> lines, Envelope outBounds) {
+		Envelope inBounds = new Envelope();
+		for (LineString line : lines) {
+			inBounds.expandToInclude(line.getEnvelopeInternal());
+		}
+		double scale = Math.min(outBounds.getWidth() / inBounds.getWidth(), outBounds.getHeight() / inBounds.getHeight());
+		String[] result = new String[lines.size()];
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < result.length; i++) {
+			sb.setLength(0);
+			for (Coordinate c : lines.get(i).getCoordinates()) {
+				double x = outBounds.getMinX() + (c.x - inBounds.getMinX()) * scale;
+				double y = outBounds.getMinY() + (c.y - inBounds.getMinY()) * scale;
+				if (sb.length() > 0) {
+					sb.append(' ');
+				}
+				sb.append(String.format(Locale.ROOT, "%.8f %.8f", x, y));
+			}
+			result[i] = sb.toString();
+		}
+		return result;
+	}
+
+	private static LineString line(double... xy) {
+		Coordinate[] coordinates = new Coordinate[xy.length / 2];
+		for (int i = 0; i < coordinates.length; i++) {
+			coordinates[i] = new Coordinate(round(xy[i * 2]), round(xy[i * 2 + 1]));
+		}
+		return geometryFactory.createLineString(coordinates);
+	}
+
+	//round to the millimetre, like the source data
+	private static double round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
@@ -0,0 +1,87 @@
+package ca.bc.gov.catchment.scripts;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.bc.gov.catchment.benchmarks.BenchmarkData;
+
+/**
+ * Parsing of the voronoi-catchments output, one line at a time, the way WKTList2GeoPackage (WKT lines)
+ * and VoronoiOutput2GeoPackage (lines of space separated values) do it.  Each operation parses all
+ * numLines lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LineParsingBenchmark {
+
+	//the normalized coordinate space of the voronoi-catchments tool
+	private static final Envelope VORONOI_BOUNDS = new Envelope(-Math.sin(0.785398), Math.sin(0.785398), -Math.sin(0.785398), Math.sin(0.785398));
+
+	@Param({"10000", "100000"})
+	public int numLines;
+
+	@Param({"2", "8"})
+	public int pointsPerLine;
+
+	private String[] wktLines;
+	private String[] voronoiOutputLines;
+	private GeometryFactory geometryFactory;
+
+	@Setup
+	public void setup() {
+		wktLines = BenchmarkData.toWktLines(BenchmarkData.randomLines(numLines, pointsPerLine, BenchmarkData.SEED));
+		voronoiOutputLines = BenchmarkData.toVoronoiOutputLines(BenchmarkData.randomLines(numLines, pointsPerLine, BenchmarkData.SEED), VORONOI_BOUNDS);
+		geometryFactory = JTSFactoryFinder.getGeometryFactory();
+	}
+
+	/**
+	 * as WKTList2GeoPackage: a new WKTReader for each line
+	 */
+	@Benchmark
+	public void wktList2GeoPackage(Blackhole blackhole) throws ParseException {
+		for (String line : wktLines) {
+			WKTReader reader = new WKTReader(geometryFactory);
+			blackhole.consume(reader.read(WKTList2GeoPackage.cleanLine(line)));
+		}
+	}
+
+	/**
+	 * WKT lines parsed with one reader, for comparison with wktList2GeoPackage
+	 */
+	@Benchmark
+	public void wktSharedReader(Blackhole blackhole) throws ParseException {
+		WKTReader reader = new WKTReader(geometryFactory);
+		for (String line : wktLines) {
+			blackhole.consume(reader.read(line));
+		}
+	}
+
+	@Benchmark
+	public void voronoiOutput2GeoPackage(Blackhole blackhole) {
+		for (String line : voronoiOutputLines) {
+			String cleanedLine = VoronoiOutput2GeoPackage.cleanLine(line, VORONOI_BOUNDS);
+			blackhole.consume(VoronoiOutput2GeoPackage.voronoiLineToLineString(cleanedLine, VORONOI_BOUNDS));
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package ca.bc.gov.catchment.scripts;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.SchemaException;
+import org.locationtech.jts.geom.LineString;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.bc.gov.catchment.benchmarks.BenchmarkData;
+
+/**
+ * The per-feature work of PrepCgalVoronoiInput: writing each segment of the water features as a line
+ * of voronoi input, and splitting features into segment features (for the GeoPackage output).
+ * Each operation processes all numFeatures features.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PrepCgalVoronoiInputBenchmark {
+
+	@Param({"10000", "100000"})
+	public int numFeatures;
+
+	@Param({"10"})
+	public int pointsPerFeature;
+
+	private List<LineString> lines;
+	private SimpleFeature[] features;
+	private SimpleFeatureType segmentType;
+
+	@Setup
+	public void setup() throws SchemaException {
+		lines = BenchmarkData.randomLines(numFeatures, pointsPerFeature, BenchmarkData.SEED);
+		SimpleFeatureCollection fc = BenchmarkData.toFeatures("STREAM_NETWORKS", lines);
+		features = new SimpleFeature[fc.size()];
+		SimpleFeatureIterator it = fc.features();
+		try {
+			for (int i = 0; it.hasNext(); i++) {
+				features[i] = it.next();
+			}
+		} finally {
+			it.close();
+		}
+		segmentType = DataUtilities.createType("water_features", "geometry:LineString:srid="+BenchmarkData.SRID);
+	}
+
+	/**
+	 * writes to a writer that discards its input, so only the formatting is measured
+	 */
+	@Benchmark
+	public long writeGeometry() throws IOException {
+		CountingWriter out = new CountingWriter();
+		for (LineString line : lines) {
+			PrepCgalVoronoiInput.writeGeometry(out, line);
+		}
+		return out.count;
+	}
+
+	@Benchmark
+	public void splitIntoSegments(Blackhole blackhole) {
+		for (SimpleFeature feature : features) {
+			blackhole.consume(PrepCgalVoronoiInput.splitIntoSegments(feature, segmentType));
+		}
+	}
+
+	private static class CountingWriter extends Writer {
+
+		private long count;
+
+		public void write(char[] cbuf, int off, int len) {
+			count += len;
+		}
+
+		public void write(String str) {
+			count += str.length();
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.locationtech.jts.geom.LineString;
+import org.opengis.referencing.FactoryException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.bc.gov.catchment.benchmarks.BenchmarkData;
+
+/**
+ * One cleaning iteration over numEdges generated voronoi edges:
+ * - danglerCleanCycle: one pass of the dangler rules over features (VoronoiDanglerCleaner.cleanCycle)
+ * - danglerEdgeStore: the full dangler prune (all passes) of an EdgeStore, on numThreads threads
+ * - touchingWaterCleanFeatures: the touching water rules over features (VoronoiTouchingWaterCleaner.cleanFeatures)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CleanerBenchmark {
+
+	@Param({"10000", "100000"})
+	public int numEdges;
+
+	private SimpleFeatureCollection edges;
+	private EdgeStore edgeStore;
+	private VoronoiDanglerCleaner danglerCleaner;
+	private VoronoiTouchingWaterCleaner touchingWaterCleaner;
+
+	@Setup
+	public void setup() throws IOException, FactoryException {
+		List<LineString> edgeLines = BenchmarkData.latticeEdges(numEdges, BenchmarkData.SEED);
+		edges = BenchmarkData.toFeatures("voronoi_edges", edgeLines);
+		edgeStore = EdgeStore.fromFeatures(edges);
+		//about one water feature per ten edges
+		SimpleFeatureCollection waterFeatures = BenchmarkData.toFeatures("water_features", BenchmarkData.randomLines(Math.max(numEdges / 10, 1), 20, BenchmarkData.SEED));
+		WaterFeatureContext waterFeatureContext = new WaterFeatureContext(DataUtilities.source(waterFeatures));
+		//build the water features index now, rather than in the first measured operation
+		waterFeatureContext.getIndex();
+
+		danglerCleaner = new VoronoiDanglerCleaner(DataUtilities.source(edges), waterFeatureContext, "kept", "discarded");
+		touchingWaterCleaner = new VoronoiTouchingWaterCleaner(DataUtilities.source(edges), waterFeatureContext, "kept", "discarded");
+	}
+
+	@Benchmark
+	public KeptAndDiscarded danglerCleanCycle() throws IOException {
+		return danglerCleaner.cleanCycle(edges);
+	}
+
+	@Benchmark
+	public KeptAndDiscardedEdges danglerEdgeStore(Threads threads) {
+		danglerCleaner.setNumThreads(threads.numThreads);
+		return danglerCleaner.clean(edgeStore);
+	}
+
+	@Benchmark
+	public KeptAndDiscarded touchingWaterCleanFeatures() throws IOException, FactoryException {
+		return touchingWaterCleaner.cleanFeatures(edges);
+	}
+
+	/**
+	 * The thread counts of danglerEdgeStore, in a state of their own so the single threaded benchmarks
+	 * aren't run once per thread count.
+	 */
+	@State(Scope.Benchmark)
+	public static class Threads {
+
+		@Param({"1", "4"})
+		public int numThreads;
+	}
+}
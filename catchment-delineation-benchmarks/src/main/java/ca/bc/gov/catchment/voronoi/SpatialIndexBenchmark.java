@@ -0,0 +1,87 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.bc.gov.catchment.benchmarks.BenchmarkData;
+import ca.bc.gov.catchments.utils.IntVisitor;
+
+/**
+ * Building and querying a PackedSpatialIndexFeatureCollection with various node sizes (the number of
+ * entries per node of its packed Hilbert R-tree).  Each query operation runs NUM_QUERIES small
+ * window queries, like the "touching" queries of the cleaners.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SpatialIndexBenchmark {
+
+	private static final int NUM_QUERIES = 100000;
+	private static final double QUERY_SIZE = 1.0;
+
+	@Param({"100000", "1000000"})
+	public int numFeatures;
+
+	@Param({"4", "8", "16", "32", "64"})
+	public int nodeSize;
+
+	private SimpleFeatureCollection features;
+	private PackedSpatialIndexFeatureCollection indexedFeatures;
+	private Envelope[] queries;
+
+	@Setup
+	public void setup() throws IOException {
+		features = BenchmarkData.toFeatures("voronoi_edges", BenchmarkData.latticeEdges(numFeatures, BenchmarkData.SEED));
+		indexedFeatures = new PackedSpatialIndexFeatureCollection(features, nodeSize);
+
+		//query around the end points of random features, so most queries find something
+		Random random = new Random(BenchmarkData.SEED);
+		queries = new Envelope[NUM_QUERIES];
+		for (int i = 0; i < queries.length; i++) {
+			Envelope featureEnvelope = ((Geometry)indexedFeatures.getFeature(random.nextInt(indexedFeatures.size())).getDefaultGeometry()).getEnvelopeInternal();
+			queries[i] = new Envelope(featureEnvelope.getMinX() - QUERY_SIZE, featureEnvelope.getMinX() + QUERY_SIZE, featureEnvelope.getMinY() - QUERY_SIZE, featureEnvelope.getMinY() + QUERY_SIZE);
+		}
+	}
+
+	@Benchmark
+	public PackedSpatialIndexFeatureCollection build() throws IOException {
+		return new PackedSpatialIndexFeatureCollection(features, nodeSize);
+	}
+
+	@Benchmark
+	public long query() {
+		CountingVisitor visitor = new CountingVisitor();
+		for (Envelope query : queries) {
+			indexedFeatures.query(query, visitor);
+		}
+		return visitor.count;
+	}
+
+	private static class CountingVisitor implements IntVisitor {
+
+		private long count;
+
+		public void visit(int id) {
+			count++;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package ca.bc.gov.catchments.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.bc.gov.catchment.benchmarks.BenchmarkData;
+
+/**
+ * Append throughput of SaveUtils.appendToGeoPackage: each operation appends one batch of batchSize
+ * line features to a table of a temporary GeoPackage.  (Features per second is the score times 
+ * batchSize.)  The table grows through the run, as the tables of the tools do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SaveUtilsBenchmark {
+
+	@Param({"1000", "10000"})
+	public int batchSize;
+
+	@Param({"8"})
+	public int pointsPerFeature;
+
+	private File file;
+	private GeoPackage geoPackage;
+	private FeatureEntry entry;
+	private SimpleFeatureCollection batch;
+
+	@Setup
+	public void setup() throws IOException {
+		batch = BenchmarkData.toFeatures("voronoi_edges", BenchmarkData.randomLines(batchSize, pointsPerFeature, BenchmarkData.SEED));
+		file = File.createTempFile("save-utils-benchmark-", ".gpkg");
+		file.delete();
+		geoPackage = SaveUtils.openGeoPackage(file.getPath());
+		//create the table (with its first batch)
+		entry = new FeatureEntry();
+		entry.setSrid(BenchmarkData.SRID);
+		entry.setBounds(new ReferencedEnvelope(BenchmarkData.getBounds(batchSize), BenchmarkData.getCrs()));
+		entry.setTableName(batch.getSchema().getTypeName());
+		geoPackage.add(entry, batch);
+	}
+
+	@TearDown
+	public void tearDown() {
+		geoPackage.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public void append() throws IOException {
+		SaveUtils.appendToGeoPackage(geoPackage, entry, batch);
+	}
+}
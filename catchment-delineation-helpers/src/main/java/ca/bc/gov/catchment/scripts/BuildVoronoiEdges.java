@@ -0,0 +1,377 @@
+package ca.bc.gov.catchment.scripts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import ca.bc.gov.catchment.voronoi.SegmentVoronoiDiagram;
+import ca.bc.gov.catchment.voronoi.TileGrid;
+import ca.bc.gov.catchment.voronoi.TileStitcher;
+import ca.bc.gov.catchments.utils.Metrics;
+import ca.bc.gov.catchments.utils.SaveUtils;
+
+/**
+ * Builds the voronoi_edges table directly from the water features saved by PrepCgalVoronoiInput
+ * (-outGeoPackageFile), in place of voronoi-catchments, WKTList2GeoPackage and StitchVoronoiTiles.
+ *
+ * The voronoi diagram of the water feature segments is computed in-process (see SegmentVoronoiDiagram),
+ * and only the edges between the catchments of different water features are kept (see CatchmentFilter).
+ * With -tiles, the bbox is split into a grid of tiles (as with PrepCgalVoronoiInput -tiles), whose
+ * diagrams are computed on -threads threads, and stitched together (see TileStitcher).  Segments that
+ * cross the edge of a tile's halo are clipped to it.  With a single tile (the default), nothing is
+ * stitched, and the edges are written whole.
+ */
+public class BuildVoronoiEdges {
+
+	private static final String GEOPKG_ID = "geopkg";
+	private static final String DEFAULT_WATER_FEATURES_TABLE = "water_features";
+	private static final String GEOPKG_VORONOI_EDGES_TABLE = "voronoi_edges";
+	private static final String DEFAULT_TILES = "1x1";
+	private static final double DEFAULT_SEAM_TOLERANCE = 0.001;
+	private static final int DEFAULT_WRITE_BATCH_SIZE = 10000;
+	private static final Metrics.Timer TILE_TIMER = Metrics.get().timer("voronoi_tile", "Time to compute and filter the voronoi diagram of a tile");
+	private static final Metrics.Counter SEGMENTS_IN = Metrics.get().counter("voronoi_segments", "Water feature segments added to the voronoi diagrams of the tiles (counting each tile a segment is in)");
+	private static final Metrics.Counter EDGES_KEPT = Metrics.get().counter("voronoi_edges_kept", "Voronoi edges kept by the catchment filter (before stitching)");
+	private static final Metrics.Counter EDGES_WRITTEN = Metrics.get().counter("voronoi_edges_written", "Voronoi edges written to the output, after stitching");
+
+	public static void main(String[] args) {
+
+		// create Options object
+		Options options = new Options();
+		options.addOption("i", true, "Input GeoPackage file of water features (output by PrepCgalVoronoiInput -outGeoPackageFile)");
+		options.addOption("table", true, "Water features table.  Default "+DEFAULT_WATER_FEATURES_TABLE);
+		options.addOption("o", true, "Output GeoPackage file");
+		options.addOption("bbox", true, "Bounding box of the voronoi diagram (format: 'xmin,ymin,xmax,ymax').  Defaults to the bounds of the water features table.");
+		options.addOption("bboxcrs", true, "CRS of the bounding box.  e.g. 'EPSG:3005' or 'EPSG:4326'");
+		options.addOption("tiles", true, "Grid of tiles, computed separately and stitched together.  format: [numCols]x[numRows].  Default "+DEFAULT_TILES);
+		options.addOption("tileHalo", true, "Distance (in the data CRS units) around each tile core from which neighbouring segments are also included in the tile.  Defaults to "+PrepCgalVoronoiInput.DEFAULT_TILE_HALO_FRACTION+" of the tile size.");
+		options.addOption("threads", true, "Number of tiles computed at once.  Defaults to the number of processors");
+		options.addOption("seamTolerance", true, "Distance within which edge endpoints on a seam between tiles are snapped together.  Default "+DEFAULT_SEAM_TOLERANCE);
+		options.addOption("writeBatchSize", true, "Number of edges written to the output at a time.  Default "+DEFAULT_WRITE_BATCH_SIZE);
+		options.addOption("metricsFile", true, "JSON file to save the run's metrics to.  The metrics are also saved in the Prometheus text format, to a .prom file beside it.");
+		CommandLineParser parser = new DefaultParser();
+		HelpFormatter formatter = new HelpFormatter();
+
+		String inputGeoPackageFilename = null;
+		String tableName = null;
+		String outputGeoPackageFilename = null;
+		String bboxStr = null;
+		String bboxCrs = null;
+		String tileGridSize = null;
+		Double tileHalo = null;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		double seamTolerance = DEFAULT_SEAM_TOLERANCE;
+		int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+		String metricsFilename = null;
+
+		try {
+			CommandLine cmd = parser.parse( options, args);
+			inputGeoPackageFilename = cmd.getOptionValue("i");
+			tableName = cmd.getOptionValue("table", DEFAULT_WATER_FEATURES_TABLE);
+			outputGeoPackageFilename = cmd.getOptionValue("o");
+			bboxStr = cmd.getOptionValue("bbox");
+			bboxCrs = cmd.getOptionValue("bboxcrs");
+			tileGridSize = cmd.getOptionValue("tiles", DEFAULT_TILES);
+			if (cmd.hasOption("tileHalo")) {
+				tileHalo = Double.parseDouble(cmd.getOptionValue("tileHalo"));
+			}
+			if (cmd.hasOption("threads")) {
+				numThreads = Integer.parseInt(cmd.getOptionValue("threads"));
+			}
+			if (cmd.hasOption("seamTolerance")) {
+				seamTolerance = Double.parseDouble(cmd.getOptionValue("seamTolerance"));
+			}
+			if (cmd.hasOption("writeBatchSize")) {
+				writeBatchSize = Integer.parseInt(cmd.getOptionValue("writeBatchSize"));
+			}
+			metricsFilename = cmd.getOptionValue("metricsFile");
+		} catch (ParseException e) {
+			e.printStackTrace();
+			formatter.printHelp( BuildVoronoiEdges.class.getSimpleName(), options );
+			System.exit(1);
+		}
+
+		//validate inputs
+		if (inputGeoPackageFilename == null || outputGeoPackageFilename == null) {
+			formatter.printHelp( BuildVoronoiEdges.class.getSimpleName(), options );
+			System.exit(1);
+		}
+		if (bboxStr != null && bboxCrs == null) {
+			System.out.println("bboxcrs must be specified with bbox");
+			System.exit(1);
+		}
+		int[] gridSize = null;
+		try {
+			gridSize = TileGrid.parseGridSize(tileGridSize);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+		if (numThreads < 1) {
+			System.out.println("-threads must be at least 1");
+			System.exit(1);
+		}
+
+		System.out.println("App: "+BuildVoronoiEdges.class.getSimpleName());
+		Metrics.get().setStep(BuildVoronoiEdges.class.getSimpleName());
+		System.out.println("Inputs:");
+		System.out.println("- in file: "+inputGeoPackageFilename);
+		System.out.println("   - table: "+tableName);
+		System.out.println("- out file: "+outputGeoPackageFilename);
+		if (bboxStr != null) {
+			System.out.println("- bbox: "+bboxStr);
+			System.out.println("- bbox srs: "+bboxCrs);
+		}
+		System.out.println("- tiles: "+tileGridSize);
+		System.out.println("- threads: "+numThreads);
+
+		Map<String, String> inputDatastoreParams = new HashMap<String, String>();
+		inputDatastoreParams.put("dbtype", GEOPKG_ID);
+		inputDatastoreParams.put("database", inputGeoPackageFilename);
+
+		DataStore inDatastore = null;
+		try {
+			inDatastore = DataStoreFinder.getDataStore(inputDatastoreParams);
+		} catch (IOException e) {
+			System.out.println("Unable to open input file: "+inputGeoPackageFilename);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		if (inDatastore == null) {
+			System.out.println("Unable to open input datastore");
+			System.exit(1);
+		}
+
+		//setup the tiles
+		//---------------------------------------------------------------------
+
+		SimpleFeatureSource waterFeatureSource = null;
+		ReferencedEnvelope bounds = null;
+		int srid = -1;
+		try {
+			waterFeatureSource = inDatastore.getFeatureSource(tableName);
+			srid = SaveUtils.getSrid(waterFeatureSource.getSchema());
+			if (bboxStr != null) {
+				bounds = PrepCgalVoronoiInput.parseBbox(bboxStr, bboxCrs, waterFeatureSource.getSchema().getCoordinateReferenceSystem());
+			}
+			else {
+				bounds = waterFeatureSource.getBounds();
+			}
+		} catch (Exception e) {
+			System.out.println("Unable to read table "+tableName);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		if (tileHalo == null) {
+			double tileSize = Math.min(bounds.getWidth() / gridSize[0], bounds.getHeight() / gridSize[1]);
+			tileHalo = tileSize * PrepCgalVoronoiInput.DEFAULT_TILE_HALO_FRACTION;
+		}
+		TileGrid tileGrid = new TileGrid(bounds, gridSize[0], gridSize[1], tileHalo);
+		System.out.println("- tile halo: "+tileHalo);
+
+		//add each segment to the diagram of every tile whose halo it passes through (clipped to the halo)
+		//---------------------------------------------------------------------
+
+		final SegmentVoronoiDiagram[] diagrams = new SegmentVoronoiDiagram[tileGrid.getNumTiles()];
+		for (int tile = 0; tile < diagrams.length; tile++) {
+			diagrams[tile] = new SegmentVoronoiDiagram(tileGrid.getHaloEnvelope(tile));
+		}
+
+		System.out.println("Reading water features...");
+		int numFeatures = 0;
+		int numSegmentsOutside = 0;
+		try {
+			SimpleFeatureIterator it = waterFeatureSource.getFeatures().features();
+			try {
+				while (it.hasNext()) {
+					SimpleFeature feature = it.next();
+					Geometry geometry = (Geometry)feature.getDefaultGeometry();
+					if (geometry == null) {
+						continue;
+					}
+					//each feature is identified by its position in the table
+					int featureIndex = numFeatures++;
+					for (int n = 0; n < geometry.getNumGeometries(); n++) {
+						Coordinate[] coordinates = geometry.getGeometryN(n).getCoordinates();
+						for (int i = 1; i < coordinates.length; i++) {
+							Map<Integer, Coordinate[]> parts = tileGrid.clipToHalos(coordinates[i-1], coordinates[i]);
+							if (parts.isEmpty()) {
+								numSegmentsOutside++;
+							}
+							for (Map.Entry<Integer, Coordinate[]> part : parts.entrySet()) {
+								diagrams[part.getKey()].addSegment(part.getValue()[0], part.getValue()[1], featureIndex);
+							}
+						}
+					}
+				}
+			} finally {
+				it.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to read water features");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		inDatastore.dispose();
+		System.out.println(" - "+numFeatures+" water features");
+		if (numSegmentsOutside > 0) {
+			System.out.println(" - "+numSegmentsOutside+" segments outside the bbox skipped");
+		}
+
+		//compute the tiles' diagrams, and stitch them together in tile order
+		//---------------------------------------------------------------------
+
+		SimpleFeatureType voronoiEdgesFeatureType = null;
+		try {
+			voronoiEdgesFeatureType = DataUtilities.createType(GEOPKG_VORONOI_EDGES_TABLE, "geometry:LineString");
+		} catch (SchemaException e1) {
+			System.out.println("Unable to create feature type "+GEOPKG_VORONOI_EDGES_TABLE);
+			System.exit(1);
+		}
+		SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(voronoiEdgesFeatureType);
+		ListFeatureCollection voronoiEdgesFeatureCollection = new ListFeatureCollection(voronoiEdgesFeatureType);
+		//the table's bounds are the bbox, since the table is created before all edges are known
+		ReferencedEnvelope tableBounds = new ReferencedEnvelope(bounds, null);
+		FeatureEntry voronoiEdgesEntry = null;
+
+		GeoPackage outGeoPackage = null;
+		try {
+			outGeoPackage = new GeoPackage(new File(outputGeoPackageFilename));
+			outGeoPackage.init();
+		} catch (IOException e) {
+			System.out.println("Unable to create geopackage "+outputGeoPackageFilename);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+		//a single tile has no seams, so its edges are written whole, as WKTList2GeoPackage would
+		TileStitcher stitcher = diagrams.length > 1 ? new TileStitcher(tileGrid, seamTolerance) : null;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		//at most 2 tiles per thread are queued, so the edges of finished tiles don't pile up while an
+		//earlier tile is still being computed
+		int maxQueued = numThreads * 2;
+		LinkedList<Future<List<Coordinate[]>>> queue = new LinkedList<Future<List<Coordinate[]>>>();
+		int nextTileToSubmit = 0;
+		int nextId = 0;
+
+		System.out.println("Computing voronoi diagrams of "+diagrams.length+" tiles...");
+		long t1 = System.nanoTime();
+		try {
+			for (int tile = 0; tile < diagrams.length; tile++) {
+				while (nextTileToSubmit < diagrams.length && queue.size() < maxQueued) {
+					final SegmentVoronoiDiagram diagram = diagrams[nextTileToSubmit];
+					diagrams[nextTileToSubmit] = null;
+					SEGMENTS_IN.add(diagram.getNumSegments());
+					queue.add(executor.submit(new Callable<List<Coordinate[]>>() {
+						public List<Coordinate[]> call() {
+							long start = TILE_TIMER.start();
+							List<Coordinate[]> edges = diagram.computeEdges();
+							TILE_TIMER.stop(start);
+							return edges;
+						}
+					}));
+					nextTileToSubmit++;
+				}
+
+				List<Coordinate[]> edges = null;
+				try {
+					edges = queue.removeFirst().get();
+				} catch (Exception e) {
+					System.out.println("Unable to compute the voronoi diagram of tile "+tile);
+					e.printStackTrace();
+					System.exit(1);
+				}
+				EDGES_KEPT.add(edges.size());
+
+				int numKeptFromTile = 0;
+				for (Coordinate[] edgeCoordinates : edges) {
+					List<Coordinate[]> parts = stitcher != null ? stitcher.stitch(edgeCoordinates, tile) : Collections.singletonList(edgeCoordinates);
+					for (Coordinate[] clipped : parts) {
+						LineString edge = geometryFactory.createLineString(clipped);
+						edge.setSRID(srid);
+						Object[] attributeValues = new Object[] { edge };
+						SimpleFeature feature = featureBuilder.buildFeature(nextId+"", attributeValues);
+						voronoiEdgesFeatureCollection.add(feature);
+						nextId++;
+						numKeptFromTile++;
+						if (voronoiEdgesFeatureCollection.size() >= writeBatchSize) {
+							voronoiEdgesEntry = SaveUtils.writeBatch(outGeoPackage, voronoiEdgesEntry, voronoiEdgesFeatureCollection, tableBounds, srid);
+						}
+					}
+				}
+				System.out.println(" - tile "+tile+": "+numKeptFromTile+" edges");
+			}
+			executor.shutdown();
+			long t2 = System.nanoTime();
+			System.out.println(" - Run time: "+Metrics.formatSeconds(t2 - t1));
+			if (stitcher != null) {
+				System.out.println(stitcher.getNumDuplicates() + " duplicate seam edges removed");
+				System.out.println(stitcher.getNumSnapped() + " seam endpoints snapped");
+			}
+
+			//write the last batch.  if no edges were kept the (empty) batch still creates the table,
+			//so the next steps find an empty voronoi_edges table rather than none.
+			if (voronoiEdgesFeatureCollection.size() > 0 || voronoiEdgesEntry == null) {
+				voronoiEdgesEntry = SaveUtils.writeBatch(outGeoPackage, voronoiEdgesEntry, voronoiEdgesFeatureCollection, tableBounds, srid);
+			}
+			EDGES_WRITTEN.add(nextId);
+			System.out.println("Saved "+nextId+" features to "+GEOPKG_VORONOI_EDGES_TABLE);
+			System.out.println("Adding spatial index on "+GEOPKG_VORONOI_EDGES_TABLE+"...");
+			outGeoPackage.createSpatialIndex(voronoiEdgesEntry);
+			System.out.println(" - Done");
+			outGeoPackage.close();
+		} catch (IOException e) {
+			System.out.println("Unable to save "+outputGeoPackageFilename);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		if (metricsFilename != null) {
+			try {
+				Metrics.get().save(metricsFilename);
+			} catch (IOException e) {
+				System.out.println("Unable to save metrics to "+metricsFilename);
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+
+		System.out.println("All Done");
+	}
+
+}
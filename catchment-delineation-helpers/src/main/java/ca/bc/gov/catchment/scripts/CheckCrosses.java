@@ -1,12 +1,22 @@
 package ca.bc.gov.catchment.scripts;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.MalformedURLException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -44,6 +54,7 @@ import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.io.WKBWriter;
 import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
 import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 import org.opengis.feature.simple.SimpleFeature;
@@ -54,12 +65,15 @@ import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import ca.bc.gov.catchment.voronoi.SpatialIndexFeatureCollection2;
+import ca.bc.gov.catchment.voronoi.PackedSpatialIndexFeatureCollection;
+import ca.bc.gov.catchments.utils.MemoryGovernor;
+import ca.bc.gov.catchments.utils.Metrics;
 
 public class CheckCrosses {
 
 	private static final String GEOPKG_ID = "geopkg";
 	private static final double DEFAULT_PRECISION_SCALE = 1000; //3 decimal places
+	private static final String FIELD_SEPARATOR = "\t";
 	
 	public static void main(String[] args) {
 		
@@ -67,27 +81,68 @@ public class CheckCrosses {
 		Options options = new Options();
 		options.addOption("i", true, "Input GeoPackage file");
 		options.addOption("tables", true, "csv list of table names to process");
+		options.addOption("fingerprintFile", true, "Output file in which to save a fingerprint of each feature's geometry");
+		options.addOption("crossingsFile", true, "Output file in which to save the list of crossing features");
+		options.addOption("prevFingerprintFile", true, "Fingerprint file from a previous run.  If specified (along with prevCrossingsFile), only features with changed geometry are re-checked");
+		options.addOption("prevCrossingsFile", true, "Crossings file from a previous run.  Merged with the crossings found in changed features");
+		options.addOption("metricsFile", true, "JSON file to save the run's metrics to.  The metrics are also saved in the Prometheus text format, to a .prom file beside it.");
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		
 		String inputGeopackageFilename = null;
 		String outputGeopackageFilename = null;
 		String tableNamesCsv = null;
+		String fingerprintFilename = null;
+		String crossingsFilename = null;
+		String prevFingerprintFilename = null;
+		String prevCrossingsFilename = null;
+		String metricsFilename = null;
 		double precisionScale = 0;
 		
 		try {
 			CommandLine cmd = parser.parse( options, args);
 			inputGeopackageFilename = cmd.getOptionValue("i");
 			tableNamesCsv = cmd.getOptionValue("tables");
+			fingerprintFilename = cmd.getOptionValue("fingerprintFile");
+			crossingsFilename = cmd.getOptionValue("crossingsFile");
+			prevFingerprintFilename = cmd.getOptionValue("prevFingerprintFile");
+			prevCrossingsFilename = cmd.getOptionValue("prevCrossingsFile");
+			metricsFilename = cmd.getOptionValue("metricsFile");
 		} catch (ParseException e2) {
 			formatter.printHelp( WKTList2GeoPackage.class.getSimpleName(), options );
 		}
 		
+		if ((prevFingerprintFilename == null) != (prevCrossingsFilename == null)) {
+			System.out.println("Options prevFingerprintFile and prevCrossingsFile must be specified together");
+			System.exit(1);
+		}
+		boolean incremental = prevFingerprintFilename != null;
+		
 		String[] tableNamesToProcess = tableNamesCsv.split(","); 
 		
 		System.out.println("Inputs:");
 		System.out.println("- in file: "+inputGeopackageFilename);
 		System.out.println("- tables: "+tableNamesCsv);		
+		if (incremental) {
+			System.out.println("- previous fingerprints: "+prevFingerprintFilename);
+			System.out.println("- previous crossings: "+prevCrossingsFilename);
+		}
+		
+		//fingerprints and crossings are keyed by table name, then by feature id
+		Map<String, Map<String, String>> prevFingerprints = new HashMap<String, Map<String, String>>();
+		Map<String, Set<String>> prevCrossings = new HashMap<String, Set<String>>();
+		if (incremental) {
+			try {
+				prevFingerprints = readFingerprints(prevFingerprintFilename);
+				prevCrossings = readCrossings(prevCrossingsFilename);
+			} catch (IOException e) {
+				System.out.println("Unable to read results of previous run");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		Map<String, Map<String, String>> fingerprints = new TreeMap<String, Map<String, String>>();
+		Map<String, Set<String>> crossings = new TreeMap<String, Set<String>>(prevCrossings);
 		
 		Map<String, String> inputDatastoreParams = new HashMap<String, String>();
 		inputDatastoreParams.put("dbtype", GEOPKG_ID);
@@ -109,12 +164,21 @@ public class CheckCrosses {
 			System.exit(1);
 		}
 		
+		Metrics.get().setStep(CheckCrosses.class.getSimpleName());
+		Metrics.Counter featuresProcessed = Metrics.get().counter("crosses_features_processed", "Features fingerprinted");
+		Metrics.Counter featuresChecked = Metrics.get().counter("crosses_features_checked", "Features checked for crossings (all features, or only the changed ones when incremental)");
+		Metrics.Counter crossingsFound = Metrics.get().counter("crosses_crossings", "Crossing pairs (counted in both directions), including those kept from the previous run");
+		Metrics.Timer tableTimer = Metrics.get().timer("crosses_table", "Wall time to check each table (including building its index)");
+		Metrics.Timer checkTimer = Metrics.get().timer("crosses_check_feature", "Time to find the features crossing one feature");
+		MemoryGovernor.get().startSampling();
+		
 		FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
 		int totalNumCrosses = 0;
 		for(String featureTypeName : tableNamesToProcess) {
-			Date t0 = new Date();
+			long tableStart = tableTimer.start();
 			
 			System.out.println("Processing "+featureTypeName);
+			MemoryGovernor.get().setPhase("crosses_"+featureTypeName.toLowerCase());
 
 			SimpleFeatureType featureType;
 			try {
@@ -138,38 +202,96 @@ public class CheckCrosses {
 						
 
 			//iterate over each feature in the input datastore.  
-			//check whether it crosses any other features.  
+			//check whether it crosses any other features.  In incremental mode only features
+			//whose geometry fingerprint differs from the previous run are checked (against all
+			//features), because only those can have created or removed a crossing.
 			try {
 				SimpleFeatureCollection inFeatureCollection = inFeatureSource.getFeatures();
 				SimpleFeatureIterator it = inFeatureCollection.features();
 				String geomPropertyName = featureType.getGeometryDescriptor().getLocalName();
 				 
-				SpatialIndexFeatureCollection fastFeatureCollection = new SpatialIndexFeatureCollection(inFeatureCollection);
-				SpatialIndexFeatureSource fastFeatureSource = new SpatialIndexFeatureSource(fastFeatureCollection);
+				PackedSpatialIndexFeatureCollection fastFeatureCollection = new PackedSpatialIndexFeatureCollection(inFeatureCollection);
 				
+				Map<String, String> prevTableFingerprints = prevFingerprints.get(featureTypeName);
+				if (prevTableFingerprints == null) {
+					prevTableFingerprints = new HashMap<String, String>();
+				}
+				Map<String, String> tableFingerprints = new HashMap<String, String>();
+				Set<String> changedFids = new HashSet<String>();
+				Set<String> newCrossings = new HashSet<String>();
+				//one check per feature, all on this thread, so the times are recorded locally and flushed per table
+				Metrics.LocalTimer checkTimes = checkTimer.local();
 				
-				int numCrosses = 0;
 	            while (it.hasNext()) {
 	            	
 	            	//get the input feature
 	            	SimpleFeature inFeature = it.next();
 	            	Geometry inGeom = (Geometry)inFeature.getDefaultGeometry();
 	            	
+	            	String fingerprint = fingerprint(inGeom);
+	            	tableFingerprints.put(inFeature.getID(), fingerprint);
+	            	if (incremental && fingerprint.equals(prevTableFingerprints.get(inFeature.getID()))) {
+	            		continue;
+	            	}
+	            	changedFids.add(inFeature.getID());
+	            	
+	            	long checkStart = checkTimes.start();
 	            	Filter crossesFilter = filterFactory.crosses(filterFactory.property(geomPropertyName), filterFactory.literal(inGeom));
-	            	SimpleFeatureCollection crossingFeatures = fastFeatureSource.getFeatures(crossesFilter);
-	            	numCrosses += crossingFeatures.size();
+	            	SimpleFeatureCollection crossingFeatures = fastFeatureCollection.subCollection(crossesFilter);
+	            	SimpleFeatureIterator crossingIt = crossingFeatures.features();
+	            	while (crossingIt.hasNext()) {
+	            		SimpleFeature crossingFeature = crossingIt.next();
+	            		//crossing is symmetric, so record the pair in both directions.  this 
+	            		//allows pairs with an unchanged feature to be replaced on the next run 
+	            		newCrossings.add(inFeature.getID() + FIELD_SEPARATOR + crossingFeature.getID());
+	            		newCrossings.add(crossingFeature.getID() + FIELD_SEPARATOR + inFeature.getID());
+	            	}
+	            	crossingIt.close();
+	            	checkTimes.stop(checkStart);
 
 	            }
 	            it.close();	  
+	            checkTimes.flush();
+	            
+	            //features which no longer exist can't cross anything
+	            Set<String> removedFids = new HashSet<String>(prevTableFingerprints.keySet());
+	            removedFids.removeAll(tableFingerprints.keySet());
+	            
+	            //merge: keep previous crossings between unchanged features, and add the new ones
+	            Set<String> tableCrossings = new TreeSet<String>();
+	            Set<String> prevTableCrossings = incremental ? prevCrossings.get(featureTypeName) : null;
+	            if (prevTableCrossings != null) {
+	            	for (String pair : prevTableCrossings) {
+	            		String[] fids = pair.split(FIELD_SEPARATOR);
+	            		boolean stale = changedFids.contains(fids[0]) || changedFids.contains(fids[1]) 
+	            				|| removedFids.contains(fids[0]) || removedFids.contains(fids[1]);
+	            		if (!stale) {
+	            			tableCrossings.add(pair);
+	            		}
+	            	}
+	            }
+	            tableCrossings.addAll(newCrossings);
+	            
+	            fingerprints.put(featureTypeName, tableFingerprints);
+	            crossings.put(featureTypeName, tableCrossings);
+	            
+	            int numCrosses = tableCrossings.size();
 	            totalNumCrosses += numCrosses;
 	            
-	    		Date t1 = new Date();
-	    		long runTimeMs = t1.getTime() - t0.getTime();
+	    		long runTimeNanos = tableTimer.stop(tableStart);
+	    		int numFeatures = tableFingerprints.size();
+	    		featuresProcessed.add(numFeatures);
+	    		featuresChecked.add(changedFids.size());
+	    		crossingsFound.add(numCrosses);
 	    		
 	    		System.out.println("Summary");
-	    		System.out.println(" - "+inFeatureCollection.size()+" features processed");
+	    		System.out.println(" - "+numFeatures+" features processed");
+	    		if (incremental) {
+	    			System.out.println(" - "+changedFids.size()+" changed features re-checked");
+	    			System.out.println(" - "+removedFids.size()+" features removed since previous run");
+	    		}
 	    		System.out.println(" - # crossings: "+numCrosses);	
-	    		System.out.println(" - run time: "+runTimeMs+" ms");	
+	    		System.out.println(" - run time: "+Metrics.formatSeconds(runTimeNanos)+" ("+Metrics.formatRate(numFeatures, runTimeNanos)+")");	
 	    		
 	            
 			} catch (IOException e) {
@@ -177,11 +299,133 @@ public class CheckCrosses {
 			}
 
 		}
+		
+		try {
+			if (fingerprintFilename != null) {
+				writeFingerprints(fingerprintFilename, fingerprints);
+				System.out.println("Saved fingerprints: "+fingerprintFilename);
+			}
+			if (crossingsFilename != null) {
+				writeCrossings(crossingsFilename, crossings);
+				System.out.println("Saved crossings: "+crossingsFilename);
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to save results");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		MemoryGovernor.get().stopSampling();
+		
+		if (metricsFilename != null) {
+			try {
+				Metrics.get().save(metricsFilename);
+			} catch (IOException e) {
+				System.out.println("Unable to save metrics to "+metricsFilename);
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 
 		System.out.println("All done");
 		System.exit(totalNumCrosses);
 		
 	}
-	 
+	
+	/**
+	 * Computes a fingerprint of the given geometry.  Two geometries have the same fingerprint
+	 * only if they have identical coordinates.
+	 */
+	private static String fingerprint(Geometry geometry) {
+		byte[] wkb = new WKBWriter().write(geometry);
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Unable to compute fingerprint.  An internal error occurred.");
+		}
+		return new BigInteger(1, digest.digest(wkb)).toString(16);
+	}
+	
+	/**
+	 * Reads a fingerprint file.  Each line is of the form:
+	 * 	[table]\t[fid]\t[fingerprint]
+	 */
+	private static Map<String, Map<String, String>> readFingerprints(String filename) throws IOException {
+		Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String[] pieces = line.split(FIELD_SEPARATOR);
+				if (pieces.length != 3) {
+					continue;
+				}
+				Map<String, String> tableFingerprints = result.get(pieces[0]);
+				if (tableFingerprints == null) {
+					tableFingerprints = new HashMap<String, String>();
+					result.put(pieces[0], tableFingerprints);
+				}
+				tableFingerprints.put(pieces[1], pieces[2]);
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+	
+	/**
+	 * Reads a crossings file.  Each line is of the form:
+	 * 	[table]\t[fid]\t[fid of crossing feature]
+	 */
+	private static Map<String, Set<String>> readCrossings(String filename) throws IOException {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				int a = line.indexOf(FIELD_SEPARATOR);
+				if (a == -1) {
+					continue;
+				}
+				String tableName = line.substring(0, a);
+				Set<String> tableCrossings = result.get(tableName);
+				if (tableCrossings == null) {
+					tableCrossings = new TreeSet<String>();
+					result.put(tableName, tableCrossings);
+				}
+				tableCrossings.add(line.substring(a+1));
+			}
+		} finally {
+			reader.close();
+		}
+		return result;
+	}
+	
+	private static void writeFingerprints(String filename, Map<String, Map<String, String>> fingerprints) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(filename, false));
+		try {
+			for (String tableName : fingerprints.keySet()) {
+				for (Map.Entry<String, String> entry : fingerprints.get(tableName).entrySet()) {
+					writer.write(tableName + FIELD_SEPARATOR + entry.getKey() + FIELD_SEPARATOR + entry.getValue() + "\n");
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	private static void writeCrossings(String filename, Map<String, Set<String>> crossings) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(filename, false));
+		try {
+			for (String tableName : crossings.keySet()) {
+				for (String pair : crossings.get(tableName)) {
+					writer.write(tableName + FIELD_SEPARATOR + pair + "\n");
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
 
 }
@@ -2,7 +2,6 @@ package ca.bc.gov.catchment.scripts;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -31,6 +30,7 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geopkg.FeatureEntry;
 import org.geotools.geopkg.GeoPackage;
+import org.geotools.referencing.CRS;
 import org.locationtech.jts.geom.Geometry;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -39,19 +39,27 @@ import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import ca.bc.gov.catchment.voronoi.EdgeCleaner;
+import ca.bc.gov.catchment.voronoi.EdgeStore;
 import ca.bc.gov.catchment.voronoi.GeoPackagePersistable;
+import ca.bc.gov.catchment.voronoi.GeoPackageTileReader;
 import ca.bc.gov.catchment.voronoi.KeptAndDiscarded;
+import ca.bc.gov.catchment.voronoi.KeptAndDiscardedEdges;
 import ca.bc.gov.catchment.voronoi.Persistable;
 import ca.bc.gov.catchment.voronoi.VoronoiLongLineCleaner;
 import ca.bc.gov.catchment.voronoi.VoronoiTouchingWaterCleaner;
 import ca.bc.gov.catchment.voronoi.VoronoiDanglerCleaner;
+import ca.bc.gov.catchment.voronoi.WaterFeatureContext;
 import ca.bc.gov.catchments.utils.FilterUtils;
-import ca.bc.gov.catchments.utils.SaveUtils;
+import ca.bc.gov.catchments.utils.MemoryGovernor;
+import ca.bc.gov.catchments.utils.Metrics;
 
 public class CleanVoronoiOutput {
 
 	private static final String DEFAULT_VORONOI_EDGES_FEATURE_TYPE = "VORONOI_EDGES";
 	private static final String GEOPKG_ID = "geopkg";
+	private static final int EDGE_STORE_SAVE_CHUNK_SIZE = 100000;
+	private static final Metrics.Timer PERSIST_TIMER = Metrics.get().timer("clean_persist", "Time to save the kept and discarded edges of each phase");
 	
 	
 	public static void main(String[] args) {
@@ -68,6 +76,12 @@ public class CleanVoronoiOutput {
 		options.addOption("outKeptTable", true, "Name of output table containing kept voronoi edges");
 		options.addOption("outDiscardedTable", true, "Name of output table containing discarded voronoi edges");
 		options.addOption("startPhase", true, "Phase number to start on");
+		options.addOption("edgeStore", false, "Load the voronoi edges once into a compact in-memory edge store, and clean that (rather than features)");
+		options.addOption("danglerThreads", true, "Number of threads to use when discarding dangling edges from an edge store (-edgeStore).  Defaults to 1.");
+		options.addOption("metricsFile", true, "JSON file to save the run's metrics to.  The metrics are also saved in the Prometheus text format, to a .prom file beside it.");
+		options.addOption("waterFeaturesIndexCacheDir", true, "Folder in which to cache the water features spatial index between runs.  If not specified, the index is rebuilt on every run.");
+		options.addOption("spillThreshold", true, "Fraction of the maximum heap above which the kept and discarded edges are spilled to disk.  Defaults to "+MemoryGovernor.DEFAULT_SPILL_THRESHOLD+".  1 disables spilling.");
+		options.addOption("spillDir", true, "Folder for spill files.  Defaults to the system's temporary folder.");
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		
@@ -79,6 +93,12 @@ public class CleanVoronoiOutput {
 		String outKeptTableName = null;
 		String outDiscardedTableName = null;
 		int startPhase = 1;
+		String waterFeaturesIndexCacheDir = null;
+		boolean useEdgeStore = false;
+		int danglerThreads = 1;
+		String metricsFilename = null;
+		double spillThreshold = MemoryGovernor.DEFAULT_SPILL_THRESHOLD;
+		String spillDir = null;
 		
 		try {
 			CommandLine cmd = parser.parse( options, args);
@@ -90,6 +110,12 @@ public class CleanVoronoiOutput {
 			outKeptTableName = cmd.getOptionValue("outKeptTable", voronoiEdgesTableName+"_kept");
 			outDiscardedTableName = cmd.getOptionValue("outDiscardedTable", voronoiEdgesTableName+"_discarded");
 			startPhase = Integer.parseInt(cmd.getOptionValue("startPhase", "1"));
+			waterFeaturesIndexCacheDir = cmd.getOptionValue("waterFeaturesIndexCacheDir");
+			useEdgeStore = cmd.hasOption("edgeStore");
+			danglerThreads = Integer.parseInt(cmd.getOptionValue("danglerThreads", "1"));
+			metricsFilename = cmd.getOptionValue("metricsFile");
+			spillThreshold = Double.parseDouble(cmd.getOptionValue("spillThreshold", ""+MemoryGovernor.DEFAULT_SPILL_THRESHOLD));
+			spillDir = cmd.getOptionValue("spillDir");
 		} catch (ParseException e) {
 			e.printStackTrace();
 			formatter.printHelp( CleanVoronoiOutput.class.getSimpleName(), options );
@@ -113,14 +139,31 @@ public class CleanVoronoiOutput {
 			formatter.printHelp( CleanVoronoiOutput.class.getSimpleName(), options );
 			System.exit(1);
 		}
+		if (spillThreshold <= 0) {
+			System.out.println("-spillThreshold must be greater than 0");
+			System.exit(1);
+		}
 		
 		System.out.println("App: "+CleanVoronoiOutput.class.getSimpleName());
+		Metrics.get().setStep(CleanVoronoiOutput.class.getSimpleName());
+		MemoryGovernor.get().setSpillThreshold(spillThreshold);
+		if (spillDir != null) {
+			MemoryGovernor.get().setSpillDir(new File(spillDir));
+		}
+		MemoryGovernor.get().startSampling();
 		System.out.println("Inputs:");
 		System.out.println("- voronoiEdgesFile: "+voronoiEdgesFilename);
 		System.out.println("   - voronoiEdgesTableName: " +voronoiEdgesTableName);
 		System.out.println("- waterFeaturesFile: "+waterFeaturesFilename);
 		System.out.println("   - waterFeaturesTable: " +waterFeaturesTable);
 		System.out.println("- outFile: "+outputFilename);
+		if (waterFeaturesIndexCacheDir != null) {
+			System.out.println("- waterFeaturesIndexCacheDir: "+waterFeaturesIndexCacheDir);
+		}
+		if (useEdgeStore) {
+			System.out.println("- edgeStore: yes");
+			System.out.println("   - danglerThreads: "+danglerThreads);
+		}
 		System.out.println("Connecting to input data...");
 
 		//open input files
@@ -200,6 +243,23 @@ public class CleanVoronoiOutput {
 		try {
 			int phase = startPhase;
 			SimpleFeatureSource featureSourceForNextPhase = voronoiEdgesFeatureSource;
+			//the GeoPackage table holding featureSourceForNextPhase, if any.  tiles of it are read directly from its rtree.
+			String fileForNextPhase = voronoiEdgesFilename;
+			String tableForNextPhase = voronoiEdgesTableName;
+			
+			//the water features are read and indexed once, and shared by every phase
+			File indexCacheDir = waterFeaturesIndexCacheDir != null ? new File(waterFeaturesIndexCacheDir) : null;
+			WaterFeatureContext waterFeatureContext = new WaterFeatureContext(waterFeatureSource, waterFeaturesFilename, waterFeaturesTable, indexCacheDir);
+			if (!CRS.equalsIgnoreMetadata(waterFeatureContext.getCrs(), voronoiEdgesFeatureSource.getSchema().getCoordinateReferenceSystem())) {
+				System.out.println("Warning: the voronoi edges and water features have different coordinate reference systems");
+			}
+			//in edge store mode, the edges to clean in the next phase
+			EdgeStore edgesForNextPhase = null;
+			if (useEdgeStore) {
+				System.out.println(" - Loading voronoi edges into edge store...");
+				edgesForNextPhase = EdgeStore.load(voronoiEdgesFilename, voronoiEdgesTableName);
+				System.out.println("   - "+edgesForNextPhase.size()+" edges loaded");
+			}
 			
 			if (phase <= 0) {
 				//this phase is probably unnecessary.  most of the bad edges are cleaned by the WKTList2GeoPackage script
@@ -207,20 +267,30 @@ public class CleanVoronoiOutput {
 				String phaseDiscardedTableName = outDiscardedTableName + "_p"+phase;
 				
 				System.out.println(" - Phase "+phase+": Remove long voronoi edges");
+				MemoryGovernor.get().setPhase("clean_phase"+phase);
 				System.out.println("   - Initializing...");
-				VoronoiLongLineCleaner cleaner = new VoronoiLongLineCleaner(featureSourceForNextPhase, waterFeatureSource, phaseKeptTableName, phaseDiscardedTableName);
-				Date t1 = new Date();
-				KeptAndDiscarded phaseResult = cleaner.clean();
-				Date t2 = new Date();
+				VoronoiLongLineCleaner cleaner = new VoronoiLongLineCleaner(featureSourceForNextPhase, waterFeatureContext, phaseKeptTableName, phaseDiscardedTableName);
+				if (edgesForNextPhase != null) {
+					edgesForNextPhase = cleanEdgeStore(phase, cleaner, edgesForNextPhase, outputFilename, phaseKeptTableName, phaseDiscardedTableName);
+					System.out.println("   - Phase "+phase+" done");
+				}
+				else {
+					long t1 = System.nanoTime();
+					KeptAndDiscarded phaseResult = cleaner.clean();
+					long t2 = System.nanoTime();
 				
-				System.out.println("   - Run time: "+(t2.getTime()-t1.getTime())/1000+ " s");
-	            System.out.println("   - Saving "+phaseResult.getNumKept()+" features to "+phaseKeptTableName+"...");
-	            SaveUtils.saveToGeoPackage(outputFilename, phaseResult.getKept());
-	            System.out.println("   - Saving "+phaseResult.getNumDiscarded()+" features to "+phaseDiscardedTableName+"...");
-	            SaveUtils.saveToGeoPackage(outputFilename, phaseResult.getDiscarded());
-	            System.out.println("   - Phase "+phase+" done");
+					System.out.println("   - Run time: "+Metrics.formatSeconds(t2 - t1));
+					getPhaseTimer(phase).record(t2 - t1);
+		            long persistStart = PERSIST_TIMER.start();
+		            System.out.println("   - Saving "+phaseResult.getNumKept()+" features to "+phaseKeptTableName+" and "+phaseResult.getNumDiscarded()+" features to "+phaseDiscardedTableName+"...");
+		            phaseResult.persist(new GeoPackagePersistable(outputFilename, phaseKeptTableName), new GeoPackagePersistable(outputFilename, phaseDiscardedTableName));
+		            PERSIST_TIMER.stop(persistStart);
+		            System.out.println("   - Phase "+phase+" done");
 	            
-				featureSourceForNextPhase = DataUtilities.source(phaseResult.getKept());
+					featureSourceForNextPhase = DataUtilities.source(phaseResult.getKept());
+					fileForNextPhase = null;
+					tableForNextPhase = null;
+				}
 				phase++;
 			} 
 			if (phase <= 1) {
@@ -229,17 +299,32 @@ public class CleanVoronoiOutput {
 				String phaseDiscardedTableName = outDiscardedTableName + "_p"+phase;
 				
 				System.out.println(" - Phase "+phase+": Discard voronoi edges touching only one water feature");
+				MemoryGovernor.get().setPhase("clean_phase"+phase);
 				System.out.println("   - Initializing...");
-				VoronoiTouchingWaterCleaner phase1 = new VoronoiTouchingWaterCleaner(featureSourceForNextPhase, waterFeatureSource, phaseKeptTableName, phaseDiscardedTableName);
-				Date t1 = new Date();
-				Persistable kept = new GeoPackagePersistable(outputFilename, phaseKeptTableName);
-				Persistable discarded = new GeoPackagePersistable(outputFilename, phaseDiscardedTableName);
-				phase1.clean(kept, discarded);
-				Date t2 = new Date();
-				System.out.println("   - Run time: "+(t2.getTime()-t1.getTime())/1000+ " s");
-				System.out.println("   - Phase "+phase+" done");
+				VoronoiTouchingWaterCleaner phase1 = new VoronoiTouchingWaterCleaner(featureSourceForNextPhase, waterFeatureContext, phaseKeptTableName, phaseDiscardedTableName);
+				if (edgesForNextPhase != null) {
+					edgesForNextPhase = cleanEdgeStore(phase, phase1, edgesForNextPhase, outputFilename, phaseKeptTableName, phaseDiscardedTableName);
+					System.out.println("   - Phase "+phase+" done");
+				}
+				else {
+					GeoPackageTileReader tileReader = openTileReader(fileForNextPhase, tableForNextPhase, featureSourceForNextPhase.getSchema());
+					phase1.setTileReader(tileReader);
+					long t1 = System.nanoTime();
+					GeoPackagePersistable kept = new GeoPackagePersistable(outputFilename, phaseKeptTableName);
+					Persistable discarded = new GeoPackagePersistable(outputFilename, phaseDiscardedTableName);
+					phase1.clean(kept, discarded);
+					long t2 = System.nanoTime();
+					if (tileReader != null) {
+						tileReader.close();
+					}
+					System.out.println("   - Run time: "+Metrics.formatSeconds(t2 - t1));
+					getPhaseTimer(phase).record(t2 - t1);
+					System.out.println("   - Phase "+phase+" done");
 
-				featureSourceForNextPhase = DataUtilities.source(kept.getFeatureCollection());
+					featureSourceForNextPhase = DataUtilities.source(kept.getFeatureCollection());
+					fileForNextPhase = kept.getFilename();
+					tableForNextPhase = kept.getFeatureTypeName();
+				}
 				phase++;
 			} 
 			if (phase <= 2) {
@@ -247,27 +332,40 @@ public class CleanVoronoiOutput {
 				String phaseDiscardedTableName = outDiscardedTableName + "_p"+phase;
 				
 				System.out.println(" - Phase "+phase+": Discard dangling voronoi edges");
+				MemoryGovernor.get().setPhase("clean_phase"+phase);
 				System.out.println("   - Initializing...");
 				
-				VoronoiDanglerCleaner phase2 = new VoronoiDanglerCleaner(featureSourceForNextPhase, waterFeatureSource, phaseKeptTableName, phaseDiscardedTableName);
+				VoronoiDanglerCleaner phase2 = new VoronoiDanglerCleaner(featureSourceForNextPhase, waterFeatureContext, phaseKeptTableName, phaseDiscardedTableName);
+				if (edgesForNextPhase != null) {
+					phase2.setNumThreads(danglerThreads);
+					edgesForNextPhase = cleanEdgeStore(phase, phase2, edgesForNextPhase, outputFilename, phaseKeptTableName, phaseDiscardedTableName);
+					System.out.println("   - Phase "+phase+" done");
+				}
+				else {
+					long t1 = System.nanoTime();
+					KeptAndDiscarded phase2Result = phase2.clean();
+					long t2 = System.nanoTime();
+					System.out.println("   - Run time: "+Metrics.formatSeconds(t2 - t1));
+					getPhaseTimer(phase).record(t2 - t1);
 				
-				Date t1 = new Date();
-				KeptAndDiscarded phase2Result = phase2.clean();
-				Date t2 = new Date();
-				System.out.println("   - Run time: "+(t2.getTime()-t1.getTime())/1000+ " s");
+					//save phase 2 results:
+					// - kept edges
+					// - discarded edges
 				
-				//save phase 2 results:
-				// - kept edges
-				// - discarded edges
-				
-	            System.out.println("   - Saving "+phase2Result.getNumKept()+" features to "+phaseKeptTableName+"...");
-	            SaveUtils.saveToGeoPackage(outputFilename, phase2Result.getKept());
-	            System.out.println("   - Saving "+phase2Result.getNumDiscarded()+" features to "+phaseDiscardedTableName+"...");
-	            SaveUtils.saveToGeoPackage(outputFilename, phase2Result.getDiscarded());
-	            System.out.println("   - Phase "+phase+" done");
+		            long persistStart = PERSIST_TIMER.start();
+		            System.out.println("   - Saving "+phase2Result.getNumKept()+" features to "+phaseKeptTableName+" and "+phase2Result.getNumDiscarded()+" features to "+phaseDiscardedTableName+"...");
+		            phase2Result.persist(new GeoPackagePersistable(outputFilename, phaseKeptTableName), new GeoPackagePersistable(outputFilename, phaseDiscardedTableName));
+		            phase2Result.dispose();
+		            PERSIST_TIMER.stop(persistStart);
+		            System.out.println("   - Phase "+phase+" done");
+				}
 	            phase++;
 			}
 
+			MemoryGovernor.get().stopSampling();
+			if (metricsFilename != null) {
+				Metrics.get().save(metricsFilename);
+			}
 			System.out.println("All done");
 			
 		} catch (Exception e) {
@@ -277,4 +375,48 @@ public class CleanVoronoiOutput {
 
 	}
 	
+	/**
+	 * Cleans the edges of an edge store, and saves the kept and discarded edges to the given tables.
+	 * @return the kept edges
+	 */
+	private static EdgeStore cleanEdgeStore(int phase, EdgeCleaner cleaner, EdgeStore edges, String outputFilename, String keptTableName, String discardedTableName) throws IOException {
+		long t1 = System.nanoTime();
+		KeptAndDiscardedEdges result = cleaner.clean(edges);
+		long t2 = System.nanoTime();
+		System.out.println("   - Run time: "+Metrics.formatSeconds(t2 - t1));
+		getPhaseTimer(phase).record(t2 - t1);
+		System.out.println("   - Saving "+result.getNumKept()+" features to "+keptTableName+" and "+result.getNumDiscarded()+" features to "+discardedTableName+"...");
+		long persistStart = PERSIST_TIMER.start();
+		Persistable kept = new GeoPackagePersistable(outputFilename, keptTableName);
+		Persistable discarded = new GeoPackagePersistable(outputFilename, discardedTableName);
+		result.persist(cleaner, kept, discarded, EDGE_STORE_SAVE_CHUNK_SIZE);
+		PERSIST_TIMER.stop(persistStart);
+		return result.getKeptEdges();
+	}
+	
+	/**
+	 * @return the timer of the run time of the given phase (not including saving its results)
+	 */
+	private static Metrics.Timer getPhaseTimer(int phase) {
+		return Metrics.get().timer("clean_phase"+phase, "Run time of phase "+phase+" of the voronoi edge cleaning (not including saving)");
+	}
+	
+	/**
+	 * opens a reader of tiles from the given GeoPackage table's rtree, or returns null if the 
+	 * table has no rtree (in which case tiles are read with bbox filters instead)
+	 */
+	private static GeoPackageTileReader openTileReader(String filename, String tableName, SimpleFeatureType schema) {
+		if (filename == null || tableName == null) {
+			return null;
+		}
+		try {
+			GeoPackageTileReader tileReader = new GeoPackageTileReader(filename, tableName, schema);
+			System.out.println("   - Reading tiles from the spatial index of "+tableName);
+			return tileReader;
+		} catch (IOException e) {
+			System.out.println("   - Unable to read tiles from the spatial index of "+tableName+": "+e.getMessage());
+			return null;
+		}
+	}
+	
 }
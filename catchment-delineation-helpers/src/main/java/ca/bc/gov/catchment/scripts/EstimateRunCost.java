@@ -0,0 +1,466 @@
+package ca.bc.gov.catchment.scripts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.FeatureSource;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.opengis.feature.simple.SimpleFeature;
+
+import ca.bc.gov.catchments.utils.FilterUtils;
+import ca.bc.gov.catchments.utils.GeoPackageUtils;
+
+/**
+ * Estimates the cost of a run of the catchment delineation pipeline for a given bbox and
+ * whitelist/blacklist, before committing to it.  Counts the features, vertices and voronoi input
+ * segments that PrepCgalVoronoiInput would output, then projects the size of the voronoi diagram and
+ * the peak heap needed by WKTList2GeoPackage and each CleanVoronoiOutput phase.
+ *
+ * By default the counts come from the GeoPackage rtree and the raw geometry blobs (no geometries are
+ * built).  With -exact, PrepCgalVoronoiInput's own feature filter is used instead.
+ *
+ * The projections use rough per-object sizes, so treat the results as an order of magnitude.
+ */
+public class EstimateRunCost {
+
+	private static final String DEFAULT_STREAM_NETWORKS_FEATURE_TYPE = "STREAM_NETWORKS";
+	private static final String DEFAULT_LINEAR_BOUNDARIES_FEATURE_TYPE = "LINEAR_BOUNDARIES";
+	private static final String GEOPKG_ID = "geopkg";
+
+	//a segment voronoi diagram has one site per segment and one per distinct endpoint, and
+	//(by Euler's formula) fewer than 3 edges per site
+	private static final double VORONOI_EDGES_PER_SITE = 3;
+	//fraction of voronoi edges kept by CleanVoronoiOutput phase 1
+	private static final double PHASE1_KEPT_FRACTION = 0.4;
+	//the densest of CleanVoronoiOutput's 10x10 tiles holds this many times the average tile's features
+	private static final double TILE_SKEW = 4;
+	private static final int NUM_CLEANING_TILES = 100;
+
+	//approximate heap used by one in-memory feature (SimpleFeatureImpl, 2-point LineString,
+	//coordinate sequence, fid)
+	private static final long BYTES_PER_EDGE_FEATURE = 700;
+	private static final long BYTES_PER_INDEX_ENTRY = 120;
+	private static final long BYTES_PER_WATER_FEATURE = 400;
+	private static final long BYTES_PER_VERTEX = 40;
+	private static final long BASELINE_HEAP_BYTES = 256L * 1024 * 1024;
+	private static final double HEAP_HEADROOM = 1.5;
+
+	//geopackage geometry blob: "GP", version, flags, srs_id, then an envelope whose size is given
+	//by the envelope indicator in the flags (0-4)
+	private static final int GEOPACKAGE_BLOB_HEADER_SIZE = 8;
+	private static final int[] ENVELOPE_SIZES = {0, 32, 48, 48, 64};
+
+	//largest number of input segments one voronoi-catchments process should be given
+	private static final long MAX_SEGMENTS_PER_VORONOI_TILE = 2000000;
+
+	public static void main(String[] args) {
+
+		// create Options object
+		Options options = new Options();
+		options.addOption("i", true, "Input GeoPackage file");
+		options.addOption("bbox", true, "Bounding box representing area to process (format: 'xmin,ymin,xmax,ymax')");
+		options.addOption("bboxcrs", true, "CRS of the bounding box.  e.g. 'EPSG:3005' or 'EPSG:4326'");
+		options.addOption("streams", true, "name of streams table");
+		options.addOption("linearboundaries", true, "name of linear boundaries table");
+		options.addOption("whitelistfilter", true, "[attr]:val1,val2");
+		options.addOption("blacklistfilter", true, "[attr]:val1,val2");
+		options.addOption("exact", false, "flag indicating that features are selected with the same filter as PrepCgalVoronoiInput, rather than from the rtree.  slower.");
+		CommandLineParser parser = new DefaultParser();
+		HelpFormatter formatter = new HelpFormatter();
+
+		String inputGeoPackageFilename = null;
+		String bboxStr = null;
+		String bboxCrs = null;
+		String streamsTableName = null;
+		String linearBoundariesTableName = null;
+		String whitelist = null;
+		String blacklist = null;
+		boolean exact = false;
+
+		try {
+			CommandLine cmd = parser.parse( options, args);
+			inputGeoPackageFilename = cmd.getOptionValue("i");
+			bboxStr = cmd.getOptionValue("bbox");
+			bboxCrs = cmd.getOptionValue("bboxcrs");
+			streamsTableName = cmd.getOptionValue("streams", DEFAULT_STREAM_NETWORKS_FEATURE_TYPE);
+			linearBoundariesTableName = cmd.getOptionValue("linearboundaries", DEFAULT_LINEAR_BOUNDARIES_FEATURE_TYPE);
+			whitelist = cmd.getOptionValue("whitelistfilter");
+			blacklist = cmd.getOptionValue("blacklistfilter");
+			exact = cmd.hasOption("exact");
+		} catch (ParseException e2) {
+			formatter.printHelp( EstimateRunCost.class.getSimpleName(), options );
+		}
+
+		//validate inputs
+		if (inputGeoPackageFilename == null || bboxStr == null || bboxCrs == null) {
+			formatter.printHelp( EstimateRunCost.class.getSimpleName(), options );
+			System.exit(1);
+		}
+		if (whitelist != null && blacklist != null) {
+			System.out.println("Can only specify one of [whitelistfilter, blacklistfilter]");
+			System.exit(1);
+		}
+
+		System.out.println("Inputs:");
+		System.out.println("- in file: "+inputGeoPackageFilename);
+		System.out.println("- bbox: "+bboxStr);
+		System.out.println("- bbox srs: "+bboxCrs);
+		if (whitelist != null) {
+			System.out.println("- whitelist: "+whitelist);
+		}
+		if (blacklist != null) {
+			System.out.println("- blacklist: "+blacklist);
+		}
+
+		Map<String, String> inputDatastoreParams = new HashMap<String, String>();
+		inputDatastoreParams.put("dbtype", GEOPKG_ID);
+		inputDatastoreParams.put("database", inputGeoPackageFilename);
+
+		DataStore inDatastore = null;
+		try {
+			inDatastore = DataStoreFinder.getDataStore(inputDatastoreParams);
+		} catch (IOException e) {
+			System.out.println("Unable to open input file: "+inputGeoPackageFilename);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		if (inDatastore == null) {
+			System.out.println("Unable to open input datastore");
+			System.exit(1);
+		}
+
+		InputCounts totals = new InputCounts();
+		try {
+			FeatureSource streamFeatureSource = inDatastore.getFeatureSource(streamsTableName);
+			ReferencedEnvelope bboxInDataCrs = PrepCgalVoronoiInput.parseBbox(bboxStr, bboxCrs, streamFeatureSource.getBounds().getCoordinateReferenceSystem());
+
+			System.out.println("Counting input...");
+			String[] tableNames = {streamsTableName, linearBoundariesTableName};
+			for (String tableName : tableNames) {
+				InputCounts counts = null;
+				if (exact) {
+					FeatureSource featureSource = inDatastore.getFeatureSource(tableName);
+					counts = countFiltered(featureSource, bboxInDataCrs, whitelist, blacklist);
+				}
+				else {
+					counts = countFromRtree(inputGeoPackageFilename, tableName, bboxInDataCrs, whitelist, blacklist);
+				}
+				System.out.println(" - "+tableName+": "+counts.numFeatures+" features, "+counts.numVertices+" vertices, "+counts.numSegments+" segments");
+				if (counts.numMalformed > 0) {
+					System.out.println("   - "+counts.numMalformed+" features with a malformed geometry were skipped");
+				}
+				totals.add(counts);
+			}
+		} catch (Exception e) {
+			System.out.println("Unable to count input features");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		inDatastore.dispose();
+
+		//the bbox polygon is also written to the voronoi input
+		totals.numSegments += 4;
+		totals.numVertices += 4;
+
+		//projections
+		//---------------------------------------------------------------------
+
+		long numSites = totals.numSegments + totals.numVertices;
+		long numVoronoiEdges = Math.round(numSites * VORONOI_EDGES_PER_SITE);
+		long numPhase1KeptEdges = Math.round(numVoronoiEdges * PHASE1_KEPT_FRACTION);
+
+		long waterFeaturesBytes = totals.numFeatures * (BYTES_PER_WATER_FEATURE + BYTES_PER_INDEX_ENTRY) + totals.numVertices * BYTES_PER_VERTEX;
+
+		//WKTList2GeoPackage holds every edge in memory before saving
+		long wktList2GeoPackageBytes = numVoronoiEdges * BYTES_PER_EDGE_FEATURE;
+
+		//phase 1 holds the indexed water features, plus one tile of edges and its kept/discarded copies
+		long edgesPerTile = Math.round(numVoronoiEdges * TILE_SKEW / NUM_CLEANING_TILES);
+		long phase1Bytes = waterFeaturesBytes + edgesPerTile * (2 * BYTES_PER_EDGE_FEATURE + BYTES_PER_INDEX_ENTRY);
+
+		//phase 2 holds all the edges kept by phase 1, their index, and the kept/discarded copies
+		long phase2Bytes = numPhase1KeptEdges * (2 * BYTES_PER_EDGE_FEATURE + BYTES_PER_INDEX_ENTRY);
+
+		long peakBytes = Math.max(wktList2GeoPackageBytes, Math.max(phase1Bytes, phase2Bytes));
+
+		int numVoronoiTiles = (int)Math.ceil((double)totals.numSegments / MAX_SEGMENTS_PER_VORONOI_TILE);
+		int tilesPerSide = (int)Math.ceil(Math.sqrt(numVoronoiTiles));
+
+		System.out.println("Input summary:");
+		System.out.println(" - # features: "+totals.numFeatures);
+		if (totals.numMalformed > 0) {
+			System.out.println(" - # features with a malformed geometry (not counted in the vertices): "+totals.numMalformed);
+		}
+		System.out.println(" - # vertices: "+totals.numVertices);
+		System.out.println(" - # voronoi input segments: "+totals.numSegments);
+		System.out.println("Projected:");
+		System.out.println(" - # voronoi sites: "+numSites);
+		System.out.println(" - # voronoi edges: "+numVoronoiEdges);
+		System.out.println(" - # voronoi edges kept after CleanVoronoiOutput phase 1: "+numPhase1KeptEdges);
+		System.out.println(" - peak heap WKTList2GeoPackage: "+toMb(wktList2GeoPackageBytes)+" MB (recommend -Xmx"+recommendXmx(wktList2GeoPackageBytes)+"m)");
+		System.out.println(" - peak heap CleanVoronoiOutput phase 1: "+toMb(phase1Bytes)+" MB (recommend -Xmx"+recommendXmx(phase1Bytes)+"m)");
+		System.out.println(" - peak heap CleanVoronoiOutput phase 2: "+toMb(phase2Bytes)+" MB (recommend -Xmx"+recommendXmx(phase2Bytes)+"m)");
+		System.out.println("Recommendations:");
+		System.out.println(" - voronoi tiles: "+tilesPerSide+"x"+tilesPerSide+" (at most "+MAX_SEGMENTS_PER_VORONOI_TILE+" segments per voronoi-catchments process.  see PrepCgalVoronoiInput -tiles)");
+		System.out.println(" - -Xmx"+recommendXmx(peakBytes)+"m");
+
+		System.out.println("All done");
+	}
+
+	/**
+	 * Counts the features selected by PrepCgalVoronoiInput's filter
+	 */
+	private static InputCounts countFiltered(FeatureSource featureSource, ReferencedEnvelope bbox, String whitelist, String blacklist) throws IOException {
+		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+		Geometry boundingPolygon = geometryFactory.createPolygon(new Coordinate[] {
+				new Coordinate(bbox.getMinX(), bbox.getMinY()),
+				new Coordinate(bbox.getMaxX(), bbox.getMinY()),
+				new Coordinate(bbox.getMaxX(), bbox.getMaxY()),
+				new Coordinate(bbox.getMinX(), bbox.getMaxY()),
+				new Coordinate(bbox.getMinX(), bbox.getMinY()),
+				});
+
+		InputCounts counts = new InputCounts();
+		FeatureCollection features = PrepCgalVoronoiInput.filterFeatures(featureSource, boundingPolygon, whitelist, blacklist);
+		FeatureIterator it = features.features();
+		try {
+			while (it.hasNext()) {
+				SimpleFeature feature = (SimpleFeature)it.next();
+				Geometry geometry = (Geometry)feature.getDefaultGeometry();
+				counts.numFeatures++;
+				counts.numVertices += geometry.getNumPoints();
+				for (int i = 0; i < geometry.getNumGeometries(); i++) {
+					counts.numSegments += Math.max(geometry.getGeometryN(i).getNumPoints() - 1, 0);
+				}
+			}
+		} finally {
+			it.close();
+		}
+		return counts;
+	}
+
+	/**
+	 * Counts the features whose envelope is inside the bbox (for a rectangle this is the same as
+	 * PrepCgalVoronoiInput's 'within' test) using the table's rtree.  Vertices are counted from the
+	 * geometry blobs without building geometries.
+	 */
+	private static InputCounts countFromRtree(String filename, String tableName, ReferencedEnvelope bbox, String whitelist, String blacklist) throws IOException, SQLException {
+		InputCounts counts = new InputCounts();
+		GeoPackage geoPackage = new GeoPackage(new File(filename));
+		try {
+			FeatureEntry entry = geoPackage.feature(tableName);
+			if (entry == null) {
+				throw new IllegalArgumentException("No such table: "+tableName);
+			}
+			String geometryColumn = entry.getGeometryColumn();
+			String rtreeName = GeoPackageUtils.getRtreeTableName(tableName, geometryColumn);
+
+			Connection cx = geoPackage.getDataSource().getConnection();
+			try {
+				List<String> columnNames = GeoPackageUtils.getColumnNames(cx, tableName);
+				String pkColumn = GeoPackageUtils.getPrimaryKeyColumn(cx, tableName);
+
+				String sql = "SELECT t.\""+geometryColumn+"\" FROM \""+tableName+"\" t JOIN \""+rtreeName+"\" r ON t.\""+pkColumn+"\" = r.id"
+						+ " WHERE r.minx >= ? AND r.maxx <= ? AND r.miny >= ? AND r.maxy <= ?";
+
+				//attribute filter, as for PrepCgalVoronoiInput (ignored if the table doesn't have the attribute)
+				String[] filterValues = null;
+				String filter = whitelist != null ? whitelist : blacklist;
+				if (filter != null && columnNames.contains(FilterUtils.parseFilterPropertyName(filter))) {
+					String propertyName = FilterUtils.parseFilterPropertyName(filter);
+					filterValues = FilterUtils.parseFilterPropertyValues(filter);
+					String placeholders = "";
+					for (int i = 0; i < filterValues.length; i++) {
+						placeholders += (i == 0 ? "?" : ",?");
+					}
+					if (whitelist != null) {
+						sql += " AND t.\""+propertyName+"\" IN ("+placeholders+")";
+					}
+					else {
+						sql += " AND (t.\""+propertyName+"\" IS NULL OR t.\""+propertyName+"\" NOT IN ("+placeholders+"))";
+					}
+				}
+
+				PreparedStatement ps = cx.prepareStatement(sql);
+				try {
+					ps.setDouble(1, bbox.getMinX());
+					ps.setDouble(2, bbox.getMaxX());
+					ps.setDouble(3, bbox.getMinY());
+					ps.setDouble(4, bbox.getMaxY());
+					if (filterValues != null) {
+						for (int i = 0; i < filterValues.length; i++) {
+							ps.setString(5+i, filterValues[i]);
+						}
+					}
+					ResultSet rs = ps.executeQuery();
+					while (rs.next()) {
+						counts.numFeatures++;
+						byte[] blob = rs.getBytes(1);
+						if (blob != null && !countVertices(blob, counts)) {
+							counts.numMalformed++;
+						}
+					}
+					rs.close();
+				} finally {
+					ps.close();
+				}
+			} finally {
+				cx.close();
+			}
+		} finally {
+			geoPackage.close();
+		}
+		return counts;
+	}
+
+	/**
+	 * Adds the number of vertices and segments in a GeoPackage geometry blob to the given counts.
+	 * Blob format: "GP", version, flags, srs_id, envelope (size depends on flags), then WKB.
+	 * @return false if the blob is malformed (nothing is added to the counts)
+	 */
+	private static boolean countVertices(byte[] blob, InputCounts counts) {
+		if (blob.length < GEOPACKAGE_BLOB_HEADER_SIZE || blob[0] != 'G' || blob[1] != 'P') {
+			return false;
+		}
+		int flags = blob[3];
+		boolean isEmpty = (flags & 0x10) != 0;
+		if (isEmpty) {
+			return true;
+		}
+		//indicators 5-7 are reserved
+		int envelopeIndicator = (flags >> 1) & 0x07;
+		if (envelopeIndicator >= ENVELOPE_SIZES.length) {
+			return false;
+		}
+		int wkbStart = GEOPACKAGE_BLOB_HEADER_SIZE + ENVELOPE_SIZES[envelopeIndicator];
+		if (blob.length < wkbStart + 5) {
+			return false;
+		}
+		ByteBuffer wkb = ByteBuffer.wrap(blob, wkbStart, blob.length - wkbStart);
+		InputCounts blobCounts = new InputCounts();
+		try {
+			countWkbVertices(wkb, blobCounts);
+		} catch (BufferUnderflowException e) {
+			return false;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		counts.numVertices += blobCounts.numVertices;
+		counts.numSegments += blobCounts.numSegments;
+		return true;
+	}
+
+	private static void countWkbVertices(ByteBuffer wkb, InputCounts counts) {
+		wkb.order(wkb.get() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		int type = wkb.getInt();
+
+		//dimension: ISO WKB uses type + 1000/2000/3000, extended WKB uses high bit flags
+		int numOrdinates = 2;
+		boolean hasZ = (type & 0x80000000) != 0 || (type % 10000) / 1000 == 1 || (type % 10000) / 1000 == 3;
+		boolean hasM = (type & 0x40000000) != 0 || (type % 10000) / 1000 == 2 || (type % 10000) / 1000 == 3;
+		numOrdinates += (hasZ ? 1 : 0) + (hasM ? 1 : 0);
+		int baseType = (type & 0x0FFFFFFF) % 1000;
+
+		switch (baseType) {
+		case 1: //point
+			counts.numVertices += 1;
+			skipCoordinates(wkb, 1, numOrdinates);
+			break;
+		case 2: //linestring
+			int numPoints = wkb.getInt();
+			counts.numVertices += numPoints;
+			counts.numSegments += Math.max(numPoints - 1, 0);
+			skipCoordinates(wkb, numPoints, numOrdinates);
+			break;
+		case 3: //polygon
+			int numRings = wkb.getInt();
+			if (numRings < 0) {
+				throw new IllegalArgumentException("Invalid WKB: "+numRings+" rings");
+			}
+			for (int i = 0; i < numRings; i++) {
+				int numRingPoints = wkb.getInt();
+				counts.numVertices += numRingPoints;
+				counts.numSegments += Math.max(numRingPoints - 1, 0);
+				skipCoordinates(wkb, numRingPoints, numOrdinates);
+			}
+			break;
+		case 4: //multipoint
+		case 5: //multilinestring
+		case 6: //multipolygon
+		case 7: //geometrycollection
+			int numParts = wkb.getInt();
+			if (numParts < 0) {
+				throw new IllegalArgumentException("Invalid WKB: "+numParts+" parts");
+			}
+			for (int i = 0; i < numParts; i++) {
+				countWkbVertices(wkb, counts);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported WKB geometry type: "+type);
+		}
+	}
+
+	private static void skipCoordinates(ByteBuffer wkb, int numCoordinates, int numOrdinates) {
+		long numBytes = (long)numCoordinates * numOrdinates * 8;
+		if (numCoordinates < 0 || numBytes > wkb.remaining()) {
+			throw new IllegalArgumentException("Truncated WKB: "+numCoordinates+" coordinates expected");
+		}
+		wkb.position(wkb.position() + (int)numBytes);
+	}
+
+	private static long toMb(long bytes) {
+		return bytes / (1024 * 1024);
+	}
+
+	/**
+	 * recommended max heap size in MB, rounded up to a multiple of 256 MB
+	 */
+	private static long recommendXmx(long estimatedBytes) {
+		long bytes = BASELINE_HEAP_BYTES + Math.round(estimatedBytes * HEAP_HEADROOM);
+		long mb = toMb(bytes);
+		return ((mb + 255) / 256) * 256;
+	}
+
+	private static class InputCounts {
+		long numFeatures;
+		long numVertices;
+		long numSegments;
+		//features whose geometry blob couldn't be read (counted as features, but not their vertices)
+		long numMalformed;
+
+		void add(InputCounts other) {
+			numFeatures += other.numFeatures;
+			numMalformed += other.numMalformed;
+			numVertices += other.numVertices;
+			numSegments += other.numSegments;
+		}
+	}
+
+}
@@ -0,0 +1,667 @@
+package ca.bc.gov.catchment.scripts;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.locationtech.jts.algorithm.PointLocation;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineSegment;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import ca.bc.gov.catchments.utils.SaveUtils;
+import ca.bc.gov.catchments.utils.StreamUtils;
+
+/**
+ * Generates synthetic water features, and matching voronoi edges, for load testing the other tools
+ * without real FWA data.  Everything is generated from a seed, so a given set of options always
+ * produces the same data.
+ *
+ * The area is a grid of square basins.  Each basin holds a dendritic stream network (a tree of
+ * random-walk streams that branch at confluences, growing upstream from an outlet) and some lakes
+ * at the upstream ends of streams.  Each lake is a closed shoreline, touching the end of its stream,
+ * plus a construction line across it.  Streams are saved to STREAM_NETWORKS and lakes to
+ * LINEAR_BOUNDARIES, both with LINEAR_FEATURE_ID and EDGE_TYPE attributes.
+ *
+ * The voronoi edges are not a real voronoi diagram of the water features (that's what
+ * voronoi-catchments is for).  They are a jittered lattice covering the basins (about two edges per
+ * water feature), plus one edge from the start of each water feature to its nearest lattice node,
+ * so the cleaners have both kept and discarded edges to work through.
+ *
+ * Features are generated one basin at a time and written in batches, so memory use doesn't depend
+ * on the number of features.
+ */
+public class GenerateSyntheticData {
+
+	private static final String STREAMS_TABLE = "STREAM_NETWORKS";
+	private static final String LINEAR_BOUNDARIES_TABLE = "LINEAR_BOUNDARIES";
+	private static final String WATER_FEATURES_TABLE = "water_features";
+	private static final String VORONOI_EDGES_TABLE = "voronoi_edges";
+
+	//edge types.  all but the lake construction line are in the pipeline's example whitelist.
+	private static final int STREAM_MAIN_FLOW_EDGE_TYPE = 1000;
+	private static final int STREAM_SECONDARY_FLOW_EDGE_TYPE = 1050;
+	private static final int LAKE_SHORELINE_EDGE_TYPE = 1500;
+	private static final int LAKE_CONSTRUCTION_LINE_EDGE_TYPE = 1410;
+
+	private static final int DEFAULT_NUM_FEATURES = 10000;
+	private static final int DEFAULT_FEATURES_PER_BASIN = 200;
+	private static final int DEFAULT_SRID = 3005;
+	private static final long DEFAULT_SEED = 1;
+	private static final int DEFAULT_WRITE_BATCH_SIZE = 10000;
+
+	//average area (square metres) per water feature
+	private static final double AREA_PER_FEATURE = 250 * 250;
+	private static final double ORIGIN_X = 200000;
+	private static final double ORIGIN_Y = 300000;
+	//minimum distance (metres) between water features, other than where they meet
+	private static final double CLEARANCE = 5;
+	//a basin is full after this many failed attempts in a row to add a stream
+	private static final int MAX_FAILURES = 1000;
+	//one in this many water features is a lake (which is two features: a shoreline and a construction line)
+	private static final int FEATURES_PER_LAKE = 20;
+
+	private static GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+
+	public static void main(String[] argv) {
+
+		// create Options object
+		Options options = new Options();
+		options.addOption("o", true, "Output GeoPackage file of water features ("+STREAMS_TABLE+" and "+LINEAR_BOUNDARIES_TABLE+" tables).  Overwritten if it exists.");
+		options.addOption("numFeatures", true, "Number of water features to generate.  Defaults to "+DEFAULT_NUM_FEATURES);
+		options.addOption("featuresPerBasin", true, "Number of water features in each basin (stream network).  Defaults to "+DEFAULT_FEATURES_PER_BASIN);
+		options.addOption("seed", true, "Seed of the random number generator.  Defaults to "+DEFAULT_SEED);
+		options.addOption("srid", true, "SRID of the output coordinates (which are in metres).  Defaults to "+DEFAULT_SRID);
+		options.addOption("voronoiInputTextFile", true, "Output text file of the water features' segments, in the format written by PrepCgalVoronoiInput -outTextFile (with the example whitelist applied)");
+		options.addOption("voronoiInputGeoPackageFile", true, "Output GeoPackage file with a "+WATER_FEATURES_TABLE+" table, as written by PrepCgalVoronoiInput -outGeoPackageFile (the -waterFeaturesFile of CleanVoronoiOutput)");
+		options.addOption("voronoiEdgesFile", true, "Output GeoPackage file with a "+VORONOI_EDGES_TABLE+" table, as written by WKTList2GeoPackage");
+		options.addOption("voronoiOutputWktFile", true, "Output text file of the voronoi edges as WKT, in the format read by WKTList2GeoPackage");
+		options.addOption("writeBatchSize", true, "Number of features generated before they are written to each GeoPackage.  Defaults to "+DEFAULT_WRITE_BATCH_SIZE);
+		CommandLineParser parser = new DefaultParser();
+		HelpFormatter formatter = new HelpFormatter();
+
+		String waterFeaturesFilename = null;
+		String voronoiInputTextFilename = null;
+		String voronoiInputGeoPackageFilename = null;
+		String voronoiEdgesFilename = null;
+		String voronoiOutputWktFilename = null;
+		int numFeatures = DEFAULT_NUM_FEATURES;
+		int featuresPerBasin = DEFAULT_FEATURES_PER_BASIN;
+		long seed = DEFAULT_SEED;
+		int srid = DEFAULT_SRID;
+		int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+
+		try {
+			CommandLine cmd = parser.parse( options, argv);
+			waterFeaturesFilename = cmd.getOptionValue("o");
+			voronoiInputTextFilename = cmd.getOptionValue("voronoiInputTextFile");
+			voronoiInputGeoPackageFilename = cmd.getOptionValue("voronoiInputGeoPackageFile");
+			voronoiEdgesFilename = cmd.getOptionValue("voronoiEdgesFile");
+			voronoiOutputWktFilename = cmd.getOptionValue("voronoiOutputWktFile");
+			if (cmd.hasOption("numFeatures")) {
+				numFeatures = Integer.parseInt(cmd.getOptionValue("numFeatures"));
+			}
+			if (cmd.hasOption("featuresPerBasin")) {
+				featuresPerBasin = Integer.parseInt(cmd.getOptionValue("featuresPerBasin"));
+			}
+			if (cmd.hasOption("seed")) {
+				seed = Long.parseLong(cmd.getOptionValue("seed"));
+			}
+			if (cmd.hasOption("srid")) {
+				srid = Integer.parseInt(cmd.getOptionValue("srid"));
+			}
+			if (cmd.hasOption("writeBatchSize")) {
+				writeBatchSize = Integer.parseInt(cmd.getOptionValue("writeBatchSize"));
+			}
+		} catch (ParseException e) {
+			formatter.printHelp( GenerateSyntheticData.class.getSimpleName(), options );
+			System.exit(1);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid number: "+e.getMessage());
+			System.exit(1);
+		}
+
+		if (waterFeaturesFilename == null && voronoiInputTextFilename == null && voronoiInputGeoPackageFilename == null
+				&& voronoiEdgesFilename == null && voronoiOutputWktFilename == null) {
+			System.out.println("At least one output file must be specified");
+			formatter.printHelp( GenerateSyntheticData.class.getSimpleName(), options );
+			System.exit(1);
+		}
+		if (numFeatures < 1 || featuresPerBasin < 1 || writeBatchSize < 1) {
+			System.out.println("-numFeatures, -featuresPerBasin and -writeBatchSize must be positive");
+			System.exit(1);
+		}
+
+		GenerateSyntheticData generator = new GenerateSyntheticData(numFeatures, featuresPerBasin, seed);
+		Envelope bounds = generator.getBounds();
+
+		System.out.println("Inputs:");
+		System.out.println("- num features: "+numFeatures);
+		System.out.println("- features per basin: "+featuresPerBasin);
+		System.out.println("- seed: "+seed);
+		System.out.println("- bounds (EPSG:"+srid+"): "+bounds.getMinX()+","+bounds.getMinY()+","+bounds.getMaxX()+","+bounds.getMaxY());
+
+		try {
+			if (waterFeaturesFilename != null) {
+				generator.streamsOut = new TableWriter(waterFeaturesFilename, STREAMS_TABLE, "geometry:LineString:srid="+srid+",LINEAR_FEATURE_ID:Integer,EDGE_TYPE:Integer", bounds, srid, writeBatchSize);
+				generator.linearBoundariesOut = new TableWriter(generator.streamsOut.geoPackage, LINEAR_BOUNDARIES_TABLE, "geometry:LineString:srid="+srid+",LINEAR_FEATURE_ID:Integer,EDGE_TYPE:Integer", bounds, srid, writeBatchSize);
+			}
+			if (voronoiInputGeoPackageFilename != null) {
+				generator.waterFeaturesOut = new TableWriter(voronoiInputGeoPackageFilename, WATER_FEATURES_TABLE, "geometry:LineString:srid="+srid, bounds, srid, writeBatchSize);
+			}
+			if (voronoiEdgesFilename != null) {
+				generator.voronoiEdgesOut = new TableWriter(voronoiEdgesFilename, VORONOI_EDGES_TABLE, "geometry:LineString", bounds, srid, writeBatchSize);
+			}
+			if (voronoiInputTextFilename != null) {
+				generator.segmentsOut = StreamUtils.openWriter(voronoiInputTextFilename);
+				//like PrepCgalVoronoiInput, the bounding polygon comes first
+				PrepCgalVoronoiInput.writeGeometry(generator.segmentsOut, geometryFactory.createPolygon(new Coordinate[] {
+						new Coordinate(bounds.getMinX(), bounds.getMinY()),
+						new Coordinate(bounds.getMaxX(), bounds.getMinY()),
+						new Coordinate(bounds.getMaxX(), bounds.getMaxY()),
+						new Coordinate(bounds.getMinX(), bounds.getMaxY()),
+						new Coordinate(bounds.getMinX(), bounds.getMinY()),
+						}));
+			}
+			if (voronoiOutputWktFilename != null) {
+				generator.wktOut = StreamUtils.openWriter(voronoiOutputWktFilename);
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to create output files");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.out.println("Generating "+generator.numBasins+" basins...");
+		long start = System.nanoTime();
+		try {
+			generator.generate();
+			generator.close();
+		} catch (IOException e) {
+			System.out.println("Unable to write output");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+		System.out.println("Generated:");
+		System.out.println("- "+generator.numStreams+" streams");
+		System.out.println("- "+generator.numLakes+" lakes ("+generator.numLakes*2+" linear boundaries)");
+		System.out.println("- "+generator.numVoronoiEdges+" voronoi edges");
+		System.out.println(" - Done in "+elapsedMs+" ms");
+		System.out.println("All done");
+	}
+
+	private int numFeatures;
+	private int featuresPerBasin;
+	private long seed;
+	private int numBasins;
+	private int basinCols;
+	private int basinRows;
+	private double basinSize;
+	//lattice nodes per basin side, and the distance between them
+	private int latticeNodesPerBasin;
+	private double latticeSpacing;
+	private Envelope bounds;
+
+	//the basin being generated
+	private Random random;
+	private Envelope area;
+	private Quadtree segmentIndex;
+	private Deque<double[]> streamStarts;
+	private List<double[]> streamEnds;
+
+	private TableWriter streamsOut;
+	private TableWriter linearBoundariesOut;
+	private TableWriter waterFeaturesOut;
+	private TableWriter voronoiEdgesOut;
+	private Writer segmentsOut;
+	private Writer wktOut;
+
+	private int nextFeatureId = 1;
+	private int numStreams;
+	private int numLakes;
+	private long numVoronoiEdges;
+
+	public GenerateSyntheticData(int numFeatures, int featuresPerBasin, long seed) {
+		this.numFeatures = numFeatures;
+		this.featuresPerBasin = Math.min(featuresPerBasin, numFeatures);
+		this.seed = seed;
+		this.numBasins = (numFeatures + this.featuresPerBasin - 1) / this.featuresPerBasin;
+		this.basinCols = (int)Math.ceil(Math.sqrt(numBasins));
+		this.basinRows = (numBasins + basinCols - 1) / basinCols;
+		this.latticeNodesPerBasin = Math.max((int)Math.round(Math.sqrt(this.featuresPerBasin)), 1);
+		this.basinSize = Math.sqrt(this.featuresPerBasin * AREA_PER_FEATURE);
+		this.latticeSpacing = basinSize / latticeNodesPerBasin;
+		this.bounds = new Envelope(ORIGIN_X, ORIGIN_X + basinCols * basinSize, ORIGIN_Y, ORIGIN_Y + basinRows * basinSize);
+	}
+
+	/**
+	 * @return the extent of the generated data
+	 */
+	public Envelope getBounds() {
+		return bounds;
+	}
+
+	public void generate() throws IOException {
+		for (int basin = 0; basin < numBasins; basin++) {
+			int numBasinFeatures = Math.min(featuresPerBasin, numFeatures - basin * featuresPerBasin);
+			generateBasin(basin, numBasinFeatures);
+			if ((basin + 1) % 1000 == 0) {
+				System.out.println(" - "+(basin + 1)+" basins");
+			}
+		}
+	}
+
+	/**
+	 * Generates the streams, lakes and voronoi edges of one basin.  Each basin has its own random
+	 * number generator, so a basin doesn't depend on the ones before it.
+	 */
+	private void generateBasin(int basin, int numBasinFeatures) throws IOException {
+		random = new Random(seed * 1000003L + basin);
+		int basinCol = basin % basinCols;
+		int basinRow = basin / basinCols;
+		double margin = basinSize * 0.02;
+		area = new Envelope(
+				ORIGIN_X + basinCol * basinSize + margin,
+				ORIGIN_X + (basinCol + 1) * basinSize - margin,
+				ORIGIN_Y + basinRow * basinSize + margin,
+				ORIGIN_Y + (basinRow + 1) * basinSize - margin);
+		segmentIndex = new Quadtree();
+		streamStarts = new ArrayDeque<double[]>();
+		streamEnds = new ArrayList<double[]>();
+
+		int numBasinLakes = numBasinFeatures / FEATURES_PER_LAKE;
+		growStreams(numBasinFeatures - numBasinLakes * 2);
+		int numBasinLakesAdded = addLakes(numBasinLakes);
+		//streams instead of the lakes there was no room for
+		growStreams((numBasinLakes - numBasinLakesAdded) * 2);
+
+		generateVoronoiEdges(basinCol, basinRow);
+	}
+
+	/**
+	 * Grows the basin's stream network upstream, breadth first, from an outlet at the bottom of the
+	 * basin.  At the end of each stream is a confluence: the stream continues, and a tributary joins
+	 * it at an angle.  A stream stops early where its next step would come too close to another
+	 * feature or leave the basin, and then has no tributaries.  If the network runs out of room to
+	 * grow, another starts at a random outlet.
+	 * @return the number of streams added (less than numToAdd only if the basin is full)
+	 */
+	private int growStreams(int numToAdd) throws IOException {
+		int numAdded = 0;
+		int numFailures = 0;
+		while (numAdded < numToAdd && numFailures < MAX_FAILURES) {
+			if (streamStarts.isEmpty()) {
+				boolean first = segmentIndex.size() == 0;
+				double x = first ? area.centre().x : area.getMinX() + random.nextDouble() * area.getWidth();
+				double y = first ? area.getMinY() : area.getMinY() + random.nextDouble() * area.getHeight();
+				Coordinate outlet = new Coordinate(round(x), round(y));
+				if (!isClear(outlet, outlet, null)) {
+					numFailures++;
+					continue;
+				}
+				double heading = first ? Math.PI / 2 : random.nextDouble() * 2 * Math.PI;
+				streamStarts.add(new double[] {outlet.x, outlet.y, heading, 25});
+			}
+			double[] start = streamStarts.poll();
+			double heading = start[2];
+			double stepLength = start[3];
+			int numPoints = 6 + random.nextInt(5);
+			List<Coordinate> coordinates = new ArrayList<Coordinate>(numPoints);
+			coordinates.add(new Coordinate(start[0], start[1]));
+			boolean stopped = false;
+			for (int i = 1; i < numPoints && !stopped; i++) {
+				heading += (random.nextDouble() - 0.5) * 0.5;
+				double step = stepLength * (0.6 + random.nextDouble() * 0.8);
+				Coordinate prev = coordinates.get(coordinates.size() - 1);
+				double x = prev.x + Math.cos(heading) * step;
+				double y = prev.y + Math.sin(heading) * step;
+				stopped = !area.contains(x, y);
+				Coordinate next = new Coordinate(round(clamp(x, area.getMinX(), area.getMaxX())), round(clamp(y, area.getMinY(), area.getMaxY())));
+				if (next.equals2D(prev) || !isClear(prev, next, prev)) {
+					stopped = true;
+					break;
+				}
+				coordinates.add(next);
+				segmentIndex.insert(new Envelope(prev, next), new LineSegment(prev, next));
+			}
+			if (coordinates.size() < 2) {
+				numFailures++;
+				continue;
+			}
+			LineString stream = geometryFactory.createLineString(coordinates.toArray(new Coordinate[coordinates.size()]));
+			int edgeType = random.nextInt(20) == 0 ? STREAM_SECONDARY_FLOW_EDGE_TYPE : STREAM_MAIN_FLOW_EDGE_TYPE;
+			addStream(stream, edgeType);
+			numAdded++;
+			numFailures = 0;
+
+			if (stopped) {
+				continue;
+			}
+			Coordinate end = stream.getCoordinateN(stream.getNumPoints() - 1);
+			streamEnds.add(new double[] {end.x, end.y, heading});
+			double side = random.nextBoolean() ? 1 : -1;
+			streamStarts.add(new double[] {end.x, end.y, heading + (random.nextDouble() - 0.5) * 0.4, stepLength});
+			streamStarts.add(new double[] {end.x, end.y, heading + side * (0.4 + random.nextDouble() * 0.6), stepLength * 0.9});
+		}
+		return numAdded;
+	}
+
+	/**
+	 * Adds lakes at the upstream ends of streams (the most recently grown first).  A stream end is
+	 * skipped if a lake there would come too close to another feature.
+	 * @return the number of lakes added
+	 */
+	private int addLakes(int numToAdd) throws IOException {
+		int numAdded = 0;
+		while (numAdded < numToAdd && (!streamStarts.isEmpty() || !streamEnds.isEmpty())) {
+			double[] end = !streamStarts.isEmpty() ? streamStarts.pollLast() : streamEnds.remove(streamEnds.size() - 1);
+			if (addLake(new Coordinate(end[0], end[1]), end[2])) {
+				numAdded++;
+			}
+		}
+		return numAdded;
+	}
+
+	/**
+	 * Adds a lake whose shoreline passes through the given point (the end of a stream), and extends
+	 * in the direction of the given heading.  The shoreline is star-shaped around the lake's centre,
+	 * so the construction line (from the inlet, through the centre, to the far shore) is inside it.
+	 * @return false if there isn't room for the lake
+	 */
+	private boolean addLake(Coordinate inlet, double heading) throws IOException {
+		double radius = 40 + random.nextDouble() * 80;
+		double centreX = clamp(inlet.x + Math.cos(heading) * radius, area.getMinX() + radius, area.getMaxX() - radius);
+		double centreY = clamp(inlet.y + Math.sin(heading) * radius, area.getMinY() + radius, area.getMaxY() - radius);
+		double startAngle = Math.atan2(inlet.y - centreY, inlet.x - centreX);
+		int numPoints = 16 + random.nextInt(17);
+		Coordinate[] shoreline = new Coordinate[numPoints + 1];
+		shoreline[0] = new Coordinate(inlet.x, inlet.y);
+		for (int i = 1; i < numPoints; i++) {
+			double angle = startAngle + 2 * Math.PI * i / numPoints;
+			double r = radius * (0.8 + random.nextDouble() * 0.4);
+			shoreline[i] = new Coordinate(round(centreX + Math.cos(angle) * r), round(centreY + Math.sin(angle) * r));
+		}
+		shoreline[numPoints] = shoreline[0];
+		LineString shorelineLine = geometryFactory.createLineString(shoreline);
+
+		//the shoreline mustn't come near any other feature, and no other feature may be inside the lake
+		for (int i = 1; i < shoreline.length; i++) {
+			if (!isClear(shoreline[i - 1], shoreline[i], inlet)) {
+				return false;
+			}
+		}
+		for (Object item : segmentIndex.query(shorelineLine.getEnvelopeInternal())) {
+			LineSegment segment = (LineSegment)item;
+			Coordinate c = segment.p0.equals2D(inlet) ? segment.p1 : segment.p0;
+			if (PointLocation.isInRing(c, shoreline)) {
+				return false;
+			}
+		}
+
+		for (int i = 1; i < shoreline.length; i++) {
+			segmentIndex.insert(new Envelope(shoreline[i - 1], shoreline[i]), new LineSegment(shoreline[i - 1], shoreline[i]));
+		}
+		addLinearBoundary(shorelineLine, LAKE_SHORELINE_EDGE_TYPE);
+
+		LineString constructionLine = geometryFactory.createLineString(new Coordinate[] {
+				shoreline[0],
+				new Coordinate(round(centreX), round(centreY)),
+				shoreline[numPoints / 2]});
+		//later features must keep clear of the construction line too.  it shares the inlet with the
+		//stream, like the shoreline does.
+		Coordinate[] construction = constructionLine.getCoordinates();
+		for (int i = 1; i < construction.length; i++) {
+			segmentIndex.insert(new Envelope(construction[i - 1], construction[i]), new LineSegment(construction[i - 1], construction[i]));
+		}
+		addLinearBoundary(constructionLine, LAKE_CONSTRUCTION_LINE_EDGE_TYPE);
+		numLakes++;
+		return true;
+	}
+
+	/**
+	 * @return true if the segment from p to q is at least CLEARANCE from every feature of the basin,
+	 * ignoring segments with an end at the given shared coordinate (which may be null)
+	 */
+	private boolean isClear(Coordinate p, Coordinate q, Coordinate shared) {
+		LineSegment candidate = new LineSegment(p, q);
+		Envelope envelope = new Envelope(p, q);
+		envelope.expandBy(CLEARANCE);
+		for (Object item : segmentIndex.query(envelope)) {
+			LineSegment segment = (LineSegment)item;
+			if (shared != null && (segment.p0.equals2D(shared) || segment.p1.equals2D(shared))) {
+				continue;
+			}
+			if (segment.distance(candidate) < CLEARANCE) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the voronoi edges of one basin: its part of a lattice shared by all basins (so edges of
+	 * neighbouring basins join up), each edge bent at a random middle vertex.
+	 */
+	private void generateVoronoiEdges(int basinCol, int basinRow) throws IOException {
+		if (voronoiEdgesOut == null && wktOut == null) {
+			return;
+		}
+		int firstI = basinCol * latticeNodesPerBasin;
+		int firstJ = basinRow * latticeNodesPerBasin;
+		for (int i = firstI; i < firstI + latticeNodesPerBasin; i++) {
+			for (int j = firstJ; j < firstJ + latticeNodesPerBasin; j++) {
+				Coordinate node = getLatticeNode(i, j);
+				addVoronoiEdge(random, node, getLatticeNode(i + 1, j));
+				addVoronoiEdge(random, node, getLatticeNode(i, j + 1));
+			}
+		}
+	}
+
+	/**
+	 * @return the position of a lattice node, which is jittered by an amount that depends only on the
+	 * seed and the node (and kept within the bounds)
+	 */
+	private Coordinate getLatticeNode(long i, long j) {
+		double x = ORIGIN_X + (i + (hash01(i, j, 0) - 0.5) * 0.4) * latticeSpacing;
+		double y = ORIGIN_Y + (j + (hash01(i, j, 1) - 0.5) * 0.4) * latticeSpacing;
+		return new Coordinate(round(clamp(x, bounds.getMinX(), bounds.getMaxX())), round(clamp(y, bounds.getMinY(), bounds.getMaxY())));
+	}
+
+	private Coordinate getNearestLatticeNode(Coordinate c) {
+		long i = Math.round((c.x - ORIGIN_X) / latticeSpacing);
+		long j = Math.round((c.y - ORIGIN_Y) / latticeSpacing);
+		return getLatticeNode(i, j);
+	}
+
+	//a value in [0, 1) from a hash of the seed, the node and a salt
+	private double hash01(long i, long j, int salt) {
+		long h = seed * 0x9E3779B97F4A7C15L + i * 0xC2B2AE3D27D4EB4FL + j * 0x165667B19E3779F9L + salt;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h = h ^ (h >>> 31);
+		return (h >>> 11) / (double)(1L << 53);
+	}
+
+	private void addVoronoiEdge(Random bendRandom, Coordinate from, Coordinate to) throws IOException {
+		if (from.equals2D(to)) {
+			return;
+		}
+		double bend = (bendRandom.nextDouble() - 0.5) * 0.25;
+		Coordinate middle = new Coordinate(
+				round((from.x + to.x) / 2 - (to.y - from.y) * bend),
+				round((from.y + to.y) / 2 + (to.x - from.x) * bend));
+		LineString edge = geometryFactory.createLineString(new Coordinate[] {from, middle, to});
+		if (voronoiEdgesOut != null) {
+			voronoiEdgesOut.add(new Object[] {edge});
+		}
+		if (wktOut != null) {
+			wktOut.write(edge.toText()+"\n");
+		}
+		numVoronoiEdges++;
+	}
+
+	private void addStream(LineString geometry, int edgeType) throws IOException {
+		if (streamsOut != null) {
+			streamsOut.add(new Object[] {geometry, nextFeatureId, edgeType});
+		}
+		nextFeatureId++;
+		numStreams++;
+		addWaterFeature(geometry, edgeType);
+	}
+
+	private void addLinearBoundary(LineString geometry, int edgeType) throws IOException {
+		if (linearBoundariesOut != null) {
+			linearBoundariesOut.add(new Object[] {geometry, nextFeatureId, edgeType});
+		}
+		nextFeatureId++;
+		addWaterFeature(geometry, edgeType);
+	}
+
+	/**
+	 * Writes the outputs derived from a water feature: its voronoi input (if its edge type is
+	 * whitelisted) and an edge from it to the lattice, like the construction edges of real voronoi
+	 * output.
+	 */
+	private void addWaterFeature(LineString geometry, int edgeType) throws IOException {
+		if (edgeType == LAKE_CONSTRUCTION_LINE_EDGE_TYPE) {
+			return;
+		}
+		if (waterFeaturesOut != null) {
+			waterFeaturesOut.add(new Object[] {geometry});
+		}
+		if (segmentsOut != null) {
+			PrepCgalVoronoiInput.writeGeometry(segmentsOut, geometry);
+		}
+		if (voronoiEdgesOut != null || wktOut != null) {
+			Coordinate start = geometry.getCoordinateN(0);
+			addVoronoiEdge(new Random(seed + nextFeatureId), start, getNearestLatticeNode(start));
+		}
+	}
+
+	public void close() throws IOException {
+		TableWriter[] tables = {streamsOut, linearBoundariesOut, waterFeaturesOut, voronoiEdgesOut};
+		for (TableWriter table : tables) {
+			if (table != null) {
+				table.finish();
+			}
+		}
+		if (streamsOut != null) {
+			streamsOut.geoPackage.close();
+		}
+		if (waterFeaturesOut != null) {
+			waterFeaturesOut.geoPackage.close();
+		}
+		if (voronoiEdgesOut != null) {
+			voronoiEdgesOut.geoPackage.close();
+		}
+		if (segmentsOut != null) {
+			segmentsOut.close();
+		}
+		if (wktOut != null) {
+			wktOut.close();
+		}
+	}
+
+	//round to the millimetre, like the source data
+	private static double round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * Writes features to a GeoPackage table in batches.  The spatial index is added when finished.
+	 */
+	private static class TableWriter {
+
+		private GeoPackage geoPackage;
+		private FeatureEntry entry;
+		private ListFeatureCollection batch;
+		private SimpleFeatureBuilder featureBuilder;
+		private ReferencedEnvelope bounds;
+		private int srid;
+		private int writeBatchSize;
+		private int numWritten;
+
+		/**
+		 * Creates a table in a new GeoPackage.  An existing file is replaced.
+		 */
+		public TableWriter(String filename, String tableName, String spec, Envelope bounds, int srid, int writeBatchSize) throws IOException {
+			this(createGeoPackage(filename), tableName, spec, bounds, srid, writeBatchSize);
+		}
+
+		public TableWriter(GeoPackage geoPackage, String tableName, String spec, Envelope bounds, int srid, int writeBatchSize) throws IOException {
+			SimpleFeatureType featureType = null;
+			try {
+				featureType = DataUtilities.createType(tableName, spec);
+			} catch (SchemaException e) {
+				throw new IOException("Unable to create feature type "+tableName, e);
+			}
+			this.geoPackage = geoPackage;
+			this.batch = new ListFeatureCollection(featureType);
+			this.featureBuilder = new SimpleFeatureBuilder(featureType);
+			//the table's bounds are the whole area, since it's created before all features are known
+			this.bounds = new ReferencedEnvelope(bounds, null);
+			this.srid = srid;
+			this.writeBatchSize = writeBatchSize;
+		}
+
+		private static GeoPackage createGeoPackage(String filename) throws IOException {
+			File file = new File(filename);
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Unable to replace "+filename);
+			}
+			GeoPackage geoPackage = new GeoPackage(file);
+			geoPackage.init();
+			return geoPackage;
+		}
+
+		public void add(Object[] attributeValues) throws IOException {
+			batch.add(featureBuilder.buildFeature(null, attributeValues));
+			if (batch.size() >= writeBatchSize) {
+				numWritten += batch.size();
+				entry = SaveUtils.writeBatch(geoPackage, entry, batch, bounds, srid);
+			}
+		}
+
+		public void finish() throws IOException {
+			if (batch.size() > 0) {
+				numWritten += batch.size();
+				entry = SaveUtils.writeBatch(geoPackage, entry, batch, bounds, srid);
+			}
+			if (entry != null) {
+				System.out.println("Saved "+numWritten+" features to "+entry.getTableName());
+				System.out.println("Adding spatial index on "+entry.getTableName()+"...");
+				geoPackage.createSpatialIndex(entry);
+				System.out.println(" - Done");
+			}
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package ca.bc.gov.catchment.scripts;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
@@ -13,6 +15,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -28,8 +34,8 @@ import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
 import org.geotools.data.Transaction;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.factory.CommonFactoryFinder;
-import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.SchemaException;
@@ -70,8 +76,13 @@ import org.rogach.jopenvoronoi.VertexStatus;
 import org.rogach.jopenvoronoi.VertexType;
 import org.rogach.jopenvoronoi.VoronoiDiagram;
 
-import ca.bc.gov.catchments.utils.SaveUtils;
+import ca.bc.gov.catchment.voronoi.TileGrid;
+import ca.bc.gov.catchment.voronoi.TileIndex;
+import ca.bc.gov.catchments.utils.FilterUtils;
+import ca.bc.gov.catchments.utils.MemoryGovernor;
+import ca.bc.gov.catchments.utils.SpillableFeatureCollection;
 import ca.bc.gov.catchments.utils.SpatialUtils;
+import ca.bc.gov.catchments.utils.StreamUtils;
 
 /*
  * Test bboxes: 
@@ -92,13 +103,17 @@ public class PrepCgalVoronoiInput {
 				
 	
 	private static final String GEOPKG_ID = "geopkg";
+	//default tile halo, as a fraction of the smaller side of a tile
+	static final double DEFAULT_TILE_HALO_FRACTION = 0.25;
+	//in batch mode, replaced by the area name in the output filenames
+	private static final String AREA_PLACEHOLDER = "{area}";
 	
 	public static void main(String[] args) {
 		
 		// create Options object
 		Options options = new Options();
 		options.addOption("i", true, "Input GeoPackage file");
-		options.addOption("outTextFile", true, "Output Text file");
+		options.addOption("outTextFile", true, "Output Text file.  '-' for standard output (progress messages then go to standard error).  May be left out if outGeoPackageFile is given (e.g. for BuildVoronoiEdges, which reads the GeoPackage).");
 		options.addOption("outGeoPackageFile", true, "Output GeoPackage file");
 		options.addOption("bbox", true, "Bounding box representing area to process (format: 'xmin,ymin,xmax,ymax')");
 		options.addOption("bboxcrs", true, "CRS of the bounding box.  e.g. 'EPSG:3005' or 'EPSG:4326'");
@@ -106,6 +121,15 @@ public class PrepCgalVoronoiInput {
 		options.addOption("linearboundaries", true, "name of linear boundaries table");
 		options.addOption("whitelistfilter", true, "[attr]:val1,val2");
 		options.addOption("blacklistfilter", true, "[attr]:val1,val2");
+		options.addOption("tiles", true, "Split the voronoi input into a grid of tiles (format: '[numCols]x[numRows]').  outTextFile is then a tile index, and each tile's segments are written to a separate file beside it.");
+		options.addOption("bboxFile", true, "Batch mode: a file of named areas to process, one per line (format: '[name]<TAB>xmin,ymin,xmax,ymax', in bboxcrs).  The output filenames must contain '"+AREA_PLACEHOLDER+"', which is replaced by each area's name.");
+		options.addOption("areasFile", true, "Batch mode: a GeoPackage with a table of polygons.  One area is processed per polygon, bounded by the polygon's bbox.  The output filenames must contain '"+AREA_PLACEHOLDER+"'.");
+		options.addOption("areasTable", true, "Name of the polygon table in areasFile");
+		options.addOption("areaNameAttribute", true, "Attribute of areasTable with the name of each area.  Defaults to the feature id.");
+		options.addOption("threads", true, "Batch mode: number of areas to process at once.  Defaults to 1.");
+		options.addOption("tileHalo", true, "Distance (in the data CRS units) around each tile core from which neighbouring segments are also included in the tile.  Defaults to "+DEFAULT_TILE_HALO_FRACTION+" of the tile size.");
+		options.addOption("spillThreshold", true, "Fraction of the maximum heap above which the features for outGeoPackageFile are spilled to disk.  Defaults to "+MemoryGovernor.DEFAULT_SPILL_THRESHOLD+".  1 disables spilling.");
+		options.addOption("spillDir", true, "Folder for spill files.  Defaults to the system's temporary folder.");
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		
@@ -122,6 +146,15 @@ public class PrepCgalVoronoiInput {
 		String outTableNameUnsegmented = "water_features";
 		String outTableNameSegmented = "water_features_segmented";
 		boolean segmentedGpgk = false;
+		int[] tileGridSize = null;
+		double tileHalo = -1;
+		String bboxFilename = null;
+		String areasFilename = null;
+		String areasTableName = null;
+		String areaNameAttribute = null;
+		int numThreads = 1;
+		double spillThreshold = MemoryGovernor.DEFAULT_SPILL_THRESHOLD;
+		String spillDir = null;
 		
 		try {
 			CommandLine cmd = parser.parse( options, args);
@@ -134,6 +167,21 @@ public class PrepCgalVoronoiInput {
 			linearBoundariesTableName = cmd.getOptionValue("linearboundaries", DEFAULT_LINEAR_BOUNDARIES_FEATURE_TYPE);
 			whitelist = cmd.getOptionValue("whitelistfilter");
 			blacklist = cmd.getOptionValue("blacklistfilter");
+			if (cmd.hasOption("tiles")) {
+				tileGridSize = TileGrid.parseGridSize(cmd.getOptionValue("tiles"));
+			}
+			if (cmd.hasOption("tileHalo")) {
+				tileHalo = Double.parseDouble(cmd.getOptionValue("tileHalo"));
+			}
+			bboxFilename = cmd.getOptionValue("bboxFile");
+			areasFilename = cmd.getOptionValue("areasFile");
+			areasTableName = cmd.getOptionValue("areasTable");
+			areaNameAttribute = cmd.getOptionValue("areaNameAttribute");
+			if (cmd.hasOption("threads")) {
+				numThreads = Integer.parseInt(cmd.getOptionValue("threads"));
+			}
+			spillThreshold = Double.parseDouble(cmd.getOptionValue("spillThreshold", ""+MemoryGovernor.DEFAULT_SPILL_THRESHOLD));
+			spillDir = cmd.getOptionValue("spillDir");
 		} catch (ParseException e2) {
 			formatter.printHelp( PrepCgalVoronoiInput.class.getSimpleName(), options );
 		}
@@ -143,11 +191,17 @@ public class PrepCgalVoronoiInput {
 			formatter.printHelp( PrepCgalVoronoiInput.class.getSimpleName(), options );
 			System.exit(1);
 		}
-		if (outputTxtFilename == null) {
+		if (outputTxtFilename == null && outputGeoPackageFilename == null) {
 			formatter.printHelp( PrepCgalVoronoiInput.class.getSimpleName(), options );
 			System.exit(1);
 		}
-		if (bboxStr == null) {
+		if (outputTxtFilename == null && tileGridSize != null) {
+			System.out.println("outTextFile must be specified with tiles");
+			System.exit(1);
+		}
+		int numAreaOptions = (bboxStr != null ? 1 : 0) + (bboxFilename != null ? 1 : 0) + (areasFilename != null ? 1 : 0);
+		if (numAreaOptions != 1) {
+			System.out.println("Specify exactly one of [bbox, bboxFile, areasFile]");
 			formatter.printHelp( PrepCgalVoronoiInput.class.getSimpleName(), options );
 			System.exit(1);
 		}
@@ -155,19 +209,61 @@ public class PrepCgalVoronoiInput {
 			formatter.printHelp( PrepCgalVoronoiInput.class.getSimpleName(), options );
 			System.exit(1);
 		}
+		boolean batchMode = bboxStr == null;
+		if (batchMode) {
+			if (areasFilename != null && areasTableName == null) {
+				System.out.println("areasTable must be specified with areasFile");
+				System.exit(1);
+			}
+			if ((outputTxtFilename != null && !outputTxtFilename.contains(AREA_PLACEHOLDER)) || (outputGeoPackageFilename != null && !outputGeoPackageFilename.contains(AREA_PLACEHOLDER))) {
+				System.out.println("In batch mode, the output filenames must contain "+AREA_PLACEHOLDER);
+				System.exit(1);
+			}
+		}
 		if (whitelist != null && blacklist != null) {
 			System.out.println("Can only specify one of [whitelistfilter, blacklistfilter]");
 			System.exit(1);
 		}
+		if (spillThreshold <= 0) {
+			System.out.println("spillThreshold must be greater than 0");
+			System.exit(1);
+		}
+		MemoryGovernor.get().setSpillThreshold(spillThreshold);
+		if (spillDir != null) {
+			MemoryGovernor.get().setSpillDir(new File(spillDir));
+		}
+		if (StreamUtils.isStandardStream(outputTxtFilename)) {
+			if (tileGridSize != null) {
+				System.out.println("outTextFile can't be standard output in tiled mode");
+				System.exit(1);
+			}
+			StreamUtils.logToStandardError();
+		}
 		
 		System.out.println("Inputs:");
 		System.out.println("- in file: "+inputGeoPackageFilename);
-		System.out.println("- out text file: "+outputTxtFilename);
+		if (outputTxtFilename != null) {
+			System.out.println("- out text file: "+outputTxtFilename);
+		}
 		if (outputGeoPackageFilename != null) {
 			System.out.println("- out geopackage file: "+outputGeoPackageFilename);
 		}
-		System.out.println("- bbox: "+bboxStr);
+		if (bboxStr != null) {
+			System.out.println("- bbox: "+bboxStr);
+		}
+		if (bboxFilename != null) {
+			System.out.println("- bbox file: "+bboxFilename);
+		}
+		if (areasFilename != null) {
+			System.out.println("- areas: "+areasFilename+" ("+areasTableName+")");
+		}
+		if (batchMode) {
+			System.out.println("- threads: "+numThreads);
+		}
 		System.out.println("- bbox srs: "+bboxCrs);
+		if (tileGridSize != null) {
+			System.out.println("- tiles: "+tileGridSize[0]+"x"+tileGridSize[1]);
+		}
 		
 		if (bboxCrs != null) {
 			if (bboxCrs.startsWith("EPSG:")) {
@@ -200,14 +296,17 @@ public class PrepCgalVoronoiInput {
 			System.exit(1);
 		}
 			
-		//Create output datastore
+		//Create output text file (in tiled mode, the tile files are created once the bbox is known.  
+		//in batch mode, each area's file is created when the area is processed.)
 		BufferedWriter textFileWriter = null;
-		try {
-			textFileWriter = new BufferedWriter(new FileWriter(outputTxtFilename, false));
-		} catch (IOException e) {
-			System.out.println("Unable to open output file: "+outputTxtFilename);
-			e.printStackTrace();
-			System.exit(1);
+		if (tileGridSize == null && !batchMode && outputTxtFilename != null) {
+			try {
+				textFileWriter = StreamUtils.openWriter(outputTxtFilename);
+			} catch (IOException e) {
+				System.out.println("Unable to open output file: "+outputTxtFilename);
+				e.printStackTrace();
+				System.exit(1);
+			}
 		}
 		
 		FeatureSource streamFeatureSource = null;
@@ -232,17 +331,10 @@ public class PrepCgalVoronoiInput {
 			System.exit(1);
 		}
 		
-		ReferencedEnvelope bboxInDataCrs = null;
-		try {
-			bboxInDataCrs = parseBbox(bboxStr, bboxCrs, streamDataBounds.getCoordinateReferenceSystem());
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.out.println(e);
-			System.exit(1);
-		}
+		CoordinateReferenceSystem dataCrs = streamDataBounds.getCoordinateReferenceSystem();
 		
 		try {
-			int streamDataEpsgCode = CRS.lookupEpsgCode(streamDataBounds.getCoordinateReferenceSystem(), true);
+			int streamDataEpsgCode = CRS.lookupEpsgCode(dataCrs, true);
 			System.out.println("Input data summary:");
 			System.out.println(" - "+streamsTableName);
 			System.out.println("   - Data CRS: EPSG:"+streamDataEpsgCode);
@@ -267,6 +359,27 @@ public class PrepCgalVoronoiInput {
 			e.printStackTrace();
 		}
 		
+		//the areas to process (one, unless in batch mode)
+		//---------------------------------------------------------------------
+		
+		List<Area> areas = new ArrayList<Area>();
+		try {
+			CoordinateReferenceSystem bboxCrsObj = CRS.decode(bboxCrs);
+			if (bboxStr != null) {
+				areas.add(new Area(null, bboxStr, parseBbox(bboxStr, bboxCrsObj, dataCrs)));
+			}
+			else if (bboxFilename != null) {
+				areas.addAll(readBboxFile(bboxFilename, bboxCrsObj, dataCrs));
+			}
+			else {
+				areas.addAll(readAreasTable(areasFilename, areasTableName, areaNameAttribute, dataCrs));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println(e);
+			System.exit(1);
+		}
+		
 		//setup feature type for output geopackage
 		//---------------------------------------------------------------------
 		
@@ -288,13 +401,177 @@ public class PrepCgalVoronoiInput {
 			System.exit(1);
 		}
 		
-		DefaultFeatureCollection unsegmentedFeatures = new DefaultFeatureCollection(outTableNameUnsegmented, unsegmentedFeatureType);
-		DefaultFeatureCollection segmentedFeatures = new DefaultFeatureCollection(outTableNameSegmented, segmentedFeatureType);
-		
-		//output to files (txt and geopackage)
+		//output to files (txt and geopackage) for each area
 		//---------------------------------------------------------------------
 		
-		try {
+		System.out.println("Filters to apply to the input data:");
+		System.out.println(" - geometry WITHIN the bbox of the area, and");
+		if (whitelist != null) {
+			System.out.println(" - whitelist: "+whitelist);
+		}
+		if (blacklist != null) {
+			System.out.println(" - blacklist: "+blacklist);
+		}
+		
+		//the datastore, feature types and the attribute filters are shared by all areas
+		AreaPrep prep = new AreaPrep();
+		prep.streamFeatureSource = streamFeatureSource;
+		prep.linearBoundariesFeatureSource = linearBoundariesFeatureSource;
+		prep.streamsPropertyFilter = buildPropertyFilter(streamFeatureSource.getSchema(), whitelist, blacklist);
+		prep.linearBoundariesPropertyFilter = buildPropertyFilter(linearBoundariesFeatureSource.getSchema(), whitelist, blacklist);
+		prep.unsegmentedFeatureType = unsegmentedFeatureType;
+		prep.segmentedFeatureType = segmentedFeatureType;
+		prep.outputTxtFilename = outputTxtFilename;
+		prep.outputGeoPackageFilename = outputGeoPackageFilename;
+		prep.tileGridSize = tileGridSize;
+		prep.tileHalo = tileHalo;
+		prep.textFileWriter = textFileWriter;
+		
+		int numFailed = 0;
+		if (areas.size() == 1 || numThreads <= 1) {
+			for (Area area : areas) {
+				if (!prep.prepSafely(area)) {
+					numFailed++;
+				}
+			}
+		}
+		else {
+			System.out.println("Processing "+areas.size()+" areas with "+numThreads+" threads");
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (final Area area : areas) {
+				final AreaPrep areaPrep = prep;
+				results.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						return areaPrep.prepSafely(area);
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				try {
+					if (!result.get()) {
+						numFailed++;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					numFailed++;
+				}
+			}
+			executor.shutdown();
+		}
+		inDatastore.dispose();
+		
+		if (numFailed > 0) {
+			System.out.println(numFailed+" of "+areas.size()+" areas failed");
+			System.exit(1);
+		}
+		
+		System.out.print("All Done");
+	}
+	
+	/**
+	 * An area to prepare the voronoi input for: a bbox (in the data CRS) and, in batch mode, a name.
+	 */
+	private static class Area {
+		
+		private String name;
+		private String description;
+		private ReferencedEnvelope bbox;
+		
+		public Area(String name, String description, ReferencedEnvelope bbox) {
+			this.name = name;
+			this.description = description;
+			this.bbox = bbox;
+		}
+		
+		/**
+		 * @return the filename with the area's name in place of AREA_PLACEHOLDER
+		 */
+		public String getFilename(String filenameTemplate) {
+			if (filenameTemplate == null || name == null) {
+				return filenameTemplate;
+			}
+			return filenameTemplate.replace(AREA_PLACEHOLDER, name);
+		}
+		
+		/**
+		 * @return a prefix for progress messages, so messages of areas processed in parallel can be told apart
+		 */
+		public String getLogPrefix() {
+			return name == null ? "" : "["+name+"] ";
+		}
+	}
+	
+	/**
+	 * Writes the voronoi input text file (or tiles) and the GeoPackage of one area.  Holds everything
+	 * that is shared by all areas (open feature sources, attribute filters, output feature types), so 
+	 * that they are set up only once per run, and can be used by several threads at once.
+	 */
+	private static class AreaPrep {
+		
+		private FeatureSource streamFeatureSource;
+		private FeatureSource linearBoundariesFeatureSource;
+		private Filter streamsPropertyFilter;
+		private Filter linearBoundariesPropertyFilter;
+		private SimpleFeatureType unsegmentedFeatureType;
+		private SimpleFeatureType segmentedFeatureType;
+		private String outputTxtFilename;
+		private String outputGeoPackageFilename;
+		private int[] tileGridSize;
+		private double tileHalo;
+		//only used when there is a single area (e.g. to write to standard output)
+		private BufferedWriter textFileWriter;
+		
+		/**
+		 * @return true if the area was prepared, false if it failed (the reason is printed)
+		 */
+		public boolean prepSafely(Area area) {
+			try {
+				prep(area);
+				return true;
+			} catch (Exception e) {
+				System.out.println(area.getLogPrefix()+"Failed: "+e.getMessage());
+				e.printStackTrace();
+				return false;
+			}
+		}
+		
+		public void prep(Area area) throws IOException {
+			String log = area.getLogPrefix();
+			ReferencedEnvelope bboxInDataCrs = area.bbox;
+			String outputTxtFilename = area.getFilename(this.outputTxtFilename);
+			String outputGeoPackageFilename = area.getFilename(this.outputGeoPackageFilename);
+			
+			//Create output text file (in tiled mode, the tile files are created once the bbox is known)
+			BufferedWriter textFileWriter = area.name == null ? this.textFileWriter : null;
+			if (tileGridSize == null && textFileWriter == null && outputTxtFilename != null) {
+				textFileWriter = StreamUtils.openWriter(outputTxtFilename);
+			}
+			
+			//setup tiles
+			TileGrid tileGrid = null;
+			TileIndex tileIndex = null;
+			BufferedWriter[] tileWriters = null;
+			if (tileGridSize != null) {
+				double halo = tileHalo;
+				if (halo < 0) {
+					double tileSize = Math.min(bboxInDataCrs.getWidth() / tileGridSize[0], bboxInDataCrs.getHeight() / tileGridSize[1]);
+					halo = tileSize * DEFAULT_TILE_HALO_FRACTION;
+				}
+				tileGrid = new TileGrid(bboxInDataCrs, tileGridSize[0], tileGridSize[1], halo);
+				tileIndex = new TileIndex(tileGrid, outputTxtFilename);
+				tileWriters = new BufferedWriter[tileGrid.getNumTiles()];
+				for (int tile = 0; tile < tileGrid.getNumTiles(); tile++) {
+					tileWriters[tile] = new BufferedWriter(new FileWriter(tileIndex.getSegmentsFile(tile), false));
+				}
+				tileIndex.save(outputTxtFilename);
+			}
+			
+			//the features for the output GeoPackage (if any).  they spill to disk if the heap comes under pressure.
+			boolean saveGeoPackage = outputGeoPackageFilename != null;
+			SpillableFeatureCollection unsegmentedFeatures = new SpillableFeatureCollection(unsegmentedFeatureType);
+			SpillableFeatureCollection segmentedFeatures = new SpillableFeatureCollection(segmentedFeatureType);
+			
 			SimpleFeatureBuilder unsegmentedFeatureBuilder = new SimpleFeatureBuilder(unsegmentedFeatureType);
 			GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
 			Geometry boundingPolygon = geometryFactory.createPolygon(new Coordinate[] {
@@ -305,92 +582,200 @@ public class PrepCgalVoronoiInput {
 					new Coordinate(bboxInDataCrs.getMinX(), bboxInDataCrs.getMinY()),
 					});
 			
-			System.out.println("Filters to apply to the input data:");
-			System.out.println(" - geometry WITHIN "+bboxStr+", and");
-			if (whitelist != null) {
-				System.out.println(" - whitelist: "+whitelist);
+			System.out.println(log+"Geometries to use as input for voronoi diagram (bbox: "+area.description+")");
+			
+			//output the geometry of the target bbox itself.  each tile is bounded by its halo envelope instead.
+			if (tileGrid == null) {
+				if (textFileWriter != null) {
+					writeGeometry(textFileWriter, boundingPolygon);
+				}
+				System.out.println(log+" - 1 polygon defining the selected bbox");
 			}
-			if (blacklist != null) {
-				System.out.println(" - blacklist: "+blacklist);
+			else {
+				for (int tile = 0; tile < tileGrid.getNumTiles(); tile++) {
+					writeGeometry(tileWriters[tile], geometryFactory.toGeometry(tileGrid.getHaloEnvelope(tile)));
+				}
+				System.out.println(log+" - "+tileGrid.getNumTiles()+" polygons defining the tiles (with a halo of "+tileGrid.getHalo()+")");
 			}
 			
-			System.out.println("Geometries to use as input for voronoi diagram");
-			
-			//output the geometry of the target bbox itself
-			writeGeometry(textFileWriter, boundingPolygon);
-			System.out.println(" - 1 polygon defining the selected bbox");
+			//segments outside every tile's halo (tiled mode only)
+			int numUnplacedSegments = 0;
 			
 			//streams
 			//-------
-			FeatureCollection streams = filterFeatures(streamFeatureSource, boundingPolygon, whitelist, blacklist);
+			FeatureCollection streams = filterFeatures(streamFeatureSource, boundingPolygon, streamsPropertyFilter);
 			FeatureIterator streamIterator = streams.features();			
-			System.out.println(" - "+streams.size() + " stream lines");
+			System.out.println(log+" - "+streams.size() + " stream lines");
 			while (streamIterator.hasNext()) {            	
             	//get the input feature
             	SimpleFeature inFeature = (SimpleFeature)streamIterator.next();            	
             	List<SimpleFeature> segmentFeatureList = splitIntoSegments(inFeature, segmentedFeatureType);
             	for(SimpleFeature segmentFeature : segmentFeatureList) {
             		Geometry geometry = (Geometry)segmentFeature.getDefaultGeometry();
-            		writeGeometry(textFileWriter, geometry);
+            		if (tileGrid != null) {
+            			numUnplacedSegments += writeTiledGeometry(tileWriters, tileGrid, geometry);
+            		}
+            		else if (textFileWriter != null) {
+            			writeGeometry(textFileWriter, geometry);
+            		}
             	}
+            	if (saveGeoPackage) {
             		Object[] attrs = {inFeature.getDefaultGeometry()};
             		SimpleFeature featureCopy = unsegmentedFeatureBuilder.buildFeature(inFeature.getID(), attrs);
             		unsegmentedFeatures.add(featureCopy);
-            		segmentedFeatures.addAll(segmentFeatureList);
+            		for (SimpleFeature segmentFeature : segmentFeatureList) {
+            			segmentedFeatures.add(segmentFeature);
+            		}
+            	}
             }
 			streamIterator.close();
 			
 			//linear boundaries
 			//-----------------
-			FeatureCollection linearBoundaries = filterFeatures(linearBoundariesFeatureSource, boundingPolygon, whitelist, blacklist);
+			FeatureCollection linearBoundaries = filterFeatures(linearBoundariesFeatureSource, boundingPolygon, linearBoundariesPropertyFilter);
 			FeatureIterator linearBoundaryIterator = linearBoundaries.features();
-			System.out.println(" - "+linearBoundaries.size() + " linear boundary lines");
+			System.out.println(log+" - "+linearBoundaries.size() + " linear boundary lines");
 			while (linearBoundaryIterator.hasNext()) {            	
 				//get the input feature
             	SimpleFeature inFeature = (SimpleFeature)linearBoundaryIterator.next();      	      	
             	List<SimpleFeature> segmentFeatureList = splitIntoSegments(inFeature, segmentedFeatureType);
             	for(SimpleFeature segmentFeature : segmentFeatureList) {
             		Geometry geometry = (Geometry)segmentFeature.getDefaultGeometry();
-            		writeGeometry(textFileWriter, geometry);
+            		if (tileGrid != null) {
+            			numUnplacedSegments += writeTiledGeometry(tileWriters, tileGrid, geometry);
+            		}
+            		else if (textFileWriter != null) {
+            			writeGeometry(textFileWriter, geometry);
+            		}
+            	}
+            	if (saveGeoPackage) {
+            		Object[] attrs = {inFeature.getDefaultGeometry()};
+            		SimpleFeature featureCopy = unsegmentedFeatureBuilder.buildFeature(inFeature.getID(), attrs);
+            		unsegmentedFeatures.add(featureCopy);
+            		for (SimpleFeature segmentFeature : segmentFeatureList) {
+            			segmentedFeatures.add(segmentFeature);
+            		}
             	}
-        		Object[] attrs = {inFeature.getDefaultGeometry()};
-        		SimpleFeature featureCopy = unsegmentedFeatureBuilder.buildFeature(inFeature.getID(), attrs);
-        		unsegmentedFeatures.add(featureCopy);
-        		segmentedFeatures.addAll(segmentFeatureList);
 
             	
             }
 			linearBoundaryIterator.close();
+			if (numUnplacedSegments > 0) {
+				System.out.println(log+" - "+numUnplacedSegments+" segments outside the bbox were left out of the tiles");
+			}
 					
-			System.out.println("Saved Text File: "+outputTxtFilename);
+			if (tileGrid == null && textFileWriter != null) {
+				System.out.println(log+"Saved Text File: "+outputTxtFilename);
+			}
             
 			//save geopackage
-			if (outputGeoPackageFilename != null) {
-				System.out.println("Saving GeoPackage: "+outputGeoPackageFilename);
-				System.out.println(" - "+outTableNameUnsegmented + ": "+unsegmentedFeatures.size() + " features");
-				SaveUtils.saveToGeoPackage(outputGeoPackageFilename, unsegmentedFeatures);
-				System.out.println(" - "+outTableNameSegmented + ": "+segmentedFeatures.size() + " features");
-				SaveUtils.saveToGeoPackage(outputGeoPackageFilename, segmentedFeatures);				
+			if (saveGeoPackage) {
+				System.out.println(log+"Saving GeoPackage: "+outputGeoPackageFilename);
+				System.out.println(log+" - "+unsegmentedFeatureType.getTypeName() + ": "+unsegmentedFeatures.size() + " features");
+				unsegmentedFeatures.saveToGeoPackage(outputGeoPackageFilename);
+				System.out.println(log+" - "+segmentedFeatureType.getTypeName() + ": "+segmentedFeatures.size() + " features");
+				segmentedFeatures.saveToGeoPackage(outputGeoPackageFilename);
 			}
+			unsegmentedFeatures.dispose();
+			segmentedFeatures.dispose();
 			
 			//cleanup
-			textFileWriter.close();
-			inDatastore.dispose();
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-			System.exit(1);
+			if (tileGrid == null) {
+				if (textFileWriter != null) {
+					textFileWriter.close();
+				}
+			}
+			else {
+				for (BufferedWriter tileWriter : tileWriters) {
+					tileWriter.close();
+				}
+				System.out.println(log+"Saved Tile Index: "+outputTxtFilename);
+			}
 		}
-		
-		
-		System.out.print("All Done");
+	}
+	
+	/**
+	 * Reads a file of named bboxes, one per line: "[name]<TAB>[xmin],[ymin],[xmax],[ymax]".  Blank lines
+	 * and lines starting with '#' are ignored.
+	 * @return the areas, with bboxes transformed to the data CRS
+	 */
+	private static List<Area> readBboxFile(String filename, CoordinateReferenceSystem bboxCrs, CoordinateReferenceSystem dataCrs) throws IOException {
+		List<Area> areas = new ArrayList<Area>();
+		Set<String> names = new HashSet<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try {
+			String line = null;
+			int lineNum = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNum++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] pieces = line.split("\t");
+				if (pieces.length != 2) {
+					throw new IllegalArgumentException("Unable to parse line "+lineNum+" of "+filename+".  Expected '[name]<TAB>[xmin],[ymin],[xmax],[ymax]'");
+				}
+				String name = pieces[0].trim();
+				if (!names.add(name)) {
+					throw new IllegalArgumentException("Duplicate area name in "+filename+": "+name);
+				}
+				areas.add(new Area(name, pieces[1].trim(), parseBbox(pieces[1].trim(), bboxCrs, dataCrs)));
+			}
+		} finally {
+			reader.close();
+		}
+		return areas;
+	}
+	
+	/**
+	 * Reads the areas from a polygon table.  The bbox of each area is the envelope of its polygon.
+	 * @param nameAttribute the attribute holding each area's name, or null to name areas by feature id
+	 * @return the areas, with bboxes transformed to the data CRS
+	 */
+	private static List<Area> readAreasTable(String geoPackageFilename, String tableName, String nameAttribute, CoordinateReferenceSystem dataCrs) throws IOException, FactoryException, TransformException {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("dbtype", GEOPKG_ID);
+		params.put("database", geoPackageFilename);
+		DataStore datastore = DataStoreFinder.getDataStore(params);
+		if (datastore == null) {
+			throw new IOException("Unable to open "+geoPackageFilename);
+		}
+		List<Area> areas = new ArrayList<Area>();
+		Set<String> names = new HashSet<String>();
+		try {
+			SimpleFeatureCollection features = datastore.getFeatureSource(tableName).getFeatures();
+			CoordinateReferenceSystem areasCrs = features.getSchema().getCoordinateReferenceSystem();
+			SimpleFeatureIterator it = features.features();
+			try {
+				while (it.hasNext()) {
+					SimpleFeature feature = it.next();
+					Geometry geometry = (Geometry)feature.getDefaultGeometry();
+					if (geometry == null || geometry.isEmpty()) {
+						continue;
+					}
+					String name = nameAttribute != null ? String.valueOf(feature.getAttribute(nameAttribute)) : feature.getID();
+					if (!names.add(name)) {
+						throw new IllegalArgumentException("Duplicate area name in "+tableName+": "+name);
+					}
+					ReferencedEnvelope bbox = new ReferencedEnvelope(geometry.getEnvelopeInternal(), areasCrs).transform(dataCrs, false);
+					String description = bbox.getMinX()+","+bbox.getMinY()+","+bbox.getMaxX()+","+bbox.getMaxY();
+					areas.add(new Area(name, description, bbox));
+				}
+			} finally {
+				it.close();
+			}
+		} finally {
+			datastore.dispose();
+		}
+		return areas;
 	}
 	
 	/*
 	 * splits a LineString feature into its segments, one feature for each.  Note: the attributes from the 
 	 * original feature aren't copied into the new features.
 	 */
-	private static List<SimpleFeature> splitIntoSegments(SimpleFeature inFeature, SimpleFeatureType outFeatureType) {
+	static List<SimpleFeature> splitIntoSegments(SimpleFeature inFeature, SimpleFeatureType outFeatureType) {
 		List<SimpleFeature> result = new ArrayList<SimpleFeature>();
 		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
 		SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(outFeatureType);
@@ -422,9 +807,17 @@ public class PrepCgalVoronoiInput {
 	/**
 	 * Gets a feature collection with the following filters applied:
 	 *  - GEOMETRY "within" the given bounding polygon, and
-	 *  - EDGE_TYPE equal to any value from edgeTypeWhitelist
+	 *  - EDGE_TYPE equal to any value from edgeTypeWhitelist (as one IN filter; see FilterUtils.in)
+	 */
+	static FeatureCollection filterFeatures(FeatureSource featureSource, Geometry boundingPolygon, String whitelist, String blacklist) throws IOException {
+		return filterFeatures(featureSource, boundingPolygon, buildPropertyFilter(featureSource.getSchema(), whitelist, blacklist));
+	}
+	
+	/**
+	 * Gets a feature collection with the features "within" the given bounding polygon, and matching the
+	 * property filter (if not null)
 	 */
-	private static FeatureCollection filterFeatures(FeatureSource featureSource, Geometry boundingPolygon, String whitelist, String blacklist) throws IOException {
+	static FeatureCollection filterFeatures(FeatureSource featureSource, Geometry boundingPolygon, Filter propertyFilter) throws IOException {
 		
 		FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
 		FeatureType schema = featureSource.getSchema();
@@ -433,38 +826,7 @@ public class PrepCgalVoronoiInput {
 		//use 'bbox' if also needing features that cross the bounds.
 		//Filter bboxFilter = filterFactory.bbox(filterFactory.property(streamGeometryPropertyName), bboxInDataCrs);
 		Filter areaFilter = filterFactory.within(filterFactory.property(streamGeometryPropertyName), filterFactory.literal(boundingPolygon));
-		Filter propertyFilter = null;
 		Filter compositeFilter = null;
-
-		if (whitelist != null) {
-			String propertyName = parseFilterProperty(whitelist);
-			if (schema.getDescriptor(propertyName) != null) {
-				String[] propertyValues = parseFilterValues(whitelist);
-				List<Filter> propertyFilters = new ArrayList<Filter>();
-				for (String value : propertyValues) {
-					Filter edgeFilter = filterFactory.equals(filterFactory.property(propertyName), filterFactory.literal(value));
-					propertyFilters.add(edgeFilter);
-				}
-				propertyFilter = filterFactory.or(propertyFilters);
-			}
-		}
-		else if (blacklist != null) {
-			String propertyName = parseFilterProperty(blacklist);
-			if (schema.getDescriptor(propertyName) != null) {
-				String[] propertyValues = parseFilterValues(blacklist);
-				List<Filter> propertyFilters = new ArrayList<Filter>();
-				for (String value : propertyValues) {
-					Filter edgeFilter = filterFactory.notEqual(filterFactory.property(propertyName), filterFactory.literal(value));
-					propertyFilters.add(edgeFilter);
-				}
-				Filter nullFilter = filterFactory.isNull(filterFactory.property(propertyName));
-				Filter blacklistFilter = filterFactory.and(propertyFilters);
-				//the filter to allow null values must be added explicitly, because 
-				//the NOT EQUAL filter doesn't consider null not to be equal to a given (non-null) literal.  
-				//is this a geotools bug?
-				propertyFilter = filterFactory.or(blacklistFilter, nullFilter);
-			}
-		}
 		
 		if (propertyFilter != null) {
 			compositeFilter = filterFactory.and(areaFilter, propertyFilter);
@@ -477,43 +839,67 @@ public class PrepCgalVoronoiInput {
 		return streams;
 	}
 	
-
-	private static String parseFilterProperty(String s) {
-		int a = s.indexOf(":");
-		if (a == -1) {
-			throw new IllegalArgumentException("unknown filter format.  expecting [attr]:val1,val2,val3,...");
+	/**
+	 * Builds the attribute filter for the given whitelist or blacklist (see FilterUtils.in and notIn).
+	 * @return the filter, or null if there is no list, or the list's property isn't in the schema
+	 */
+	static Filter buildPropertyFilter(FeatureType schema, String whitelist, String blacklist) {
+		Filter propertyFilter = null;
+		if (whitelist != null) {
+			String propertyName = FilterUtils.parseFilterPropertyName(whitelist);
+			if (schema.getDescriptor(propertyName) != null) {
+				propertyFilter = FilterUtils.in(propertyName, FilterUtils.parseFilterPropertyValues(whitelist));
+			}
+		}
+		else if (blacklist != null) {
+			String propertyName = FilterUtils.parseFilterPropertyName(blacklist);
+			if (schema.getDescriptor(propertyName) != null) {
+				propertyFilter = FilterUtils.notIn(propertyName, FilterUtils.parseFilterPropertyValues(blacklist));
+			}
 		}
-		String property = s.substring(0, a);
-		return property;
+		return propertyFilter;
 	}
 	
-	private static String[] parseFilterValues(String s) {
-		int a = s.indexOf(":");
-		if (a == -1) {
-			throw new IllegalArgumentException("unknown filter format.  expecting [attr]:val1,val2,val3,...");
-		}
-		String valuesCsv = s.substring(a+1);
-		String[] values = valuesCsv.split(",");
-		return values;
-	}
 	
 	public static void writeGeometry(Writer out, Geometry geometry) throws IOException {
 		Coordinate[] coordinates = geometry.getCoordinates();
 		Coordinate prevCoord = null;
 		for(Coordinate coord : coordinates) {
 			if (prevCoord != null) {
-				String lineSegmentAsStr = "s " + prevCoord.x + " " + prevCoord.y + "  " + coord.x + " " + coord.y;
-				out.write(lineSegmentAsStr+"\n");
+				writeSegment(out, prevCoord, coord);
 			}
 			prevCoord = coord;
 		}
 	}
 	
-	private static ReferencedEnvelope parseBbox(String bboxStr, String crsInStr, CoordinateReferenceSystem crsOut) {
-		double xmin;
-		double ymin;
-		double xmax;
-		double ymax;
+	/**
+	 * Writes each segment of the given geometry to the file of every tile whose halo it passes through.
+	 * Segments that cross a halo boundary are clipped to the halo (see TileGrid.clipToHalos(..)), because
+	 * they would otherwise cross the tile's bounding polygon.  This only affects the far edge of the halo,
+	 * not the tile core, provided the halo is wide enough.
+	 * @return the number of segments which are in no tile (outside the bbox)
+	 */
+	private static int writeTiledGeometry(Writer[] tileWriters, TileGrid tileGrid, Geometry geometry) throws IOException {
+		int numUnplaced = 0;
+		Coordinate[] coordinates = geometry.getCoordinates();
+		for (int i = 1; i < coordinates.length; i++) {
+			Map<Integer, Coordinate[]> parts = tileGrid.clipToHalos(coordinates[i-1], coordinates[i]);
+			if (parts.isEmpty()) {
+				numUnplaced++;
+			}
+			for (Map.Entry<Integer, Coordinate[]> part : parts.entrySet()) {
+				writeSegment(tileWriters[part.getKey()], part.getValue()[0], part.getValue()[1]);
+			}
+		}
+		return numUnplaced;
+	}
+	
+	private static void writeSegment(Writer out, Coordinate c1, Coordinate c2) throws IOException {
+		String lineSegmentAsStr = "s " + c1.x + " " + c1.y + "  " + c2.x + " " + c2.y;
+		out.write(lineSegmentAsStr+"\n");
+	}
+	
+	static ReferencedEnvelope parseBbox(String bboxStr, String crsInStr, CoordinateReferenceSystem crsOut) {
 		CoordinateReferenceSystem crsIn = null;
 		try {
 			crsIn = CRS.decode(crsInStr);
@@ -522,6 +908,18 @@ public class PrepCgalVoronoiInput {
 		} catch (FactoryException e) {
 			throw new IllegalStateException("Unable to lookup CRS.  An internal error occurred.");
 		}
+		return parseBbox(bboxStr, crsIn, crsOut);
+	}
+	
+	/**
+	 * parses a bbox ('xmin,ymin,xmax,ymax') in crsIn, and transforms it to crsOut.  (used in batch mode
+	 * so the CRS is decoded once for all the bboxes.)
+	 */
+	static ReferencedEnvelope parseBbox(String bboxStr, CoordinateReferenceSystem crsIn, CoordinateReferenceSystem crsOut) {
+		double xmin;
+		double ymin;
+		double xmax;
+		double ymax;
 			
 		String[] pieces = bboxStr.split(",");
 		if (pieces.length != 4) {
@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -36,6 +35,9 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.filter.Filter;
 
+import ca.bc.gov.catchments.utils.MemoryGovernor;
+import ca.bc.gov.catchments.utils.Metrics;
+
 public class SimplifyApp {
 
 	private static final String[] FEATURE_TYPES_TO_PROCESS = {"STREAM_NETWORKS", "LINEAR_BOUNDARIES"};
@@ -44,12 +46,14 @@ public class SimplifyApp {
 	
 	public static void main(String[] args) {
 		
-		if (args.length != 2) {
+		if (args.length != 2 && !(args.length == 4 && args[2].equals("-metricsFile"))) {
 			showUsage();
 			return;
 		}
 		String inputGeopackageFilename = args[0];
 		String outputGeopackageFilename = args[1];
+		String metricsFilename = args.length == 4 ? args[3] : null;
+		MemoryGovernor.get().startSampling();
 		 
 		Map<String, String> inputDatastoreParams = new HashMap<String, String>();
 		inputDatastoreParams.put("dbtype", GEOPKG_ID);
@@ -88,11 +92,17 @@ public class SimplifyApp {
 			System.exit(1);
 		}
 		
+		Metrics.get().setStep(SimplifyApp.class.getSimpleName());
+		Metrics.Counter featuresProcessed = Metrics.get().counter("simplify_features_processed", "Features simplified");
+		Metrics.Counter verticesRemoved = Metrics.get().counter("simplify_vertices_removed", "Vertices removed by simplification");
+		Metrics.Timer tableTimer = Metrics.get().timer("simplify_table", "Wall time to process each table (including saving)");
+		Metrics.Timer persistTimer = Metrics.get().timer("simplify_persist", "Time to save each table and add its spatial index");
 		
 		for(String featureTypeName : FEATURE_TYPES_TO_PROCESS) {
-			Date t0 = new Date();
+			long tableStart = tableTimer.start();
 			
 			System.out.println("Processing "+featureTypeName);
+			MemoryGovernor.get().setPhase("simplify_"+featureTypeName.toLowerCase());
 
 			SimpleFeatureType featureType;
 			try {
@@ -200,20 +210,24 @@ public class SimplifyApp {
 	            //Save the in-memory output feature collection to the output file
 	            SimpleFeatureCollection simpleCollection = DataUtilities.simple(outFeatureCollection);
 	            System.out.println("Saving...");
+	            long persistStart = persistTimer.start();
 	            outGeoPackage.add(entry, simpleCollection);
 	            System.out.println(" - Done");
 	            System.out.println("Adding spatial index...");
 	            outGeoPackage.createSpatialIndex(entry);
+	            persistTimer.stop(persistStart);
 	            System.out.println(" - Done");	  
 	            
-	    		Date t1 = new Date();
-	    		long runTimeMs = t1.getTime() - t0.getTime();
+	    		long runTimeNanos = tableTimer.stop(tableStart);
+	    		int numFeatures = outFeatureCollection.size();
+	    		featuresProcessed.add(numFeatures);
+	    		verticesRemoved.add(totalNumPointsRemoved);
 	    		
 	    		float percentSimplification = (float)totalNumPointsRemoved / (float)totalNumPointsOriginal * 100;
 	    		
 	    		System.out.println("Summary");
-	    		System.out.println(" - "+outFeatureCollection.size()+" features processed");
-	    		System.out.println(" - run time: "+runTimeMs+" ms");	
+	    		System.out.println(" - "+numFeatures+" features processed");
+	    		System.out.println(" - run time: "+Metrics.formatSeconds(runTimeNanos)+" ("+Metrics.formatRate(numFeatures, runTimeNanos)+")");	
 	    		System.out.println(" - "+totalNumPointsOriginal+" points reduced to "+(totalNumPointsOriginal-totalNumPointsRemoved)+". ("+percentSimplification+"% reduction)");	
 	            
 			} catch (IOException e) {
@@ -234,12 +248,23 @@ public class SimplifyApp {
 		}
 
 		outGeoPackage.close();
+		MemoryGovernor.get().stopSampling();
+		
+		if (metricsFilename != null) {
+			try {
+				Metrics.get().save(metricsFilename);
+			} catch (IOException e) {
+				System.out.println("Unable to save metrics to "+metricsFilename);
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 		System.out.println("Simplification complete");
 		
 	}
 	 
 	 public static void showUsage() {
-		 System.out.println("usage: java ca.bc.gov.catchments.SimplifyApp [input_geopackage_filename] [output_geopackage_filename]");
+		 System.out.println("usage: java ca.bc.gov.catchments.SimplifyApp [input_geopackage_filename] [output_geopackage_filename] [-metricsFile metrics_json_filename]");
 	 }
 	
 }
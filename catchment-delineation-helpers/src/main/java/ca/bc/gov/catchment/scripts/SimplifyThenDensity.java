@@ -3,9 +3,10 @@ package ca.bc.gov.catchment.scripts;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.cli.CommandLine;
@@ -16,23 +17,21 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
-import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureReader;
 import org.geotools.data.FeatureWriter;
 import org.geotools.data.FileDataStoreFactorySpi;
 import org.geotools.data.FileDataStoreFinder;
 import org.geotools.data.Query;
 import org.geotools.data.Transaction;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.simple.SimpleFeatureWriter;
-import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geopkg.FeatureEntry;
 import org.geotools.geopkg.GeoPackage;
 import org.geotools.geopkg.GeoPkgDataStoreFactory;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.densify.Densifier;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
@@ -44,12 +43,19 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.filter.Filter;
 
+import ca.bc.gov.catchments.utils.AdaptiveDensifier;
+import ca.bc.gov.catchments.utils.MemoryGovernor;
+import ca.bc.gov.catchments.utils.Metrics;
+import ca.bc.gov.catchments.utils.SpillableFeatureCollection;
+
 public class SimplifyThenDensity {
 
 	private static final String DEFAULT_FEATURE_TYPES_TO_PROCESS = "STREAM_NETWORKS,LINEAR_BOUNDARIES";
 	private static final String GEOPKG_ID = "geopkg";
 	private static final double DEFAULT_SIMPLIFY_DISTANCE_TOLERANCE = 2; //unit is same as input data set
 	private static final double DEFAULT_DENSIFY_DISTANCE_SPACING = 50; //unit is same as input data set
+	private static final double DEFAULT_COARSE_DENSIFY_SPACING_FACTOR = 4; //multiple of densifyDistanceSpacing
+	private static final double DEFAULT_DENSIFY_PROXIMITY_FACTOR = 3; //multiple of densifyDistanceSpacing
 	
 	public static void main(String[] args) {
 		
@@ -59,9 +65,16 @@ public class SimplifyThenDensity {
 		options.addOption("o", true, "Output GeoPackage file");
 		options.addOption("tables", true, "csv list of table names to process");
 		options.addOption("simplify", false, "flag indicating that simplification will be performed");
+		options.addOption("networkSimplify", false, "flag indicating that the lines of all tables are simplified together, so that no simplified line crosses another");
 		options.addOption("densify", false, "flag to indicate that densification will be performed");
 		options.addOption("simplifyDistanceTolerance", true, "distance tolerance in unit of input data set");
 		options.addOption("densifyDistanceSpacing", true, "distance spacing in unit of input data set");
+		options.addOption("adaptiveDensify", false, "flag to indicate that lines are densified with densifyDistanceSpacing only where another feature is nearby, and with coarseDensifyDistanceSpacing elsewhere");
+		options.addOption("coarseDensifyDistanceSpacing", true, "distance spacing used by adaptiveDensify away from other features.  0 for no densification.  defaults to "+DEFAULT_COARSE_DENSIFY_SPACING_FACTOR+" x densifyDistanceSpacing");
+		options.addOption("densifyProximityFactor", true, "used by adaptiveDensify.  a feature is nearby if it is within this multiple of densifyDistanceSpacing.  defaults to "+DEFAULT_DENSIFY_PROXIMITY_FACTOR);
+		options.addOption("metricsFile", true, "JSON file to save the run's metrics to.  The metrics are also saved in the Prometheus text format, to a .prom file beside it.");
+		options.addOption("spillThreshold", true, "Fraction of the maximum heap above which processed features are spilled to disk until the table is saved.  Defaults to "+MemoryGovernor.DEFAULT_SPILL_THRESHOLD+".  1 disables spilling.");
+		options.addOption("spillDir", true, "Folder for spill files.  Defaults to the system's temporary folder.");
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		
@@ -69,9 +82,16 @@ public class SimplifyThenDensity {
 		String outputGeopackageFilename = null;
 		String tableNamesCsv = null;
 		boolean doSimplify = false;
+		boolean doNetworkSimplify = false;
 		boolean doDensify = false;
+		boolean doAdaptiveDensify = false;
 		double simplifyDistanceTolerance = 0;
 		double densifyDistanceSpacing = 0;
+		double coarseDensifyDistanceSpacing = 0;
+		double densifyProximityFactor = 0;
+		String metricsFilename = null;
+		double spillThreshold = MemoryGovernor.DEFAULT_SPILL_THRESHOLD;
+		String spillDir = null;
 		
 		try {
 			CommandLine cmd = parser.parse( options, args);
@@ -79,20 +99,43 @@ public class SimplifyThenDensity {
 			outputGeopackageFilename = cmd.getOptionValue("o");	
 			tableNamesCsv = cmd.getOptionValue("tables",DEFAULT_FEATURE_TYPES_TO_PROCESS);
 			doSimplify = cmd.hasOption("simplify");
+			doNetworkSimplify = cmd.hasOption("networkSimplify");
 			doDensify = cmd.hasOption("densify");
 			simplifyDistanceTolerance = Double.parseDouble(cmd.getOptionValue("simplifyDistanceTolerance", DEFAULT_SIMPLIFY_DISTANCE_TOLERANCE+""));
 			densifyDistanceSpacing = Double.parseDouble(cmd.getOptionValue("densifyDistanceSpacing", DEFAULT_DENSIFY_DISTANCE_SPACING+""));			
+			doAdaptiveDensify = cmd.hasOption("adaptiveDensify");
+			coarseDensifyDistanceSpacing = Double.parseDouble(cmd.getOptionValue("coarseDensifyDistanceSpacing", densifyDistanceSpacing*DEFAULT_COARSE_DENSIFY_SPACING_FACTOR+""));
+			densifyProximityFactor = Double.parseDouble(cmd.getOptionValue("densifyProximityFactor", DEFAULT_DENSIFY_PROXIMITY_FACTOR+""));
+			metricsFilename = cmd.getOptionValue("metricsFile");
+			spillThreshold = Double.parseDouble(cmd.getOptionValue("spillThreshold", MemoryGovernor.DEFAULT_SPILL_THRESHOLD+""));
+			spillDir = cmd.getOptionValue("spillDir");
 		} catch (ParseException e2) {
 			formatter.printHelp( WKTList2GeoPackage.class.getSimpleName(), options );
 		}
 		
 		String[] tableNamesToProcess = tableNamesCsv.split(","); 
 		
+		if (spillThreshold <= 0) {
+			System.out.println("spillThreshold must be greater than 0");
+			System.exit(1);
+		}
+		MemoryGovernor.get().setSpillThreshold(spillThreshold);
+		if (spillDir != null) {
+			MemoryGovernor.get().setSpillDir(new File(spillDir));
+		}
+		MemoryGovernor.get().startSampling();
+		
 		 
 		System.out.println("Inputs:");
 		System.out.println("- in file: "+inputGeopackageFilename);
 		System.out.println("- out file: "+outputGeopackageFilename);
 		System.out.println("- tables: "+tableNamesCsv);
+		if (doSimplify) {
+			System.out.println("- simplify mode: "+(doNetworkSimplify ? "network" : "per feature"));
+		}
+		if (doDensify && doAdaptiveDensify) {
+			System.out.println("- densify mode: adaptive (spacing "+densifyDistanceSpacing+" within "+(densifyProximityFactor*densifyDistanceSpacing)+" of another feature, "+coarseDensifyDistanceSpacing+" elsewhere)");
+		}
 		
 		Map<String, String> inputDatastoreParams = new HashMap<String, String>();
 		inputDatastoreParams.put("dbtype", GEOPKG_ID);
@@ -131,11 +174,54 @@ public class SimplifyThenDensity {
 			System.exit(1);
 		}
 		
+		//in network mode all tables are simplified together up front.  the simplified geometries
+		//are keyed by table name, then by feature id
+		Map<String, Map<String, Geometry>> networkSimplifiedGeometries = null;
+		if (doSimplify && doNetworkSimplify) {
+			System.out.println("Simplifying all tables together...");
+			try {
+				networkSimplifiedGeometries = simplifyNetwork(inDatastore, tableNamesToProcess, simplifyDistanceTolerance);
+			} catch (IOException e) {
+				System.out.println("Unable to simplify");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			System.out.println(" - Done");
+		}
+		
+		//adaptive densification needs to know where all the features are before any one is densified.
+		//the index is built from the input geometries.  simplification moves lines by at most the 
+		//simplification tolerance, so that is added to the proximity distance.
+		AdaptiveDensifier adaptiveDensifier = null;
+		if (doDensify && doAdaptiveDensify) {
+			System.out.println("Indexing all tables for adaptive densification...");
+			double proximityDistance = densifyProximityFactor * densifyDistanceSpacing;
+			if (doSimplify) {
+				proximityDistance += simplifyDistanceTolerance;
+			}
+			adaptiveDensifier = new AdaptiveDensifier(densifyDistanceSpacing, coarseDensifyDistanceSpacing, proximityDistance);
+			try {
+				indexForAdaptiveDensify(inDatastore, tableNamesToProcess, adaptiveDensifier);
+			} catch (IOException e) {
+				System.out.println("Unable to index input features");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			System.out.println(" - Done");
+		}
+		
+		Metrics.get().setStep(SimplifyThenDensity.class.getSimpleName());
+		Metrics.Counter featuresProcessed = Metrics.get().counter("simplify_features_processed", "Features simplified and/or densified");
+		Metrics.Counter verticesRemoved = Metrics.get().counter("simplify_vertices_removed", "Vertices removed by simplification");
+		Metrics.Counter verticesAdded = Metrics.get().counter("simplify_vertices_added", "Vertices added by densification");
+		Metrics.Timer tableTimer = Metrics.get().timer("simplify_table", "Wall time to process each table (including saving)");
+		Metrics.Timer persistTimer = Metrics.get().timer("simplify_persist", "Time to save each table and add its spatial index");
 		
 		for(String featureTypeName : tableNamesToProcess) {
-			Date t0 = new Date();
+			long tableStart = tableTimer.start();
 			
 			System.out.println("Processing "+featureTypeName);
+			MemoryGovernor.get().setPhase("simplify_"+featureTypeName.toLowerCase());
 
 			SimpleFeatureType featureType;
 			try {
@@ -193,7 +279,7 @@ public class SimplifyThenDensity {
 			try {
 				reader = inDatastore.getFeatureReader(readerQuery, Transaction.AUTO_COMMIT);
 				
-				DefaultFeatureCollection outFeatureCollection = new DefaultFeatureCollection(featureTypeName, featureType);
+				SpillableFeatureCollection outFeatureCollection = new SpillableFeatureCollection(featureType);
 				
 				int totalNumPointsOriginal = 0;
 				int totalNumPointsRemoved = 0;
@@ -207,12 +293,23 @@ public class SimplifyThenDensity {
 	            	SimpleFeature outFeature = SimpleFeatureBuilder.copy(infeature);
 	            	
 	                Geometry originalGeometry = (Geometry)infeature.getDefaultGeometry();
+	                if (originalGeometry == null) {
+	                	//nothing to simplify or densify.  keep the feature as it is.
+	                	outFeatureCollection.add(outFeature);
+	                	continue;
+	                }
 	                totalNumPointsOriginal += originalGeometry.getNumPoints();
 	                
 	                Geometry geomToProcess = originalGeometry;
 	                
 	                //simplify geometry
-	                if (doSimplify) {
+	                if (doSimplify && doNetworkSimplify) {
+	                	Geometry simplifiedGeometry = networkSimplifiedGeometries.get(featureTypeName).get(infeature.getID());
+	                	int numPointsRemoved = geomToProcess.getNumPoints() - simplifiedGeometry.getNumPoints();
+		                totalNumPointsRemoved += numPointsRemoved;
+		                geomToProcess = simplifiedGeometry;
+	                }
+	                else if (doSimplify) {
 		                TopologyPreservingSimplifier simplifier = new TopologyPreservingSimplifier(geomToProcess);
 		                //DouglasPeuckerSimplifier simplifier = new DouglasPeuckerSimplifier(geomToProcess);
 		                simplifier.setDistanceTolerance(simplifyDistanceTolerance);
@@ -223,7 +320,13 @@ public class SimplifyThenDensity {
 	                }
 	                
 	                //densify geometry
-	                if (doDensify) {
+	                if (doDensify && doAdaptiveDensify) {
+	                	Geometry densifiedGeometry = adaptiveDensifier.densify(featureTypeName+"/"+infeature.getID(), geomToProcess);
+	                	int numPointsAdded = densifiedGeometry.getNumPoints() - geomToProcess.getNumPoints();
+		                totalNumPointsAdded += numPointsAdded;
+		                geomToProcess = densifiedGeometry;
+	                }
+	                else if (doDensify) {
 		                Densifier densifier = new Densifier(geomToProcess);
 		                densifier.setDistanceTolerance(densifyDistanceSpacing);
 		                Geometry densifiedGeometry = densifier.getResultGeometry();
@@ -262,28 +365,37 @@ public class SimplifyThenDensity {
 
 	            }
 	            
-	            //Save the in-memory output feature collection to the output file
-	            SimpleFeatureCollection simpleCollection = DataUtilities.simple(outFeatureCollection);
+	            //Save the output feature collection (in memory, and spilled to disk if any) to the output file
 	            System.out.println("Saving...");
-	            outGeoPackage.add(entry, simpleCollection);
+	            long persistStart = persistTimer.start();
+	            outFeatureCollection.save(outGeoPackage, entry);
 	            System.out.println(" - Done");
 	            System.out.println("Adding spatial index...");
 	            outGeoPackage.createSpatialIndex(entry);
+	            persistTimer.stop(persistStart);
 	            System.out.println(" - Done");	  
 	            
-	    		Date t1 = new Date();
-	    		long runTimeMs = t1.getTime() - t0.getTime();
+	    		long runTimeNanos = tableTimer.stop(tableStart);
+	    		featuresProcessed.add(outFeatureCollection.size());
+	    		int numFeatures = outFeatureCollection.size();
+	    		outFeatureCollection.dispose();
+	    		verticesRemoved.add(totalNumPointsRemoved);
+	    		verticesAdded.add(totalNumPointsAdded);
 	    		
 	    		int finalNumPoints = totalNumPointsOriginal - totalNumPointsRemoved + totalNumPointsAdded;
 	    		float percentChange = (float)finalNumPoints / (float)totalNumPointsOriginal * 100 - 100;
 	    		
 	    		System.out.println("Summary");
-	    		System.out.println(" - "+outFeatureCollection.size()+" features processed");
-	    		System.out.println(" - run time: "+runTimeMs+" ms");	
+	    		System.out.println(" - "+numFeatures+" features processed");
+	    		System.out.println(" - run time: "+Metrics.formatSeconds(runTimeNanos)+" ("+Metrics.formatRate(numFeatures, runTimeNanos)+")");	
 	    		System.out.println(" - # original vertivies: "+totalNumPointsOriginal);
 	    		System.out.println(" - # verticies removed by simplification: "+totalNumPointsRemoved);
 	    		System.out.println(" - # verticies added by densification: "+totalNumPointsAdded);
 	    		System.out.println(" - # vertificies in output: "+finalNumPoints+ "("+percentChange+"% change)");
+	    		if (adaptiveDensifier != null) {
+	    			System.out.println(" - # segments densified finely so far: "+adaptiveDensifier.getNumFineSegments());
+	    			System.out.println(" - # segments densified coarsely so far: "+adaptiveDensifier.getNumCoarseSegments());
+	    		}
 	            
 			} catch (IOException e) {
 				System.out.println("Unable to read stream networks");
@@ -303,10 +415,106 @@ public class SimplifyThenDensity {
 		}
 
 		outGeoPackage.close();
+		MemoryGovernor.get().stopSampling();
+		
+		if (metricsFilename != null) {
+			try {
+				Metrics.get().save(metricsFilename);
+			} catch (IOException e) {
+				System.out.println("Unable to save metrics to "+metricsFilename);
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 		System.out.println("All done");
 		
 	}
 	 
+	/**
+	 * Adds the features of all the given tables to the proximity index of the adaptive densifier.  
+	 * Features are identified by "[table name]/[feature id]".
+	 */
+	private static void indexForAdaptiveDensify(DataStore inDatastore, String[] tableNames, AdaptiveDensifier adaptiveDensifier) throws IOException {
+		for(String tableName : tableNames) {
+			FeatureReader<SimpleFeatureType, SimpleFeature> reader = inDatastore.getFeatureReader(new Query(tableName), Transaction.AUTO_COMMIT);
+			try {
+				while (reader.hasNext()) {
+					SimpleFeature feature = reader.next();
+					Geometry geometry = (Geometry)feature.getDefaultGeometry();
+					if (geometry != null) {
+						adaptiveDensifier.add(tableName+"/"+feature.getID(), geometry);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	}
+	
+	/**
+	 * Simplifies the lines of all the given tables together, as one network.  TopologyPreservingSimplifier
+	 * checks each candidate simplified segment against a single segment index of all lines in its input, so 
+	 * simplifying one collection of all lines (instead of each line on its own) ensures that no simplified 
+	 * line crosses any other line.  Line endpoints are never removed, so endpoints shared by 
+	 * neighbouring lines stay pinned.
+	 * @return the simplified geometries, keyed by table name then by feature id
+	 */
+	private static Map<String, Map<String, Geometry>> simplifyNetwork(DataStore inDatastore, String[] tableNames, double simplifyDistanceTolerance) throws IOException {
+		List<String> tableNameList = new ArrayList<String>();
+		List<String> fidList = new ArrayList<String>();
+		List<Geometry> geometryList = new ArrayList<Geometry>();
+		Map<String, Map<String, Geometry>> result = new HashMap<String, Map<String, Geometry>>();
+		
+		for(String tableName : tableNames) {
+			Map<String, Geometry> tableResult = new HashMap<String, Geometry>();
+			result.put(tableName, tableResult);
+			
+			FeatureReader<SimpleFeatureType, SimpleFeature> reader = inDatastore.getFeatureReader(new Query(tableName), Transaction.AUTO_COMMIT);
+			try {
+				while (reader.hasNext()) {
+					SimpleFeature feature = reader.next();
+					Geometry geometry = (Geometry)feature.getDefaultGeometry();
+					if (geometry == null) {
+						//features without a geometry are copied to the output unchanged
+						continue;
+					}
+					if (geometry.isEmpty()) {
+						//empty geometries would be dropped from the simplified collection
+						tableResult.put(feature.getID(), geometry);
+						continue;
+					}
+					tableNameList.add(tableName);
+					fidList.add(feature.getID());
+					geometryList.add(geometry);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		System.out.println(" - "+geometryList.size()+" lines in network");
+		if (geometryList.isEmpty()) {
+			return result;
+		}
+		
+		Geometry[] geometries = geometryList.toArray(new Geometry[geometryList.size()]);
+		GeometryFactory geometryFactory = geometries[0].getFactory();
+		Geometry network = geometryFactory.createGeometryCollection(geometries);
+		
+		TopologyPreservingSimplifier simplifier = new TopologyPreservingSimplifier(network);
+		simplifier.setDistanceTolerance(simplifyDistanceTolerance);
+		Geometry simplifiedNetwork = simplifier.getResultGeometry();
+		
+		//the simplified collection has one component for each input geometry, in the same order 
+		//(also when there is only one input geometry: the simplifier keeps the collection type)
+		if (simplifiedNetwork.getNumGeometries() != geometries.length) {
+			throw new IllegalStateException("Post condition failed: simplified network has "+simplifiedNetwork.getNumGeometries()+" lines.  Expected "+geometries.length);
+		}
+		for (int i = 0; i < geometries.length; i++) {
+			result.get(tableNameList.get(i)).put(fidList.get(i), simplifiedNetwork.getGeometryN(i));
+		}
+		return result;
+	}
+	 
 	 public static void showUsage() {
 		 System.out.println("usage: java ca.bc.gov.catchments.SimplifyApp [input_geopackage_filename] [output_geopackage_filename]");
 	 }
@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -49,6 +48,10 @@ import org.opengis.filter.Filter;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import ca.bc.gov.catchments.utils.MemoryGovernor;
+import ca.bc.gov.catchments.utils.Metrics;
+import ca.bc.gov.catchments.utils.SpillableFeatureCollection;
+
 public class SnapToGrid {
 
 	private static final String GEOPKG_ID = "geopkg";
@@ -62,6 +65,9 @@ public class SnapToGrid {
 		options.addOption("o", true, "Output GeoPackage file");
 		options.addOption("tables", true, "csv list of table names to process");
 		options.addOption("precisionScale", true, "number of decimal places specified as a scale factor.  For 3 decimal places use scale 1000.");
+		options.addOption("spillThreshold", true, "Fraction of the maximum heap above which processed features are spilled to disk until the table is saved.  Defaults to "+MemoryGovernor.DEFAULT_SPILL_THRESHOLD+".  1 disables spilling.");
+		options.addOption("spillDir", true, "Folder for spill files.  Defaults to the system's temporary folder.");
+		options.addOption("metricsFile", true, "JSON file to save the run's metrics to.  The metrics are also saved in the Prometheus text format, to a .prom file beside it.");
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		
@@ -69,6 +75,9 @@ public class SnapToGrid {
 		String outputGeopackageFilename = null;
 		String tableNamesCsv = null;
 		double precisionScale = 0;
+		double spillThreshold = MemoryGovernor.DEFAULT_SPILL_THRESHOLD;
+		String spillDir = null;
+		String metricsFilename = null;
 		
 		try {
 			CommandLine cmd = parser.parse( options, args);
@@ -76,12 +85,25 @@ public class SnapToGrid {
 			outputGeopackageFilename = cmd.getOptionValue("o");	
 			tableNamesCsv = cmd.getOptionValue("tables");
 			precisionScale = Double.parseDouble(cmd.getOptionValue("precisionScale", DEFAULT_PRECISION_SCALE+""));
+			spillThreshold = Double.parseDouble(cmd.getOptionValue("spillThreshold", MemoryGovernor.DEFAULT_SPILL_THRESHOLD+""));
+			spillDir = cmd.getOptionValue("spillDir");
+			metricsFilename = cmd.getOptionValue("metricsFile");
 		} catch (ParseException e2) {
 			formatter.printHelp( WKTList2GeoPackage.class.getSimpleName(), options );
 		}
 		
 		String[] tableNamesToProcess = tableNamesCsv.split(","); 
 		
+		if (spillThreshold <= 0) {
+			System.out.println("spillThreshold must be greater than 0");
+			System.exit(1);
+		}
+		MemoryGovernor.get().setSpillThreshold(spillThreshold);
+		if (spillDir != null) {
+			MemoryGovernor.get().setSpillDir(new File(spillDir));
+		}
+		MemoryGovernor.get().startSampling();
+		
 		PrecisionModel precisionModel = new PrecisionModel(precisionScale);
 		
 		System.out.println("Inputs:");
@@ -127,11 +149,16 @@ public class SnapToGrid {
 			System.exit(1);
 		}
 		
+		Metrics.get().setStep(SnapToGrid.class.getSimpleName());
+		Metrics.Counter featuresProcessed = Metrics.get().counter("snap_features_processed", "Features snapped to the grid");
+		Metrics.Timer tableTimer = Metrics.get().timer("snap_table", "Wall time to process each table (including saving)");
+		Metrics.Timer persistTimer = Metrics.get().timer("snap_persist", "Time to save each table and add its spatial index");
 		
 		for(String featureTypeName : tableNamesToProcess) {
-			Date t0 = new Date();
+			long tableStart = tableTimer.start();
 			
 			System.out.println("Processing "+featureTypeName);
+			MemoryGovernor.get().setPhase("snap_"+featureTypeName.toLowerCase());
 
 			SimpleFeatureType featureType;
 			try {
@@ -178,7 +205,7 @@ public class SnapToGrid {
 			try {
 				reader = inDatastore.getFeatureReader(readerQuery, Transaction.AUTO_COMMIT);
 				
-				DefaultFeatureCollection outFeatureCollection = new DefaultFeatureCollection(featureTypeName, featureType);
+				SpillableFeatureCollection outFeatureCollection = new SpillableFeatureCollection(featureType);
 				
 				GeometryFactory gf = new GeometryFactory(precisionModel, srid);
 				 
@@ -230,24 +257,27 @@ public class SnapToGrid {
 
 	            }
 	            
-	            //Save the in-memory output feature collection to the output file
-	            SimpleFeatureCollection simpleCollection = DataUtilities.simple(outFeatureCollection);
+	            //Save the output feature collection (in memory, and spilled to disk if any) to the output file
 	            System.out.println("Saving...");
-	            outGeoPackage.add(entry, simpleCollection);
+	            long persistStart = persistTimer.start();
+	            outFeatureCollection.save(outGeoPackage, entry);
 	            System.out.println(" - Done");
 	            System.out.println("Adding spatial index...");
 	            outGeoPackage.createSpatialIndex(entry);
+	            persistTimer.stop(persistStart);
 	            System.out.println(" - Done");	  
 	            
-	    		Date t1 = new Date();
-	    		long runTimeMs = t1.getTime() - t0.getTime();
+	    		long runTimeNanos = tableTimer.stop(tableStart);
+	    		int numFeatures = outFeatureCollection.size();
+	    		featuresProcessed.add(numFeatures);
 	    		
 	    		int finalNumPoints = totalNumPointsOriginal - totalNumPointsRemoved + totalNumPointsAdded;
 	    		float percentChange = (float)finalNumPoints / (float)totalNumPointsOriginal * 100 - 100;
 	    		
 	    		System.out.println("Summary");
-	    		System.out.println(" - "+outFeatureCollection.size()+" features processed");
-	    		System.out.println(" - run time: "+runTimeMs+" ms");	
+	    		System.out.println(" - "+numFeatures+" features processed");
+	    		System.out.println(" - run time: "+Metrics.formatSeconds(runTimeNanos)+" ("+Metrics.formatRate(numFeatures, runTimeNanos)+")");	
+	    		outFeatureCollection.dispose();
 	            
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -266,6 +296,17 @@ public class SnapToGrid {
 		}
 
 		outGeoPackage.close();
+		MemoryGovernor.get().stopSampling();
+		
+		if (metricsFilename != null) {
+			try {
+				Metrics.get().save(metricsFilename);
+			} catch (IOException e) {
+				System.out.println("Unable to save metrics to "+metricsFilename);
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 		System.out.println("All done");
 		
 	}
@@ -0,0 +1,189 @@
+package ca.bc.gov.catchment.scripts;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import ca.bc.gov.catchment.voronoi.TileGrid;
+import ca.bc.gov.catchment.voronoi.TileIndex;
+import ca.bc.gov.catchment.voronoi.TileStitcher;
+
+/**
+ * Merges the voronoi-catchments output (WKT) of each tile of a tiled run (see PrepCgalVoronoiInput -tiles)
+ * into a single voronoi_edges table.
+ *
+ * Each tile's edges are clipped to the tile's core, and joined up along the seams between tiles
+ * (see TileStitcher).
+ */
+public class StitchVoronoiTiles {
+
+	private static final String GEOPKG_VORONOI_EDGES_TABLE = "voronoi_edges";
+	private static final double DEFAULT_SEAM_TOLERANCE = 0.001;
+
+	public static void main(String[] args) {
+
+		// create Options object
+		Options options = new Options();
+		options.addOption("tileIndex", true, "Tile index file (output by PrepCgalVoronoiInput -tiles)");
+		options.addOption("o", true, "Output GeoPackage file");
+		options.addOption("bboxcrs", true, "CRS of the voronoi edges.  e.g. 'EPSG:3005'");
+		options.addOption("seamTolerance", true, "Distance within which edge endpoints on a seam between tiles are snapped together.  Default "+DEFAULT_SEAM_TOLERANCE);
+		CommandLineParser parser = new DefaultParser();
+		HelpFormatter formatter = new HelpFormatter();
+
+		String tileIndexFilename = null;
+		String outputGeopackageFilename = null;
+		String bboxCrs = null;
+		int bboxSrid = -1;
+		double seamTolerance = DEFAULT_SEAM_TOLERANCE;
+
+		try {
+			CommandLine cmd = parser.parse( options, args);
+			tileIndexFilename = cmd.getOptionValue("tileIndex");
+			outputGeopackageFilename = cmd.getOptionValue("o");
+			bboxCrs = cmd.getOptionValue("bboxcrs");
+			if (cmd.hasOption("seamTolerance")) {
+				seamTolerance = Double.parseDouble(cmd.getOptionValue("seamTolerance"));
+			}
+		} catch (ParseException e2) {
+			formatter.printHelp( StitchVoronoiTiles.class.getSimpleName(), options );
+		}
+
+		//validate inputs
+		if (tileIndexFilename == null || outputGeopackageFilename == null || bboxCrs == null) {
+			formatter.printHelp( StitchVoronoiTiles.class.getSimpleName(), options );
+			System.exit(1);
+		}
+		if (bboxCrs.startsWith("EPSG:")) {
+			String srid = bboxCrs.substring(5);
+			bboxSrid = Integer.parseInt(srid);
+		}
+		else {
+			System.out.println("Unknown bboxcrs: "+bboxCrs);
+			System.exit(1);
+		}
+
+		System.out.println("Inputs:");
+		System.out.println("- tile index: "+tileIndexFilename);
+		System.out.println("- out file: "+outputGeopackageFilename);
+		System.out.println("- seam tolerance: "+seamTolerance);
+
+		TileIndex tileIndex = null;
+		try {
+			tileIndex = TileIndex.load(tileIndexFilename);
+		} catch (IOException e) {
+			System.out.println("Unable to read tile index: "+tileIndexFilename);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		TileGrid tileGrid = tileIndex.getGrid();
+
+		SimpleFeatureType voronoiEdgesFeatureType = null;
+		try {
+			voronoiEdgesFeatureType = DataUtilities.createType(GEOPKG_VORONOI_EDGES_TABLE, "geometry:LineString");
+		} catch (SchemaException e1) {
+			System.out.println("Unable to create feature type "+GEOPKG_VORONOI_EDGES_TABLE);
+			System.exit(1);
+		}
+		SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(voronoiEdgesFeatureType);
+		DefaultFeatureCollection voronoiEdgesFeatureCollection = new DefaultFeatureCollection(GEOPKG_VORONOI_EDGES_TABLE, voronoiEdgesFeatureType);
+
+		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+		WKTReader reader = new WKTReader(geometryFactory);
+		TileStitcher stitcher = new TileStitcher(tileGrid, seamTolerance);
+
+		int nextId = 0;
+		int numSkipped = 0;
+		for (int tile = 0; tile < tileGrid.getNumTiles(); tile++) {
+			File voronoiOutputFile = tileIndex.getVoronoiOutputFile(tile);
+			int numKeptFromTile = 0;
+			try {
+				BufferedReader inReader = new BufferedReader(new FileReader(voronoiOutputFile));
+				String wktLine = null;
+				while ((wktLine = inReader.readLine()) != null) {
+					Geometry geometry = null;
+					try {
+						geometry = reader.read(wktLine);
+					}
+					catch (Exception e) {
+						numSkipped++;
+						continue;
+					}
+					if (!(geometry instanceof LineString)) {
+						numSkipped++;
+						continue;
+					}
+
+					for (Coordinate[] clipped : stitcher.stitch(geometry.getCoordinates(), tile)) {
+						LineString edge = geometryFactory.createLineString(clipped);
+						edge.setSRID(bboxSrid);
+						Object[] attributeValues = new Object[] { edge };
+						SimpleFeature feature = featureBuilder.buildFeature(nextId+"", attributeValues);
+						voronoiEdgesFeatureCollection.add(feature);
+						nextId++;
+						numKeptFromTile++;
+					}
+				}
+				inReader.close();
+			} catch (IOException e) {
+				System.out.println("Unable to read voronoi output for tile "+tile+": "+voronoiOutputFile);
+				e.printStackTrace();
+				System.exit(1);
+			}
+			System.out.println(" - tile "+tile+": "+numKeptFromTile+" edges");
+		}
+		System.out.println(numSkipped + " skipped");
+		System.out.println(stitcher.getNumDuplicates() + " duplicate seam edges removed");
+		System.out.println(stitcher.getNumSnapped() + " seam endpoints snapped");
+
+		//write voronoi edges to output
+		try {
+			GeoPackage outGeoPackage = new GeoPackage(new File(outputGeopackageFilename));
+			outGeoPackage.init();
+
+			System.out.println("Saving "+GEOPKG_VORONOI_EDGES_TABLE+"...");
+			SimpleFeatureCollection edgesCollection = DataUtilities.simple(voronoiEdgesFeatureCollection);
+			FeatureEntry voronoiEdgesEntry = new FeatureEntry();
+			voronoiEdgesEntry.setSrid(bboxSrid);
+			voronoiEdgesEntry.setBounds(edgesCollection.getBounds());
+
+			System.out.println(" - Writing "+edgesCollection.size()+" features");
+			outGeoPackage.add(voronoiEdgesEntry, edgesCollection);
+			System.out.println(" - Done");
+			System.out.println("Adding spatial index on "+GEOPKG_VORONOI_EDGES_TABLE+"...");
+			outGeoPackage.createSpatialIndex(voronoiEdgesEntry);
+			System.out.println(" - Done");
+			outGeoPackage.close();
+		} catch (IOException e) {
+			System.out.println("Unable to save "+outputGeopackageFilename);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.out.print("All Done");
+	}
+
+}
@@ -267,7 +267,7 @@ public class VoronoiOutput2GeoPackage {
 		System.out.print("All Done");
 	}
 	
-	private static final LineString voronoiLineToLineString(String line, Envelope bounds) {
+	static final LineString voronoiLineToLineString(String line, Envelope bounds) {
 		String[] pieces = line.split(" ");
 		double UNSET = -1;
 		double prevVal = UNSET;
@@ -302,7 +302,7 @@ public class VoronoiOutput2GeoPackage {
 	 *                 ^
 	 *                Should be a space here
 	 */
-	private static final String cleanLine(String line, Envelope bounds) {
+	static final String cleanLine(String line, Envelope bounds) {
 		String cleanedLine = "";
 		String[] pieces = line.split(" ");
 		int precision = 8;
@@ -8,7 +8,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -28,6 +27,7 @@ import org.geotools.data.FeatureReader;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
 import org.geotools.data.Transaction;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.DefaultFeatureCollection;
@@ -71,6 +71,12 @@ import org.rogach.jopenvoronoi.VertexStatus;
 import org.rogach.jopenvoronoi.VertexType;
 import org.rogach.jopenvoronoi.VoronoiDiagram;
 
+import ca.bc.gov.catchments.utils.MemoryGovernor;
+import ca.bc.gov.catchments.utils.Metrics;
+import ca.bc.gov.catchments.utils.SaveUtils;
+import ca.bc.gov.catchments.utils.StreamUtils;
+import ca.bc.gov.catchments.utils.WktHilbertSorter;
+
 /*
  * Test bboxes: 
  * 		21 features:  -115.79381,49.21187,-115.75347,49.24806
@@ -85,16 +91,30 @@ public class WKTList2GeoPackage {
 	private static final String GEOPKG_ID = "geopkg";
 	private static final String GEOPKG_VORONOI_EDGES_TABLE = "voronoi_edges";
 	private static final String GEOPKG_VORONOI_POLYS_TABLE = "voronoi_polys";
+	private static final int DEFAULT_SORT_BUFFER_LINES = 1000000;
+	private static final int DEFAULT_WRITE_BATCH_SIZE = 10000;
+
+	private static final Metrics.Timer SORT_TIMER = Metrics.get().timer("wkt_sort", "Time to sort the input by Hilbert index");
+	private static final Metrics.Timer CONVERT_TIMER = Metrics.get().timer("wkt_convert", "Time to read the input and write all features (including the spatial indexes)");
+	private static final Metrics.Timer BATCH_TIMER = Metrics.get().timer("wkt_write_batch", "Time to write each batch of features");
+	private static final Metrics.Counter LINES_READ = Metrics.get().counter("wkt_lines_read", "Input lines read");
+	private static final Metrics.Counter LINES_SKIPPED = Metrics.get().counter("wkt_lines_skipped", "Input lines skipped because their WKT couldn't be parsed");
+	private static final Metrics.Counter EDGES_WRITTEN = Metrics.get().counter("wkt_edges_written", "Features written to "+GEOPKG_VORONOI_EDGES_TABLE);
+	private static final Metrics.Counter POLYS_WRITTEN = Metrics.get().counter("wkt_polys_written", "Features written to "+GEOPKG_VORONOI_POLYS_TABLE);
 	
 	
 	public static void main(String[] args) {
 		
 		// create Options object
 		Options options = new Options();
-		options.addOption("i", true, "Input Txt file");
+		options.addOption("i", true, "Input Txt file.  '-' for standard input.  May be a named pipe.");
 		options.addOption("o", true, "Output GeoPackage file");
 		options.addOption("bbox", true, "Bounding box: [minx,miny,maxx,maxy]");
 		options.addOption("bboxcrs", true, "CRS of the bounding box.  e.g. 'EPSG:3005' or 'EPSG:4326'");
+		options.addOption("hilbertSort", false, "Write features in the order of the Hilbert index of their envelope centre, so row order follows space.  Sorts the input with an external sort of bounded memory.");
+		options.addOption("sortBufferLines", true, "Max number of input lines held in memory by -hilbertSort.  Defaults to "+DEFAULT_SORT_BUFFER_LINES);
+		options.addOption("writeBatchSize", true, "Number of features parsed before they are written to the output.  Defaults to "+DEFAULT_WRITE_BATCH_SIZE);
+		options.addOption("metricsFile", true, "JSON file to save the run's metrics to.  The metrics are also saved in the Prometheus text format, to a .prom file beside it.");
 		CommandLineParser parser = new DefaultParser();
 		HelpFormatter formatter = new HelpFormatter();
 		
@@ -104,6 +124,10 @@ public class WKTList2GeoPackage {
 		String bboxCrs = null;
 		int bboxSrid = -1;
 		Envelope bounds = null;
+		boolean hilbertSort = false;
+		int sortBufferLines = DEFAULT_SORT_BUFFER_LINES;
+		int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+		String metricsFilename = null;
 		
 		try {
 			CommandLine cmd = parser.parse( options, args);
@@ -111,6 +135,16 @@ public class WKTList2GeoPackage {
 			outputGeopackageFilename = cmd.getOptionValue("o");	
 			bboxStr = cmd.getOptionValue("bbox");
 			bboxCrs = cmd.getOptionValue("bboxcrs");
+			hilbertSort = cmd.hasOption("hilbertSort");
+			String sortBufferLinesStr = cmd.getOptionValue("sortBufferLines");
+			if (sortBufferLinesStr != null) {
+				sortBufferLines = Integer.parseInt(sortBufferLinesStr);
+			}
+			String writeBatchSizeStr = cmd.getOptionValue("writeBatchSize");
+			if (writeBatchSizeStr != null) {
+				writeBatchSize = Integer.parseInt(writeBatchSizeStr);
+			}
+			metricsFilename = cmd.getOptionValue("metricsFile");
 		} catch (ParseException e2) {
 			formatter.printHelp( WKTList2GeoPackage.class.getSimpleName(), options );
 		}
@@ -155,17 +189,41 @@ public class WKTList2GeoPackage {
 		System.out.println("Inputs:");
 		System.out.println("- in file: "+inputTxtFilename);
 		System.out.println("- out file: "+outputGeopackageFilename);
+		System.out.println("- hilbert sort: "+hilbertSort);
+		
+		Metrics.get().setStep(WKTList2GeoPackage.class.getSimpleName());
+		MemoryGovernor.get().startSampling();
 		
 		//Open input file
 		BufferedReader inReader = null;
 		try {
-			inReader = new BufferedReader(new FileReader(inputTxtFilename));
+			inReader = StreamUtils.openReader(inputTxtFilename);
 		} catch (IOException e) {
 			System.out.println("Unable to open input file: "+inputTxtFilename);
 			e.printStackTrace();
 			System.exit(1);
 		}
 		
+		//Sort the input lines along a Hilbert curve, so the features are written in spatial order
+		File sortedFile = null;
+		if (hilbertSort) {
+			System.out.println("Sorting input by Hilbert index...");
+			File tempDir = new File(outputGeopackageFilename).getAbsoluteFile().getParentFile();
+			WktHilbertSorter sorter = new WktHilbertSorter(bounds, sortBufferLines, tempDir);
+			MemoryGovernor.get().setPhase("wkt_sort");
+			try {
+				long sortStart = SORT_TIMER.start();
+				sortedFile = sorter.sort(inReader);
+				inReader.close();
+				inReader = new BufferedReader(new FileReader(sortedFile));
+				System.out.println(" - Done in "+Metrics.formatSeconds(SORT_TIMER.stop(sortStart)));
+			} catch (IOException e) {
+				System.out.println("Unable to sort input file: "+inputTxtFilename);
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		
 		//Create output geopackage
 		File outFile = new File(outputGeopackageFilename);
 		Map<String, String> outputDatastoreParams = new HashMap<String, String>();
@@ -215,13 +273,26 @@ public class WKTList2GeoPackage {
 		}
 		
 		SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(voronoiEdgesFeatureType);
+		SimpleFeatureBuilder polysFeatureBuilder = new SimpleFeatureBuilder(voronoiPolysFeatureType);
 		
-		DefaultFeatureCollection voronoiEdgesFeatureCollection = new DefaultFeatureCollection(GEOPKG_VORONOI_EDGES_TABLE, voronoiEdgesFeatureType);
-		DefaultFeatureCollection voronoiPolysFeatureCollection = new DefaultFeatureCollection(GEOPKG_VORONOI_POLYS_TABLE, voronoiPolysFeatureType);
+		//features are written in batches as the input is read, so the input can be streamed (e.g. from a pipe) 
+		//and only one batch is held in memory.  lists, so features are written in the order they are read 
+		//(a DefaultFeatureCollection orders by feature id string)
+		ListFeatureCollection voronoiEdgesFeatureCollection = new ListFeatureCollection(voronoiEdgesFeatureType);
+		ListFeatureCollection voronoiPolysFeatureCollection = new ListFeatureCollection(voronoiPolysFeatureType);
+		FeatureEntry voronoiEdgesEntry = null;
+		FeatureEntry voronoiPolysEntry = null;
+		int numEdgesWritten = 0;
+		int numPolysWritten = 0;
+		//the tables' bounds are the bbox, since they are created before all features are known
+		ReferencedEnvelope tableBounds = new ReferencedEnvelope(bounds, null);
 		
 		
 		//iterate over input, converting each line segment to a geometry
-		
+		MemoryGovernor.get().setPhase("wkt_convert");
+		long convertStart = CONVERT_TIMER.start();
+		//only this thread writes batches, so their times are recorded locally and flushed once
+		Metrics.LocalTimer batchTimes = BATCH_TIMER.local();
 		try {
 			String wktLine = null;
 			int lineNum = 0;
@@ -255,64 +326,93 @@ public class WKTList2GeoPackage {
 				geometry.setSRID(bboxSrid);
 				
 				//add the geometry to a feature
-				Object[] attributeValues = new Object[] { geometry };
-				SimpleFeature feature = featureBuilder.buildFeature(id, attributeValues);
-				
 				if (wktLine.toUpperCase().startsWith("POLYGON")) {
+					Object[] attributeValues = new Object[] { geometry };
+					SimpleFeature feature = polysFeatureBuilder.buildFeature(id, attributeValues);
 					voronoiPolysFeatureCollection.add(feature);
+					if (voronoiPolysFeatureCollection.size() >= writeBatchSize) {
+						numPolysWritten += voronoiPolysFeatureCollection.size();
+						long batchStart = batchTimes.start();
+						voronoiPolysEntry = SaveUtils.writeBatch(outGeoPackage, voronoiPolysEntry, voronoiPolysFeatureCollection, tableBounds, bboxSrid);
+						batchTimes.stop(batchStart);
+					}
 				}
 				else if(wktLine.toUpperCase().startsWith("LINESTRING")) {
+					Object[] attributeValues = new Object[] { geometry };
+					SimpleFeature feature = featureBuilder.buildFeature(id, attributeValues);
 					voronoiEdgesFeatureCollection.add(feature);
+					if (voronoiEdgesFeatureCollection.size() >= writeBatchSize) {
+						numEdgesWritten += voronoiEdgesFeatureCollection.size();
+						long batchStart = batchTimes.start();
+						voronoiEdgesEntry = SaveUtils.writeBatch(outGeoPackage, voronoiEdgesEntry, voronoiEdgesFeatureCollection, tableBounds, bboxSrid);
+						batchTimes.stop(batchStart);
+					}
 				}
 				
 				lineNum++;
 			}
 			inReader.close();
+			if (sortedFile != null) {
+				sortedFile.delete();
+			}
 			System.out.println(numSkipped + " skipped");
+			LINES_READ.add(lineNum + numSkipped);
+			LINES_SKIPPED.add(numSkipped);
 			
-			//write voronoi edges to output
+			//write the last batch of voronoi edges to output
 			if (voronoiEdgesFeatureCollection.size() > 0) {
-				System.out.println("Saving "+GEOPKG_VORONOI_EDGES_TABLE+"...");
-				SimpleFeatureCollection edgesCollection = DataUtilities.simple(voronoiEdgesFeatureCollection);
-				FeatureEntry voronoiEdgesEntry = new FeatureEntry();
-				voronoiEdgesEntry.setSrid(bboxSrid);
-				voronoiEdgesEntry.setBounds(edgesCollection.getBounds());
-				
-	            System.out.println(" - Writing "+edgesCollection.size()+" features");
-	            outGeoPackage.add(voronoiEdgesEntry, edgesCollection);
-	            System.out.println(" - Done");
+				numEdgesWritten += voronoiEdgesFeatureCollection.size();
+				long batchStart = batchTimes.start();
+				voronoiEdgesEntry = SaveUtils.writeBatch(outGeoPackage, voronoiEdgesEntry, voronoiEdgesFeatureCollection, tableBounds, bboxSrid);
+				batchTimes.stop(batchStart);
+			}
+			if (voronoiEdgesEntry != null) {
+				System.out.println("Saved "+numEdgesWritten+" features to "+GEOPKG_VORONOI_EDGES_TABLE);
 	            System.out.println("Adding spatial index on "+GEOPKG_VORONOI_EDGES_TABLE+"...");
 	            outGeoPackage.createSpatialIndex(voronoiEdgesEntry);
 	            System.out.println(" - Done");	
 			}
-            
-            //write voronoi polys to output
+			
+            //write the last batch of voronoi polys to output
             if (voronoiPolysFeatureCollection.size() > 0) {
-            	System.out.println("Saving "+GEOPKG_VORONOI_POLYS_TABLE+"...");
-            	SimpleFeatureCollection polysCollection = DataUtilities.simple(voronoiPolysFeatureCollection);
-				FeatureEntry voronoiPolysEntry = new FeatureEntry();
-				voronoiPolysEntry.setSrid(bboxSrid);
-				voronoiPolysEntry.setBounds(polysCollection.getBounds());
-				
-	            System.out.println(" - Writing "+polysCollection.size()+" features");
-	            outGeoPackage.add(voronoiPolysEntry, polysCollection);
-	            System.out.println(" - Done");
+            	numPolysWritten += voronoiPolysFeatureCollection.size();
+            	long batchStart = batchTimes.start();
+            	voronoiPolysEntry = SaveUtils.writeBatch(outGeoPackage, voronoiPolysEntry, voronoiPolysFeatureCollection, tableBounds, bboxSrid);
+            	batchTimes.stop(batchStart);
+            }
+            if (voronoiPolysEntry != null) {
+            	System.out.println("Saved "+numPolysWritten+" features to "+GEOPKG_VORONOI_POLYS_TABLE);
 	            System.out.println("Adding spatial index on "+GEOPKG_VORONOI_POLYS_TABLE+"...");
 	            outGeoPackage.createSpatialIndex(voronoiPolysEntry);
 	            System.out.println(" - Done");
             }
-            
+            batchTimes.flush();
+            EDGES_WRITTEN.add(numEdgesWritten);
+            POLYS_WRITTEN.add(numPolysWritten);
+            long convertNanos = CONVERT_TIMER.stop(convertStart);
+            System.out.println("Run time: "+Metrics.formatSeconds(convertNanos)+" ("+Metrics.formatRate(numEdgesWritten + numPolysWritten, convertNanos)+")");
             
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
+		MemoryGovernor.get().stopSampling();
 		
+		if (metricsFilename != null) {
+			try {
+				Metrics.get().save(metricsFilename);
+			} catch (IOException e) {
+				System.out.println("Unable to save metrics to "+metricsFilename);
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 		
-		System.out.print("All Done");
+		System.out.println("All Done");
 	}
 	
-	private static final String cleanLine(String wktLine) {
+	
+	static final String cleanLine(String wktLine) {
 		//wktLine = cleanRepeatedPoints(wktLine);
 		//wktLine = cleanNaNPoints(wktLine);
 		return wktLine;
@@ -1,14 +1,103 @@
 package ca.bc.gov.catchment.voronoi;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.LineSegment;
 import org.rogach.jopenvoronoi.Edge;
+import org.rogach.jopenvoronoi.EdgeType;
 import org.rogach.jopenvoronoi.Filter;
+import org.rogach.jopenvoronoi.Point;
+import org.rogach.jopenvoronoi.Site;
 
+/**
+ * Keeps the voronoi edges which are on the boundary between the catchments of two different water
+ * features.
+ *
+ * Each segment of a water feature is a line site of the diagram, and each segment endpoint is a point
+ * site.  The filter is told which feature(s) each site belongs to (a point site where features meet
+ * belongs to all of them).  An edge separates the faces of two sites, and is kept only if the two sites
+ * have no feature in common.  The rest are construction edges: edges between consecutive segments
+ * of one feature (or between a segment and its own endpoints), edges on the sites themselves and the
+ * diagram's outer edges.
+ *
+ * Sites are given in the coordinates they are inserted into the diagram with.
+ */
 public class CatchmentFilter extends Filter {
 
+	private Map<Coordinate, List<Integer>> pointSiteFeatures;
+	private Map<LineSegment, List<Integer>> lineSiteFeatures;
+
+	public CatchmentFilter() {
+		this.pointSiteFeatures = new HashMap<Coordinate, List<Integer>>();
+		this.lineSiteFeatures = new HashMap<LineSegment, List<Integer>>();
+	}
+
+	public void addPointSite(double x, double y, int feature) {
+		addFeature(pointSiteFeatures, new Coordinate(x, y), feature);
+	}
+
+	public void addLineSite(double x1, double y1, double x2, double y2, int feature) {
+		addFeature(lineSiteFeatures, toKey(x1, y1, x2, y2), feature);
+	}
+
 	@Override
 	public boolean apply(Edge e) {
-		// TODO Auto-generated method stub
-		return false;
+		if (e.type == EdgeType.LINESITE || e.type == EdgeType.NULLEDGE || e.type == EdgeType.OUTEDGE || e.type == EdgeType.SEPARATOR) {
+			return false;
+		}
+		if (e.twin == null || e.face == null || e.twin.face == null) {
+			return false;
+		}
+		List<Integer> features1 = getFeatures(e.face.site);
+		List<Integer> features2 = getFeatures(e.twin.face.site);
+		if (features1 == null || features2 == null) {
+			return false;
+		}
+		for (Integer feature : features1) {
+			if (features2.contains(feature)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the features of the site, or null if the site wasn't added to the filter
+	 */
+	private List<Integer> getFeatures(Site site) {
+		if (site == null) {
+			return null;
+		}
+		if (site.isPoint()) {
+			Point p = site.position();
+			return pointSiteFeatures.get(new Coordinate(p.x, p.y));
+		}
+		if (site.isLine()) {
+			Point start = site.start();
+			Point end = site.end();
+			return lineSiteFeatures.get(toKey(start.x, start.y, end.x, end.y));
+		}
+		return null;
 	}
 
+	private static LineSegment toKey(double x1, double y1, double x2, double y2) {
+		LineSegment key = new LineSegment(x1, y1, x2, y2);
+		key.normalize();
+		return key;
+	}
+
+	private static <K> void addFeature(Map<K, List<Integer>> siteFeatures, K site, int feature) {
+		List<Integer> features = siteFeatures.get(site);
+		if (features == null) {
+			features = new ArrayList<Integer>(1);
+			siteFeatures.put(site, features);
+		}
+		if (!features.contains(feature)) {
+			features.add(feature);
+		}
+	}
 }
@@ -0,0 +1,18 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.IOException;
+
+/**
+ * A cleaner that can classify the edges of an EdgeStore (as an alternative to cleaning features)
+ */
+public interface EdgeCleaner {
+	
+	public KeptAndDiscardedEdges clean(EdgeStore edges) throws IOException;
+	
+	/**
+	 * builds the kept and discarded features (with the cleaner's output feature types) for the edges 
+	 * with indexes in [fromEdge, toEdge)
+	 */
+	public KeptAndDiscarded toFeatures(KeptAndDiscardedEdges result, int fromEdge, int toEdge);
+	
+}
@@ -0,0 +1,422 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.geom.GeoPkgGeomReader;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.opengis.feature.simple.SimpleFeature;
+
+import ca.bc.gov.catchments.utils.DistanceKernel;
+import ca.bc.gov.catchments.utils.GeoPackageUtils;
+import ca.bc.gov.catchments.utils.PackedHilbertRTree;
+
+/**
+ * An in-memory store of voronoi edges (line work and ids only, no attributes), held in primitive
+ * arrays rather than as SimpleFeatures.  Edges are identified by their position in the store
+ * (0, 1, 2, ...), and each edge has:
+ *  - a long id (the primary key of the edge in its GeoPackage table)
+ *  - its vertices, packed into a single array of x, y values
+ *  - its envelope and length, computed once when the edge is added
+ *
+ * The cleaners can classify every edge in the store through the index-based accessors below, without
+ * building features, geometries or coordinate arrays.  Features are only built (with toLineString(..)
+ * and getFid(..)) when the results are saved.
+ */
+public class EdgeStore {
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private String typeName;
+	private int numEdges;
+	private long[] ids;
+	//vertexStarts[i] is the position of edge i's first vertex.  vertexStarts[numEdges] is the total # vertices.
+	private int[] vertexStarts;
+	private double[] coords;
+	//minx, miny, maxx, maxy of each edge
+	private double[] envelopes;
+	private double[] lengths;
+
+	/**
+	 * @param typeName the name of the feature type the edges belong to.  used to build feature ids.
+	 */
+	public EdgeStore(String typeName) {
+		this(typeName, DEFAULT_CAPACITY);
+	}
+
+	public EdgeStore(String typeName, int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.typeName = typeName;
+		this.ids = new long[capacity];
+		this.vertexStarts = new int[capacity + 1];
+		this.coords = new double[capacity * 2 * 2];
+		this.envelopes = new double[capacity * 4];
+		this.lengths = new double[capacity];
+	}
+
+	/**
+	 * Loads every edge of a GeoPackage table.  Rows are read directly from the table (in primary key
+	 * order), so no features are built.
+	 */
+	public static EdgeStore load(String geoPackageFilename, String tableName) throws IOException {
+		GeoPackage geoPackage = new GeoPackage(new File(geoPackageFilename));
+		try {
+			FeatureEntry entry = geoPackage.feature(tableName);
+			if (entry == null) {
+				throw new IOException("No such table: "+tableName);
+			}
+			Connection cx = geoPackage.getDataSource().getConnection();
+			try {
+				String pkColumn = GeoPackageUtils.getPrimaryKeyColumn(cx, tableName);
+				int count = 0;
+				PreparedStatement countPs = cx.prepareStatement("SELECT count(*) FROM \""+tableName+"\"");
+				try {
+					ResultSet rs = countPs.executeQuery();
+					if (rs.next()) {
+						count = rs.getInt(1);
+					}
+					rs.close();
+				} finally {
+					countPs.close();
+				}
+
+				EdgeStore store = new EdgeStore(tableName, count);
+				PreparedStatement ps = cx.prepareStatement("SELECT \""+pkColumn+"\", \""+entry.getGeometryColumn()+"\" FROM \""+tableName+"\" ORDER BY \""+pkColumn+"\"");
+				try {
+					ResultSet rs = ps.executeQuery();
+					while (rs.next()) {
+						byte[] blob = rs.getBytes(2);
+						if (blob == null) {
+							continue;
+						}
+						try {
+							store.add(rs.getLong(1), new GeoPkgGeomReader(blob).get());
+						} catch (IllegalArgumentException e) {
+							throw new IOException("Unable to load table "+tableName+": "+e.getMessage(), e);
+						}
+					}
+					rs.close();
+				} finally {
+					ps.close();
+				}
+				return store;
+			} finally {
+				cx.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Unable to read table "+tableName+" from "+geoPackageFilename, e);
+		} finally {
+			geoPackage.close();
+		}
+	}
+
+	/**
+	 * Copies the edges of a feature collection into a new store.  The id of each edge is taken from the
+	 * numeric part of its feature id (e.g. 123 from "voronoi_edges.123"), or its position in the
+	 * collection if the feature id has no numeric part.
+	 * @throws IllegalArgumentException if a feature's geometry isn't a single line
+	 */
+	public static EdgeStore fromFeatures(SimpleFeatureCollection features) {
+		EdgeStore store = new EdgeStore(features.getSchema().getTypeName());
+		SimpleFeatureIterator it = features.features();
+		try {
+			long position = 0;
+			while (it.hasNext()) {
+				SimpleFeature feature = it.next();
+				Geometry geometry = (Geometry)feature.getDefaultGeometry();
+				if (geometry != null) {
+					store.add(parseId(feature.getID(), position), geometry);
+				}
+				position++;
+			}
+		} finally {
+			it.close();
+		}
+		return store;
+	}
+
+	private static long parseId(String fid, long defaultId) {
+		if (fid == null) {
+			return defaultId;
+		}
+		try {
+			return Long.parseLong(fid.substring(fid.lastIndexOf('.') + 1));
+		} catch (NumberFormatException e) {
+			return defaultId;
+		}
+	}
+
+	/**
+	 * adds the given line as one edge.  A multi-part geometry is only accepted if it has a single
+	 * LineString part: every edge needs its own id, both as the fid of its feature and for the
+	 * cleaners' duplicate rule.
+	 * @return the index of the edge
+	 * @throws IllegalArgumentException if the geometry isn't a single line
+	 */
+	public int add(long id, Geometry geometry) {
+		if (geometry.getNumGeometries() == 1 && geometry.getGeometryN(0) instanceof LineString) {
+			LineString line = (LineString)geometry.getGeometryN(0);
+			return add(id, line.getCoordinateSequence().toCoordinateArray());
+		}
+		throw new IllegalArgumentException("Edge "+id+" is a "+geometry.getGeometryType()+" with "+geometry.getNumGeometries()+" parts.  Expected a LineString");
+	}
+
+	public int add(long id, Coordinate[] coordinates) {
+		ensureCapacity(numEdges + 1, vertexStarts[numEdges] + coordinates.length);
+		int edge = numEdges;
+		int v = vertexStarts[edge] * 2;
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		double length = 0;
+		for (int i = 0; i < coordinates.length; i++) {
+			double x = coordinates[i].x;
+			double y = coordinates[i].y;
+			coords[v++] = x;
+			coords[v++] = y;
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+			if (i > 0) {
+				double dx = x - coordinates[i-1].x;
+				double dy = y - coordinates[i-1].y;
+				length += Math.sqrt(dx * dx + dy * dy);
+			}
+		}
+		ids[edge] = id;
+		envelopes[edge * 4] = minX;
+		envelopes[edge * 4 + 1] = minY;
+		envelopes[edge * 4 + 2] = maxX;
+		envelopes[edge * 4 + 3] = maxY;
+		lengths[edge] = length;
+		vertexStarts[edge + 1] = vertexStarts[edge] + coordinates.length;
+		numEdges++;
+		return edge;
+	}
+
+	/**
+	 * copies an edge from another store
+	 */
+	private int add(EdgeStore other, int otherEdge) {
+		int numPoints = other.getNumPoints(otherEdge);
+		ensureCapacity(numEdges + 1, vertexStarts[numEdges] + numPoints);
+		int edge = numEdges;
+		System.arraycopy(other.coords, other.vertexStarts[otherEdge] * 2, coords, vertexStarts[edge] * 2, numPoints * 2);
+		System.arraycopy(other.envelopes, otherEdge * 4, envelopes, edge * 4, 4);
+		ids[edge] = other.ids[otherEdge];
+		lengths[edge] = other.lengths[otherEdge];
+		vertexStarts[edge + 1] = vertexStarts[edge] + numPoints;
+		numEdges++;
+		return edge;
+	}
+
+	private void ensureCapacity(int minEdges, int minVertices) {
+		if (ids.length < minEdges) {
+			int capacity = Math.max(minEdges, ids.length * 2);
+			ids = Arrays.copyOf(ids, capacity);
+			vertexStarts = Arrays.copyOf(vertexStarts, capacity + 1);
+			envelopes = Arrays.copyOf(envelopes, capacity * 4);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		if (coords.length < minVertices * 2) {
+			coords = Arrays.copyOf(coords, Math.max(minVertices * 2, coords.length * 2));
+		}
+	}
+
+	/**
+	 * @return a new store with copies of the given edges (in the given order)
+	 */
+	public EdgeStore subset(int[] edges, int numEdges) {
+		EdgeStore result = new EdgeStore(typeName, numEdges);
+		for (int i = 0; i < numEdges; i++) {
+			result.add(this, edges[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Builds a spatial index on the envelopes of the given edges.  The ids returned by queries on the
+	 * index are positions in the edges array (not edge indexes).
+	 */
+	public PackedHilbertRTree buildIndex(int[] edges, int numEdges) {
+		PackedHilbertRTree index = new PackedHilbertRTree(numEdges);
+		for (int i = 0; i < numEdges; i++) {
+			int pos = edges[i] * 4;
+			index.add(envelopes[pos], envelopes[pos + 1], envelopes[pos + 2], envelopes[pos + 3]);
+		}
+		index.build();
+		return index;
+	}
+
+	/**
+	 * Builds a spatial index on the envelopes of all edges.  Queries on the index return edge indexes.
+	 */
+	public PackedHilbertRTree buildIndex() {
+		PackedHilbertRTree index = new PackedHilbertRTree(numEdges);
+		for (int edge = 0; edge < numEdges; edge++) {
+			int pos = edge * 4;
+			index.add(envelopes[pos], envelopes[pos + 1], envelopes[pos + 2], envelopes[pos + 3]);
+		}
+		index.build();
+		return index;
+	}
+
+	public String getTypeName() {
+		return typeName;
+	}
+
+	public int size() {
+		return numEdges;
+	}
+
+	public long getId(int edge) {
+		return ids[edge];
+	}
+
+	/**
+	 * @return the feature id of the edge, in the same form as the GeoPackage datastore's ("[table].[id]")
+	 */
+	public String getFid(int edge) {
+		return typeName+"."+ids[edge];
+	}
+
+	public int getNumPoints(int edge) {
+		return vertexStarts[edge + 1] - vertexStarts[edge];
+	}
+
+	public double getX(int edge, int vertex) {
+		return coords[(vertexStarts[edge] + vertex) * 2];
+	}
+
+	public double getY(int edge, int vertex) {
+		return coords[(vertexStarts[edge] + vertex) * 2 + 1];
+	}
+
+	public double getStartX(int edge) {
+		return coords[vertexStarts[edge] * 2];
+	}
+
+	public double getStartY(int edge) {
+		return coords[vertexStarts[edge] * 2 + 1];
+	}
+
+	public double getEndX(int edge) {
+		return coords[(vertexStarts[edge + 1] - 1) * 2];
+	}
+
+	public double getEndY(int edge) {
+		return coords[(vertexStarts[edge + 1] - 1) * 2 + 1];
+	}
+
+	public double getMinX(int edge) {
+		return envelopes[edge * 4];
+	}
+
+	public double getMinY(int edge) {
+		return envelopes[edge * 4 + 1];
+	}
+
+	public double getMaxX(int edge) {
+		return envelopes[edge * 4 + 2];
+	}
+
+	public double getMaxY(int edge) {
+		return envelopes[edge * 4 + 3];
+	}
+
+	public Envelope getEnvelope(int edge) {
+		int pos = edge * 4;
+		return new Envelope(envelopes[pos], envelopes[pos + 2], envelopes[pos + 1], envelopes[pos + 3]);
+	}
+
+	public double getLength(int edge) {
+		return lengths[edge];
+	}
+
+	/**
+	 * @return the packed x, y values of all edges' vertices.  edge i's vertices start at 
+	 * getVertexStart(i) (in vertices, not array positions).  must not be modified.
+	 */
+	public double[] getCoordinates() {
+		return coords;
+	}
+
+	public int getVertexStart(int edge) {
+		return vertexStarts[edge];
+	}
+
+	/**
+	 * checks whether the point is within the given distance of the edge
+	 */
+	public boolean isWithinDistance(int edge, double x, double y, double tolerance) {
+		int pos = edge * 4;
+		if (x < envelopes[pos] - tolerance || y < envelopes[pos + 1] - tolerance
+				|| x > envelopes[pos + 2] + tolerance || y > envelopes[pos + 3] + tolerance) {
+			return false;
+		}
+		return DistanceKernel.isPointWithinDistance(x, y, coords, vertexStarts[edge], getNumPoints(edge), tolerance);
+	}
+
+	/**
+	 * @return the envelope of all edges in the store
+	 */
+	public Envelope getBounds() {
+		Envelope bounds = new Envelope();
+		for (int edge = 0; edge < numEdges; edge++) {
+			int pos = edge * 4;
+			bounds.expandToInclude(envelopes[pos], envelopes[pos + 1]);
+			bounds.expandToInclude(envelopes[pos + 2], envelopes[pos + 3]);
+		}
+		return bounds;
+	}
+
+	/**
+	 * Checks whether two edges have the same vertices, in the same or the reverse order.
+	 */
+	public boolean isSameLine(int edgeA, int edgeB) {
+		int n = getNumPoints(edgeA);
+		if (n != getNumPoints(edgeB)) {
+			return false;
+		}
+		int a = vertexStarts[edgeA] * 2;
+		int b = vertexStarts[edgeB] * 2;
+		boolean forward = true;
+		for (int i = 0; i < n * 2 && forward; i++) {
+			forward = coords[a + i] == coords[b + i];
+		}
+		if (forward) {
+			return true;
+		}
+		for (int i = 0; i < n; i++) {
+			int bi = b + (n - 1 - i) * 2;
+			if (coords[a + i * 2] != coords[bi] || coords[a + i * 2 + 1] != coords[bi + 1]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public LineString toLineString(int edge, GeometryFactory geometryFactory) {
+		int start = vertexStarts[edge];
+		Coordinate[] coordinates = new Coordinate[getNumPoints(edge)];
+		for (int i = 0; i < coordinates.length; i++) {
+			coordinates[i] = new Coordinate(coords[(start + i) * 2], coords[(start + i) * 2 + 1]);
+		}
+		return geometryFactory.createLineString(coordinates);
+	}
+}
@@ -40,4 +40,12 @@ public class GeoPackagePersistable implements Persistable {
 		return fc;
 	}
 	
+	public String getFilename() {
+		return filename;
+	}
+	
+	public String getFeatureTypeName() {
+		return featureTypeName;
+	}
+	
 }
\ No newline at end of file
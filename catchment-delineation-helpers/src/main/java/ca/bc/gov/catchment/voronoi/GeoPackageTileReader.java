@@ -0,0 +1,137 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.geom.GeoPkgGeomReader;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import ca.bc.gov.catchments.utils.GeoPackageUtils;
+
+/**
+ * Reads the features of a GeoPackage table that intersect a tile (i.e. the equivalent of a "bbox"
+ * filter), by querying the table's rtree virtual table directly for the candidate row ids, then
+ * reading those rows in rowid order.  This guarantees each tile is an indexed read, regardless of
+ * how GeoTools would translate a bbox filter.
+ *
+ * Feature ids are the same as those given by the GeoTools GeoPackage datastore ("[table].[id]").
+ */
+public class GeoPackageTileReader {
+
+	private GeoPackage geoPackage;
+	private String tableName;
+	private SimpleFeatureType schema;
+	private String sql;
+	private String geometryColumn;
+	private List<String> attributeColumns;
+
+	/**
+	 * @param schema the feature type of the output features.  its attributes are read from the
+	 *   columns of the same name.
+	 */
+	public GeoPackageTileReader(String filename, String tableName, SimpleFeatureType schema) throws IOException {
+		this.tableName = tableName;
+		this.schema = schema;
+		this.geoPackage = new GeoPackage(new File(filename));
+
+		FeatureEntry entry = geoPackage.feature(tableName);
+		if (entry == null) {
+			geoPackage.close();
+			throw new IOException("No such table: "+tableName);
+		}
+		this.geometryColumn = entry.getGeometryColumn();
+		if (!geoPackage.hasSpatialIndex(entry)) {
+			geoPackage.close();
+			throw new IOException("Table "+tableName+" has no spatial index");
+		}
+
+		try {
+			Connection cx = geoPackage.getDataSource().getConnection();
+			try {
+				List<String> columnNames = GeoPackageUtils.getColumnNames(cx, tableName);
+				String pkColumn = GeoPackageUtils.getPrimaryKeyColumn(cx, tableName);
+				attributeColumns = new ArrayList<String>();
+				String columns = "t.\""+pkColumn+"\"";
+				for (AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+					String name = descriptor.getLocalName();
+					if (descriptor == schema.getGeometryDescriptor() || !columnNames.contains(name)) {
+						continue;
+					}
+					attributeColumns.add(name);
+					columns += ", t.\""+name+"\"";
+				}
+				columns += ", t.\""+geometryColumn+"\"";
+
+				String rtreeName = GeoPackageUtils.getRtreeTableName(tableName, geometryColumn);
+				this.sql = "SELECT "+columns+" FROM \""+tableName+"\" t"
+					+ " WHERE t.\""+pkColumn+"\" IN (SELECT id FROM \""+rtreeName+"\" WHERE minx <= ? AND maxx >= ? AND miny <= ? AND maxy >= ?)"
+					+ " ORDER BY t.\""+pkColumn+"\"";
+			} finally {
+				cx.close();
+			}
+		} catch (SQLException e) {
+			geoPackage.close();
+			throw new IOException("Unable to read table "+tableName, e);
+		}
+	}
+
+	/**
+	 * gets the features whose envelope intersects the given tile
+	 */
+	public SimpleFeatureCollection read(Envelope tile) throws IOException {
+		ListFeatureCollection result = new ListFeatureCollection(schema);
+		SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(schema);
+		String geometryPropertyName = schema.getGeometryDescriptor().getLocalName();
+		try {
+			Connection cx = geoPackage.getDataSource().getConnection();
+			try {
+				PreparedStatement ps = cx.prepareStatement(sql);
+				try {
+					ps.setDouble(1, tile.getMaxX());
+					ps.setDouble(2, tile.getMinX());
+					ps.setDouble(3, tile.getMaxY());
+					ps.setDouble(4, tile.getMinY());
+					ResultSet rs = ps.executeQuery();
+					while (rs.next()) {
+						long id = rs.getLong(1);
+						for (int i = 0; i < attributeColumns.size(); i++) {
+							featureBuilder.set(attributeColumns.get(i), rs.getObject(2 + i));
+						}
+						byte[] blob = rs.getBytes(2 + attributeColumns.size());
+						if (blob != null) {
+							Geometry geometry = new GeoPkgGeomReader(blob).get();
+							featureBuilder.set(geometryPropertyName, geometry);
+						}
+						result.add(featureBuilder.buildFeature(tableName+"."+id));
+					}
+					rs.close();
+				} finally {
+					ps.close();
+				}
+			} finally {
+				cx.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Unable to read tile from "+tableName, e);
+		}
+		return result;
+	}
+
+	public void close() {
+		geoPackage.close();
+	}
+}
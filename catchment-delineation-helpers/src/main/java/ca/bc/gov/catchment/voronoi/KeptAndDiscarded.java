@@ -1,22 +1,40 @@
 package ca.bc.gov.catchment.voronoi;
 
+import java.io.IOException;
+
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.feature.DefaultFeatureCollection;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
+import ca.bc.gov.catchments.utils.SpillableFeatureCollection;
+
+/**
+ * The kept and discarded features of a cleaner.  By default, both are held in memory.  Results which
+ * are only persisted (not read back with getKept()/getDiscarded()) may be made spillable, so their
+ * features are spilled to disk when the heap is under pressure (see SpillableFeatureCollection).
+ */
 public class KeptAndDiscarded {
 
-	private DefaultFeatureCollection keptVoronoiEdgesFeatureCollection;
-	private DefaultFeatureCollection discardedVoronoiEdgesFeatureCollection;
+	private SpillableFeatureCollection keptVoronoiEdgesFeatureCollection;
+	private SpillableFeatureCollection discardedVoronoiEdgesFeatureCollection;
 	
 	public KeptAndDiscarded(SimpleFeatureType keptFeatureType, SimpleFeatureType discardedFeatureType) {
-		keptVoronoiEdgesFeatureCollection = new DefaultFeatureCollection(keptFeatureType.getTypeName(), keptFeatureType);
-		discardedVoronoiEdgesFeatureCollection  = new DefaultFeatureCollection(discardedFeatureType.getTypeName(), discardedFeatureType);
+		keptVoronoiEdgesFeatureCollection = new SpillableFeatureCollection(keptFeatureType);
+		discardedVoronoiEdgesFeatureCollection  = new SpillableFeatureCollection(discardedFeatureType);
+		setSpillable(false);
+	}
+	
+	/**
+	 * Sets whether the kept and discarded features may be spilled to disk.  Once they have been, they
+	 * can only be read with persist(..).
+	 */
+	public void setSpillable(boolean spillable) {
+		keptVoronoiEdgesFeatureCollection.setSpillEnabled(spillable);
+		discardedVoronoiEdgesFeatureCollection.setSpillEnabled(spillable);
 	}
 	
 	public SimpleFeatureCollection getKept() {
-		return keptVoronoiEdgesFeatureCollection;
+		return keptVoronoiEdgesFeatureCollection.getFeatures();
 	}
 	
 	public void addKept(SimpleFeature f) {
@@ -32,7 +50,7 @@ public class KeptAndDiscarded {
 	}
 	
 	public SimpleFeatureCollection getDiscarded() {
-		return discardedVoronoiEdgesFeatureCollection;
+		return discardedVoronoiEdgesFeatureCollection.getFeatures();
 	}
 	
 	public void addDiscarded(SimpleFeature f) {
@@ -47,8 +65,36 @@ public class KeptAndDiscarded {
 		return discardedVoronoiEdgesFeatureCollection.size();
 	}
 	
+	/**
+	 * Saves the kept and discarded features in batches, merging any spilled features with those still
+	 * in memory.  At least one (possibly empty) batch of each is saved, so the output tables always
+	 * exist afterwards.  A GeoPackage is opened once per table, which gets the bounds of all its
+	 * features and a spatial index built after the last batch.
+	 */
+	public void persist(Persistable kept, Persistable discarded) throws IOException {
+		persist(keptVoronoiEdgesFeatureCollection, kept);
+		persist(discardedVoronoiEdgesFeatureCollection, discarded);
+	}
+	
+	private void persist(SpillableFeatureCollection features, Persistable persistable) throws IOException {
+		if (persistable instanceof GeoPackagePersistable) {
+			GeoPackagePersistable geoPackagePersistable = (GeoPackagePersistable)persistable;
+			features.saveToGeoPackage(geoPackagePersistable.getFilename(), geoPackagePersistable.getFeatureTypeName());
+			return;
+		}
+		SpillableFeatureCollection.BatchReader reader = features.openBatchReader(SpillableFeatureCollection.DEFAULT_BATCH_SIZE);
+		try {
+			SimpleFeatureCollection batch = null;
+			while ((batch = reader.next()) != null) {
+				persistable.persist(batch);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+	
 	public void dispose() {
-		keptVoronoiEdgesFeatureCollection.clear();
-		discardedVoronoiEdgesFeatureCollection.clear();
+		keptVoronoiEdgesFeatureCollection.dispose();
+		discardedVoronoiEdgesFeatureCollection.dispose();
 	}
 }
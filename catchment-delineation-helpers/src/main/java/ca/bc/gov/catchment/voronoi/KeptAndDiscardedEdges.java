@@ -0,0 +1,84 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.IOException;
+
+/**
+ * The result of cleaning the edges of an EdgeStore: whether each edge is kept or discarded, and a
+ * per-edge value computed by the cleaner (e.g. the number of water features the edge touches).
+ * Edges are identified by their index in the store.
+ */
+public class KeptAndDiscardedEdges {
+
+	private EdgeStore edges;
+	private boolean[] kept;
+	private int[] values;
+	private int numKept;
+
+	public KeptAndDiscardedEdges(EdgeStore edges) {
+		this.edges = edges;
+		this.kept = new boolean[edges.size()];
+		this.values = new int[edges.size()];
+	}
+
+	public EdgeStore getEdges() {
+		return edges;
+	}
+
+	public void setKept(int edge, boolean keep, int value) {
+		if (keep && !kept[edge]) {
+			numKept++;
+		}
+		else if (!keep && kept[edge]) {
+			numKept--;
+		}
+		kept[edge] = keep;
+		values[edge] = value;
+	}
+
+	public boolean isKept(int edge) {
+		return kept[edge];
+	}
+
+	public int getValue(int edge) {
+		return values[edge];
+	}
+
+	public int getNumKept() {
+		return numKept;
+	}
+
+	public int getNumDiscarded() {
+		return kept.length - numKept;
+	}
+
+	/**
+	 * @return a new store with the kept edges
+	 */
+	public EdgeStore getKeptEdges() {
+		int[] keptEdges = new int[numKept];
+		int n = 0;
+		for (int edge = 0; edge < kept.length; edge++) {
+			if (kept[edge]) {
+				keptEdges[n++] = edge;
+			}
+		}
+		return edges.subset(keptEdges, n);
+	}
+
+	/**
+	 * Saves the kept and discarded edges as features, a chunk of edges at a time (so only one chunk 
+	 * of features is in memory at once).  At least one (possibly empty) chunk is saved, so the output
+	 * tables always exist afterwards.
+	 */
+	public void persist(EdgeCleaner cleaner, Persistable kept, Persistable discarded, int chunkSize) throws IOException {
+		int from = 0;
+		do {
+			int to = Math.min(from + chunkSize, edges.size());
+			KeptAndDiscarded chunk = cleaner.toFeatures(this, from, to);
+			kept.persist(chunk.getKept());
+			discarded.persist(chunk.getDiscarded());
+			chunk.dispose();
+			from = to;
+		} while (from < edges.size());
+	}
+}
@@ -0,0 +1,103 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+
+import ca.bc.gov.catchments.utils.IntVisitor;
+import ca.bc.gov.catchments.utils.PackedHilbertRTree;
+
+/**
+ * An in-memory feature collection with a PackedHilbertRTree on the features' geometries.
+ *
+ * Features are identified in the index by their position in the collection, so hot loops can
+ * query(..) for int ids and look up only the features they need, without any result collection
+ * being built.  subCollection(filter) uses the index too (for the filter's bounds), so the collection
+ * can be used anywhere a SimpleFeatureCollection is expected.
+ *
+ * The collection must not be modified after it is created.
+ */
+public class PackedSpatialIndexFeatureCollection extends ListFeatureCollection {
+
+	private PackedHilbertRTree index;
+
+	public PackedSpatialIndexFeatureCollection(SimpleFeatureCollection copy) throws IOException {
+		this(copy, PackedHilbertRTree.DEFAULT_NODE_SIZE);
+	}
+
+	public PackedSpatialIndexFeatureCollection(SimpleFeatureCollection copy, int nodeSize) throws IOException {
+		super(copy.getSchema(), toList(copy));
+		index = new PackedHilbertRTree(list.size(), nodeSize);
+		for (SimpleFeature feature : list) {
+			Geometry geometry = (Geometry)feature.getDefaultGeometry();
+			//a feature without a geometry keeps its id, but is never found by a query
+			index.add(geometry != null ? geometry.getEnvelopeInternal() : new Envelope());
+		}
+		index.build();
+	}
+
+	private static List<SimpleFeature> toList(SimpleFeatureCollection fc) {
+		List<SimpleFeature> result = new ArrayList<SimpleFeature>();
+		SimpleFeatureIterator it = fc.features();
+		try {
+			while (it.hasNext()) {
+				result.add(it.next());
+			}
+		} finally {
+			it.close();
+		}
+		return result;
+	}
+
+	/**
+	 * calls the visitor with the id of each feature whose envelope intersects the given envelope
+	 */
+	public void query(Envelope envelope, IntVisitor visitor) {
+		index.query(envelope, visitor);
+	}
+
+	public SimpleFeature getFeature(int id) {
+		return list.get(id);
+	}
+
+	public PackedHilbertRTree getIndex() {
+		return index;
+	}
+
+	/**
+	 * Gets the features matching the filter.  Only features in the filter's bounds (if it has any)
+	 * are evaluated.
+	 */
+	@Override
+	public SimpleFeatureCollection subCollection(final Filter filter) {
+		if (filter == Filter.INCLUDE) {
+			return this;
+		}
+		Envelope filterBounds = (Envelope)filter.accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR, null);
+		if (filterBounds == null || Double.isInfinite(filterBounds.getWidth()) || Double.isInfinite(filterBounds.getHeight())) {
+			return super.subCollection(filter);
+		}
+		final ListFeatureCollection result = new ListFeatureCollection(schema);
+		if (filterBounds.isNull()) {
+			return result;
+		}
+		index.query(filterBounds, new IntVisitor() {
+			public void visit(int id) {
+				SimpleFeature feature = list.get(id);
+				if (filter.evaluate(feature)) {
+					result.add(feature);
+				}
+			}
+		});
+		return result;
+	}
+}
@@ -0,0 +1,187 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.LineSegment;
+import org.rogach.jopenvoronoi.Edge;
+import org.rogach.jopenvoronoi.EdgeType;
+import org.rogach.jopenvoronoi.HalfEdgeDiagram;
+import org.rogach.jopenvoronoi.Point;
+import org.rogach.jopenvoronoi.Vertex;
+import org.rogach.jopenvoronoi.VoronoiDiagram;
+
+/**
+ * Computes the segment voronoi diagram of a set of water feature segments in-process (with
+ * jopenvoronoi), and returns the edges kept by a CatchmentFilter.  This is the in-JVM equivalent of
+ * one run of voronoi-catchments.
+ *
+ * The diagram is bounded by a rectangle (the bbox, or a tile's halo), which is added as four line sites
+ * of its own feature (BOUNDARY_FEATURE).  The rectangle is expanded slightly, so segments on the edge of
+ * the bbox don't overlap it.
+ *
+ * jopenvoronoi works in a unit circle, so coordinates are translated and scaled to fit in it, and the
+ * edges are scaled back.  Like voronoi-catchments, the segments must not cross each other (see
+ * CheckCrosses).  Parabolic edges (between a point site and a line site) are approximated with
+ * PARABOLA_SEGMENTS straight segments.
+ *
+ * Not thread safe, but separate diagrams can be computed on separate threads.
+ */
+public class SegmentVoronoiDiagram {
+
+	public static final int BOUNDARY_FEATURE = -1;
+	private static final double NORMALIZED_RADIUS = 0.8;
+	private static final double BOUNDARY_MARGIN_FRACTION = 0.001;
+	private static final int PARABOLA_SEGMENTS = 8;
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private double centreX;
+	private double centreY;
+	private double scale;
+	private int numSegments;
+	//x1, y1, x2, y2 of each segment (normalized)
+	private double[] coords;
+	private int[] features;
+
+	public SegmentVoronoiDiagram(Envelope boundary) {
+		Envelope expanded = new Envelope(boundary);
+		expanded.expandBy(Math.max(boundary.getWidth(), boundary.getHeight()) * BOUNDARY_MARGIN_FRACTION);
+		double halfDiagonal = Math.sqrt(expanded.getWidth() * expanded.getWidth() + expanded.getHeight() * expanded.getHeight()) / 2;
+		if (halfDiagonal <= 0) {
+			throw new IllegalArgumentException("The boundary of a voronoi diagram must have an area");
+		}
+		this.centreX = expanded.centre().x;
+		this.centreY = expanded.centre().y;
+		this.scale = NORMALIZED_RADIUS / halfDiagonal;
+		this.coords = new double[DEFAULT_CAPACITY * 4];
+		this.features = new int[DEFAULT_CAPACITY];
+
+		Coordinate c1 = new Coordinate(expanded.getMinX(), expanded.getMinY());
+		Coordinate c2 = new Coordinate(expanded.getMaxX(), expanded.getMinY());
+		Coordinate c3 = new Coordinate(expanded.getMaxX(), expanded.getMaxY());
+		Coordinate c4 = new Coordinate(expanded.getMinX(), expanded.getMaxY());
+		addSegment(c1, c2, BOUNDARY_FEATURE);
+		addSegment(c2, c3, BOUNDARY_FEATURE);
+		addSegment(c3, c4, BOUNDARY_FEATURE);
+		addSegment(c4, c1, BOUNDARY_FEATURE);
+	}
+
+	/**
+	 * Adds a segment of the given water feature.  Zero length segments are ignored.
+	 */
+	public void addSegment(Coordinate c1, Coordinate c2, int feature) {
+		if (c1.equals2D(c2)) {
+			return;
+		}
+		if (numSegments == features.length) {
+			features = Arrays.copyOf(features, features.length * 2);
+			coords = Arrays.copyOf(coords, coords.length * 2);
+		}
+		int offset = numSegments * 4;
+		coords[offset] = normalizeX(c1.x);
+		coords[offset + 1] = normalizeY(c1.y);
+		coords[offset + 2] = normalizeX(c2.x);
+		coords[offset + 3] = normalizeY(c2.y);
+		features[numSegments] = feature;
+		numSegments++;
+	}
+
+	/**
+	 * @return the number of segments, including the four of the boundary
+	 */
+	public int getNumSegments() {
+		return numSegments;
+	}
+
+	/**
+	 * Builds the diagram and filters it with a CatchmentFilter.
+	 * @return the kept edges, each once (not once per half edge)
+	 */
+	public List<Coordinate[]> computeEdges() {
+		VoronoiDiagram vd = new VoronoiDiagram();
+		CatchmentFilter filter = new CatchmentFilter();
+
+		//jopenvoronoi needs all point sites to be inserted before the line sites between them
+		Map<Coordinate, Vertex> pointSites = new HashMap<Coordinate, Vertex>();
+		for (int i = 0; i < numSegments; i++) {
+			int offset = i * 4;
+			for (int j = 0; j < 4; j += 2) {
+				double x = coords[offset + j];
+				double y = coords[offset + j + 1];
+				Coordinate key = new Coordinate(x, y);
+				if (!pointSites.containsKey(key)) {
+					pointSites.put(key, vd.insert_point_site(new Point(x, y)));
+				}
+				filter.addPointSite(x, y, features[i]);
+			}
+		}
+
+		Set<LineSegment> lineSites = new HashSet<LineSegment>();
+		for (int i = 0; i < numSegments; i++) {
+			int offset = i * 4;
+			LineSegment key = new LineSegment(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3]);
+			key.normalize();
+			if (lineSites.add(key)) {
+				Vertex start = pointSites.get(new Coordinate(coords[offset], coords[offset + 1]));
+				Vertex end = pointSites.get(new Coordinate(coords[offset + 2], coords[offset + 3]));
+				vd.insert_line_site(start, end);
+			}
+			filter.addLineSite(coords[offset], coords[offset + 1], coords[offset + 2], coords[offset + 3], features[i]);
+		}
+
+		vd.filter(filter);
+
+		List<Coordinate[]> result = new ArrayList<Coordinate[]>();
+		Set<Edge> visited = Collections.newSetFromMap(new IdentityHashMap<Edge, Boolean>());
+		HalfEdgeDiagram g = vd.get_graph_reference();
+		for (Edge e : g.edges) {
+			if (!e.valid || visited.contains(e)) {
+				continue;
+			}
+			visited.add(e);
+			if (e.twin != null) {
+				visited.add(e.twin);
+			}
+			result.add(toCoordinates(e));
+		}
+		return result;
+	}
+
+	private Coordinate[] toCoordinates(Edge e) {
+		if (e.type != EdgeType.PARABOLA) {
+			return new Coordinate[] {denormalize(e.source.position), denormalize(e.target.position)};
+		}
+		//a parabola is parameterized by the distance to its sites (the clearance disk radius), which
+		//changes monotonically from the source to the target
+		Coordinate[] result = new Coordinate[PARABOLA_SEGMENTS + 1];
+		double t1 = e.source.dist();
+		double t2 = e.target.dist();
+		result[0] = denormalize(e.source.position);
+		for (int i = 1; i < PARABOLA_SEGMENTS; i++) {
+			result[i] = denormalize(e.point(t1 + (t2 - t1) * i / PARABOLA_SEGMENTS));
+		}
+		result[PARABOLA_SEGMENTS] = denormalize(e.target.position);
+		return result;
+	}
+
+	private double normalizeX(double x) {
+		return (x - centreX) * scale;
+	}
+
+	private double normalizeY(double y) {
+		return (y - centreY) * scale;
+	}
+
+	private Coordinate denormalize(Point p) {
+		return new Coordinate(p.x / scale + centreX, p.y / scale + centreY);
+	}
+}
@@ -0,0 +1,217 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * A regular grid of tiles covering a bounding box.  Each tile has a "core" envelope (the tiles' cores
+ * partition the bounding box) and a "halo" envelope (the core expanded by a halo distance, but not
+ * beyond the bounding box).  The voronoi diagram of a tile is computed from the segments in its halo,
+ * and only the part of the diagram inside its core is kept.
+ *
+ * Tiles are numbered row by row: tile = row * numCols + col
+ */
+public class TileGrid {
+
+	//segments are clipped to a tile's halo shrunk by this fraction of the tile size, so the clipped
+	//parts don't touch the tile's bounding polygon
+	private static final double HALO_CLIP_MARGIN_FRACTION = 0.001;
+
+	private Envelope bounds;
+	private int numCols;
+	private int numRows;
+	private double halo;
+	private double tileWidth;
+	private double tileHeight;
+
+	public TileGrid(Envelope bounds, int numCols, int numRows, double halo) {
+		if (numCols < 1 || numRows < 1) {
+			throw new IllegalArgumentException("A tile grid must have at least one column and one row");
+		}
+		this.bounds = new Envelope(bounds);
+		this.numCols = numCols;
+		this.numRows = numRows;
+		this.halo = halo;
+		this.tileWidth = bounds.getWidth() / numCols;
+		this.tileHeight = bounds.getHeight() / numRows;
+	}
+
+	/**
+	 * parses a grid size of the form "NxM" (N columns, M rows)
+	 * @return an array: [numCols, numRows]
+	 */
+	public static int[] parseGridSize(String s) {
+		String[] pieces = s.toLowerCase().split("x");
+		if (pieces.length != 2) {
+			throw new IllegalArgumentException("unknown tile grid format.  expecting [numCols]x[numRows]");
+		}
+		try {
+			return new int[] {Integer.parseInt(pieces[0].trim()), Integer.parseInt(pieces[1].trim())};
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("unknown tile grid format.  expecting [numCols]x[numRows]");
+		}
+	}
+
+	public Envelope getBounds() {
+		return bounds;
+	}
+
+	public int getNumCols() {
+		return numCols;
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumTiles() {
+		return numCols * numRows;
+	}
+
+	public double getHalo() {
+		return halo;
+	}
+
+	public int getTile(int col, int row) {
+		return row * numCols + col;
+	}
+
+	public int getCol(int tile) {
+		return tile % numCols;
+	}
+
+	public int getRow(int tile) {
+		return tile / numCols;
+	}
+
+	public Envelope getCoreEnvelope(int tile) {
+		int col = getCol(tile);
+		int row = getRow(tile);
+		double minX = bounds.getMinX() + col * tileWidth;
+		double minY = bounds.getMinY() + row * tileHeight;
+		//use the exact bounds on the outer sides so rounding doesn't leave a sliver uncovered
+		double maxX = col == numCols - 1 ? bounds.getMaxX() : minX + tileWidth;
+		double maxY = row == numRows - 1 ? bounds.getMaxY() : minY + tileHeight;
+		return new Envelope(minX, maxX, minY, maxY);
+	}
+
+	public Envelope getHaloEnvelope(int tile) {
+		Envelope envelope = getCoreEnvelope(tile);
+		envelope.expandBy(halo);
+		return envelope.intersection(bounds);
+	}
+
+	/**
+	 * Gets the tile whose core owns the given coordinate.  Cores are half-open ([min, max)) except
+	 * on the outer sides of the grid, so each coordinate in the bounds has exactly one owner.
+	 * @return the tile number, or -1 if the coordinate is outside the bounds
+	 */
+	public int getOwner(Coordinate c) {
+		if (!bounds.covers(c)) {
+			return -1;
+		}
+		return getTile(getColAt(c.x), getRowAt(c.y));
+	}
+
+	/**
+	 * Gets the part of a segment in the halo of each tile it passes through.  A segment in a tile's
+	 * halo is kept whole.  A segment that crosses the halo's boundary (e.g. one longer than the halo,
+	 * which may be in no halo completely) is clipped to the halo, shrunk by a small margin so the
+	 * clipped part doesn't touch the tile's bounding polygon.
+	 * @return the part of the segment in each tile's halo, by tile.  Empty if the segment is outside
+	 * the bounds.
+	 */
+	public Map<Integer, Coordinate[]> clipToHalos(Coordinate c1, Coordinate c2) {
+		Map<Integer, Coordinate[]> result = new LinkedHashMap<Integer, Coordinate[]>();
+		Envelope envelope = new Envelope(c1, c2);
+		double margin = Math.min(tileWidth, tileHeight) * HALO_CLIP_MARGIN_FRACTION;
+		int minCol = getColAt(envelope.getMinX() - halo);
+		int maxCol = getColAt(envelope.getMaxX() + halo);
+		int minRow = getRowAt(envelope.getMinY() - halo);
+		int maxRow = getRowAt(envelope.getMaxY() + halo);
+		for (int row = minRow; row <= maxRow; row++) {
+			for (int col = minCol; col <= maxCol; col++) {
+				int tile = getTile(col, row);
+				Envelope haloEnvelope = getHaloEnvelope(tile);
+				if (haloEnvelope.contains(envelope)) {
+					result.put(tile, new Coordinate[] {c1, c2});
+					continue;
+				}
+				haloEnvelope.expandBy(-margin);
+				Coordinate[] clipped = clip(c1, c2, haloEnvelope);
+				if (clipped != null) {
+					result.put(tile, clipped);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Clips a segment to an envelope (Liang-Barsky).
+	 * @return the clipped segment, or null if no part of the segment (other than a single point) is in the envelope
+	 */
+	public static Coordinate[] clip(Coordinate c1, Coordinate c2, Envelope envelope) {
+		if (envelope.isNull()) {
+			return null;
+		}
+		double dx = c2.x - c1.x;
+		double dy = c2.y - c1.y;
+		double[] p = {-dx, dx, -dy, dy};
+		double[] q = {c1.x - envelope.getMinX(), envelope.getMaxX() - c1.x, c1.y - envelope.getMinY(), envelope.getMaxY() - c1.y};
+		double t0 = 0;
+		double t1 = 1;
+		for (int i = 0; i < 4; i++) {
+			if (p[i] == 0) {
+				if (q[i] < 0) {
+					return null;
+				}
+				continue;
+			}
+			double t = q[i] / p[i];
+			if (p[i] < 0) {
+				t0 = Math.max(t0, t);
+			}
+			else {
+				t1 = Math.min(t1, t);
+			}
+		}
+		if (t0 >= t1) {
+			return null;
+		}
+		Coordinate start = t0 == 0 ? new Coordinate(c1.x, c1.y) : new Coordinate(c1.x + t0 * dx, c1.y + t0 * dy);
+		Coordinate end = t1 == 1 ? new Coordinate(c2.x, c2.y) : new Coordinate(c1.x + t1 * dx, c1.y + t1 * dy);
+		return new Coordinate[] {start, end};
+	}
+
+	/**
+	 * Checks whether the given coordinate is on a boundary between two tile cores (as opposed to the
+	 * outer boundary of the grid)
+	 */
+	public boolean isOnSeam(Coordinate c, double tolerance) {
+		for (int col = 1; col < numCols; col++) {
+			if (Math.abs(c.x - (bounds.getMinX() + col * tileWidth)) <= tolerance) {
+				return true;
+			}
+		}
+		for (int row = 1; row < numRows; row++) {
+			if (Math.abs(c.y - (bounds.getMinY() + row * tileHeight)) <= tolerance) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int getColAt(double x) {
+		int col = (int)Math.floor((x - bounds.getMinX()) / tileWidth);
+		return Math.max(0, Math.min(numCols - 1, col));
+	}
+
+	private int getRowAt(double y) {
+		int row = (int)Math.floor((y - bounds.getMinY()) / tileHeight);
+		return Math.max(0, Math.min(numRows - 1, row));
+	}
+}
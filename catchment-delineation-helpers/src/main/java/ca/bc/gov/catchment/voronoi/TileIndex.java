@@ -0,0 +1,130 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Describes the files of a tiled voronoi run: the tile grid, and for each tile, the voronoi input
+ * segments file and the file the voronoi output (WKT) is expected in.
+ *
+ * Saved as a tab-separated text file:
+ *   grid	[minx]	[miny]	[maxx]	[maxy]	[numCols]	[numRows]	[halo]
+ *   tile	[tile #]	[segments file]	[voronoi output file]
+ *   ...
+ * File names are relative to the directory of the index file.
+ */
+public class TileIndex {
+
+	private static final String GRID_RECORD = "grid";
+	private static final String TILE_RECORD = "tile";
+
+	private TileGrid grid;
+	private String[] segmentsFilenames;
+	private String[] voronoiOutputFilenames;
+	private File directory;
+
+	/**
+	 * Creates an index for a new tiled run.  Tile files are named after the index file
+	 * e.g. for index "run.tiles", tile 3's files are "run_3.txt" and "run_3.wkt"
+	 */
+	public TileIndex(TileGrid grid, String indexFilename) {
+		this.grid = grid;
+		File indexFile = new File(indexFilename);
+		this.directory = indexFile.getAbsoluteFile().getParentFile();
+		String prefix = indexFile.getName();
+		if (prefix.lastIndexOf(".") > 0) {
+			prefix = prefix.substring(0, prefix.lastIndexOf("."));
+		}
+		this.segmentsFilenames = new String[grid.getNumTiles()];
+		this.voronoiOutputFilenames = new String[grid.getNumTiles()];
+		for (int tile = 0; tile < grid.getNumTiles(); tile++) {
+			segmentsFilenames[tile] = prefix+"_"+tile+".txt";
+			voronoiOutputFilenames[tile] = prefix+"_"+tile+".wkt";
+		}
+	}
+
+	private TileIndex(TileGrid grid, String[] segmentsFilenames, String[] voronoiOutputFilenames, File directory) {
+		this.grid = grid;
+		this.segmentsFilenames = segmentsFilenames;
+		this.voronoiOutputFilenames = voronoiOutputFilenames;
+		this.directory = directory;
+	}
+
+	public TileGrid getGrid() {
+		return grid;
+	}
+
+	public File getSegmentsFile(int tile) {
+		return new File(directory, segmentsFilenames[tile]);
+	}
+
+	public File getVoronoiOutputFile(int tile) {
+		return new File(directory, voronoiOutputFilenames[tile]);
+	}
+
+	public void save(String indexFilename) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(indexFilename, false));
+		try {
+			Envelope bounds = grid.getBounds();
+			out.write(GRID_RECORD+"\t"+bounds.getMinX()+"\t"+bounds.getMinY()+"\t"+bounds.getMaxX()+"\t"+bounds.getMaxY()
+				+"\t"+grid.getNumCols()+"\t"+grid.getNumRows()+"\t"+grid.getHalo()+"\n");
+			for (int tile = 0; tile < grid.getNumTiles(); tile++) {
+				out.write(TILE_RECORD+"\t"+tile+"\t"+segmentsFilenames[tile]+"\t"+voronoiOutputFilenames[tile]+"\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static TileIndex load(String indexFilename) throws IOException {
+		File indexFile = new File(indexFilename);
+		BufferedReader in = new BufferedReader(new FileReader(indexFile));
+		TileGrid grid = null;
+		String[] segmentsFilenames = null;
+		String[] voronoiOutputFilenames = null;
+		try {
+			String line = null;
+			while ((line = in.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				String[] pieces = line.split("\t");
+				if (pieces[0].equals(GRID_RECORD) && pieces.length == 8) {
+					Envelope bounds = new Envelope(
+							Double.parseDouble(pieces[1]),
+							Double.parseDouble(pieces[3]),
+							Double.parseDouble(pieces[2]),
+							Double.parseDouble(pieces[4]));
+					grid = new TileGrid(bounds, Integer.parseInt(pieces[5]), Integer.parseInt(pieces[6]), Double.parseDouble(pieces[7]));
+					segmentsFilenames = new String[grid.getNumTiles()];
+					voronoiOutputFilenames = new String[grid.getNumTiles()];
+				}
+				else if (pieces[0].equals(TILE_RECORD) && pieces.length == 4 && grid != null) {
+					int tile = Integer.parseInt(pieces[1]);
+					segmentsFilenames[tile] = pieces[2];
+					voronoiOutputFilenames[tile] = pieces[3];
+				}
+				else {
+					throw new IOException("Unexpected line in tile index "+indexFilename+": "+line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (grid == null) {
+			throw new IOException("Tile index "+indexFilename+" has no grid");
+		}
+		for (int tile = 0; tile < grid.getNumTiles(); tile++) {
+			if (segmentsFilenames[tile] == null) {
+				throw new IOException("Tile index "+indexFilename+" is missing tile "+tile);
+			}
+		}
+		return new TileIndex(grid, segmentsFilenames, voronoiOutputFilenames, indexFile.getAbsoluteFile().getParentFile());
+	}
+}
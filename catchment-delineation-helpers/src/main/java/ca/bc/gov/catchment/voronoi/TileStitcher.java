@@ -0,0 +1,174 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Joins the voronoi edges of the tiles of a tiled run into one set of edges.
+ *
+ * Each tile's edges are clipped (as whole polylines) to the tile's core, so every part of the diagram
+ * comes from exactly one tile.  An edge that crosses a seam between tiles is computed by both tiles,
+ * and each keeps the part on its side.  The endpoints of those parts are snapped together on the seam,
+ * and edges that lie along a seam (kept by both tiles) are de-duplicated.
+ *
+ * Not thread safe: the edges of all tiles must be added from one thread.
+ */
+public class TileStitcher {
+
+	private TileGrid tileGrid;
+	private double seamTolerance;
+	private SeamSnapper seamSnapper;
+	private Set<String> seamEdgeKeys;
+	private int numDuplicates;
+
+	public TileStitcher(TileGrid tileGrid, double seamTolerance) {
+		this.tileGrid = tileGrid;
+		this.seamTolerance = seamTolerance;
+		this.seamSnapper = new SeamSnapper(seamTolerance);
+		this.seamEdgeKeys = new HashSet<String>();
+	}
+
+	/**
+	 * Clips an edge of the given tile to the tile's core, and snaps the ends of the clipped parts
+	 * which are on a seam.
+	 * @return the parts of the edge to keep.  Each is a polyline: an edge inside the core is kept whole,
+	 * and an edge which leaves and re-enters the core is split into one part per stretch inside it.
+	 */
+	public List<Coordinate[]> stitch(Coordinate[] coordinates, int tile) {
+		List<Coordinate[]> result = new ArrayList<Coordinate[]>();
+		Envelope core = tileGrid.getCoreEnvelope(tile);
+		List<Coordinate> part = new ArrayList<Coordinate>();
+		for (int i = 1; i < coordinates.length; i++) {
+			Coordinate[] clipped = TileGrid.clip(coordinates[i-1], coordinates[i], core);
+			if (clipped == null) {
+				addPart(part, result);
+				continue;
+			}
+			if (!part.isEmpty() && !part.get(part.size() - 1).equals2D(clipped[0])) {
+				addPart(part, result);
+			}
+			if (part.isEmpty()) {
+				part.add(clipped[0]);
+			}
+			part.add(clipped[1]);
+		}
+		addPart(part, result);
+		return result;
+	}
+
+	/**
+	 * Snaps the ends of a part of an edge which are on a seam, and adds it to the result unless it is
+	 * a duplicate of a part along a seam.  The part is cleared.
+	 */
+	private void addPart(List<Coordinate> part, List<Coordinate[]> result) {
+		if (part.size() < 2) {
+			part.clear();
+			return;
+		}
+		Coordinate[] coordinates = part.toArray(new Coordinate[part.size()]);
+		part.clear();
+
+		//snap ends that were cut at (or happen to be on) a seam
+		int last = coordinates.length - 1;
+		if (tileGrid.isOnSeam(coordinates[0], seamTolerance)) {
+			coordinates[0] = seamSnapper.snap(coordinates[0]);
+		}
+		if (tileGrid.isOnSeam(coordinates[last], seamTolerance)) {
+			coordinates[last] = seamSnapper.snap(coordinates[last]);
+		}
+		if (coordinates.length == 2 && coordinates[0].equals2D(coordinates[1])) {
+			return;
+		}
+
+		//a part with every vertex on a seam may run along it, and be kept by both tiles
+		boolean alongSeam = true;
+		for (Coordinate c : coordinates) {
+			if (!tileGrid.isOnSeam(c, seamTolerance)) {
+				alongSeam = false;
+				break;
+			}
+		}
+		if (alongSeam && !seamEdgeKeys.add(toKey(coordinates))) {
+			numDuplicates++;
+			return;
+		}
+		result.add(coordinates);
+	}
+
+	public int getNumDuplicates() {
+		return numDuplicates;
+	}
+
+	public int getNumSnapped() {
+		return seamSnapper.getNumSnapped();
+	}
+
+	/**
+	 * @return a key which is the same for a polyline and its reverse
+	 */
+	private static String toKey(Coordinate[] coordinates) {
+		boolean reverse = coordinates[0].compareTo(coordinates[coordinates.length - 1]) > 0;
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < coordinates.length; i++) {
+			Coordinate c = coordinates[reverse ? coordinates.length - 1 - i : i];
+			key.append(c.x).append(' ').append(c.y).append(' ');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Snaps coordinates to the first coordinate seen within a tolerance.  Uses a hash grid with cells
+	 * the size of the tolerance, so only the neighbouring cells need to be checked.
+	 */
+	private static class SeamSnapper {
+
+		private double tolerance;
+		private Map<String, List<Coordinate>> cells;
+		private int numSnapped;
+
+		SeamSnapper(double tolerance) {
+			this.tolerance = tolerance;
+			this.cells = new HashMap<String, List<Coordinate>>();
+		}
+
+		Coordinate snap(Coordinate c) {
+			long cellX = (long)Math.floor(c.x / tolerance);
+			long cellY = (long)Math.floor(c.y / tolerance);
+			for (long x = cellX - 1; x <= cellX + 1; x++) {
+				for (long y = cellY - 1; y <= cellY + 1; y++) {
+					List<Coordinate> cell = cells.get(x+","+y);
+					if (cell == null) {
+						continue;
+					}
+					for (Coordinate existing : cell) {
+						if (existing.distance(c) <= tolerance) {
+							if (!existing.equals2D(c)) {
+								numSnapped++;
+							}
+							return existing;
+						}
+					}
+				}
+			}
+			String key = cellX+","+cellY;
+			List<Coordinate> cell = cells.get(key);
+			if (cell == null) {
+				cell = new ArrayList<Coordinate>();
+				cells.put(key, cell);
+			}
+			cell.add(c);
+			return c;
+		}
+
+		int getNumSnapped() {
+			return numSnapped;
+		}
+	}
+}
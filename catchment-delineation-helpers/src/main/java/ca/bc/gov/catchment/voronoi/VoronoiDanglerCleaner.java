@@ -1,19 +1,23 @@
 package ca.bc.gov.catchment.voronoi;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.measure.Unit;
 
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
-import org.geotools.data.collection.SpatialIndexFeatureCollection;
-import org.geotools.data.collection.SpatialIndexFeatureSource;
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.factory.CommonFactoryFinder;
-import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.SchemaException;
@@ -22,6 +26,8 @@ import org.geotools.geometry.jts.JTSFactoryFinder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LineString;
@@ -33,19 +39,35 @@ import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-public class VoronoiDanglerCleaner {
+import ca.bc.gov.catchments.utils.DistanceKernel;
+import ca.bc.gov.catchments.utils.IdSet;
+import ca.bc.gov.catchments.utils.IntVisitor;
+import ca.bc.gov.catchments.utils.Metrics;
+import ca.bc.gov.catchments.utils.PackedHilbertRTree;
+
+public class VoronoiDanglerCleaner implements EdgeCleaner {
 	
 	private static final double TOUCHES_DISTANCE_TOLERANCE = 0.5; 
 	private static final int NUM_X_TILES = 10;
 	private static final int NUM_Y_TILES = 10;
 	
+	//flags of the per-edge decisions made by classify(..)
+	private static final int DISCARD = 1;
+	private static final int DUPLICATE = 2;
+	private static final int MIN_EDGES_PER_CHUNK = 10000;
+	
+	private static final Metrics.Counter EDGES_PROCESSED = Metrics.get().counter("dangler_edges_processed", "Voronoi edges classified by the dangler cleaner (summed over all passes)");
+	private static final Metrics.Counter EDGES_DISCARDED = Metrics.get().counter("dangler_edges_discarded", "Voronoi edges discarded by the dangler cleaner");
+	private static final Metrics.Timer PASS_TIMER = Metrics.get().timer("dangler_pass", "Wall time of each pass of the dangler cleaner");
+	private static final Metrics.Timer QUERY_TIMER = Metrics.get().timer("dangler_index_query", "Latency of each query for the edges touching an end point");
+	
 	private String voronoiEdgesTypeName;
 	private String keptTypeName;
 	private String discardedTypeName;
 	
 	private SimpleFeatureSource voronoiEdgesFeatureSource;
 	private SimpleFeatureType voronoiEdgesFeatureType;
-	private SimpleFeatureSource waterFeatureSource;
+	private WaterFeatureContext waterFeatureContext;
 	
 	private SimpleFeatureType keptFeatureType;
 	private SimpleFeatureType discardedFeatureType;
@@ -54,16 +76,25 @@ public class VoronoiDanglerCleaner {
 	
 	private CoordinateReferenceSystem voronoiEdgesCrs;
 	private Unit<?> distanceUnit;
+	private int numThreads = 1;
+	//the query times of getFeaturesTouching(..), added to QUERY_TIMER at the end of each cycle
+	private Metrics.LocalTimer queryTimes = QUERY_TIMER.local();
 	
 	public VoronoiDanglerCleaner(SimpleFeatureSource voronoiEdgesFeatureSource,
 			SimpleFeatureSource waterFeatureSource,
 			String keptTypeName,
 			String discardedTypeName) throws IOException, FactoryException {
+		this(voronoiEdgesFeatureSource, new WaterFeatureContext(waterFeatureSource), keptTypeName, discardedTypeName);
+	}
+	
+	public VoronoiDanglerCleaner(SimpleFeatureSource voronoiEdgesFeatureSource,
+			WaterFeatureContext waterFeatureContext,
+			String keptTypeName,
+			String discardedTypeName) throws IOException, FactoryException {
 		
-		//SpatialIndexFeatureCollection fc = new SpatialIndexFeatureCollection(voronoiEdgesFeatureSource.getFeatures());
 		this.voronoiEdgesFeatureSource = voronoiEdgesFeatureSource;
 		voronoiEdgesFeatureType = voronoiEdgesFeatureSource.getSchema();
-		this.waterFeatureSource = waterFeatureSource;
+		this.waterFeatureContext = waterFeatureContext;
 		
 		this.voronoiEdgesTypeName = voronoiEdgesFeatureType.getTypeName();
 		this.keptTypeName = keptTypeName;
@@ -72,7 +103,7 @@ public class VoronoiDanglerCleaner {
 		voronoiEdgesCrs = voronoiEdgesFeatureType.getGeometryDescriptor().getCoordinateReferenceSystem();
 		this.distanceUnit = voronoiEdgesCrs.getCoordinateSystem().getAxis(0).getUnit();
 
-		int srid = CRS.lookupEpsgCode(voronoiEdgesCrs, true);
+		int srid = waterFeatureContext.getSrid(voronoiEdgesCrs);
 		
 		keptFeatureType = null;
 		try {
@@ -97,6 +128,10 @@ public class VoronoiDanglerCleaner {
 
 	}
 	
+	/**
+	 * @return the kept and discarded edges.  They may have been spilled to disk (if the heap came under
+	 * pressure), so save them with KeptAndDiscarded.persist(..).
+	 */
 	public KeptAndDiscarded clean() throws IOException {
 		KeptAndDiscarded prevResult = null;
 		KeptAndDiscarded latestResult = null;
@@ -106,28 +141,29 @@ public class VoronoiDanglerCleaner {
 		//keep looping on the refined data set until no more features are found to discard
 		int passNum = 1;
 		do {
-			Date t1 = new Date();
+			long passStart = PASS_TIMER.start();
 			System.out.println("   - Pass "+passNum + " starting...");
 			prevResult = latestResult;
 			
 			latestResult = cleanCycle(featureCollectionToProcess);
 			if (finalResult == null) {
 				finalResult = new KeptAndDiscarded(latestResult.getKept().getSchema(), latestResult.getDiscarded().getSchema());
+				//the final result is only persisted, so it may spill to disk
+				finalResult.setSpillable(true);
 			}
 			finalResult.addDiscarded(latestResult.getDiscarded());
 			featureCollectionToProcess = latestResult.getKept();
 			
-			Date t2 = new Date();
-			long elapsedTime = (t2.getTime()-t1.getTime())/1000;
+			long elapsedNanos = PASS_TIMER.stop(passStart);
 			int totalNumProcessed = latestResult.getNumKept() + latestResult.getNumDiscarded();
-			System.out.println("     - Finished at: "+t2);
-			System.out.println("       - Elapsed time: "+elapsedTime+" s");
+			EDGES_PROCESSED.add(totalNumProcessed);
+			EDGES_DISCARDED.add(latestResult.getNumDiscarded());
+			System.out.println("     - Finished at: "+new Date());
+			System.out.println("       - Elapsed time: "+Metrics.formatSeconds(elapsedNanos));
 			System.out.println("       - # processed: "+totalNumProcessed);
 			System.out.println("       - # kept: "+latestResult.getNumKept());
 			System.out.println("       - # discarded: "+ latestResult.getNumDiscarded());
-			if (elapsedTime > 0) {
-				System.out.println("       - Average rate: "+Math.round(totalNumProcessed / elapsedTime*1.0f)+" features/s");
-			}
+			System.out.println("       - Average rate: "+Metrics.formatRate(totalNumProcessed, elapsedNanos));
 						
 			passNum++;
 		} while(prevResult == null || latestResult.getNumDiscarded() != 0);
@@ -139,70 +175,60 @@ public class VoronoiDanglerCleaner {
 	public KeptAndDiscarded cleanCycle(SimpleFeatureCollection voronoiEdges) throws IOException {
 
 		//setup
-		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
-		FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
-		String voronoiEdgesGeometryPropertyName = voronoiEdgesFeatureType.getGeometryDescriptor().getLocalName();
-
 		KeptAndDiscarded allResults = new KeptAndDiscarded(keptFeatureType, discardedFeatureType);
 		
 		//do work
 		
-		SimpleFeatureCollection voronoiEdgesToIterate = voronoiEdges;
-		FeatureIterator<SimpleFeature> iterator = voronoiEdgesToIterate.features();
-		
-		Date t1 = new Date();
-		
-		SpatialIndexFeatureCollection fastFeatureCollection = new SpatialIndexFeatureCollection2(voronoiEdges, 10);
-		SpatialIndexFeatureSource indexedFeatureSource = new SpatialIndexFeatureSource(fastFeatureCollection);
+		//features are identified by their position in the index (which is the same as their position in voronoiEdges)
+		PackedSpatialIndexFeatureCollection indexedFeatures = new PackedSpatialIndexFeatureCollection(voronoiEdges);
+		IdSet featuresTouchingFirstPoint = new IdSet();
+		IdSet featuresTouchingSecondPoint = new IdSet();
 		
 		int numProcessed = 0;
 		int numDuplicates = 0;
 		
 		int progressIncrement = 50000;
 		
-		Date t0 = new Date();
-		while(iterator.hasNext()) {
+		long t1 = System.nanoTime();
+		for (int self = 0; self < indexedFeatures.size(); self++) {
 			numProcessed++;
-			SimpleFeature voronoiEdgeFeature = iterator.next();
+			SimpleFeature voronoiEdgeFeature = indexedFeatures.getFeature(self);
 			LineString voronoiEdgeGeometry = (LineString)voronoiEdgeFeature.getDefaultGeometry();
 
 			//get the point at each end of the line
-			Coordinate[] coordinates = voronoiEdgeGeometry.getCoordinates();
-			Geometry firstPoint = geometryFactory.createPoint(coordinates[0]);
-			firstPoint.setSRID(voronoiEdgeGeometry.getSRID());
-			Geometry secondPoint = geometryFactory.createPoint(coordinates[coordinates.length-1]);
-			secondPoint.setSRID(voronoiEdgeGeometry.getSRID());
-			//System.out.println(firstPoint.toText() +"|"+secondPoint.toText()+"|"+voronoiEdgeGeometry.toText());
+			CoordinateSequence coordinates = voronoiEdgeGeometry.getCoordinateSequence();
+			int last = coordinates.size() - 1;
 			
-			
-			Filter notSelf = filterFactory.not(filterFactory.id(filterFactory.featureId(voronoiEdgeFeature.getID())));
-			Filter firstPointTouchesOtherVoronoiEdges = filterFactory.dwithin(filterFactory.property(voronoiEdgesGeometryPropertyName), filterFactory.literal(firstPoint), TOUCHES_DISTANCE_TOLERANCE, distanceUnit.toString());
-			Filter firstTouchesOther = filterFactory.and(notSelf, firstPointTouchesOtherVoronoiEdges);
-			
-			SimpleFeatureCollection featuresTouchingFirstPoint = indexedFeatureSource.getFeatures(firstTouchesOther);
+			getFeaturesTouching(indexedFeatures, coordinates.getX(0), coordinates.getY(0), self, featuresTouchingFirstPoint);
 			int numEndpointsTouching = featuresTouchingFirstPoint.size() > 0 ? 1 : 0; //including self
 			
 			//determine whether any of the touching features are topological duplicates of the
 			//current feature (i.e. geometry is an exact match)
-			Filter topoMatchesFilter = filterFactory.equals(filterFactory.property(voronoiEdgesGeometryPropertyName), filterFactory.literal(voronoiEdgeGeometry));
-			SimpleFeatureCollection topoMatches = featuresTouchingFirstPoint.subCollection(topoMatchesFilter);
-			
 			//if the current edge ("edge A)" has a duplicate ("edge B"), we only want to remove
 			//one or the other. To determine which to remove use this rule: remove only the one that has
 			//the larger FID (by string comparison, since FIDs are strings).
 			String fid = voronoiEdgeFeature.getID();
-			boolean isDuplicateToBeRemoved = topoMatches.size() > 0 && fid.compareTo(getHighestFid(topoMatches)) > 0; 
+			String highestDuplicateFid = null;
+			for (int i = 0; i < featuresTouchingFirstPoint.size(); i++) {
+				SimpleFeature other = indexedFeatures.getFeature(featuresTouchingFirstPoint.get(i));
+				String otherFid = other.getID();
+				if (otherFid == null || (highestDuplicateFid != null && otherFid.compareTo(highestDuplicateFid) <= 0)) {
+					continue;
+				}
+				if (voronoiEdgeGeometry.equals((Geometry)other.getDefaultGeometry())) {
+					highestDuplicateFid = otherFid;
+				}
+			}
+			boolean isDuplicateToBeRemoved = highestDuplicateFid != null && fid.compareTo(highestDuplicateFid) > 0; 
 			
 			if (isDuplicateToBeRemoved) {
 				numDuplicates++;
 			}
 			
 			if (numEndpointsTouching != 0) {
-				Filter secondPointTouchesOtherVoronoiEdges = filterFactory.dwithin(filterFactory.property(voronoiEdgesGeometryPropertyName), filterFactory.literal(secondPoint), TOUCHES_DISTANCE_TOLERANCE, distanceUnit.toString());
-				Filter secondTouchesOther = filterFactory.and(notSelf, secondPointTouchesOtherVoronoiEdges);
-				SimpleFeatureCollection featuresTouchingSecondPoint = indexedFeatureSource.getFeatures(secondTouchesOther);
-				featuresTouchingSecondPoint = subtract(featuresTouchingSecondPoint, featuresTouchingFirstPoint); //don't count a features as touching the second point if it also touches the first.  this means the line is very short.
-				numEndpointsTouching += featuresTouchingSecondPoint.size() > 0 ? 1 : 0; //self not include
+				getFeaturesTouching(indexedFeatures, coordinates.getX(last), coordinates.getY(last), self, featuresTouchingSecondPoint);
+				//don't count a features as touching the second point if it also touches the first.  this means the line is very short.
+				numEndpointsTouching += featuresTouchingSecondPoint.subtractSize(featuresTouchingFirstPoint) > 0 ? 1 : 0; //self not include
 			}
 			
 			
@@ -221,24 +247,294 @@ public class VoronoiDanglerCleaner {
 			}
 			
 			if (numProcessed % progressIncrement == 0) {				
-				Date t2 = new Date();
-				String rateSummary = "";
-				int secondsSinceLastSummary = Math.round((t2.getTime() - t1.getTime())/1000);
-				int secondsSinceStart = Math.round((t2.getTime() - t0.getTime())/1000);
-				if (secondsSinceLastSummary > 0) {
-					int rate = progressIncrement / secondsSinceLastSummary;
-					rateSummary = ", rate: "+rate+" features/s";
-				}
-				System.out.println("     - Progress: # processed: "+numProcessed+", # kept: "+allResults.getNumKept()+", # discarded:"+allResults.getNumDiscarded()+" (# dups discarded: "+numDuplicates+"), elapsed time: "+secondsSinceLastSummary+" s"+rateSummary);
+				long t2 = System.nanoTime();
+				System.out.println("     - Progress: # processed: "+numProcessed+", # kept: "+allResults.getNumKept()+", # discarded:"+allResults.getNumDiscarded()+" (# dups discarded: "+numDuplicates+"), elapsed time: "+Metrics.formatSeconds(t2 - t1)+", rate: "+Metrics.formatRate(progressIncrement, t2 - t1));
 				t1 = t2;
 			}
 			
-		} //while
-		iterator.close();
-
+		} //for
+		queryTimes.flush();
+		
 		return allResults;
 	}
 	
+	/**
+	 * Sets the number of threads used to classify the edges of each pass of clean(EdgeStore).
+	 * The result doesn't depend on the number of threads.
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(numThreads, 1);
+	}
+	
+	/**
+	 * Same as clean(), but for the edges of an EdgeStore.  The value of each edge in the result is its 
+	 * number of end points touching other edges.
+	 * 
+	 * Every decision in a pass is made against the edges kept at the start of the pass, so the edges of a 
+	 * pass can be classified in any order, and in parallel (see setNumThreads(..)).  The first pass 
+	 * classifies every edge.  After that, an edge can only change if an edge it touched was discarded in
+	 * the previous pass, so each later pass re-checks only the kept edges touching the edges just 
+	 * discarded.  One spatial index of all the edges is used for every pass; discarded edges are skipped.
+	 */
+	public KeptAndDiscardedEdges clean(EdgeStore edges) {
+		KeptAndDiscardedEdges result = new KeptAndDiscardedEdges(edges);
+		PackedHilbertRTree index = edges.buildIndex();
+		boolean[] active = new boolean[edges.size()];
+		Arrays.fill(active, true);
+		
+		//the edges to classify in the next pass
+		int[] worklist = new int[edges.size()];
+		for (int edge = 0; edge < edges.size(); edge++) {
+			worklist[edge] = edge;
+		}
+		int numWork = worklist.length;
+		int[] discarded = new int[edges.size()];
+		
+		ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+		try {
+			//keep looping on the refined data set until no more edges are found to discard
+			int passNum = 1;
+			int numDiscardedInPass = 0;
+			do {
+				long passStart = PASS_TIMER.start();
+				System.out.println("   - Pass "+passNum + " starting...");
+				
+				int[] decisions = classify(edges, index, active, worklist, numWork, executor);
+				
+				//apply the decisions.  (the active flags are only changed between passes.)
+				numDiscardedInPass = 0;
+				int numDuplicates = 0;
+				for (int i = 0; i < numWork; i++) {
+					int edge = worklist[i];
+					boolean discard = (decisions[i] & DISCARD) != 0;
+					result.setKept(edge, !discard, decisions[i] >> 2);
+					if (discard) {
+						active[edge] = false;
+						discarded[numDiscardedInPass++] = edge;
+					}
+					if ((decisions[i] & DUPLICATE) != 0) {
+						numDuplicates++;
+					}
+				}
+				int numProcessed = numWork;
+				numWork = findTouchingActiveEdges(edges, index, active, discarded, numDiscardedInPass, worklist);
+				
+				long elapsedNanos = PASS_TIMER.stop(passStart);
+				EDGES_PROCESSED.add(numProcessed);
+				EDGES_DISCARDED.add(numDiscardedInPass);
+				System.out.println("     - Finished at: "+new Date());
+				System.out.println("       - Elapsed time: "+Metrics.formatSeconds(elapsedNanos));
+				System.out.println("       - # processed: "+numProcessed);
+				System.out.println("       - # kept: "+result.getNumKept());
+				System.out.println("       - # discarded: "+ numDiscardedInPass+" (# dups discarded: "+numDuplicates+")");
+				System.out.println("       - Average rate: "+Metrics.formatRate(numProcessed, elapsedNanos));
+				
+				passNum++;
+			} while(numDiscardedInPass != 0);
+		}
+		finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Classifies the edges worklist[0 .. numWork-1] (see classify(..) below), splitting them into 
+	 * contiguous chunks on the executor if there is one.
+	 * @return the decision for each worklist position
+	 */
+	private int[] classify(final EdgeStore edges, final PackedHilbertRTree index, final boolean[] active, 
+			final int[] worklist, int numWork, ExecutorService executor) {
+		final int[] decisions = new int[numWork];
+		if (executor == null || numWork < MIN_EDGES_PER_CHUNK * 2) {
+			classify(edges, index, active, worklist, 0, numWork, decisions);
+			return decisions;
+		}
+		
+		int numChunks = Math.min(numThreads * 4, numWork / MIN_EDGES_PER_CHUNK);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int chunk = 0; chunk < numChunks; chunk++) {
+			final int from = (int)((long)numWork * chunk / numChunks);
+			final int to = (int)((long)numWork * (chunk + 1) / numChunks);
+			futures.add(executor.submit(new Callable<Void>() {
+				public Void call() {
+					classify(edges, index, active, worklist, from, to, decisions);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while cleaning dangling edges", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Unable to clean dangling edges", e.getCause());
+			}
+		}
+		return decisions;
+	}
+	
+	/**
+	 * Runs the cleaning rules (see cleanCycle(SimpleFeatureCollection)) on the edges 
+	 * worklist[from .. to-1], treating the edges flagged active as the kept edges.  Nothing shared is 
+	 * modified except decisions[from .. to-1], so chunks of a worklist can be classified concurrently.
+	 * Each decision is (# end points touching << 2) | DUPLICATE (if a duplicate) | DISCARD (if discarded).
+	 */
+	private void classify(EdgeStore edges, PackedHilbertRTree index, boolean[] active, int[] worklist, int from, int to, int[] decisions) {
+		TouchingEdgesCollector touchingFirstPoint = new TouchingEdgesCollector(edges, active);
+		TouchingEdgesCollector touchingSecondPoint = new TouchingEdgesCollector(edges, active);
+		
+		for (int i = from; i < to; i++) {
+			int edge = worklist[i];
+			
+			touchingFirstPoint.collect(index, edge, edges.getStartX(edge), edges.getStartY(edge));
+			int numEndpointsTouching = touchingFirstPoint.size() > 0 ? 1 : 0;
+			
+			//if the edge has topological duplicates among the touching edges, the one with the highest
+			//id is discarded in this pass (as in cleanCycle).  the rest are kept for now, but the edges
+			//touching a discarded edge are re-checked in the next pass, so a set of duplicates loses
+			//one edge per pass until only the one with the lowest id is left.
+			long highestDuplicateId = Long.MIN_VALUE;
+			boolean hasDuplicate = false;
+			IdSet firstPointIds = touchingFirstPoint.getIds();
+			for (int j = 0; j < firstPointIds.size(); j++) {
+				int other = firstPointIds.get(j);
+				if (edges.isSameLine(edge, other)) {
+					hasDuplicate = true;
+					highestDuplicateId = Math.max(highestDuplicateId, edges.getId(other));
+				}
+			}
+			boolean isDuplicateToBeRemoved = hasDuplicate && edges.getId(edge) > highestDuplicateId;
+			
+			if (numEndpointsTouching != 0) {
+				//don't count an edge as touching the second point if it also touches the first.  this means the line is very short.
+				touchingSecondPoint.collect(index, edge, edges.getEndX(edge), edges.getEndY(edge));
+				boolean secondPointTouches = touchingSecondPoint.getIds().subtractSize(firstPointIds) > 0;
+				numEndpointsTouching += secondPointTouches ? 1 : 0;
+			}
+			
+			boolean discard = isDuplicateToBeRemoved || numEndpointsTouching < 2;
+			decisions[i] = (numEndpointsTouching << 2) | (isDuplicateToBeRemoved ? DUPLICATE : 0) | (discard ? DISCARD : 0);
+		}
+		touchingFirstPoint.flushQueryTimes();
+		touchingSecondPoint.flushQueryTimes();
+	}
+	
+	/**
+	 * Finds the active edges with an end point within TOUCHES_DISTANCE_TOLERANCE of any of the given 
+	 * (discarded) edges.  These are the only edges whose classification can change in the next pass.
+	 * @return the number of edges found.  the edges are written to result in ascending order.
+	 */
+	private int findTouchingActiveEdges(final EdgeStore edges, PackedHilbertRTree index, final boolean[] active, 
+			int[] discarded, int numDiscarded, int[] result) {
+		final boolean[] found = new boolean[edges.size()];
+		for (int i = 0; i < numDiscarded; i++) {
+			final int discardedEdge = discarded[i];
+			index.query(edges.getMinX(discardedEdge) - TOUCHES_DISTANCE_TOLERANCE, 
+					edges.getMinY(discardedEdge) - TOUCHES_DISTANCE_TOLERANCE, 
+					edges.getMaxX(discardedEdge) + TOUCHES_DISTANCE_TOLERANCE, 
+					edges.getMaxY(discardedEdge) + TOUCHES_DISTANCE_TOLERANCE, 
+					new IntVisitor() {
+				public void visit(int edge) {
+					if (!active[edge] || found[edge]) {
+						return;
+					}
+					if (edges.isWithinDistance(discardedEdge, edges.getStartX(edge), edges.getStartY(edge), TOUCHES_DISTANCE_TOLERANCE)
+							|| edges.isWithinDistance(discardedEdge, edges.getEndX(edge), edges.getEndY(edge), TOUCHES_DISTANCE_TOLERANCE)) {
+						found[edge] = true;
+					}
+				}
+			});
+		}
+		//in store order, so chunks of the next worklist stay spatially compact
+		int numFound = 0;
+		for (int edge = 0; edge < found.length; edge++) {
+			if (found[edge]) {
+				result[numFound++] = edge;
+			}
+		}
+		return numFound;
+	}
+	
+	public KeptAndDiscarded toFeatures(KeptAndDiscardedEdges result, int fromEdge, int toEdge) {
+		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+		EdgeStore edges = result.getEdges();
+		KeptAndDiscarded features = new KeptAndDiscarded(keptFeatureType, discardedFeatureType);
+		for (int edge = fromEdge; edge < toEdge; edge++) {
+			Object[] attributeValues = new Object[] { edges.toLineString(edge, geometryFactory), result.getValue(edge) };
+			if (result.isKept(edge)) {
+				features.addKept(keptFeatureBuilder.buildFeature(edges.getFid(edge), attributeValues));
+			}
+			else {
+				features.addDiscarded(discardedFeatureBuilder.buildFeature(edges.getFid(edge), attributeValues));
+			}
+		}
+		return features;
+	}
+	
+	/**
+	 * Collects the active edges (other than a given edge) within TOUCHES_DISTANCE_TOLERANCE of a point.  
+	 * The collector is reused for every query, so queries allocate nothing.  Each collector belongs to
+	 * one thread, and times its queries with its own LocalTimer.  The edges found are
+	 * held as a sorted IdSet, so the two end points' results can be compared with a linear merge.
+	 */
+	private static class TouchingEdgesCollector implements IntVisitor {
+		
+		private EdgeStore edges;
+		private boolean[] active;
+		private int self;
+		private double x;
+		private double y;
+		private IdSet found = new IdSet();
+		private Metrics.LocalTimer queryTimes = QUERY_TIMER.local();
+		
+		public TouchingEdgesCollector(EdgeStore edges, boolean[] active) {
+			this.edges = edges;
+			this.active = active;
+		}
+		
+		public void collect(PackedHilbertRTree index, int self, double x, double y) {
+			this.self = self;
+			this.x = x;
+			this.y = y;
+			long start = queryTimes.start();
+			found.clear();
+			index.query(x - TOUCHES_DISTANCE_TOLERANCE, y - TOUCHES_DISTANCE_TOLERANCE, x + TOUCHES_DISTANCE_TOLERANCE, y + TOUCHES_DISTANCE_TOLERANCE, this);
+			found.sort();
+			queryTimes.stop(start);
+		}
+		
+		/**
+		 * adds the query times of this collector to QUERY_TIMER
+		 */
+		public void flushQueryTimes() {
+			queryTimes.flush();
+		}
+		
+		public void visit(int edge) {
+			if (edge == self || !active[edge]) {
+				return;
+			}
+			if (!edges.isWithinDistance(edge, x, y, TOUCHES_DISTANCE_TOLERANCE)) {
+				return;
+			}
+			found.add(edge);
+		}
+		
+		public int size() {
+			return found.size();
+		}
+		
+		public IdSet getIds() {
+			return found;
+		}
+	}
+	
 	public KeptAndDiscarded cleanCycleAllTiles(SimpleFeatureSource voronoiEdgesFeatureSource) throws IOException {
 		
 		KeptAndDiscarded allResults = new KeptAndDiscarded(keptFeatureType, discardedFeatureType);
@@ -255,7 +551,7 @@ public class VoronoiDanglerCleaner {
 		
 		FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
 		String geometryPropertyName = voronoiEdgesFeatureType.getGeometryDescriptor().getLocalName();
-		ReferencedEnvelope bounds = waterFeatureSource.getBounds();
+		ReferencedEnvelope bounds = waterFeatureContext.getBounds();
 		bounds.expandBy(10000); //expand 10km
 		double tileWidth = bounds.getWidth() / NUM_X_TILES;
 		double tileHeight = bounds.getHeight() / NUM_Y_TILES;
@@ -292,13 +588,17 @@ public class VoronoiDanglerCleaner {
 	 * TODO: delete this and modify cleanCycleAllTiles to call cleanCycleFull instead
 	 */
 	public KeptAndDiscarded cleaningCycleOneTile(FeatureCollection voronoiEdges, Filter searchAreaFilter) throws IOException {
+		SimpleFeatureCollection featuresToIndex = voronoiEdgesFeatureSource.getFeatures(searchAreaFilter);
+		return cleaningCycleOneTile(voronoiEdges, featuresToIndex);
+	}
+	
+	/**
+	 * @param featuresToIndex the voronoi edges in and around the tile, which the tile's edges are tested against
+	 */
+	public KeptAndDiscarded cleaningCycleOneTile(FeatureCollection voronoiEdges, SimpleFeatureCollection featuresToIndex) throws IOException {
 		
 		//setup
 
-		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
-		FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
-		String voronoiEdgesGeometryPropertyName = voronoiEdgesFeatureType.getGeometryDescriptor().getLocalName();
-
 		KeptAndDiscarded allResults = new KeptAndDiscarded(keptFeatureType, discardedFeatureType);
 		
 		//do work
@@ -307,9 +607,9 @@ public class VoronoiDanglerCleaner {
 		
 		Date t1 = new Date();
 		
-		SimpleFeatureCollection featuresToIndex = voronoiEdgesFeatureSource.getFeatures(searchAreaFilter);
-		SpatialIndexFeatureCollection fastFeatureCollection = new SpatialIndexFeatureCollection2(featuresToIndex, 12);
-		SpatialIndexFeatureSource indexedFeatureSource = new SpatialIndexFeatureSource(fastFeatureCollection);
+		PackedSpatialIndexFeatureCollection indexedFeatures = new PackedSpatialIndexFeatureCollection(featuresToIndex);
+		IdSet featuresTouchingFirstPoint = new IdSet();
+		IdSet featuresTouchingSecondPoint = new IdSet();
 		
 		System.out.print("      - Progress:");
 		int numProcessed = 0;
@@ -323,23 +623,15 @@ public class VoronoiDanglerCleaner {
 
 
 			//get the point at each end of the line
-			Coordinate[] coordinates = voronoiEdgeGeometry.getCoordinates();
-			Geometry firstPoint = geometryFactory.createPoint(coordinates[0]);
-			firstPoint.setSRID(voronoiEdgeGeometry.getSRID());
-			Geometry secondPoint = geometryFactory.createPoint(coordinates[coordinates.length-1]);
-			secondPoint.setSRID(voronoiEdgeGeometry.getSRID());
-			//System.out.println(firstPoint.toText() +"|"+secondPoint.toText()+"|"+voronoiEdgeGeometry.toText());
+			CoordinateSequence coordinates = voronoiEdgeGeometry.getCoordinateSequence();
+			int last = coordinates.size() - 1;
 			
-			
-			Filter firstPointTouchesOtherVoronoiEdges = filterFactory.dwithin(filterFactory.property(voronoiEdgesGeometryPropertyName), filterFactory.literal(firstPoint), TOUCHES_DISTANCE_TOLERANCE, distanceUnit.toString());
-			SimpleFeatureCollection featuresTouchingFirstPoint = indexedFeatureSource.getFeatures(firstPointTouchesOtherVoronoiEdges);
+			getFeaturesTouching(indexedFeatures, coordinates.getX(0), coordinates.getY(0), -1, featuresTouchingFirstPoint);
 			int numEndpointsTouching = featuresTouchingFirstPoint.size() > 1 ? 1 : 0; //including self
 			
 			if (numEndpointsTouching != 0) {
-				Filter secondPointTouchesOtherVoronoiEdges = filterFactory.dwithin(filterFactory.property(voronoiEdgesGeometryPropertyName), filterFactory.literal(secondPoint), TOUCHES_DISTANCE_TOLERANCE, distanceUnit.toString());
-				SimpleFeatureCollection featuresTouchingSecondPoint = indexedFeatureSource.getFeatures(secondPointTouchesOtherVoronoiEdges);
-				featuresTouchingSecondPoint = subtract(featuresTouchingSecondPoint, featuresTouchingFirstPoint);
-				numEndpointsTouching += featuresTouchingSecondPoint.size() > 0 ? 1 : 0; //self not include
+				getFeaturesTouching(indexedFeatures, coordinates.getX(last), coordinates.getY(last), -1, featuresTouchingSecondPoint);
+				numEndpointsTouching += featuresTouchingSecondPoint.subtractSize(featuresTouchingFirstPoint) > 0 ? 1 : 0; //self not include
 			}
 			
 			
@@ -364,68 +656,35 @@ public class VoronoiDanglerCleaner {
 		} //while
 		System.out.println("");
 		iterator.close();
+		queryTimes.flush();
 
 		return allResults;
 	}
 	
 	/**
-	 * checks whether the geometry associated with the given feature exists in the
-	 * set of features
-	 */
-	String getHighestFid(SimpleFeatureCollection features) {
-		String highestFid = null;
-		SimpleFeatureIterator it = features.features();
-		while (it.hasNext()) {
-			SimpleFeature f = it.next();
-			String thisId = f.getID();
-			if (thisId == null) {
-				continue;
-			}
-			if (highestFid == null || thisId.compareTo(highestFid) > 0) {
-				highestFid = thisId;
-			}
-		}
-		return highestFid;
-	}
-	
-	/**
-	 * returns A - B
-	 * @param featuresTouchingSecondPoint
-	 * @param featuresTouchingFirstPoint
-	 * @return
+	 * Gets the ids (positions in indexedFeatures) of the features within TOUCHES_DISTANCE_TOLERANCE 
+	 * of the given point, other than the feature at position excludeId (if not -1).  Equivalent to a 
+	 * "dwithin" filter, but tested directly on the features' coordinates.
+	 * @param result the set to fill.  it is cleared first, and is sorted on return.
 	 */
-	private SimpleFeatureCollection subtract(SimpleFeatureCollection A, SimpleFeatureCollection B) {
-		DefaultFeatureCollection result = new DefaultFeatureCollection();
-		SimpleFeatureIterator aIt = A.features();
-		while (aIt.hasNext()) {
-			SimpleFeature a = aIt.next();
-			if (!contains(B, a)) {
-				result.add(a);
-			}
-		}
-		if (result.size() != A.size()) {
-			//System.out.println("segment not counted twice");
-		}
-		aIt.close();
-		return result;
-	}
-	
-	/**
-	 * checks whether the feature collection has any object with the same ID as the given simplefeature
-	 * @param A
-	 * @param b
-	 * @return
-	 */
-	private boolean contains(SimpleFeatureCollection A, SimpleFeature b) {
-		SimpleFeatureIterator aIt = A.features();
-		while (aIt.hasNext()) {
-			SimpleFeature a = aIt.next();
-			if (a.getID() == b.getID()) {
-				return true;
+	private void getFeaturesTouching(final PackedSpatialIndexFeatureCollection indexedFeatures, final double x, final double y, final int excludeId, final IdSet result) {
+		long start = queryTimes.start();
+		result.clear();
+		Envelope searchEnvelope = new Envelope(x, x, y, y);
+		searchEnvelope.expandBy(TOUCHES_DISTANCE_TOLERANCE);
+		indexedFeatures.query(searchEnvelope, new IntVisitor() {
+			public void visit(int id) {
+				if (id == excludeId) {
+					return;
+				}
+				LineString line = (LineString)indexedFeatures.getFeature(id).getDefaultGeometry();
+				if (DistanceKernel.isPointWithinDistance(x, y, line.getCoordinateSequence(), TOUCHES_DISTANCE_TOLERANCE)) {
+					result.add(id);
+				}
 			}
-		}
-		aIt.close();
-		return false;
+		});
+		result.sort();
+		queryTimes.stop(start);
 	}
 	
 }
@@ -7,8 +7,6 @@ import javax.measure.Unit;
 
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
-import org.geotools.data.collection.SpatialIndexFeatureCollection;
-import org.geotools.data.collection.SpatialIndexFeatureSource;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
@@ -18,10 +16,12 @@ import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.SchemaException;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
@@ -30,7 +30,7 @@ import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-public class VoronoiLongLineCleaner {
+public class VoronoiLongLineCleaner implements EdgeCleaner {
 	
  
 	private static final double MAX_LENGTH_TO_KEEP_IN_VORONOI_UNITS = 20000;
@@ -40,11 +40,10 @@ public class VoronoiLongLineCleaner {
 	private String discardedTypeName;
 	
 	private SimpleFeatureSource voronoiEdgesFeatureSource;
-	private SimpleFeatureSource waterFeatureSource;
+	private WaterFeatureContext waterFeatureContext;
 	private CoordinateReferenceSystem voronoiEdgesCrs;
 	
 	SimpleFeatureType voronoiEdgesFeatureType;
-	SimpleFeatureType waterFeaturesType;
 	
 	private SimpleFeatureType keptFeatureType;
 	private SimpleFeatureType discardedFeatureType;
@@ -57,15 +56,18 @@ public class VoronoiLongLineCleaner {
 			SimpleFeatureSource waterFeatureSource,
 			String keptTypeName,
 			String discardedTypeName) throws IOException, FactoryException {
+		this(voronoiEdgesFeatureSource, new WaterFeatureContext(waterFeatureSource), keptTypeName, discardedTypeName);
+	}
+	
+	public VoronoiLongLineCleaner(SimpleFeatureSource voronoiEdgesFeatureSource, 
+			WaterFeatureContext waterFeatureContext,
+			String keptTypeName,
+			String discardedTypeName) throws IOException, FactoryException {
 		
 		this.voronoiEdgesFeatureSource = voronoiEdgesFeatureSource;
-
-		//add a spatial index to the water features
-		SpatialIndexFeatureCollection wfc = new SpatialIndexFeatureCollection(waterFeatureSource.getFeatures());
-		this.waterFeatureSource = new SpatialIndexFeatureSource(wfc);	
+		this.waterFeatureContext = waterFeatureContext;
 		
 		this.voronoiEdgesFeatureType = voronoiEdgesFeatureSource.getSchema();
-		this.waterFeaturesType = waterFeatureSource.getSchema();
 		
 		this.keptTypeName = keptTypeName;
 		this.discardedTypeName = discardedTypeName;
@@ -73,7 +75,7 @@ public class VoronoiLongLineCleaner {
 		voronoiEdgesCrs = voronoiEdgesFeatureType.getGeometryDescriptor().getCoordinateReferenceSystem();
 		this.distanceUnit = voronoiEdgesCrs.getCoordinateSystem().getAxis(0).getUnit();
 	
-		int srid = CRS.lookupEpsgCode(voronoiEdgesCrs, true);
+		int srid = waterFeatureContext.getSrid(voronoiEdgesCrs);
 		
 		keptFeatureType = null;
 		try {
@@ -126,5 +128,39 @@ public class VoronoiLongLineCleaner {
 		return result;
 	}
 	
+	/**
+	 * Same as clean(), but for the edges of an EdgeStore.  The value of each edge in the result is 
+	 * its length (rounded).
+	 */
+	public KeptAndDiscardedEdges clean(EdgeStore edges) {
+		KeptAndDiscardedEdges result = new KeptAndDiscardedEdges(edges);
+		int progressIncrement = 50000;
+		for (int edge = 0; edge < edges.size(); edge++) {
+			double length = edges.getLength(edge);
+			boolean discard = length > MAX_LENGTH_TO_KEEP_IN_VORONOI_UNITS;
+			result.setKept(edge, !discard, (int)Math.round(length));
+			if (edge % progressIncrement == 0) {
+				System.out.println("   - # processed: "+edge+", # kept: "+result.getNumKept()+", # discarded: "+(edge+1-result.getNumKept()));
+			}
+		}
+		return result;
+	}
+	
+	public KeptAndDiscarded toFeatures(KeptAndDiscardedEdges result, int fromEdge, int toEdge) {
+		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+		EdgeStore edges = result.getEdges();
+		KeptAndDiscarded features = new KeptAndDiscarded(keptFeatureType, discardedFeatureType);
+		for (int edge = fromEdge; edge < toEdge; edge++) {
+			Object[] attributeValues = new Object[] { edges.toLineString(edge, geometryFactory), edges.getLength(edge), distanceUnit.toString() };
+			if (result.isKept(edge)) {
+				features.addKept(keptFeatureBuilder.buildFeature(edges.getFid(edge), attributeValues));
+			}
+			else {
+				features.addDiscarded(discardedFeatureBuilder.buildFeature(edges.getFid(edge), attributeValues));
+			}
+		}
+		return features;
+	}
+	
 	
 }
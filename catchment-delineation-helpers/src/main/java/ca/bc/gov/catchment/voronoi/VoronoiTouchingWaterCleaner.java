@@ -1,14 +1,11 @@
 package ca.bc.gov.catchment.voronoi;
 
 import java.io.IOException;
-import java.util.Date;
 
 import javax.measure.Unit;
 
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
-import org.geotools.data.collection.SpatialIndexFeatureCollection;
-import org.geotools.data.collection.SpatialIndexFeatureSource;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.factory.CommonFactoryFinder;
@@ -17,10 +14,15 @@ import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.SchemaException;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
@@ -29,7 +31,11 @@ import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-public class VoronoiTouchingWaterCleaner {
+import ca.bc.gov.catchments.utils.DistanceKernel;
+import ca.bc.gov.catchments.utils.IntVisitor;
+import ca.bc.gov.catchments.utils.Metrics;
+
+public class VoronoiTouchingWaterCleaner implements EdgeCleaner {
 	
 	private static final double TOUCHES_DISTANCE_TOLERANCE = 0.0001; 
 	private static final double MAX_LENGTH_TO_KEEP_IN_VORONOI_UNITS = 20000;
@@ -37,15 +43,21 @@ public class VoronoiTouchingWaterCleaner {
 	private static final int NUM_X_TILES = 10;
 	private static final int NUM_Y_TILES = 10;
 	
+	private static final Metrics.Counter EDGES_PROCESSED = Metrics.get().counter("touching_water_edges_processed", "Voronoi edges classified by the touching water cleaner");
+	private static final Metrics.Counter EDGES_DISCARDED = Metrics.get().counter("touching_water_edges_discarded", "Voronoi edges discarded by the touching water cleaner");
+	private static final Metrics.Timer TILE_TIMER = Metrics.get().timer("touching_water_tile", "Wall time of each tile of the touching water cleaner (including saving)");
+	private static final Metrics.Timer PERSIST_TIMER = Metrics.get().timer("touching_water_persist", "Time to save the kept and discarded edges of each tile");
+	
 	private String keptTypeName;
 	private String discardedTypeName;
 	
 	private SimpleFeatureSource voronoiEdgesFeatureSource;
-	private SimpleFeatureSource waterFeatureSource;
+	private WaterFeatureContext waterFeatureContext;
+	private WaterFeatureIndex waterFeatureIndex;
+	private GeoPackageTileReader tileReader;
 	private CoordinateReferenceSystem voronoiEdgesCrs;
 	
 	SimpleFeatureType voronoiEdgesFeatureType;
-	SimpleFeatureType waterFeaturesType;
 	
 	private SimpleFeatureType keptFeatureType;
 	private SimpleFeatureType discardedFeatureType;
@@ -58,15 +70,19 @@ public class VoronoiTouchingWaterCleaner {
 			SimpleFeatureSource waterFeatureSource,
 			String keptTypeName,
 			String discardedTypeName) throws IOException, FactoryException {
+		this(voronoiEdgesFeatureSource, new WaterFeatureContext(waterFeatureSource), keptTypeName, discardedTypeName);
+	}
+	
+	public VoronoiTouchingWaterCleaner(SimpleFeatureSource voronoiEdgesFeatureSource, 
+			WaterFeatureContext waterFeatureContext,
+			String keptTypeName,
+			String discardedTypeName) throws IOException, FactoryException {
 		
 		this.voronoiEdgesFeatureSource = voronoiEdgesFeatureSource;
-
-		//add a spatial index to the water features
-		SpatialIndexFeatureCollection wfc = new SpatialIndexFeatureCollection(waterFeatureSource.getFeatures());
-		this.waterFeatureSource = new SpatialIndexFeatureSource(wfc);	
+		this.waterFeatureContext = waterFeatureContext;
+		this.waterFeatureIndex = waterFeatureContext.getIndex();
 		
 		this.voronoiEdgesFeatureType = voronoiEdgesFeatureSource.getSchema();
-		this.waterFeaturesType = waterFeatureSource.getSchema();
 		
 		this.keptTypeName = keptTypeName;
 		this.discardedTypeName = discardedTypeName;
@@ -74,7 +90,7 @@ public class VoronoiTouchingWaterCleaner {
 		voronoiEdgesCrs = voronoiEdgesFeatureType.getGeometryDescriptor().getCoordinateReferenceSystem();
 		this.distanceUnit = voronoiEdgesCrs.getCoordinateSystem().getAxis(0).getUnit();
 	
-		int srid = CRS.lookupEpsgCode(voronoiEdgesCrs, true);
+		int srid = waterFeatureContext.getSrid(voronoiEdgesCrs);
 		
 		keptFeatureType = null;
 		try {
@@ -99,10 +115,18 @@ public class VoronoiTouchingWaterCleaner {
 		
 	}
 	
+	/**
+	 * Sets a reader to load the voronoi edges of each tile directly from the GeoPackage's rtree,
+	 * rather than through a bbox filter on the voronoi edges feature source.
+	 */
+	public void setTileReader(GeoPackageTileReader tileReader) {
+		this.tileReader = tileReader;
+	}
+	
 	public void clean(Persistable kept, Persistable discarded) throws IOException, FactoryException {
 		FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
 		String geometryPropertyName = voronoiEdgesFeatureType.getGeometryDescriptor().getLocalName();
-		ReferencedEnvelope bounds = waterFeatureSource.getBounds();
+		ReferencedEnvelope bounds = waterFeatureContext.getBounds();
 		bounds.expandBy(10000); //expand 10km
 		double tileWidth = bounds.getWidth() / NUM_X_TILES;
 		double tileHeight = bounds.getHeight() / NUM_Y_TILES;
@@ -110,10 +134,10 @@ public class VoronoiTouchingWaterCleaner {
 		int tileNum = 1;
 		int totalNumKept = 0;
 		int totalNumDiscarded = 0;
-		Date t0 = new Date();
+		long t0 = System.nanoTime();
 		for (int i = 0; i < NUM_X_TILES; i++) {
 			for(int j = 0; j < NUM_Y_TILES; j++) {
-				Date t1 = new Date();
+				long tileStart = TILE_TIMER.start();
 				System.out.println("   - Starting tile "+tileNum+"/"+(NUM_X_TILES*NUM_Y_TILES));
 				ReferencedEnvelope bbox = new ReferencedEnvelope(
 						bounds.getMinX()+tileWidth*i,						
@@ -121,39 +145,42 @@ public class VoronoiTouchingWaterCleaner {
 						bounds.getMinY()+tileHeight*j, 
 						bounds.getMinY()+tileHeight*(j+1), 
 						voronoiEdgesCrs);
-				Filter tileFilter = ff.bbox(ff.property(geometryPropertyName), bbox);
-				SimpleFeatureCollection voronoiEdgesInTile = voronoiEdgesFeatureSource.getFeatures(tileFilter);
-				SpatialIndexFeatureCollection fastFeatureCollection = new SpatialIndexFeatureCollection(voronoiEdgesInTile);
-				System.out.println("     - "+fastFeatureCollection.size()+" voronoi edges in tile");
+				SimpleFeatureCollection voronoiEdgesInTile = null;
+				if (tileReader != null) {
+					voronoiEdgesInTile = tileReader.read(bbox);
+				}
+				else {
+					Filter tileFilter = ff.bbox(ff.property(geometryPropertyName), bbox);
+					voronoiEdgesInTile = DataUtilities.collection(voronoiEdgesFeatureSource.getFeatures(tileFilter));
+				}
+				System.out.println("     - "+voronoiEdgesInTile.size()+" voronoi edges in tile");
 				
 				//clean the features only in the given tile
-				KeptAndDiscarded result = cleanFeatures(fastFeatureCollection);
+				KeptAndDiscarded result = cleanFeatures(voronoiEdgesInTile);
 				totalNumKept += result.getNumKept();
 				totalNumDiscarded += result.getNumDiscarded();
+				EDGES_PROCESSED.add(result.getNumKept() + result.getNumDiscarded());
+				EDGES_DISCARDED.add(result.getNumDiscarded());
 				System.out.println("     - Kept: "+result.getNumKept() + ", discarded: "+ result.getNumDiscarded());
 				
 				System.out.print("     - Saving...");
+				long persistStart = PERSIST_TIMER.start();
 				kept.persist(result.getKept());
 				discarded.persist(result.getDiscarded());
 				result.dispose();
-				System.out.println("done");
+				System.out.println("done ("+Metrics.formatSeconds(PERSIST_TIMER.stop(persistStart))+")");
 				
-				Date t2 = new Date();
-				long elapsed = Math.round((t2.getTime()-t1.getTime())/1000.0);
-				if (elapsed > 0) {
-					System.out.println("     - Tile elapsed time: "+elapsed+" s ("+Math.round(voronoiEdgesInTile.size()/elapsed*1.0)+" features/s)");
-				}
+				long tileElapsed = TILE_TIMER.stop(tileStart);
+				System.out.println("     - Tile elapsed time: "+Metrics.formatSeconds(tileElapsed)+" ("+Metrics.formatRate(voronoiEdgesInTile.size(), tileElapsed)+")");
 				
 				System.out.println("   - Progress so far:");
 				int totalNumProcessed = totalNumKept+totalNumDiscarded;
 				System.out.println("     - Total voronoi edges processed: "+totalNumProcessed);
 				System.out.println("     - Total kept: "+totalNumKept + ", total discarded: "+ totalNumDiscarded);
 
-				long totalElapsed = Math.round((t2.getTime() - t0.getTime())/1000.0);
-				System.out.println("     - Total elapsed time: "+totalElapsed+" s" );
-				if (totalElapsed > 0) {
-					System.out.println("     - Average speed: " +Math.round(totalNumProcessed / totalElapsed*1.0f)+" features/s");
-				}
+				long totalElapsed = System.nanoTime() - t0;
+				System.out.println("     - Total elapsed time: "+Metrics.formatSeconds(totalElapsed));
+				System.out.println("     - Average speed: " +Metrics.formatRate(totalNumProcessed, totalElapsed));
 				
 				tileNum++;
 			}
@@ -166,10 +193,6 @@ public class VoronoiTouchingWaterCleaner {
 		//setup
 		//---------------------------------------------------------------------
 		
-		FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
-		String waterFeaturesGeometryPropertyName = waterFeatureSource.getSchema().getGeometryDescriptor().getLocalName();
-		
-				
 		KeptAndDiscarded result = new KeptAndDiscarded(keptFeatureType, discardedFeatureType);
 		
 		
@@ -186,13 +209,15 @@ public class VoronoiTouchingWaterCleaner {
 		
 		
 		int shortCircuitCount = 0;
+		final WaterTouchCounter touchCounter = new WaterTouchCounter();
+		double[] voronoiEdgeCoords = null;
 		//FeatureCollection voronoiEdges = voronoiEdgesFeatureSource.getFeatures();
 		FeatureIterator<SimpleFeature> iterator = voronoiEdges.features();
 		int index = 0;
 		while(iterator.hasNext()) {
 			index++;
 			SimpleFeature voronoiEdgeFeature = iterator.next();
-			Geometry voronoiEdgeGeometry = (Geometry)voronoiEdgeFeature.getDefaultGeometry();
+			final Geometry voronoiEdgeGeometry = (Geometry)voronoiEdgeFeature.getDefaultGeometry();
 			
 			double lengthInMapUnit = voronoiEdgeGeometry.getLength();
 			boolean isLongTwoPointSegment = lengthInMapUnit > MAX_LENGTH_TO_KEEP_IN_VORONOI_UNITS;
@@ -207,11 +232,11 @@ public class VoronoiTouchingWaterCleaner {
 				//  water features.  They sometimes do (i.e. distance = 0), but sometimes there is a precision issue
 				//  whereby the distance between features that are intended to touch is actually about 10^-10 metres.
 				//  Therefore, we cannot reliably use the JTS "touches" operation to detect these approximate touches. 
-				//  Instead we use "dwithin" to identify features whose closest vertex is within some
-				//  small distance tolerance.
-				Filter waterTouchesVoronoiEdgeFilter = filterFactory.dwithin(filterFactory.property(waterFeaturesGeometryPropertyName), filterFactory.literal(voronoiEdgeGeometry), TOUCHES_DISTANCE_TOLERANCE, distanceUnit.toString());
-				FeatureCollection touchingWaterFeatures = waterFeatureSource.getFeatures(waterTouchesVoronoiEdgeFilter);
-				numTouchingWaterFeatures = touchingWaterFeatures.size();
+				//  Instead we identify features whose closest vertex is within some small distance 
+				//  tolerance (as with "dwithin").
+				CoordinateSequence voronoiEdgeCoordSeq = ((LineString)voronoiEdgeGeometry).getCoordinateSequence();
+				voronoiEdgeCoords = DistanceKernel.toXY(voronoiEdgeCoordSeq, voronoiEdgeCoords);
+				numTouchingWaterFeatures = touchCounter.count(voronoiEdgeGeometry.getEnvelopeInternal(), voronoiEdgeCoords, 0, voronoiEdgeCoordSeq.size());
 				keep = numTouchingWaterFeatures == 0 || numTouchingWaterFeatures >= 3; //discard when num is 1 or 2 //numTouchingWaterFeatures != 1;
 			}
 			else {
@@ -236,4 +261,82 @@ public class VoronoiTouchingWaterCleaner {
 		return result;
 	}
 	
+	/**
+	 * Same rules as cleanFeatures(..), but for the edges of an EdgeStore.  The value of each edge in
+	 * the result is the number of water features it touches (-1 if not checked).
+	 */
+	public KeptAndDiscardedEdges clean(EdgeStore edges) {
+		KeptAndDiscardedEdges result = new KeptAndDiscardedEdges(edges);
+		WaterTouchCounter touchCounter = new WaterTouchCounter();
+		Envelope edgeEnvelope = new Envelope();
+		
+		int progressIncrement = 50000;
+		for (int edge = 0; edge < edges.size(); edge++) {
+			double lengthInMapUnit = edges.getLength(edge);
+			boolean isLongTwoPointSegment = lengthInMapUnit > MAX_LENGTH_TO_KEEP_IN_VORONOI_UNITS;
+			boolean isShortSegment = lengthInMapUnit < MIN_LENGTH_TO_KEEP_IN_VORONOI_UNITS;
+			boolean keep = !isLongTwoPointSegment && !isShortSegment;
+			
+			int numTouchingWaterFeatures = -1;
+			if (keep) {
+				//see cleanFeatures(..) for why this is a distance test rather than a "touches" test
+				edgeEnvelope.init(edges.getMinX(edge), edges.getMaxX(edge), edges.getMinY(edge), edges.getMaxY(edge));
+				numTouchingWaterFeatures = touchCounter.count(edgeEnvelope, edges.getCoordinates(), edges.getVertexStart(edge), edges.getNumPoints(edge));
+				keep = numTouchingWaterFeatures == 0 || numTouchingWaterFeatures >= 3; //discard when num is 1 or 2
+			}
+			result.setKept(edge, keep, numTouchingWaterFeatures);
+			
+			if ((edge+1) % progressIncrement == 0) {
+				System.out.println("     - # processed: "+(edge+1)+", # kept: "+result.getNumKept()+", # discarded: "+(edge+1-result.getNumKept()));
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Counts the water features within TOUCHES_DISTANCE_TOLERANCE of a voronoi edge, using the raw
+	 * coordinates of both.  One counter is reused for every edge, so counting allocates nothing.
+	 */
+	private class WaterTouchCounter implements IntVisitor {
+		
+		private Envelope searchEnvelope = new Envelope();
+		private double[] xy;
+		private int startVertex;
+		private int numVertices;
+		private int count;
+		
+		public int count(Envelope edgeEnvelope, double[] xy, int startVertex, int numVertices) {
+			this.xy = xy;
+			this.startVertex = startVertex;
+			this.numVertices = numVertices;
+			this.count = 0;
+			searchEnvelope.init(edgeEnvelope);
+			searchEnvelope.expandBy(TOUCHES_DISTANCE_TOLERANCE);
+			waterFeatureIndex.query(searchEnvelope, this);
+			return count;
+		}
+		
+		public void visit(int id) {
+			if (waterFeatureIndex.isWithinDistance(id, xy, startVertex, numVertices, TOUCHES_DISTANCE_TOLERANCE)) {
+				count++;
+			}
+		}
+	}
+	
+	public KeptAndDiscarded toFeatures(KeptAndDiscardedEdges result, int fromEdge, int toEdge) {
+		GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+		EdgeStore edges = result.getEdges();
+		KeptAndDiscarded features = new KeptAndDiscarded(keptFeatureType, discardedFeatureType);
+		for (int edge = fromEdge; edge < toEdge; edge++) {
+			Object[] attributeValues = new Object[] { edges.toLineString(edge, geometryFactory), result.getValue(edge) };
+			if (result.isKept(edge)) {
+				features.addKept(keptFeatureBuilder.buildFeature(edges.getFid(edge), attributeValues));
+			}
+			else {
+				features.addDiscarded(discardedFeatureBuilder.buildFeature(edges.getFid(edge), attributeValues));
+			}
+		}
+		return features;
+	}
+	
 }
@@ -0,0 +1,113 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.measure.Unit;
+
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Everything the voronoi cleaners need to know about the water features, gathered once per run and
+ * shared by all cleaners: the feature source, its bounds, CRS, SRID and distance unit, and a spatial
+ * index of the features.
+ *
+ * The index is built (or opened from the cache folder, if one is given) the first time it is
+ * requested, so runs that don't need it never read the water features.
+ */
+public class WaterFeatureContext {
+
+	private SimpleFeatureSource waterFeatureSource;
+	private String geoPackageFilename;
+	private String tableName;
+	private File indexCacheDir;
+
+	private CoordinateReferenceSystem crs;
+	private int srid;
+	private Unit<?> distanceUnit;
+	private ReferencedEnvelope bounds;
+	private WaterFeatureIndex index;
+
+	/**
+	 * @param geoPackageFilename the file containing the water features table.  only needed if indexCacheDir is given.
+	 * @param tableName the name of the water features table.  only needed if indexCacheDir is given.
+	 * @param indexCacheDir folder to cache the spatial index in between runs, or null to build the index in memory
+	 */
+	public WaterFeatureContext(SimpleFeatureSource waterFeatureSource, String geoPackageFilename, String tableName, File indexCacheDir) throws IOException, FactoryException {
+		this.waterFeatureSource = waterFeatureSource;
+		this.geoPackageFilename = geoPackageFilename;
+		this.tableName = tableName;
+		this.indexCacheDir = indexCacheDir;
+
+		this.crs = waterFeatureSource.getSchema().getGeometryDescriptor().getCoordinateReferenceSystem();
+		this.srid = CRS.lookupEpsgCode(crs, true);
+		this.distanceUnit = crs.getCoordinateSystem().getAxis(0).getUnit();
+
+		//the bounds from the GeoPackage's metadata, if available
+		this.bounds = waterFeatureSource.getBounds();
+		if (bounds == null || bounds.isNull()) {
+			bounds = new ReferencedEnvelope(getIndex().getBounds(), crs);
+		}
+	}
+
+	/**
+	 * creates a context for water features that aren't from a GeoPackage (the index is built in memory)
+	 */
+	public WaterFeatureContext(SimpleFeatureSource waterFeatureSource) throws IOException, FactoryException {
+		this(waterFeatureSource, null, null, null);
+	}
+
+	public SimpleFeatureSource getFeatureSource() {
+		return waterFeatureSource;
+	}
+
+	/**
+	 * gets the spatial index of the water features, building it (or opening the cached copy) on the first call
+	 */
+	public WaterFeatureIndex getIndex() throws IOException {
+		if (index == null) {
+			if (indexCacheDir != null) {
+				index = WaterFeatureIndex.openOrBuild(geoPackageFilename, tableName, waterFeatureSource.getFeatures(), indexCacheDir);
+			}
+			else {
+				index = WaterFeatureIndex.build(waterFeatureSource.getFeatures());
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return a copy of the water features' bounds
+	 */
+	public ReferencedEnvelope getBounds() {
+		return new ReferencedEnvelope(bounds);
+	}
+
+	public CoordinateReferenceSystem getCrs() {
+		return crs;
+	}
+
+	public int getSrid() {
+		return srid;
+	}
+
+	/**
+	 * Gets the SRID of the given CRS.  If it is the water features' CRS (the usual case: voronoi edges
+	 * are in the same CRS as the water features they were computed from), the SRID looked up when
+	 * the context was created is returned, rather than repeating the EPSG lookup.
+	 */
+	public int getSrid(CoordinateReferenceSystem otherCrs) throws FactoryException {
+		if (CRS.equalsIgnoreMetadata(crs, otherCrs)) {
+			return srid;
+		}
+		return CRS.lookupEpsgCode(otherCrs, true);
+	}
+
+	public Unit<?> getDistanceUnit() {
+		return distanceUnit;
+	}
+}
@@ -0,0 +1,352 @@
+package ca.bc.gov.catchment.voronoi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.util.LinearComponentExtracter;
+
+import ca.bc.gov.catchments.utils.DistanceKernel;
+import ca.bc.gov.catchments.utils.GeoPackageUtils;
+import ca.bc.gov.catchments.utils.IntVisitor;
+import ca.bc.gov.catchments.utils.PackedHilbertRTree;
+
+/**
+ * A read-only spatial index of water features (their line work only, no attributes), stored in a
+ * single buffer: a PackedHilbertRTree followed by the features' coordinates.  The buffer can be saved
+ * to a file and memory-mapped on later runs, so the water features needn't be read and re-indexed
+ * each time.
+ *
+ * Cached index files are named after a hash of the source GeoPackage table's contents (see
+ * computeKey), so a changed table gets a new index file.
+ *
+ * File layout:
+ *   header: magic, version, key (20 bytes), # features, # parts, # vertices, node size
+ *   tree: see PackedHilbertRTree.save()
+ *   int[# features + 1]: first part of each feature
+ *   int[# parts + 1]: first vertex of each part
+ *   double[# vertices * 2]: x, y of each vertex
+ */
+public class WaterFeatureIndex {
+
+	private static final long MAGIC = 0x4348494D50574649L; //"CHIMPWFI"
+	private static final int VERSION = 1;
+	private static final int KEY_LENGTH = 20;
+	private static final int HEADER_SIZE = 8 + 4 + KEY_LENGTH + 4 * 4;
+	private static final String INDEX_FILE_EXTENSION = ".wfi";
+
+	private byte[] key;
+	private PackedHilbertRTree tree;
+	private IntBuffer featurePartStarts;
+	private IntBuffer partVertexStarts;
+	private DoubleBuffer coordinates;
+	private int numFeatures;
+
+	private WaterFeatureIndex(ByteBuffer buffer) throws IOException {
+		buffer.position(0);
+		if (buffer.getLong() != MAGIC || buffer.getInt() != VERSION) {
+			throw new IOException("Not a water feature index (or an index from an older version)");
+		}
+		key = new byte[KEY_LENGTH];
+		buffer.get(key);
+		numFeatures = buffer.getInt();
+		int numParts = buffer.getInt();
+		int numVertices = buffer.getInt();
+		int nodeSize = buffer.getInt();
+
+		tree = PackedHilbertRTree.load(numFeatures, nodeSize, buffer);
+		featurePartStarts = slice(buffer, (numFeatures + 1) * 4).asIntBuffer();
+		partVertexStarts = slice(buffer, (numParts + 1) * 4).asIntBuffer();
+		coordinates = slice(buffer, numVertices * 2 * 8).asDoubleBuffer();
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int length) {
+		ByteBuffer slice = buffer.slice().order(buffer.order());
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+
+	/**
+	 * builds an index in memory
+	 */
+	public static WaterFeatureIndex build(SimpleFeatureCollection waterFeatures) throws IOException {
+		return new WaterFeatureIndex(serialize(waterFeatures, new byte[KEY_LENGTH]));
+	}
+
+	/**
+	 * Opens the cached index of the given GeoPackage table, or builds and caches it if there is no
+	 * cached index for the table's current contents.
+	 */
+	public static WaterFeatureIndex openOrBuild(String geoPackageFilename, String tableName, SimpleFeatureCollection waterFeatures, File cacheDir) throws IOException {
+		byte[] key = computeKey(geoPackageFilename, tableName);
+		File indexFile = new File(cacheDir, tableName+"-"+toHex(key)+INDEX_FILE_EXTENSION);
+
+		if (indexFile.exists()) {
+			try {
+				WaterFeatureIndex index = map(indexFile);
+				if (Arrays.equals(index.key, key)) {
+					System.out.println("   - Using cached water feature index: "+indexFile);
+					return index;
+				}
+			} catch (IOException e) {
+				//rebuild it below
+			}
+			System.out.println("   - Cached water feature index is invalid.  Rebuilding: "+indexFile);
+		}
+		else {
+			System.out.println("   - Building water feature index: "+indexFile);
+		}
+
+		if (!cacheDir.exists()) {
+			cacheDir.mkdirs();
+		}
+		ByteBuffer buffer = serialize(waterFeatures, key);
+		File tmpFile = new File(cacheDir, indexFile.getName()+".tmp");
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			buffer.position(0);
+			out.getChannel().write(buffer);
+		} finally {
+			out.close();
+		}
+		if (indexFile.exists()) {
+			indexFile.delete();
+		}
+		if (!tmpFile.renameTo(indexFile)) {
+			throw new IOException("Unable to save water feature index: "+indexFile);
+		}
+		return map(indexFile);
+	}
+
+	private static WaterFeatureIndex map(File indexFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		try {
+			//the mapping remains valid after the file is closed
+			ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			return new WaterFeatureIndex(buffer);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Computes a key from the contents of the table's geometry column: a SHA-1 hash of each row's id
+	 * and geometry blob, in id order.  This only reads the raw blobs, so it is much faster than
+	 * reading the features.  (gpkg_contents.last_change isn't used because it changes whenever the
+	 * table is re-created, even with the same contents.)
+	 */
+	public static byte[] computeKey(String geoPackageFilename, String tableName) throws IOException {
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+		digest.update((VERSION+"|"+tableName).getBytes("UTF-8"));
+
+		GeoPackage geoPackage = new GeoPackage(new File(geoPackageFilename));
+		try {
+			FeatureEntry entry = geoPackage.feature(tableName);
+			if (entry == null) {
+				throw new IOException("No such table: "+tableName);
+			}
+			Connection cx = geoPackage.getDataSource().getConnection();
+			try {
+				String pkColumn = GeoPackageUtils.getPrimaryKeyColumn(cx, tableName);
+				PreparedStatement ps = cx.prepareStatement("SELECT \""+pkColumn+"\", \""+entry.getGeometryColumn()+"\" FROM \""+tableName+"\" ORDER BY \""+pkColumn+"\"");
+				try {
+					ResultSet rs = ps.executeQuery();
+					ByteBuffer id = ByteBuffer.allocate(8);
+					while (rs.next()) {
+						id.clear();
+						id.putLong(rs.getLong(1));
+						digest.update(id.array());
+						byte[] blob = rs.getBytes(2);
+						if (blob != null) {
+							digest.update(blob);
+						}
+					}
+					rs.close();
+				} finally {
+					ps.close();
+				}
+			} finally {
+				cx.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException("Unable to read table "+tableName+" from "+geoPackageFilename, e);
+		} finally {
+			geoPackage.close();
+		}
+		return digest.digest();
+	}
+
+	private static ByteBuffer serialize(SimpleFeatureCollection waterFeatures, byte[] key) {
+		//collect the line work of every feature
+		List<List<LineString>> features = new ArrayList<List<LineString>>();
+		int numParts = 0;
+		int numVertices = 0;
+		SimpleFeatureIterator it = waterFeatures.features();
+		try {
+			while (it.hasNext()) {
+				Geometry geometry = (Geometry)it.next().getDefaultGeometry();
+				List<LineString> parts = new ArrayList<LineString>();
+				if (geometry != null) {
+					for (Object line : LinearComponentExtracter.getLines(geometry)) {
+						parts.add((LineString)line);
+						numVertices += ((LineString)line).getNumPoints();
+					}
+				}
+				numParts += parts.size();
+				features.add(parts);
+			}
+		} finally {
+			it.close();
+		}
+
+		PackedHilbertRTree tree = new PackedHilbertRTree(features.size());
+		for (List<LineString> parts : features) {
+			Envelope envelope = new Envelope();
+			for (LineString part : parts) {
+				envelope.expandToInclude(part.getEnvelopeInternal());
+			}
+			tree.add(envelope);
+		}
+		tree.build();
+
+		long size = HEADER_SIZE
+				+ tree.getSerializedSize()
+				+ (features.size() + 1) * 4L
+				+ (numParts + 1) * 4L
+				+ numVertices * 2 * 8L;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many water features to index in one file ("+numVertices+" vertices)");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((int)size);
+		buffer.putLong(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.put(key);
+		buffer.putInt(features.size());
+		buffer.putInt(numParts);
+		buffer.putInt(numVertices);
+		buffer.putInt(PackedHilbertRTree.DEFAULT_NODE_SIZE);
+		tree.save(buffer);
+
+		int partNum = 0;
+		for (List<LineString> parts : features) {
+			buffer.putInt(partNum);
+			partNum += parts.size();
+		}
+		buffer.putInt(partNum);
+
+		int vertexNum = 0;
+		for (List<LineString> parts : features) {
+			for (LineString part : parts) {
+				buffer.putInt(vertexNum);
+				vertexNum += part.getNumPoints();
+			}
+		}
+		buffer.putInt(vertexNum);
+
+		for (List<LineString> parts : features) {
+			for (LineString part : parts) {
+				for (int i = 0; i < part.getNumPoints(); i++) {
+					Coordinate c = part.getCoordinateN(i);
+					buffer.putDouble(c.x);
+					buffer.putDouble(c.y);
+				}
+			}
+		}
+		return buffer;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * calls the visitor with the id of each water feature whose envelope intersects the given envelope
+	 */
+	public void query(Envelope envelope, IntVisitor visitor) {
+		tree.query(envelope, visitor);
+	}
+
+	/**
+	 * builds the geometry of a water feature: a LineString, or a MultiLineString if the feature had
+	 * more than one part (polygon rings are stored as separate parts)
+	 */
+	public Geometry getGeometry(int id, GeometryFactory geometryFactory) {
+		int partStart = featurePartStarts.get(id);
+		int partEnd = featurePartStarts.get(id + 1);
+		LineString[] parts = new LineString[partEnd - partStart];
+		for (int part = partStart; part < partEnd; part++) {
+			int vertexStart = partVertexStarts.get(part);
+			int vertexEnd = partVertexStarts.get(part + 1);
+			Coordinate[] coords = new Coordinate[vertexEnd - vertexStart];
+			for (int v = vertexStart; v < vertexEnd; v++) {
+				coords[v - vertexStart] = new Coordinate(coordinates.get(v * 2), coordinates.get(v * 2 + 1));
+			}
+			parts[part - partStart] = geometryFactory.createLineString(coords);
+		}
+		if (parts.length == 1) {
+			return parts[0];
+		}
+		return geometryFactory.createMultiLineString(parts);
+	}
+
+	/**
+	 * Checks whether a water feature is within the given distance of a polyline (given as packed x, y 
+	 * values).  Reads the feature's coordinates in place, without building its geometry.
+	 */
+	public boolean isWithinDistance(int id, double[] xy, int startVertex, int numVertices, double tolerance) {
+		int partEnd = featurePartStarts.get(id + 1);
+		for (int part = featurePartStarts.get(id); part < partEnd; part++) {
+			int vertexStart = partVertexStarts.get(part);
+			int numPartVertices = partVertexStarts.get(part + 1) - vertexStart;
+			if (numPartVertices == 0) {
+				continue;
+			}
+			if (DistanceKernel.isWithinDistance(xy, startVertex, numVertices, coordinates, vertexStart, numPartVertices, tolerance)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return numFeatures;
+	}
+
+	public Envelope getBounds() {
+		return tree.getBounds();
+	}
+}
@@ -0,0 +1,146 @@
+package ca.bc.gov.catchments.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineSegment;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.index.ItemVisitor;
+import org.locationtech.jts.index.strtree.STRtree;
+
+/**
+ * Densifies lines with a fine vertex spacing only where another feature is nearby, and with a
+ * coarse spacing elsewhere.  Vertices are only useful to the voronoi algorithm where the boundary
+ * between two features has to be resolved, so this gives the same boundary quality as densifying
+ * everything finely, but with far fewer segments.
+ *
+ * Usage: add() every feature, then densify() each feature.
+ */
+public class AdaptiveDensifier {
+
+	private double fineSpacing;
+	private double coarseSpacing;
+	private double proximityDistance;
+	private STRtree index;
+
+	private int numFineSegments;
+	private int numCoarseSegments;
+
+	/**
+	 * @param fineSpacing vertex spacing for segments that have another feature within proximityDistance
+	 * @param coarseSpacing vertex spacing for all other segments.  0 means no densification.
+	 * @param proximityDistance
+	 */
+	public AdaptiveDensifier(double fineSpacing, double coarseSpacing, double proximityDistance) {
+		this.fineSpacing = fineSpacing;
+		this.coarseSpacing = coarseSpacing;
+		this.proximityDistance = proximityDistance;
+		this.index = new STRtree();
+	}
+
+	/**
+	 * Adds the segments of a feature to the proximity index.  Must be called for all features before
+	 * the first call to densify().
+	 * @param owner an object that identifies the feature (e.g. table name + feature id)
+	 */
+	public void add(Object owner, Geometry geometry) {
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			Coordinate[] coordinates = geometry.getGeometryN(i).getCoordinates();
+			for (int j = 1; j < coordinates.length; j++) {
+				OwnedSegment segment = new OwnedSegment(owner, coordinates[j-1], coordinates[j]);
+				index.insert(new Envelope(coordinates[j-1], coordinates[j]), segment);
+			}
+		}
+	}
+
+	/**
+	 * densifies the given geometry, which should have been previously added with the same owner
+	 */
+	public Geometry densify(Object owner, Geometry geometry) {
+		if (geometry instanceof LineString) {
+			return densifyLine(owner, (LineString)geometry);
+		}
+		if (geometry instanceof GeometryCollection) {
+			Geometry[] parts = new Geometry[geometry.getNumGeometries()];
+			for (int i = 0; i < parts.length; i++) {
+				parts[i] = densify(owner, geometry.getGeometryN(i));
+			}
+			return geometry.getFactory().buildGeometry(Arrays.asList(parts));
+		}
+		throw new IllegalArgumentException("Unsupported geometry type: "+geometry.getGeometryType());
+	}
+
+	private LineString densifyLine(Object owner, LineString line) {
+		Coordinate[] coordinates = line.getCoordinates();
+		List<Coordinate> result = new ArrayList<Coordinate>();
+		for (int i = 1; i < coordinates.length; i++) {
+			LineSegment segment = new LineSegment(coordinates[i-1], coordinates[i]);
+			result.add(coordinates[i-1]);
+
+			double spacing = coarseSpacing;
+			if (isNearOtherFeature(owner, segment)) {
+				spacing = fineSpacing;
+				numFineSegments++;
+			}
+			else {
+				numCoarseSegments++;
+			}
+			if (spacing <= 0) {
+				continue;
+			}
+
+			int numSubsegments = (int)Math.ceil(segment.getLength() / spacing);
+			for (int j = 1; j < numSubsegments; j++) {
+				result.add(segment.pointAlong((double)j / numSubsegments));
+			}
+		}
+		result.add(coordinates[coordinates.length-1]);
+
+		Coordinate[] densifiedCoordinates = result.toArray(new Coordinate[result.size()]);
+		if (line instanceof LinearRing) {
+			return line.getFactory().createLinearRing(densifiedCoordinates);
+		}
+		return line.getFactory().createLineString(densifiedCoordinates);
+	}
+
+	private boolean isNearOtherFeature(final Object owner, final LineSegment segment) {
+		Envelope searchEnvelope = new Envelope(segment.p0, segment.p1);
+		searchEnvelope.expandBy(proximityDistance);
+		final boolean[] found = new boolean[] {false};
+		index.query(searchEnvelope, new ItemVisitor() {
+			public void visitItem(Object item) {
+				OwnedSegment other = (OwnedSegment)item;
+				if (found[0] || other.owner.equals(owner)) {
+					return;
+				}
+				if (other.segment.distance(segment) <= proximityDistance) {
+					found[0] = true;
+				}
+			}
+		});
+		return found[0];
+	}
+
+	public int getNumFineSegments() {
+		return numFineSegments;
+	}
+
+	public int getNumCoarseSegments() {
+		return numCoarseSegments;
+	}
+
+	private static class OwnedSegment {
+		Object owner;
+		LineSegment segment;
+		OwnedSegment(Object owner, Coordinate p0, Coordinate p1) {
+			this.owner = owner;
+			this.segment = new LineSegment(p0, p1);
+		}
+	}
+}
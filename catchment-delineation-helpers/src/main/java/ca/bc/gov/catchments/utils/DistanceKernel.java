@@ -0,0 +1,203 @@
+package ca.bc.gov.catchments.utils;
+
+import java.nio.DoubleBuffer;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+
+/**
+ * Distance tests between points and polylines, on raw coordinates.  Polylines are given as packed
+ * x, y values (a double[] or DoubleBuffer, a start vertex and a number of vertices) or as a JTS
+ * CoordinateSequence (read in place, without copying).
+ *
+ * All tests compare squared distances (so no square roots are taken), skip segments whose envelope
+ * is further than the tolerance away, and allocate nothing.  They are equivalent to
+ * Geometry.isWithinDistance(..) for points and linestrings.
+ */
+public class DistanceKernel {
+
+	/**
+	 * @return the squared distance from point p to the segment a-b
+	 */
+	public static double pointSegmentDistanceSq(double px, double py, double ax, double ay, double bx, double by) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double lengthSq = dx * dx + dy * dy;
+		double t = 0;
+		if (lengthSq > 0) {
+			t = ((px - ax) * dx + (py - ay) * dy) / lengthSq;
+			if (t < 0) {
+				t = 0;
+			}
+			else if (t > 1) {
+				t = 1;
+			}
+		}
+		double cx = ax + t * dx - px;
+		double cy = ay + t * dy - py;
+		return cx * cx + cy * cy;
+	}
+
+	public static boolean isPointWithinDistance(double px, double py, double[] xy, int startVertex, int numVertices, double tolerance) {
+		double toleranceSq = tolerance * tolerance;
+		int pos = startVertex * 2;
+		double ax = xy[pos];
+		double ay = xy[pos + 1];
+		if (numVertices == 1) {
+			return (ax - px) * (ax - px) + (ay - py) * (ay - py) <= toleranceSq;
+		}
+		for (int i = 1; i < numVertices; i++) {
+			pos += 2;
+			double bx = xy[pos];
+			double by = xy[pos + 1];
+			if (isNearSegmentEnvelope(px, py, ax, ay, bx, by, tolerance)
+					&& pointSegmentDistanceSq(px, py, ax, ay, bx, by) <= toleranceSq) {
+				return true;
+			}
+			ax = bx;
+			ay = by;
+		}
+		return false;
+	}
+
+	public static boolean isPointWithinDistance(double px, double py, DoubleBuffer xy, int startVertex, int numVertices, double tolerance) {
+		double toleranceSq = tolerance * tolerance;
+		int pos = startVertex * 2;
+		double ax = xy.get(pos);
+		double ay = xy.get(pos + 1);
+		if (numVertices == 1) {
+			return (ax - px) * (ax - px) + (ay - py) * (ay - py) <= toleranceSq;
+		}
+		for (int i = 1; i < numVertices; i++) {
+			pos += 2;
+			double bx = xy.get(pos);
+			double by = xy.get(pos + 1);
+			if (isNearSegmentEnvelope(px, py, ax, ay, bx, by, tolerance)
+					&& pointSegmentDistanceSq(px, py, ax, ay, bx, by) <= toleranceSq) {
+				return true;
+			}
+			ax = bx;
+			ay = by;
+		}
+		return false;
+	}
+
+	public static boolean isPointWithinDistance(double px, double py, CoordinateSequence line, double tolerance) {
+		double toleranceSq = tolerance * tolerance;
+		int numVertices = line.size();
+		double ax = line.getX(0);
+		double ay = line.getY(0);
+		if (numVertices == 1) {
+			return (ax - px) * (ax - px) + (ay - py) * (ay - py) <= toleranceSq;
+		}
+		for (int i = 1; i < numVertices; i++) {
+			double bx = line.getX(i);
+			double by = line.getY(i);
+			if (isNearSegmentEnvelope(px, py, ax, ay, bx, by, tolerance)
+					&& pointSegmentDistanceSq(px, py, ax, ay, bx, by) <= toleranceSq) {
+				return true;
+			}
+			ax = bx;
+			ay = by;
+		}
+		return false;
+	}
+
+	/**
+	 * checks whether two polylines come within the given distance of each other (including
+	 * crossing or touching)
+	 */
+	public static boolean isWithinDistance(double[] a, int aStartVertex, int aNumVertices, DoubleBuffer b, int bStartVertex, int bNumVertices, double tolerance) {
+		double toleranceSq = tolerance * tolerance;
+		if (aNumVertices == 1) {
+			return isPointWithinDistance(a[aStartVertex * 2], a[aStartVertex * 2 + 1], b, bStartVertex, bNumVertices, tolerance);
+		}
+		if (bNumVertices == 1) {
+			return isPointWithinDistance(b.get(bStartVertex * 2), b.get(bStartVertex * 2 + 1), a, aStartVertex, aNumVertices, tolerance);
+		}
+		int aEnd = (aStartVertex + aNumVertices - 1) * 2;
+		int bEnd = (bStartVertex + bNumVertices - 1) * 2;
+		for (int i = aStartVertex * 2; i < aEnd; i += 2) {
+			double a0x = a[i];
+			double a0y = a[i + 1];
+			double a1x = a[i + 2];
+			double a1y = a[i + 3];
+			double aMinX = Math.min(a0x, a1x) - tolerance;
+			double aMaxX = Math.max(a0x, a1x) + tolerance;
+			double aMinY = Math.min(a0y, a1y) - tolerance;
+			double aMaxY = Math.max(a0y, a1y) + tolerance;
+			for (int j = bStartVertex * 2; j < bEnd; j += 2) {
+				double b0x = b.get(j);
+				double b0y = b.get(j + 1);
+				double b1x = b.get(j + 2);
+				double b1y = b.get(j + 3);
+				if (Math.max(b0x, b1x) < aMinX || Math.min(b0x, b1x) > aMaxX
+						|| Math.max(b0y, b1y) < aMinY || Math.min(b0y, b1y) > aMaxY) {
+					continue;
+				}
+				if (segmentDistanceSq(a0x, a0y, a1x, a1y, b0x, b0y, b1x, b1y) <= toleranceSq) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the squared distance between segments a0-a1 and b0-b1 (zero if they intersect)
+	 */
+	public static double segmentDistanceSq(double a0x, double a0y, double a1x, double a1y, double b0x, double b0y, double b1x, double b1y) {
+		if (segmentsIntersect(a0x, a0y, a1x, a1y, b0x, b0y, b1x, b1y)) {
+			return 0;
+		}
+		double d = pointSegmentDistanceSq(a0x, a0y, b0x, b0y, b1x, b1y);
+		d = Math.min(d, pointSegmentDistanceSq(a1x, a1y, b0x, b0y, b1x, b1y));
+		d = Math.min(d, pointSegmentDistanceSq(b0x, b0y, a0x, a0y, a1x, a1y));
+		d = Math.min(d, pointSegmentDistanceSq(b1x, b1y, a0x, a0y, a1x, a1y));
+		return d;
+	}
+
+	private static boolean segmentsIntersect(double a0x, double a0y, double a1x, double a1y, double b0x, double b0y, double b1x, double b1y) {
+		int o1 = orientation(a0x, a0y, a1x, a1y, b0x, b0y);
+		int o2 = orientation(a0x, a0y, a1x, a1y, b1x, b1y);
+		int o3 = orientation(b0x, b0y, b1x, b1y, a0x, a0y);
+		int o4 = orientation(b0x, b0y, b1x, b1y, a1x, a1y);
+		if (o1 != o2 && o3 != o4 && o1 * o2 <= 0 && o3 * o4 <= 0) {
+			return true;
+		}
+		//collinear cases: an end point of one segment lies on the other
+		return (o1 == 0 && isOnCollinearSegment(a0x, a0y, a1x, a1y, b0x, b0y))
+				|| (o2 == 0 && isOnCollinearSegment(a0x, a0y, a1x, a1y, b1x, b1y))
+				|| (o3 == 0 && isOnCollinearSegment(b0x, b0y, b1x, b1y, a0x, a0y))
+				|| (o4 == 0 && isOnCollinearSegment(b0x, b0y, b1x, b1y, a1x, a1y));
+	}
+
+	private static int orientation(double ax, double ay, double bx, double by, double cx, double cy) {
+		double cross = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+		return cross > 0 ? 1 : (cross < 0 ? -1 : 0);
+	}
+
+	private static boolean isOnCollinearSegment(double ax, double ay, double bx, double by, double px, double py) {
+		return px >= Math.min(ax, bx) && px <= Math.max(ax, bx) && py >= Math.min(ay, by) && py <= Math.max(ay, by);
+	}
+
+	private static boolean isNearSegmentEnvelope(double px, double py, double ax, double ay, double bx, double by, double tolerance) {
+		return px >= Math.min(ax, bx) - tolerance && px <= Math.max(ax, bx) + tolerance
+				&& py >= Math.min(ay, by) - tolerance && py <= Math.max(ay, by) + tolerance;
+	}
+
+	/**
+	 * copies the x, y values of a coordinate sequence into the given buffer
+	 * @return the buffer, or a new larger one if the given buffer was too small
+	 */
+	public static double[] toXY(CoordinateSequence line, double[] buffer) {
+		int numVertices = line.size();
+		if (buffer == null || buffer.length < numVertices * 2) {
+			buffer = new double[Math.max(numVertices * 2, 64)];
+		}
+		for (int i = 0; i < numVertices; i++) {
+			buffer[i * 2] = line.getX(i);
+			buffer[i * 2 + 1] = line.getY(i);
+		}
+		return buffer;
+	}
+}
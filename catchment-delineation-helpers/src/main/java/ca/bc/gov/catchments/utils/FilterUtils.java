@@ -1,7 +1,4 @@
 package ca.bc.gov.catchments.utils;
-import java.util.ArrayList;
-import java.util.List;
-
 import org.geotools.factory.CommonFactoryFinder;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
@@ -9,47 +6,25 @@ import org.opengis.filter.FilterFactory2;
 public class FilterUtils {
 
 	/**
-	 * builds a composite filter of multiple EQUALS filters, all of which are OR'd together
-	 * 	e.g. filter where:
-	 * 	property = a OR property = b OR property = c OR...
-	 * @param propertyName
-	 * @param values
-	 * @return
+	 * builds a filter where:
+	 *  property IN (a, b, c, ...)
+	 * see InFilter.
 	 */
-	public static Filter orEquals(String propertyName, String[] values) {
-		
-		FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
-		
-			List<Filter> equalFilters = new ArrayList<Filter>();
-			for (String value : values) {
-				Filter equalFilter = filterFactory.equals(filterFactory.property(propertyName), filterFactory.literal(value));
-				equalFilters.add(equalFilter);
-			}
-			Filter orFilter = filterFactory.or(equalFilters);
-			return orFilter;
-		
+	public static InFilter in(String propertyName, String[] values) {
+		return new InFilter(propertyName, values);
 	}
 	
 	/**
-	 * builds a composite filter of multiple NOT EQUALS filters, all of which are AND'd together
-	 * 	e.g. filter where:
-	 * 	property != a AND property = !b AND property != c AND...
-	 * @param propertyName
-	 * @param values
-	 * @return
+	 * builds a filter where:
+	 *  property NOT IN (a, b, c, ...) OR property IS NULL
+	 * the null check must be added explicitly, because NOT IN (like NOT EQUAL) doesn't consider null 
+	 * to be different from a given (non-null) value.
 	 */
-	public static Filter andNotEquals(String propertyName, String[] values) {
-		
+	public static Filter notIn(String propertyName, String[] values) {
 		FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
-		
-			List<Filter> notEqualFilters = new ArrayList<Filter>();
-			for (String value : values) {
-				Filter notEqualFilter = filterFactory.notEqual(filterFactory.property(propertyName), filterFactory.literal(value));
-				notEqualFilters.add(notEqualFilter);
-			}
-			Filter andFilter = filterFactory.and(notEqualFilters);
-			return andFilter;
-		
+		Filter notInFilter = filterFactory.not(in(propertyName, values));
+		Filter nullFilter = filterFactory.isNull(filterFactory.property(propertyName));
+		return filterFactory.or(notInFilter, nullFilter);
 	}
 	
 	/**
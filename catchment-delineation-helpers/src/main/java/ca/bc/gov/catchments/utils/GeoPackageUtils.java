@@ -0,0 +1,57 @@
+package ca.bc.gov.catchments.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for querying GeoPackage tables directly with SQL (e.g. through GeoPackage.getDataSource())
+ */
+public class GeoPackageUtils {
+
+	public static List<String> getColumnNames(Connection cx, String tableName) throws SQLException {
+		List<String> columnNames = new ArrayList<String>();
+		PreparedStatement ps = cx.prepareStatement("PRAGMA table_info(\""+tableName+"\")");
+		try {
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				columnNames.add(rs.getString("name"));
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		return columnNames;
+	}
+
+	public static String getPrimaryKeyColumn(Connection cx, String tableName) throws SQLException {
+		String pkColumn = null;
+		PreparedStatement ps = cx.prepareStatement("PRAGMA table_info(\""+tableName+"\")");
+		try {
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				if (rs.getInt("pk") == 1) {
+					pkColumn = rs.getString("name");
+				}
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+		if (pkColumn == null) {
+			throw new SQLException("Unable to determine primary key of "+tableName);
+		}
+		return pkColumn;
+	}
+
+	/**
+	 * @return the name of the rtree virtual table that GeoPackage uses for the spatial index on the given column
+	 */
+	public static String getRtreeTableName(String tableName, String geometryColumn) {
+		return "rtree_"+tableName+"_"+geometryColumn;
+	}
+
+}
@@ -0,0 +1,85 @@
+package ca.bc.gov.catchments.utils;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Position of points along a Hilbert curve.  Sorting by Hilbert index puts points that are close
+ * together in space close together in the sort order.
+ */
+public class HilbertCurve {
+
+	/**
+	 * number of cells along each side of the grid the curve passes through
+	 */
+	public static final int GRID_SIZE = 0xFFFF;
+
+	/**
+	 * Gets the Hilbert index of the given point, after scaling the bounds to the curve's grid.
+	 * @return a value in [0, 2^32)
+	 */
+	public static long index(double x, double y, Envelope bounds) {
+		int gridX = scale(x, bounds.getMinX(), bounds.getWidth());
+		int gridY = scale(y, bounds.getMinY(), bounds.getHeight());
+		return index(gridX, gridY);
+	}
+
+	private static int scale(double value, double min, double extent) {
+		if (extent <= 0) {
+			return 0;
+		}
+		int scaled = (int)Math.floor(GRID_SIZE * (value - min) / extent);
+		return Math.max(0, Math.min(GRID_SIZE, scaled));
+	}
+
+	/**
+	 * Gets the Hilbert index of a cell in a 2^16 x 2^16 grid.
+	 * Uses the branch-free method from http://threadlocalmutex.com/?p=126
+	 * @return a value in [0, 2^32)
+	 */
+	public static long index(int x, int y) {
+		int a = x ^ y;
+		int b = 0xFFFF ^ a;
+		int c = 0xFFFF ^ (x | y);
+		int d = x & (y ^ 0xFFFF);
+
+		int A = a | (b >> 1);
+		int B = (a >> 1) ^ a;
+		int C = ((c >> 1) ^ (b & (d >> 1))) ^ c;
+		int D = ((a & (c >> 1)) ^ (d >> 1)) ^ d;
+
+		a = A; b = B; c = C; d = D;
+		A = (a & (a >> 2)) ^ (b & (b >> 2));
+		B = (a & (b >> 2)) ^ (b & ((a ^ b) >> 2));
+		C ^= (a & (c >> 2)) ^ (b & (d >> 2));
+		D ^= (b & (c >> 2)) ^ ((a ^ b) & (d >> 2));
+
+		a = A; b = B; c = C; d = D;
+		A = (a & (a >> 4)) ^ (b & (b >> 4));
+		B = (a & (b >> 4)) ^ (b & ((a ^ b) >> 4));
+		C ^= (a & (c >> 4)) ^ (b & (d >> 4));
+		D ^= (b & (c >> 4)) ^ ((a ^ b) & (d >> 4));
+
+		a = A; b = B; c = C; d = D;
+		C ^= (a & (c >> 8)) ^ (b & (d >> 8));
+		D ^= (b & (c >> 8)) ^ ((a ^ b) & (d >> 8));
+
+		a = C ^ (C >> 1);
+		b = D ^ (D >> 1);
+
+		int i0 = x ^ y;
+		int i1 = b | (0xFFFF ^ (i0 | a));
+
+		return ((long)interleave(i1) << 1 | interleave(i0)) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * spreads the low 16 bits of x out to the even bits
+	 */
+	private static int interleave(int x) {
+		x = (x | (x << 8)) & 0x00FF00FF;
+		x = (x | (x << 4)) & 0x0F0F0F0F;
+		x = (x | (x << 2)) & 0x33333333;
+		x = (x | (x << 1)) & 0x55555555;
+		return x;
+	}
+}
@@ -0,0 +1,166 @@
+package ca.bc.gov.catchments.utils;
+
+import java.util.Arrays;
+
+/**
+ * A set of int ids (e.g. the ids returned by a PackedHilbertRTree query), held as a sorted int
+ * array.  Set operations are linear merges of the two arrays, and membership tests are binary
+ * searches.
+ *
+ * Usage: add ids (in any order, e.g. by passing the set to a query as its IntVisitor), then sort()
+ * before using any set operation.  A set can be clear()ed and reused, so repeated queries needn't
+ * allocate.
+ */
+public class IdSet implements IntVisitor {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int[] ids;
+	private int size;
+	private boolean sorted = true;
+
+	public IdSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public IdSet(int capacity) {
+		ids = new int[Math.max(capacity, 1)];
+	}
+
+	public void add(int id) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		if (size > 0 && id <= ids[size - 1]) {
+			sorted = false;
+		}
+		ids[size++] = id;
+	}
+
+	@Override
+	public void visit(int id) {
+		add(id);
+	}
+
+	/**
+	 * sorts the ids and removes duplicates
+	 */
+	public IdSet sort() {
+		if (!sorted) {
+			Arrays.sort(ids, 0, size);
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				if (n == 0 || ids[i] != ids[n - 1]) {
+					ids[n++] = ids[i];
+				}
+			}
+			size = n;
+			sorted = true;
+		}
+		return this;
+	}
+
+	public void clear() {
+		size = 0;
+		sorted = true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the i-th smallest id
+	 */
+	public int get(int i) {
+		return ids[i];
+	}
+
+	public boolean contains(int id) {
+		checkSorted();
+		return Arrays.binarySearch(ids, 0, size, id) >= 0;
+	}
+
+	/**
+	 * @return a new set with the ids in this set and not in the other set
+	 */
+	public IdSet subtract(IdSet other) {
+		checkSorted();
+		other.checkSorted();
+		IdSet result = new IdSet(size);
+		int j = 0;
+		for (int i = 0; i < size; i++) {
+			int id = ids[i];
+			while (j < other.size && other.ids[j] < id) {
+				j++;
+			}
+			if (j == other.size || other.ids[j] != id) {
+				result.ids[result.size++] = id;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return a new set with the ids in both sets
+	 */
+	public IdSet intersect(IdSet other) {
+		checkSorted();
+		other.checkSorted();
+		IdSet result = new IdSet(Math.min(size, other.size));
+		int i = 0;
+		int j = 0;
+		while (i < size && j < other.size) {
+			if (ids[i] < other.ids[j]) {
+				i++;
+			}
+			else if (ids[i] > other.ids[j]) {
+				j++;
+			}
+			else {
+				result.ids[result.size++] = ids[i];
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of ids in this set and not in the other set (the size of subtract(other),
+	 * without building it)
+	 */
+	public int subtractSize(IdSet other) {
+		checkSorted();
+		other.checkSorted();
+		int count = 0;
+		int j = 0;
+		for (int i = 0; i < size; i++) {
+			int id = ids[i];
+			while (j < other.size && other.ids[j] < id) {
+				j++;
+			}
+			if (j == other.size || other.ids[j] != id) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of ids in both sets (the size of intersect(other), without building it)
+	 */
+	public int intersectSize(IdSet other) {
+		return size - subtractSize(other);
+	}
+
+	private void checkSorted() {
+		if (!sorted) {
+			throw new IllegalStateException("The set must be sorted before it is used in set operations");
+		}
+	}
+}
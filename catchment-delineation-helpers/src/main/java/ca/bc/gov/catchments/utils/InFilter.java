@@ -0,0 +1,90 @@
+package ca.bc.gov.catchments.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.geotools.factory.CommonFactoryFinder;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.FilterVisitor;
+import org.opengis.filter.Or;
+import org.opengis.filter.expression.PropertyName;
+
+/**
+ * A filter matching features whose property value is any one of a set of values (i.e. SQL's
+ * "property IN (a, b, c, ...)").
+ *
+ * The filter is an Or of one PropertyIsEqualTo per value, so any datastore that can encode an Or of
+ * equalities (including the JDBC datastores, such as GeoPackage) sends it to the database as a single
+ * WHERE clause, which SQLite's planner treats as an IN list on the column.  When the filter is
+ * evaluated in memory (e.g. on a feature collection), the value is looked up in a hash set instead
+ * of testing each equality in turn.
+ *
+ * Create with FilterUtils.in(..).
+ */
+public class InFilter implements Or {
+
+	private PropertyName property;
+	private List<Filter> children;
+	private Set<String> values;
+	private Set<Double> numericValues;
+
+	InFilter(String propertyName, String[] values) {
+		FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
+		this.property = filterFactory.property(propertyName);
+		this.values = new HashSet<String>();
+		this.numericValues = new HashSet<Double>();
+		List<Filter> children = new ArrayList<Filter>();
+		for (String value : values) {
+			children.add(filterFactory.equals(property, filterFactory.literal(value)));
+			this.values.add(value);
+			try {
+				numericValues.add(Double.valueOf(value));
+			} catch (NumberFormatException e) {
+				//not a number.  only matched as a string.
+			}
+		}
+		this.children = Collections.unmodifiableList(children);
+	}
+
+	public String getPropertyName() {
+		return property.getPropertyName();
+	}
+
+	/**
+	 * @return the set of values (as given)
+	 */
+	public Set<String> getValues() {
+		return Collections.unmodifiableSet(values);
+	}
+
+	@Override
+	public List<Filter> getChildren() {
+		return children;
+	}
+
+	@Override
+	public boolean evaluate(Object object) {
+		Object value = property.evaluate(object);
+		if (value == null) {
+			return false;
+		}
+		if (value instanceof Number) {
+			return numericValues.contains(((Number)value).doubleValue());
+		}
+		return values.contains(value.toString());
+	}
+
+	@Override
+	public Object accept(FilterVisitor visitor, Object extraData) {
+		return visitor.visit(this, extraData);
+	}
+
+	@Override
+	public String toString() {
+		return "[ "+property.getPropertyName()+" IN "+values+" ]";
+	}
+}
@@ -0,0 +1,11 @@
+package ca.bc.gov.catchments.utils;
+
+/**
+ * Callback for index queries that identify items by an int id rather than by object, so a query
+ * needn't allocate anything.
+ */
+public interface IntVisitor {
+
+	public void visit(int id);
+
+}
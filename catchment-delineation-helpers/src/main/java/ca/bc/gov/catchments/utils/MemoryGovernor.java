@@ -0,0 +1,160 @@
+package ca.bc.gov.catchments.utils;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Watches the heap of the process, so the in-memory accumulators of a step (see
+ * SpillableFeatureCollection) can spill features to disk when the heap is nearly full, rather than
+ * the step failing with an OutOfMemoryError.
+ *
+ * Two measures of the heap are used:
+ *  - the heap in use.  Once startSampling() is called, it is sampled in the background, and the peak
+ *    of the step and of each phase (see setPhase(..)) are recorded as Metrics gauges.
+ *  - the fullness of the old generation, which decides whether the heap is under pressure (see
+ *    isOverSpillThreshold()).  The heap in use also counts young garbage that hasn't been collected
+ *    yet, so it is often near the maximum even when little of it is live.  Accumulated features end
+ *    up in the old generation, and the JVM runs out of memory when it is full.
+ */
+public class MemoryGovernor {
+
+	public static final double DEFAULT_SPILL_THRESHOLD = 0.8;
+	private static final long SAMPLE_INTERVAL_MS = 200;
+	private static final MemoryGovernor INSTANCE = new MemoryGovernor();
+
+	private volatile double spillThreshold = DEFAULT_SPILL_THRESHOLD;
+	private volatile File spillDir = null;
+	private Timer sampler = null;
+	private volatile Metrics.Gauge stepPeak = null;
+	private volatile Metrics.Gauge phasePeak = null;
+
+	/**
+	 * @return the governor of this process
+	 */
+	public static MemoryGovernor get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the fraction (0 to 1) of the old generation above which the heap is considered under
+	 * pressure.  1 (or more) turns spilling off.
+	 */
+	public void setSpillThreshold(double spillThreshold) {
+		if (spillThreshold <= 0) {
+			throw new IllegalArgumentException("spill threshold must be greater than 0");
+		}
+		this.spillThreshold = spillThreshold;
+	}
+
+	public double getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/**
+	 * Sets the directory for spill files.  By default, they are written to the system's temporary
+	 * directory.
+	 */
+	public void setSpillDir(File spillDir) {
+		this.spillDir = spillDir;
+	}
+
+	public File getSpillDir() {
+		return spillDir != null ? spillDir : new File(System.getProperty("java.io.tmpdir"));
+	}
+
+	/**
+	 * Starts sampling the heap in use in a background (daemon) thread.
+	 */
+	public synchronized void startSampling() {
+		if (sampler != null) {
+			return;
+		}
+		stepPeak = Metrics.get().gauge("peak_heap_used_bytes", "Peak heap in use (sampled)");
+		sampler = new Timer("memory-governor", true);
+		sampler.schedule(new TimerTask() {
+			public void run() {
+				sample();
+			}
+		}, 0, SAMPLE_INTERVAL_MS);
+	}
+
+	public synchronized void stopSampling() {
+		if (sampler != null) {
+			sampler.cancel();
+			sampler = null;
+		}
+		sample();
+	}
+
+	/**
+	 * Starts recording the peak heap in use of the given phase, as the gauge "[phase]_peak_heap_used_bytes"
+	 */
+	public void setPhase(String phase) {
+		sample();
+		phasePeak = Metrics.get().gauge(phase+"_peak_heap_used_bytes", "Peak heap in use during "+phase+" (sampled)");
+		sample();
+	}
+
+	/**
+	 * Records the heap in use in the peak gauges
+	 * @return the heap in use
+	 */
+	public long sample() {
+		long used = getUsedHeapBytes();
+		Metrics.Gauge peak = stepPeak;
+		if (peak != null) {
+			peak.setMax(used);
+		}
+		peak = phasePeak;
+		if (peak != null) {
+			peak.setMax(used);
+		}
+		return used;
+	}
+
+	/**
+	 * @return true if the old generation is fuller than the spill threshold
+	 */
+	public boolean isOverSpillThreshold() {
+		if (spillThreshold >= 1) {
+			return false;
+		}
+		sample();
+		return getOldGenerationFraction() > spillThreshold;
+	}
+
+	public static long getUsedHeapBytes() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static long getMaxHeapBytes() {
+		return Runtime.getRuntime().maxMemory();
+	}
+
+	/**
+	 * @return how full (0 to 1) the fullest old generation heap pool is.  The old generation pools are
+	 * told apart from the pools for short-lived objects (eden, survivor) by supporting a usage threshold
+	 * (see MemoryPoolMXBean).  If there are none, the fraction of the maximum heap in use.
+	 */
+	public static double getOldGenerationFraction() {
+		double fraction = -1;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) {
+				continue;
+			}
+			MemoryUsage usage = pool.getUsage();
+			long max = usage.getMax() > 0 ? usage.getMax() : getMaxHeapBytes();
+			fraction = Math.max(fraction, (double)usage.getUsed() / max);
+		}
+		if (fraction < 0) {
+			fraction = (double)getUsedHeapBytes() / getMaxHeapBytes();
+		}
+		return fraction;
+	}
+}
@@ -0,0 +1,466 @@
+package ca.bc.gov.catchments.utils;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A process-wide registry of counters, gauges and timers, so the scripts can report throughput and timings
+ * in a form that can be compared between runs.  Each script is one step of the pipeline, so the
+ * registry holds the metrics of one step.  At the end of the step they are saved with save(..), as a
+ * JSON file and as a Prometheus text file.
+ *
+ * Counters, gauges and timers are safe to update from several threads.  Times are measured with
+ * System.nanoTime(), so short intervals are not rounded down to zero.
+ *
+ * The saved metrics also include the peak heap usage of the JVM (see getPeakHeapBytes()).
+ */
+public class Metrics {
+
+	private static final String PREFIX = "chimp_";
+	private static final Metrics INSTANCE = new Metrics();
+
+	private String step = "unknown";
+	private Map<String, Counter> counters = new LinkedHashMap<String, Counter>();
+	private Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+	private Map<String, Timer> timers = new LinkedHashMap<String, Timer>();
+
+	/**
+	 * @return the registry of this process
+	 */
+	public static Metrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the name of the step the metrics belong to.  It is saved with the metrics (and used as the
+	 * "step" label of each Prometheus metric).
+	 */
+	public synchronized void setStep(String step) {
+		this.step = step;
+	}
+
+	/**
+	 * @return the counter with the given name, which is created if it doesn't exist
+	 */
+	public synchronized Counter counter(String name, String help) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = new Counter(name, help);
+			counters.put(name, counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * @return the gauge with the given name, which is created if it doesn't exist
+	 */
+	public synchronized Gauge gauge(String name, String help) {
+		Gauge gauge = gauges.get(name);
+		if (gauge == null) {
+			gauge = new Gauge(name, help);
+			gauges.put(name, gauge);
+		}
+		return gauge;
+	}
+
+	/**
+	 * @return the timer with the given name, which is created if it doesn't exist
+	 */
+	public synchronized Timer timer(String name, String help) {
+		Timer timer = timers.get(name);
+		if (timer == null) {
+			timer = new Timer(name, help);
+			timers.put(name, timer);
+		}
+		return timer;
+	}
+
+	/**
+	 * Saves the metrics as JSON to the given file, and in the Prometheus text format to a file beside it
+	 * with the extension ".prom" (e.g. "metrics.json" and "metrics.prom").
+	 */
+	public void save(String jsonFilename) throws IOException {
+		write(jsonFilename, toJson());
+		write(getPrometheusFilename(jsonFilename), toPrometheus());
+	}
+
+	public static String getPrometheusFilename(String jsonFilename) {
+		int dot = jsonFilename.lastIndexOf('.');
+		int slash = Math.max(jsonFilename.lastIndexOf('/'), jsonFilename.lastIndexOf('\\'));
+		String base = dot > slash ? jsonFilename.substring(0, dot) : jsonFilename;
+		return base + ".prom";
+	}
+
+	private static void write(String filename, String text) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	public synchronized String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"step\": \"").append(escapeJson(step)).append("\",\n");
+		json.append("  \"timestamp\": ").append(System.currentTimeMillis() / 1000).append(",\n");
+		json.append("  \"counters\": {");
+		String separator = "\n";
+		for (Counter counter : counters.values()) {
+			json.append(separator).append("    \"").append(escapeJson(counter.name)).append("\": ").append(counter.get());
+			separator = ",\n";
+		}
+		json.append(counters.isEmpty() ? "},\n" : "\n  },\n");
+		json.append("  \"gauges\": {");
+		separator = "\n";
+		for (Gauge gauge : gauges.values()) {
+			json.append(separator).append("    \"").append(escapeJson(gauge.name)).append("\": ").append(gauge.get());
+			separator = ",\n";
+		}
+		json.append(gauges.isEmpty() ? "},\n" : "\n  },\n");
+		json.append("  \"timers\": {");
+		separator = "\n";
+		for (Timer timer : timers.values()) {
+			json.append(separator).append("    \"").append(escapeJson(timer.name)).append("\": {");
+			json.append("\"count\": ").append(timer.getCount());
+			json.append(", \"total_seconds\": ").append(toSeconds(timer.getTotalNanos()));
+			json.append(", \"mean_seconds\": ").append(toSeconds(timer.getMeanNanos()));
+			json.append(", \"p50_seconds\": ").append(timer.getQuantile(0.5));
+			json.append(", \"p99_seconds\": ").append(timer.getQuantile(0.99));
+			json.append(", \"max_seconds\": ").append(toSeconds(timer.getMaxNanos()));
+			json.append("}");
+			separator = ",\n";
+		}
+		json.append(timers.isEmpty() ? "},\n" : "\n  },\n");
+		json.append("  \"jvm\": {");
+		json.append("\"peak_heap_bytes\": ").append(getPeakHeapBytes());
+		json.append(", \"max_heap_bytes\": ").append(Runtime.getRuntime().maxMemory());
+		json.append("}\n");
+		json.append("}\n");
+		return json.toString();
+	}
+
+	public synchronized String toPrometheus() {
+		StringBuilder prom = new StringBuilder();
+		String stepLabel = "step=\"" + escapeLabel(step) + "\"";
+		for (Counter counter : counters.values()) {
+			String name = PREFIX + counter.name + "_total";
+			prom.append("# HELP ").append(name).append(" ").append(counter.help).append("\n");
+			prom.append("# TYPE ").append(name).append(" counter\n");
+			prom.append(name).append("{").append(stepLabel).append("} ").append(counter.get()).append("\n");
+		}
+		for (Gauge gauge : gauges.values()) {
+			String name = PREFIX + gauge.name;
+			prom.append("# HELP ").append(name).append(" ").append(gauge.help).append("\n");
+			prom.append("# TYPE ").append(name).append(" gauge\n");
+			prom.append(name).append("{").append(stepLabel).append("} ").append(gauge.get()).append("\n");
+		}
+		for (Timer timer : timers.values()) {
+			String name = PREFIX + timer.name + "_seconds";
+			prom.append("# HELP ").append(name).append(" ").append(timer.help).append("\n");
+			prom.append("# TYPE ").append(name).append(" histogram\n");
+			long cumulative = 0;
+			for (int i = 0; i < Timer.BUCKET_BOUNDS.length; i++) {
+				cumulative += timer.buckets.get(i);
+				prom.append(name).append("_bucket{").append(stepLabel).append(",le=\"").append(Timer.BUCKET_BOUNDS[i]).append("\"} ").append(cumulative).append("\n");
+			}
+			prom.append(name).append("_bucket{").append(stepLabel).append(",le=\"+Inf\"} ").append(timer.getCount()).append("\n");
+			prom.append(name).append("_sum{").append(stepLabel).append("} ").append(toSeconds(timer.getTotalNanos())).append("\n");
+			prom.append(name).append("_count{").append(stepLabel).append("} ").append(timer.getCount()).append("\n");
+		}
+		String name = PREFIX + "jvm_peak_heap_bytes";
+		prom.append("# HELP ").append(name).append(" Peak heap usage of the JVM\n");
+		prom.append("# TYPE ").append(name).append(" gauge\n");
+		prom.append(name).append("{").append(stepLabel).append("} ").append(getPeakHeapBytes()).append("\n");
+		return prom.toString();
+	}
+
+	private static String escapeJson(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static String escapeLabel(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * @return the peak heap usage since the JVM started: the sum of the peak usage of each heap memory
+	 * pool.  The pools may have peaked at different times, so this is an upper bound.
+	 */
+	public static long getPeakHeapBytes() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	public static double toSeconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	/**
+	 * @return the elapsed time formatted in seconds (to the millisecond), e.g. "12.345 s"
+	 */
+	public static String formatSeconds(long elapsedNanos) {
+		return String.format("%.3f s", toSeconds(elapsedNanos));
+	}
+
+	/**
+	 * @return the rate formatted as e.g. "1234 features/s", or "n/a" if no time has elapsed
+	 */
+	public static String formatRate(long count, long elapsedNanos) {
+		if (elapsedNanos <= 0) {
+			return "n/a";
+		}
+		return Math.round(count / toSeconds(elapsedNanos)) + " features/s";
+	}
+
+	/**
+	 * A count of things (e.g. features processed) that only goes up.
+	 */
+	public static class Counter {
+
+		private String name;
+		private String help;
+		private AtomicLong value = new AtomicLong();
+
+		private Counter(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public void inc() {
+			value.incrementAndGet();
+		}
+
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	/**
+	 * A value that can go up and down (e.g. the heap in use), or that records a maximum with setMax(..).
+	 */
+	public static class Gauge {
+
+		private String name;
+		private String help;
+		private AtomicLong value = new AtomicLong();
+
+		private Gauge(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public void set(long n) {
+			value.set(n);
+		}
+
+		/**
+		 * sets the gauge to n if n is greater than its value
+		 */
+		public void setMax(long n) {
+			long max = value.get();
+			while (n > max && !value.compareAndSet(max, n)) {
+				max = value.get();
+			}
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	/**
+	 * Records durations (e.g. the time of each index query, or of each tile), as a count, total,
+	 * maximum and a histogram with exponential buckets from 1 microsecond to about 18 minutes.
+	 *
+	 * Usage:
+	 *   long start = timer.start();
+	 *   ...
+	 *   long elapsedNanos = timer.stop(start);
+	 */
+	public static class Timer {
+
+		//upper bounds (in seconds) of the histogram buckets: 1us, 4us, 16us, ...
+		private static final double[] BUCKET_BOUNDS = new double[16];
+		private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS.length];
+		static {
+			long nanos = 1000;
+			for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+				BUCKET_BOUNDS_NANOS[i] = nanos;
+				BUCKET_BOUNDS[i] = toSeconds(nanos);
+				nanos *= 4;
+			}
+		}
+
+		private String name;
+		private String help;
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong totalNanos = new AtomicLong();
+		private AtomicLong maxNanos = new AtomicLong();
+		//buckets.get(i) is the # durations in (bound i-1, bound i].  the last is the # beyond the last bound.
+		private AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+		private Timer(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public long start() {
+			return System.nanoTime();
+		}
+
+		/**
+		 * records the time since start (a value returned by start())
+		 * @return the elapsed time in nanoseconds
+		 */
+		public long stop(long start) {
+			long elapsedNanos = System.nanoTime() - start;
+			record(elapsedNanos);
+			return elapsedNanos;
+		}
+
+		public void record(long nanos) {
+			nanos = Math.max(nanos, 0);
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+			buckets.incrementAndGet(getBucket(nanos));
+		}
+
+		/**
+		 * @return a recorder for one thread, whose durations are added to this timer by its flush()
+		 */
+		public LocalTimer local() {
+			return new LocalTimer(this);
+		}
+
+		private void add(long n, long nanos, long max, long[] bucketCounts) {
+			count.addAndGet(n);
+			totalNanos.addAndGet(nanos);
+			long currentMax = maxNanos.get();
+			while (max > currentMax && !maxNanos.compareAndSet(currentMax, max)) {
+				currentMax = maxNanos.get();
+			}
+			for (int i = 0; i < bucketCounts.length; i++) {
+				if (bucketCounts[i] != 0) {
+					buckets.addAndGet(i, bucketCounts[i]);
+				}
+			}
+		}
+
+		private static int getBucket(long nanos) {
+			int bucket = 0;
+			while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+				bucket++;
+			}
+			return bucket;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public long getMeanNanos() {
+			long n = count.get();
+			return n == 0 ? 0 : totalNanos.get() / n;
+		}
+
+		/**
+		 * @return an estimate of the given quantile (0 to 1) in seconds: the upper bound of the bucket
+		 * containing it (or the maximum, if that is smaller).  0 if nothing has been recorded.
+		 */
+		public double getQuantile(double quantile) {
+			long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = (long)Math.ceil(quantile * n);
+			long cumulative = 0;
+			for (int i = 0; i < BUCKET_BOUNDS_NANOS.length; i++) {
+				cumulative += buckets.get(i);
+				if (cumulative >= rank) {
+					return toSeconds(Math.min(BUCKET_BOUNDS_NANOS[i], maxNanos.get()));
+				}
+			}
+			return toSeconds(maxNanos.get());
+		}
+	}
+
+	/**
+	 * Records durations for a Timer in plain fields, for code which times many short operations (e.g.
+	 * an index query per edge end point) on several threads.  Each thread uses its own LocalTimer, and
+	 * calls flush() when it is done (e.g. at the end of a chunk of work), so the shared timer is only
+	 * updated once per flush rather than once per operation.
+	 *
+	 * Not thread safe.
+	 */
+	public static class LocalTimer {
+
+		private Timer timer;
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+		private long[] buckets = new long[Timer.BUCKET_BOUNDS.length + 1];
+
+		private LocalTimer(Timer timer) {
+			this.timer = timer;
+		}
+
+		public long start() {
+			return System.nanoTime();
+		}
+
+		public long stop(long start) {
+			long elapsedNanos = Math.max(System.nanoTime() - start, 0);
+			count++;
+			totalNanos += elapsedNanos;
+			maxNanos = Math.max(maxNanos, elapsedNanos);
+			buckets[Timer.getBucket(elapsedNanos)]++;
+			return elapsedNanos;
+		}
+
+		/**
+		 * adds the durations recorded since the last flush to the timer
+		 */
+		public void flush() {
+			if (count == 0) {
+				return;
+			}
+			timer.add(count, totalNanos, maxNanos, buckets);
+			count = 0;
+			totalNanos = 0;
+			maxNanos = 0;
+			Arrays.fill(buckets, 0);
+		}
+	}
+}
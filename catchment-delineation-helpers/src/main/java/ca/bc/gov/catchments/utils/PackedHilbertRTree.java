@@ -0,0 +1,298 @@
+package ca.bc.gov.catchments.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * A static R-tree of envelopes, packed into flat arrays.  Items are sorted by the Hilbert index of
+ * their envelope's centre and grouped into full nodes, level by level, up to a single root.  Since
+ * every node is full (except the last one of each level), a node's children are found by position,
+ * and no node objects are needed.
+ *
+ * Usage: add() every item, then build(), then query().  Items are identified by the int id returned
+ * from add() (ids are assigned in order: 0, 1, 2, ...).  An item with an empty envelope (e.g. of a
+ * feature with no geometry) keeps its id, but is left out of the bounds and is never found by a query.
+ *
+ * Compared with an STRtree, this uses about 36 bytes per item, and queries allocate nothing.
+ *
+ * The arrays are held in buffers, so a built tree can be saved with save() and later used directly
+ * from a (e.g. memory-mapped) buffer with load(), without rebuilding.
+ */
+public class PackedHilbertRTree {
+
+	public static final int DEFAULT_NODE_SIZE = 16;
+
+	private int nodeSize;
+	private int numItems;
+	private int numAdded;
+
+	private int numNodes;
+	//4 values (minx, miny, maxx, maxy) for each node.  items first, then each level up to the root.
+	private DoubleBuffer boxes;
+	//for an item: its id.  for an interior node: the position of its first child.
+	private IntBuffer indices;
+	//levelBounds[i] is the position after the last node of level i (level 0 = the items)
+	private int[] levelBounds;
+	private Envelope bounds;
+	private boolean built;
+
+	public PackedHilbertRTree(int numItems) {
+		this(numItems, DEFAULT_NODE_SIZE);
+	}
+
+	public PackedHilbertRTree(int numItems, int nodeSize) {
+		init(numItems, nodeSize);
+		this.boxes = DoubleBuffer.wrap(new double[numNodes * 4]);
+		this.indices = IntBuffer.wrap(new int[numNodes]);
+	}
+
+	/**
+	 * Opens a tree previously written with save().  The tree reads from the buffer (from its current
+	 * position) rather than copying it.
+	 */
+	public static PackedHilbertRTree load(int numItems, int nodeSize, ByteBuffer buffer) {
+		PackedHilbertRTree tree = new PackedHilbertRTree();
+		tree.init(numItems, nodeSize);
+		ByteBuffer boxesBuffer = buffer.slice().order(buffer.order());
+		boxesBuffer.limit(tree.numNodes * 4 * 8);
+		tree.boxes = boxesBuffer.asDoubleBuffer();
+		buffer.position(buffer.position() + tree.numNodes * 4 * 8);
+		ByteBuffer indicesBuffer = buffer.slice().order(buffer.order());
+		indicesBuffer.limit(tree.numNodes * 4);
+		tree.indices = indicesBuffer.asIntBuffer();
+		buffer.position(buffer.position() + tree.numNodes * 4);
+		tree.numAdded = numItems;
+		tree.built = true;
+		tree.bounds = new Envelope();
+		if (tree.numNodes > 0) {
+			int root = (tree.numNodes - 1) * 4;
+			//the root is empty if every item is
+			if (!isEmpty(tree.boxes.get(root), tree.boxes.get(root + 1), tree.boxes.get(root + 2), tree.boxes.get(root + 3))) {
+				tree.bounds = new Envelope(tree.boxes.get(root), tree.boxes.get(root + 2), tree.boxes.get(root + 1), tree.boxes.get(root + 3));
+			}
+		}
+		return tree;
+	}
+
+	private PackedHilbertRTree() {
+	}
+
+	private void init(int numItems, int nodeSize) {
+		if (nodeSize < 2) {
+			throw new IllegalArgumentException("nodeSize must be at least 2");
+		}
+		this.numItems = numItems;
+		this.nodeSize = nodeSize;
+		this.bounds = new Envelope();
+
+		//count the nodes in each level
+		int[] levelSizes = new int[64];
+		int numLevels = 0;
+		int n = numItems;
+		int numNodes = n;
+		levelSizes[numLevels++] = n;
+		while (n > 1 || numLevels == 1) {
+			n = (n + nodeSize - 1) / nodeSize;
+			numNodes += n;
+			levelSizes[numLevels++] = n;
+			if (n == 0) {
+				break;
+			}
+		}
+		this.levelBounds = new int[numLevels];
+		int end = 0;
+		for (int i = 0; i < numLevels; i++) {
+			end += levelSizes[i];
+			levelBounds[i] = end;
+		}
+		this.numNodes = numNodes;
+	}
+
+	/**
+	 * @return the number of bytes written by save()
+	 */
+	public int getSerializedSize() {
+		return numNodes * 4 * 8 + numNodes * 4;
+	}
+
+	/**
+	 * writes the built tree to the buffer, at its current position
+	 */
+	public void save(ByteBuffer buffer) {
+		if (!built) {
+			throw new IllegalStateException("The index must be built before it can be saved");
+		}
+		for (int i = 0; i < numNodes * 4; i++) {
+			buffer.putDouble(boxes.get(i));
+		}
+		for (int i = 0; i < numNodes; i++) {
+			buffer.putInt(indices.get(i));
+		}
+	}
+
+	public int add(Envelope envelope) {
+		if (envelope.isNull()) {
+			return add(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		}
+		return add(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+	}
+
+	/**
+	 * adds an item to the index.  An empty box (min greater than max) is stored so that it intersects
+	 * nothing, and doesn't change the bounds.
+	 * @return the id of the item
+	 */
+	public int add(double minX, double minY, double maxX, double maxY) {
+		if (built) {
+			throw new IllegalStateException("Items can't be added after the index is built");
+		}
+		if (numAdded >= numItems) {
+			throw new IllegalStateException("Index is full ("+numItems+" items)");
+		}
+		int id = numAdded++;
+		int pos = id * 4;
+		boolean empty = isEmpty(minX, minY, maxX, maxY);
+		if (empty) {
+			minX = minY = Double.POSITIVE_INFINITY;
+			maxX = maxY = Double.NEGATIVE_INFINITY;
+		}
+		boxes.put(pos, minX);
+		boxes.put(pos + 1, minY);
+		boxes.put(pos + 2, maxX);
+		boxes.put(pos + 3, maxY);
+		indices.put(id, id);
+		if (!empty) {
+			bounds.expandToInclude(minX, minY);
+			bounds.expandToInclude(maxX, maxY);
+		}
+		return id;
+	}
+
+	/**
+	 * sorts the items and builds the upper levels of the tree.  must be called before query().
+	 */
+	public void build() {
+		if (numAdded != numItems) {
+			throw new IllegalStateException("Expected "+numItems+" items, but "+numAdded+" were added");
+		}
+
+		//sort the items by hilbert index.  the index and the position are packed into one long, so the
+		//sort needs no objects: hilbert index (32 bits) in the high bits, position (31 bits) in the low bits.
+		long[] keys = new long[numItems];
+		for (int i = 0; i < numItems; i++) {
+			int pos = i * 4;
+			if (isEmpty(boxes.get(pos), boxes.get(pos + 1), boxes.get(pos + 2), boxes.get(pos + 3))) {
+				//empty items have no centre.  they are sorted first.
+				keys[i] = i;
+				continue;
+			}
+			double centreX = (boxes.get(pos) + boxes.get(pos + 2)) / 2;
+			double centreY = (boxes.get(pos + 1) + boxes.get(pos + 3)) / 2;
+			keys[i] = (HilbertCurve.index(centreX, centreY, bounds) << 31) | i;
+		}
+		Arrays.sort(keys);
+
+		double[] sortedBoxes = new double[numItems * 4];
+		int[] sortedIndices = new int[numItems];
+		for (int i = 0; i < numItems; i++) {
+			int from = (int)(keys[i] & 0x7FFFFFFFL);
+			for (int j = 0; j < 4; j++) {
+				sortedBoxes[i * 4 + j] = boxes.get(from * 4 + j);
+			}
+			sortedIndices[i] = indices.get(from);
+		}
+		for (int i = 0; i < sortedBoxes.length; i++) {
+			boxes.put(i, sortedBoxes[i]);
+		}
+		for (int i = 0; i < sortedIndices.length; i++) {
+			indices.put(i, sortedIndices[i]);
+		}
+
+		//build each level from the one below it
+		int pos = 0;
+		int parent = numItems;
+		for (int level = 1; level < levelBounds.length; level++) {
+			int levelStart = pos;
+			int levelEnd = levelBounds[level - 1];
+			for (pos = levelStart; pos < levelEnd; pos += nodeSize) {
+				double minX = Double.POSITIVE_INFINITY;
+				double minY = Double.POSITIVE_INFINITY;
+				double maxX = Double.NEGATIVE_INFINITY;
+				double maxY = Double.NEGATIVE_INFINITY;
+				int childEnd = Math.min(pos + nodeSize, levelEnd);
+				for (int child = pos; child < childEnd; child++) {
+					minX = Math.min(minX, boxes.get(child * 4));
+					minY = Math.min(minY, boxes.get(child * 4 + 1));
+					maxX = Math.max(maxX, boxes.get(child * 4 + 2));
+					maxY = Math.max(maxY, boxes.get(child * 4 + 3));
+				}
+				boxes.put(parent * 4, minX);
+				boxes.put(parent * 4 + 1, minY);
+				boxes.put(parent * 4 + 2, maxX);
+				boxes.put(parent * 4 + 3, maxY);
+				indices.put(parent, pos);
+				parent++;
+			}
+			pos = levelEnd;
+		}
+		built = true;
+	}
+
+	public void query(Envelope envelope, IntVisitor visitor) {
+		query(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), visitor);
+	}
+
+	/**
+	 * calls the visitor with the id of each item whose envelope intersects the given envelope
+	 */
+	public void query(double minX, double minY, double maxX, double maxY, IntVisitor visitor) {
+		if (!built) {
+			throw new IllegalStateException("The index must be built before it can be queried");
+		}
+		if (numItems == 0) {
+			return;
+		}
+		int root = numNodes - 1;
+		if (!intersects(root, minX, minY, maxX, maxY)) {
+			return;
+		}
+		search(root, levelBounds.length - 1, minX, minY, maxX, maxY, visitor);
+	}
+
+	private void search(int node, int level, double minX, double minY, double maxX, double maxY, IntVisitor visitor) {
+		int childStart = indices.get(node);
+		int childEnd = Math.min(childStart + nodeSize, levelBounds[level - 1]);
+		for (int child = childStart; child < childEnd; child++) {
+			if (!intersects(child, minX, minY, maxX, maxY)) {
+				continue;
+			}
+			if (level == 1) {
+				visitor.visit(indices.get(child));
+			}
+			else {
+				search(child, level - 1, minX, minY, maxX, maxY, visitor);
+			}
+		}
+	}
+
+	private static boolean isEmpty(double minX, double minY, double maxX, double maxY) {
+		return minX > maxX || minY > maxY;
+	}
+
+	private boolean intersects(int node, double minX, double minY, double maxX, double maxY) {
+		int pos = node * 4;
+		return boxes.get(pos) <= maxX && boxes.get(pos + 1) <= maxY && boxes.get(pos + 2) >= minX && boxes.get(pos + 3) >= minY;
+	}
+
+	public int size() {
+		return numItems;
+	}
+
+	public Envelope getBounds() {
+		return new Envelope(bounds);
+	}
+}
@@ -11,14 +11,17 @@ import org.geotools.data.DataStoreFinder;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.Transaction;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureWriter;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geopkg.FeatureEntry;
 import org.geotools.geopkg.GeoPackage;
 import org.geotools.referencing.CRS;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.PropertyDescriptor;
 import org.opengis.referencing.FactoryException;
@@ -88,21 +91,33 @@ public class SaveUtils {
         }
 	}
 	
+	/**
+	 * Writes a batch of features to the output, creating the table on the first batch (when entry is
+	 * null).  The batch is cleared afterwards.
+	 * @return the entry of the table
+	 */
+	public static FeatureEntry writeBatch(GeoPackage geoPackage, FeatureEntry entry, ListFeatureCollection batch, ReferencedEnvelope bounds, int srid) throws IOException {
+		SimpleFeatureCollection fc = DataUtilities.simple(batch);
+		if (entry == null) {
+			entry = new FeatureEntry();
+			entry.setSrid(srid);
+			entry.setBounds(bounds);
+			entry.setTableName(fc.getSchema().getTypeName());
+			geoPackage.add(entry, fc);
+		}
+		else {
+			appendToGeoPackage(geoPackage, entry, fc);
+		}
+		batch.clear();
+		return entry;
+	}
+	
 	public static void saveToGeoPackage(
 			String filename, 
 			SimpleFeatureCollection fc,
 			boolean append) throws IOException {
 		
-		CoordinateReferenceSystem crs = fc.getSchema().getGeometryDescriptor().getCoordinateReferenceSystem();
-		if (crs == null) {
-			throw new IllegalArgumentException("Unable to determine CRS of input feature collection");
-		}
-		int srid;
-		try {
-			srid = CRS.lookupEpsgCode(crs, true);
-		} catch (FactoryException e) {
-			throw new IllegalStateException("Unable to determine SRID of input feature collection");
-		}
+		int srid = getSrid(fc.getSchema());
 		
 		GeoPackage gp = openGeoPackage(filename);
 
@@ -126,6 +141,26 @@ public class SaveUtils {
 		gp.close();
 	}
 	
+	/**
+	 * @return the EPSG code of the feature type's CRS
+	 */
+	public static int getSrid(SimpleFeatureType featureType) {
+		CoordinateReferenceSystem crs = featureType.getGeometryDescriptor().getCoordinateReferenceSystem();
+		if (crs == null) {
+			throw new IllegalArgumentException("Unable to determine CRS of input feature collection");
+		}
+		Integer srid;
+		try {
+			srid = CRS.lookupEpsgCode(crs, true);
+		} catch (FactoryException e) {
+			throw new IllegalStateException("Unable to determine SRID of input feature collection");
+		}
+		if (srid == null) {
+			throw new IllegalStateException("Unable to determine SRID of input feature collection");
+		}
+		return srid;
+	}
+	
 	
 	
 }
@@ -0,0 +1,295 @@
+package ca.bc.gov.catchments.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.geotools.data.Transaction;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureReader;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * An accumulator of features (e.g. the output of a step, or the edges kept by a cleaner) which spills
+ * to disk when the heap is under pressure.  Features are held in memory, and every CHECK_INTERVAL
+ * features added, the MemoryGovernor is asked whether the heap is over its spill threshold.  If it is,
+ * the features in memory are appended to a temporary GeoPackage (the spill file) and released.
+ *
+ * The spilled features are merged back when the collection is persisted: saveToGeoPackage(..),
+ * save(..) and openBatchReader(..) read the spill file in batches, followed by the features still in
+ * memory.  Features read back from the spill file get new feature ids.
+ *
+ * Not thread safe.
+ */
+public class SpillableFeatureCollection {
+
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+	private static final int CHECK_INTERVAL = 10000;
+	private static final Metrics.Counter FEATURES_SPILLED = Metrics.get().counter("features_spilled", "Features spilled to disk because the heap was under pressure");
+	private static final Metrics.Timer SPILL_TIMER = Metrics.get().timer("spill", "Time to write a batch of features to a spill file");
+
+	private SimpleFeatureType featureType;
+	private DefaultFeatureCollection inMemory;
+	private ReferencedEnvelope bounds;
+	private boolean spillEnabled = true;
+	private int numSinceCheck = 0;
+	private int numSpilled = 0;
+	private File spillFile = null;
+	private GeoPackage spillGeoPackage = null;
+	private FeatureEntry spillEntry = null;
+
+	public SpillableFeatureCollection(SimpleFeatureType featureType) {
+		this.featureType = featureType;
+		this.inMemory = new DefaultFeatureCollection(featureType.getTypeName(), featureType);
+		this.bounds = new ReferencedEnvelope(featureType.getCoordinateReferenceSystem());
+	}
+
+	/**
+	 * Sets whether the features may be spilled to disk (the default).  When not, this is just a
+	 * feature collection in memory.
+	 */
+	public void setSpillEnabled(boolean spillEnabled) {
+		this.spillEnabled = spillEnabled;
+	}
+
+	public SimpleFeatureType getSchema() {
+		return featureType;
+	}
+
+	public void add(SimpleFeature f) {
+		inMemory.add(f);
+		Geometry geometry = (Geometry)f.getDefaultGeometry();
+		if (geometry != null) {
+			bounds.expandToInclude(geometry.getEnvelopeInternal());
+		}
+		numSinceCheck++;
+		if (numSinceCheck >= CHECK_INTERVAL) {
+			numSinceCheck = 0;
+			if (spillEnabled && MemoryGovernor.get().isOverSpillThreshold()) {
+				spill();
+			}
+		}
+	}
+
+	public void addAll(SimpleFeatureCollection fc) {
+		SimpleFeatureIterator it = fc.features();
+		try {
+			while (it.hasNext()) {
+				add(it.next());
+			}
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * @return the number of features, including those spilled to disk
+	 */
+	public int size() {
+		return numSpilled + inMemory.size();
+	}
+
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**
+	 * @return the bounds of all features, including those spilled to disk
+	 */
+	public ReferencedEnvelope getBounds() {
+		return new ReferencedEnvelope(bounds);
+	}
+
+	/**
+	 * @return the features, if none have been spilled to disk.  Otherwise use openBatchReader(..) or
+	 * one of the save methods.
+	 */
+	public SimpleFeatureCollection getFeatures() {
+		if (isSpilled()) {
+			throw new IllegalStateException(numSpilled+" features of "+featureType.getTypeName()+" have been spilled to disk. They must be read in batches.");
+		}
+		return inMemory;
+	}
+
+	/**
+	 * Appends the features in memory to the spill file (which is created on the first spill), and
+	 * releases them.
+	 */
+	public void spill() {
+		if (inMemory.isEmpty()) {
+			return;
+		}
+		long start = SPILL_TIMER.start();
+		int numFeatures = inMemory.size();
+		try {
+			if (spillGeoPackage == null) {
+				spillFile = File.createTempFile("spill-"+featureType.getTypeName()+"-", ".gpkg", MemoryGovernor.get().getSpillDir());
+				spillFile.delete();
+				spillFile.deleteOnExit();
+				spillGeoPackage = SaveUtils.openGeoPackage(spillFile.getPath());
+			}
+			if (spillEntry == null) {
+				spillEntry = new FeatureEntry();
+				spillEntry.setSrid(SaveUtils.getSrid(featureType));
+				spillEntry.setBounds(inMemory.getBounds());
+				spillEntry.setTableName(featureType.getTypeName());
+				spillGeoPackage.add(spillEntry, inMemory);
+			}
+			else {
+				SaveUtils.appendToGeoPackage(spillGeoPackage, spillEntry, inMemory);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to spill features of "+featureType.getTypeName()+" to "+spillFile, e);
+		}
+		inMemory.clear();
+		numSpilled += numFeatures;
+		FEATURES_SPILLED.add(numFeatures);
+		SPILL_TIMER.stop(start);
+	}
+
+	/**
+	 * @return a reader of all the features in batches: the spilled features (in batches of at most
+	 * batchSize), then the features in memory.  The reader must be closed.
+	 */
+	public BatchReader openBatchReader(int batchSize) throws IOException {
+		return new BatchReader(batchSize);
+	}
+
+	/**
+	 * Saves the features to a new table in the given GeoPackage.  The table is described by the given
+	 * entry, as in GeoPackage.add(entry, features).
+	 */
+	public void save(GeoPackage geoPackage, FeatureEntry entry) throws IOException {
+		write(geoPackage, entry, true);
+	}
+
+	/**
+	 * Saves the features to the GeoPackage (a table named after the feature type), as in
+	 * SaveUtils.saveToGeoPackage(..), but in batches.
+	 */
+	public void saveToGeoPackage(String filename) throws IOException {
+		saveToGeoPackage(filename, featureType.getTypeName());
+	}
+
+	/**
+	 * Saves the features to the given table of the GeoPackage (created if it doesn't exist, otherwise
+	 * appended to), in batches.  The table name needn't match the feature type name.
+	 */
+	public void saveToGeoPackage(String filename, String tableName) throws IOException {
+		int srid = SaveUtils.getSrid(featureType);
+		GeoPackage gp = SaveUtils.openGeoPackage(filename);
+		try {
+			FeatureEntry entry = gp.feature(tableName);
+			boolean create = entry == null;
+			if (create) {
+				entry = new FeatureEntry();
+				entry.setSrid(srid);
+				entry.setBounds(getBounds());
+				entry.setTableName(tableName);
+			}
+			write(gp, entry, create);
+			if (!gp.hasSpatialIndex(entry)) {
+				gp.createSpatialIndex(entry);
+			}
+		} finally {
+			gp.close();
+		}
+	}
+
+	private void write(GeoPackage geoPackage, FeatureEntry entry, boolean create) throws IOException {
+		BatchReader reader = openBatchReader(DEFAULT_BATCH_SIZE);
+		try {
+			SimpleFeatureCollection batch = null;
+			while ((batch = reader.next()) != null) {
+				if (create) {
+					geoPackage.add(entry, batch);
+					create = false;
+				}
+				else {
+					SaveUtils.appendToGeoPackage(geoPackage, entry, batch);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Removes all features, and deletes the spill file
+	 */
+	public void dispose() {
+		inMemory.clear();
+		numSpilled = 0;
+		numSinceCheck = 0;
+		if (spillGeoPackage != null) {
+			spillGeoPackage.close();
+			spillGeoPackage = null;
+		}
+		spillEntry = null;
+		if (spillFile != null) {
+			spillFile.delete();
+			spillFile = null;
+		}
+	}
+
+	/**
+	 * Reads the features of a SpillableFeatureCollection in batches.  next() returns null after the
+	 * last batch.  Each batch is only valid until the next call of next().
+	 */
+	public class BatchReader {
+
+		private int batchSize;
+		private SimpleFeatureReader spillReader = null;
+		private SimpleFeatureBuilder builder;
+		private boolean inMemoryRead = false;
+
+		private BatchReader(int batchSize) throws IOException {
+			this.batchSize = batchSize;
+			this.builder = new SimpleFeatureBuilder(featureType);
+			if (spillEntry != null) {
+				spillReader = spillGeoPackage.reader(spillEntry, null, Transaction.AUTO_COMMIT);
+			}
+		}
+
+		public SimpleFeatureCollection next() throws IOException {
+			if (spillReader != null) {
+				ListFeatureCollection batch = new ListFeatureCollection(featureType);
+				while (batch.size() < batchSize && spillReader.hasNext()) {
+					//rebuild with the original feature type (the spill file's type may differ in details, e.g. the CRS)
+					SimpleFeature f = spillReader.next();
+					for (int i = 0; i < featureType.getAttributeCount(); i++) {
+						builder.set(i, f.getAttribute(featureType.getDescriptor(i).getLocalName()));
+					}
+					batch.add(builder.buildFeature(null));
+				}
+				if (!spillReader.hasNext()) {
+					spillReader.close();
+					spillReader = null;
+				}
+				if (!batch.isEmpty()) {
+					return batch;
+				}
+			}
+			if (!inMemoryRead) {
+				inMemoryRead = true;
+				return inMemory;
+			}
+			return null;
+		}
+
+		public void close() throws IOException {
+			if (spillReader != null) {
+				spillReader.close();
+				spillReader = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package ca.bc.gov.catchments.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+/**
+ * Opens the text inputs and outputs of the scripts.  A filename of "-" means standard input or
+ * standard output, so tools can be connected with shell pipes.  (Named pipes need no special
+ * handling: they are opened like regular files, and read or written as the data arrives.)
+ */
+public class StreamUtils {
+
+	public static final String STANDARD_STREAM = "-";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	public static boolean isStandardStream(String filename) {
+		return STANDARD_STREAM.equals(filename);
+	}
+
+	/**
+	 * opens the given file (or standard input, for "-") for reading
+	 */
+	public static BufferedReader openReader(String filename) throws IOException {
+		if (isStandardStream(filename)) {
+			return new BufferedReader(new InputStreamReader(new FileInputStream(FileDescriptor.in)), BUFFER_SIZE);
+		}
+		return new BufferedReader(new FileReader(filename), BUFFER_SIZE);
+	}
+
+	/**
+	 * opens the given file (or standard output, for "-") for writing.  an existing file is replaced.
+	 */
+	public static BufferedWriter openWriter(String filename) throws IOException {
+		if (isStandardStream(filename)) {
+			return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), BUFFER_SIZE);
+		}
+		return new BufferedWriter(new FileWriter(filename, false), BUFFER_SIZE);
+	}
+
+	/**
+	 * Sends everything printed with System.out to standard error instead.  Call this first thing in a
+	 * script whose data output is standard output, so progress messages don't end up in the data.
+	 */
+	public static void logToStandardError() {
+		System.setOut(System.err);
+	}
+}
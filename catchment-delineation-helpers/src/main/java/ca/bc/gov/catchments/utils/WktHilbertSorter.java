@@ -0,0 +1,248 @@
+package ca.bc.gov.catchments.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Sorts a file of WKT geometries (one per line) by the Hilbert index of the centre of each geometry's
+ * envelope, so geometries that are close together in space end up close together in the file.
+ *
+ * The sort is an external merge sort with bounded memory: the input is read in runs of at most
+ * maxLinesInMemory lines, each run is sorted and written to a temporary file, and the runs are then
+ * merged into the output file.  Lines with equal keys keep their input order.
+ *
+ * The envelope of each line is found by scanning its coordinate values, without parsing a geometry.
+ * Lines without any coordinates sort first.
+ */
+public class WktHilbertSorter {
+
+	//positions within a run must fit in 30 bits (see writeRun(..))
+	private static final int MAX_LINES_IN_MEMORY = 1 << 30;
+
+	private Envelope bounds;
+	private int maxLinesInMemory;
+	private File tempDir;
+
+	/**
+	 * @param bounds the extent of the data (used to scale coordinates to the Hilbert curve's grid)
+	 * @param maxLinesInMemory the maximum number of lines held in memory at once
+	 * @param tempDir the folder to write temporary files in
+	 */
+	public WktHilbertSorter(Envelope bounds, int maxLinesInMemory, File tempDir) {
+		this.bounds = bounds;
+		this.maxLinesInMemory = Math.max(Math.min(maxLinesInMemory, MAX_LINES_IN_MEMORY), 1);
+		this.tempDir = tempDir;
+	}
+
+	/**
+	 * Sorts the lines of the input into a new temporary file.  The input is not closed.
+	 * The caller should delete the returned file when finished with it.
+	 */
+	public File sort(BufferedReader in) throws IOException {
+		List<File> runs = new ArrayList<File>();
+		try {
+			String[] lines = new String[Math.min(maxLinesInMemory, 65536)];
+			long[] keys = new long[lines.length];
+			int numLines = 0;
+			String line = null;
+			while ((line = in.readLine()) != null) {
+				if (numLines == lines.length) {
+					if (numLines == maxLinesInMemory) {
+						runs.add(writeRun(lines, keys, numLines));
+						numLines = 0;
+					}
+					else {
+						int capacity = Math.min(maxLinesInMemory, lines.length * 2);
+						lines = Arrays.copyOf(lines, capacity);
+						keys = Arrays.copyOf(keys, capacity);
+					}
+				}
+				lines[numLines] = line;
+				keys[numLines] = getKey(line);
+				numLines++;
+			}
+			if (numLines > 0 || runs.isEmpty()) {
+				runs.add(writeRun(lines, keys, numLines));
+			}
+			lines = null;
+			keys = null;
+
+			if (runs.size() == 1) {
+				return stripKeys(runs.get(0));
+			}
+			return merge(runs);
+		} finally {
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return the Hilbert index of the centre of the line's envelope, or 0 if the line has no coordinates
+	 */
+	public long getKey(String wktLine) {
+		Envelope envelope = getEnvelope(wktLine);
+		if (envelope.isNull()) {
+			return 0;
+		}
+		//offset by one so that keys of lines with coordinates sort after lines without
+		return HilbertCurve.index((envelope.getMinX() + envelope.getMaxX()) / 2, (envelope.getMinY() + envelope.getMaxY()) / 2, bounds) + 1;
+	}
+
+	/**
+	 * scans the coordinate values of a WKT string.  values that aren't numbers (e.g. "nan") are ignored.
+	 */
+	public static Envelope getEnvelope(String wktLine) {
+		Envelope envelope = new Envelope();
+		int start = wktLine.indexOf('(');
+		if (start < 0) {
+			return envelope;
+		}
+		String[] points = wktLine.substring(start).replace('(', ' ').replace(')', ' ').split(",");
+		for (String point : points) {
+			String[] values = point.trim().split("\\s+");
+			if (values.length < 2) {
+				continue;
+			}
+			try {
+				double x = Double.parseDouble(values[0]);
+				double y = Double.parseDouble(values[1]);
+				if (!Double.isNaN(x) && !Double.isNaN(y)) {
+					envelope.expandToInclude(x, y);
+				}
+			} catch (NumberFormatException e) {
+				//not a coordinate.  skip it.
+			}
+		}
+		return envelope;
+	}
+
+	/**
+	 * sorts a run by key and writes it to a temporary file, one "key<TAB>line" per line
+	 */
+	private File writeRun(String[] lines, long[] keys, int numLines) throws IOException {
+		//keys are < 2^33 and positions < 2^30, so (key, position) packs into one long.  sorting those
+		//orders the lines by key, and keeps lines with equal keys in input order.
+		long[] order = new long[numLines];
+		for (int i = 0; i < numLines; i++) {
+			order[i] = (keys[i] << 30) | i;
+		}
+		Arrays.sort(order);
+
+		File run = File.createTempFile("hilbert-run-", ".txt", tempDir);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(run));
+		try {
+			for (int i = 0; i < numLines; i++) {
+				int pos = (int)(order[i] & 0x3FFFFFFF);
+				writer.write(Long.toString(keys[pos]));
+				writer.write('\t');
+				writer.write(lines[pos]);
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+		return run;
+	}
+
+	private File stripKeys(File run) throws IOException {
+		File out = File.createTempFile("hilbert-sorted-", ".wkt", tempDir);
+		BufferedReader reader = new BufferedReader(new FileReader(run));
+		BufferedWriter writer = new BufferedWriter(new FileWriter(out));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				writer.write(line, line.indexOf('\t') + 1, line.length() - line.indexOf('\t') - 1);
+				writer.newLine();
+			}
+		} finally {
+			reader.close();
+			writer.close();
+		}
+		return out;
+	}
+
+	/**
+	 * k-way merge of the sorted runs.  ties are broken by run number, so equal keys keep input order.
+	 */
+	private File merge(List<File> runs) throws IOException {
+		File out = File.createTempFile("hilbert-sorted-", ".wkt", tempDir);
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size(), new Comparator<RunReader>() {
+			public int compare(RunReader a, RunReader b) {
+				if (a.key != b.key) {
+					return a.key < b.key ? -1 : 1;
+				}
+				return Integer.compare(a.runNum, b.runNum);
+			}
+		});
+		List<RunReader> readers = new ArrayList<RunReader>();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(out));
+		try {
+			for (int i = 0; i < runs.size(); i++) {
+				RunReader reader = new RunReader(runs.get(i), i);
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				writer.write(reader.line);
+				writer.newLine();
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+		} finally {
+			writer.close();
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+		}
+		return out;
+	}
+
+	private static class RunReader {
+
+		private BufferedReader reader;
+		private int runNum;
+		private long key;
+		private String line;
+
+		public RunReader(File run, int runNum) throws IOException {
+			this.reader = new BufferedReader(new FileReader(run));
+			this.runNum = runNum;
+		}
+
+		/**
+		 * reads the next line of the run
+		 * @return false if there are no more lines
+		 */
+		public boolean next() throws IOException {
+			String next = reader.readLine();
+			if (next == null) {
+				return false;
+			}
+			int tab = next.indexOf('\t');
+			key = Long.parseLong(next.substring(0, tab));
+			line = next.substring(tab + 1);
+			return true;
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package ca.bc.gov.catchment.voronoi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class VoronoiDanglerCleanerTest {
+
+	private static final int LATTICE_SIZE = 150;
+	private static final double SPACING = 10;
+	private static final int MAX_CHAIN_LENGTH = 6;
+
+	/**
+	 * Cleans a lattice (whose edges all touch other edges at both ends) with a dangling chain in each
+	 * cell and some duplicated edges, on one thread and on several.  The results must be identical,
+	 * and must be the expected fixpoint: every chain edge discarded, and one copy of each duplicated
+	 * edge kept (the one with the lowest id).
+	 */
+	@Test
+	public void testParallelSameAsSequential() throws Exception {
+		Random random = new Random(7);
+		List<Coordinate[]> lines = new ArrayList<Coordinate[]>();
+		List<Boolean> isChain = new ArrayList<Boolean>();
+		//for each line which is a copy of another, the position of the first copy (otherwise -1)
+		List<Integer> copyOf = new ArrayList<Integer>();
+
+		for (int i = 0; i < LATTICE_SIZE; i++) {
+			for (int j = 0; j < LATTICE_SIZE; j++) {
+				Coordinate node = new Coordinate(i * SPACING, j * SPACING);
+				if (i + 1 < LATTICE_SIZE) {
+					addLine(lines, isChain, copyOf, new Coordinate[] {node, new Coordinate((i + 1) * SPACING, j * SPACING)}, false, random);
+				}
+				if (j + 1 < LATTICE_SIZE) {
+					addLine(lines, isChain, copyOf, new Coordinate[] {node, new Coordinate(i * SPACING, (j + 1) * SPACING)}, false, random);
+				}
+				if (i + 1 < LATTICE_SIZE && j + 1 < LATTICE_SIZE) {
+					//a chain into the cell, which takes one pass per edge to prune
+					int chainLength = 1 + random.nextInt(MAX_CHAIN_LENGTH);
+					for (int k = 0; k < chainLength; k++) {
+						Coordinate from = new Coordinate(node.x + k * 1.5, node.y + k * 1.2);
+						Coordinate to = new Coordinate(node.x + (k + 1) * 1.5, node.y + (k + 1) * 1.2);
+						addLine(lines, isChain, copyOf, new Coordinate[] {from, to}, true, random);
+					}
+				}
+			}
+		}
+
+		//ids in a random order, so a copy may have a lower or higher id than the line it copies
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < lines.size(); i++) {
+			ids.add((long)(i + 1));
+		}
+		Collections.shuffle(ids, random);
+
+		KeptAndDiscardedEdges sequential = clean(lines, ids, 1);
+		KeptAndDiscardedEdges parallel = clean(lines, ids, 4);
+		assertEquals(sequential.getNumKept(), parallel.getNumKept());
+		for (int edge = 0; edge < lines.size(); edge++) {
+			assertEquals("kept flag of edge "+edge, sequential.isKept(edge), parallel.isKept(edge));
+			assertEquals("value of edge "+edge, sequential.getValue(edge), parallel.getValue(edge));
+		}
+
+		for (int edge = 0; edge < lines.size(); edge++) {
+			if (isChain.get(edge)) {
+				assertFalse("chain edge "+edge+" was kept", sequential.isKept(edge));
+				continue;
+			}
+			//of the copies of a lattice edge, only the one with the lowest id is kept
+			int first = copyOf.get(edge) == -1 ? edge : copyOf.get(edge);
+			long lowestId = ids.get(first);
+			for (int other = first; other < lines.size() && (other == first || copyOf.get(other) == first); other++) {
+				lowestId = Math.min(lowestId, ids.get(other));
+			}
+			assertEquals("lattice edge "+edge, ids.get(edge) == lowestId, sequential.isKept(edge));
+		}
+		assertTrue(sequential.getNumKept() > 0);
+	}
+
+	/**
+	 * adds the line, and for some lines one or two copies of it
+	 */
+	private static void addLine(List<Coordinate[]> lines, List<Boolean> isChain, List<Integer> copyOf, Coordinate[] line, boolean chain, Random random) {
+		int first = lines.size();
+		lines.add(line);
+		isChain.add(chain);
+		copyOf.add(-1);
+		if (chain) {
+			return;
+		}
+		int numCopies = random.nextInt(20) == 0 ? 2 : random.nextInt(10) == 0 ? 1 : 0;
+		for (int i = 0; i < numCopies; i++) {
+			//the second copy is reversed
+			Coordinate[] copy = i == 0 ? line.clone() : new Coordinate[] {line[1], line[0]};
+			lines.add(copy);
+			isChain.add(false);
+			copyOf.add(first);
+		}
+	}
+
+	private static KeptAndDiscardedEdges clean(List<Coordinate[]> lines, List<Long> ids, int numThreads) throws Exception {
+		EdgeStore edges = new EdgeStore("voronoi_edges", lines.size());
+		for (int i = 0; i < lines.size(); i++) {
+			edges.add(ids.get(i), lines.get(i));
+		}
+
+		SimpleFeatureType edgeType = DataUtilities.createType("voronoi_edges", "geometry:LineString:srid=3005");
+		SimpleFeatureType waterType = DataUtilities.createType("water_features", "geometry:LineString:srid=3005");
+		ListFeatureCollection waterFeatures = new ListFeatureCollection(waterType);
+		GeometryFactory geometryFactory = new GeometryFactory();
+		waterFeatures.add(new SimpleFeatureBuilder(waterType).buildFeature("water_features.1", new Object[] {
+				geometryFactory.createLineString(new Coordinate[] {new Coordinate(-100, -100), new Coordinate(-50, -50)})}));
+
+		VoronoiDanglerCleaner cleaner = new VoronoiDanglerCleaner(DataUtilities.source(new ListFeatureCollection(edgeType)),
+				new WaterFeatureContext(DataUtilities.source(waterFeatures)), "kept", "discarded");
+		cleaner.setNumThreads(numThreads);
+		return cleaner.clean(edges);
+	}
+}
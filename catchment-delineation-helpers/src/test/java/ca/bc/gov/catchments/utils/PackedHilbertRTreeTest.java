@@ -0,0 +1,188 @@
+package ca.bc.gov.catchments.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+
+public class PackedHilbertRTreeTest {
+
+	private static final Envelope EVERYWHERE = new Envelope(-1e9, 1e9, -1e9, 1e9);
+
+	@Test
+	public void testEmpty() {
+		PackedHilbertRTree tree = new PackedHilbertRTree(0);
+		tree.build();
+		assertEquals(0, tree.size());
+		assertTrue(tree.getBounds().isNull());
+		assertEquals(0, query(tree, EVERYWHERE).size());
+
+		PackedHilbertRTree loaded = saveAndLoad(tree, PackedHilbertRTree.DEFAULT_NODE_SIZE);
+		assertTrue(loaded.getBounds().isNull());
+		assertEquals(0, query(loaded, EVERYWHERE).size());
+	}
+
+	@Test
+	public void testSingleItem() {
+		PackedHilbertRTree tree = new PackedHilbertRTree(1);
+		int id = tree.add(new Envelope(10, 20, 30, 40));
+		tree.build();
+		assertEquals(0, id);
+		assertEquals(new Envelope(10, 20, 30, 40), tree.getBounds());
+		assertEquals(1, query(tree, new Envelope(15, 16, 35, 36)).size());
+		assertEquals(0, query(tree, new Envelope(0, 5, 0, 5)).size());
+
+		PackedHilbertRTree loaded = saveAndLoad(tree, PackedHilbertRTree.DEFAULT_NODE_SIZE);
+		assertEquals(new Envelope(10, 20, 30, 40), loaded.getBounds());
+		assertEquals(1, query(loaded, new Envelope(15, 16, 35, 36)).size());
+	}
+
+	@Test
+	public void testNullEnvelopes() {
+		PackedHilbertRTree tree = new PackedHilbertRTree(3);
+		int first = tree.add(new Envelope());
+		int second = tree.add(new Envelope(100, 110, 200, 210));
+		int third = tree.add(new Envelope());
+		tree.build();
+		assertEquals(0, first);
+		assertEquals(1, second);
+		assertEquals(2, third);
+
+		//the empty envelopes don't pull the bounds to the origin, and are never found
+		assertEquals(new Envelope(100, 110, 200, 210), tree.getBounds());
+		List<Integer> found = query(tree, EVERYWHERE);
+		assertEquals(1, found.size());
+		assertEquals(second, (int)found.get(0));
+		assertEquals(0, query(tree, new Envelope(-1, 1, -1, 1)).size());
+
+		PackedHilbertRTree loaded = saveAndLoad(tree, PackedHilbertRTree.DEFAULT_NODE_SIZE);
+		assertEquals(new Envelope(100, 110, 200, 210), loaded.getBounds());
+		assertEquals(1, query(loaded, EVERYWHERE).size());
+	}
+
+	@Test
+	public void testOnlyNullEnvelopes() {
+		PackedHilbertRTree tree = new PackedHilbertRTree(2);
+		tree.add(new Envelope());
+		tree.add(new Envelope());
+		tree.build();
+		assertTrue(tree.getBounds().isNull());
+		assertEquals(0, query(tree, EVERYWHERE).size());
+
+		PackedHilbertRTree loaded = saveAndLoad(tree, PackedHilbertRTree.DEFAULT_NODE_SIZE);
+		assertTrue(loaded.getBounds().isNull());
+		assertEquals(0, query(loaded, EVERYWHERE).size());
+	}
+
+	@Test
+	public void testRandomAgainstBruteForce() throws IOException {
+		//a small node size gives a tree of several levels, with a partly filled last node on each
+		checkRandomAgainstBruteForce(4);
+		checkRandomAgainstBruteForce(PackedHilbertRTree.DEFAULT_NODE_SIZE);
+	}
+
+	private void checkRandomAgainstBruteForce(int nodeSize) throws IOException {
+		Random random = new Random(42);
+		int numItems = 5000;
+		Envelope[] items = new Envelope[numItems];
+		PackedHilbertRTree tree = new PackedHilbertRTree(numItems, nodeSize);
+		for (int i = 0; i < numItems; i++) {
+			//some empty envelopes, some points, and boxes of widely varying size
+			if (i % 97 == 0) {
+				items[i] = new Envelope();
+			}
+			else {
+				double x = random.nextDouble() * 10000;
+				double y = random.nextDouble() * 10000;
+				double size = i % 5 == 0 ? 0 : Math.pow(random.nextDouble(), 3) * 500;
+				items[i] = new Envelope(x, x + size * random.nextDouble(), y, y + size * random.nextDouble());
+			}
+			assertEquals(i, tree.add(items[i]));
+		}
+		tree.build();
+
+		Envelope expectedBounds = new Envelope();
+		for (Envelope item : items) {
+			expectedBounds.expandToInclude(item);
+		}
+		assertEquals(expectedBounds, tree.getBounds());
+
+		List<Envelope> queries = new ArrayList<Envelope>();
+		for (int i = 0; i < 500; i++) {
+			double x = random.nextDouble() * 11000 - 500;
+			double y = random.nextDouble() * 11000 - 500;
+			double size = Math.pow(random.nextDouble(), 2) * 2000;
+			queries.add(new Envelope(x, x + size, y, y + size));
+		}
+		queries.add(EVERYWHERE);
+		//a query which only touches the corner of an item
+		queries.add(new Envelope(items[1].getMaxX(), items[1].getMaxX() + 1, items[1].getMaxY(), items[1].getMaxY() + 1));
+
+		assertSameAsBruteForce(tree, items, queries);
+		assertSameAsBruteForce(saveAndLoad(tree, nodeSize), items, queries);
+
+		//memory-mapped, as WaterFeatureIndex loads its cache.  (little endian, to check load keeps the byte order)
+		File file = File.createTempFile("packed-hilbert-rtree-test-", ".idx");
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, tree.getSerializedSize());
+			out.order(ByteOrder.LITTLE_ENDIAN);
+			tree.save(out);
+			out.force();
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, tree.getSerializedSize());
+			in.order(ByteOrder.LITTLE_ENDIAN);
+			PackedHilbertRTree loaded = PackedHilbertRTree.load(numItems, nodeSize, in);
+			assertEquals(expectedBounds, loaded.getBounds());
+			assertSameAsBruteForce(loaded, items, queries);
+		} finally {
+			raf.close();
+			file.delete();
+		}
+	}
+
+	private static void assertSameAsBruteForce(PackedHilbertRTree tree, Envelope[] items, List<Envelope> queries) {
+		for (Envelope query : queries) {
+			List<Integer> expected = new ArrayList<Integer>();
+			for (int i = 0; i < items.length; i++) {
+				if (!items[i].isNull() && items[i].intersects(query)) {
+					expected.add(i);
+				}
+			}
+			List<Integer> found = query(tree, query);
+			Collections.sort(found);
+			assertEquals(expected, found);
+		}
+	}
+
+	private static List<Integer> query(PackedHilbertRTree tree, Envelope envelope) {
+		final List<Integer> result = new ArrayList<Integer>();
+		tree.query(envelope, new IntVisitor() {
+			public void visit(int id) {
+				result.add(id);
+			}
+		});
+		return result;
+	}
+
+	private static PackedHilbertRTree saveAndLoad(PackedHilbertRTree tree, int nodeSize) {
+		ByteBuffer buffer = ByteBuffer.allocate(tree.getSerializedSize());
+		tree.save(buffer);
+		buffer.flip();
+		return PackedHilbertRTree.load(tree.size(), nodeSize, buffer);
+	}
+}
@@ -8,12 +8,17 @@ Example usage:
 import os
 import json
 import glob
+import shutil
+import hashlib
 import argparse
-from subprocess import call
+import multiprocessing
+from subprocess import call, Popen
 
 DEFAULT_SETTINGS_FILENAME = "settings.json"
 DEFAULT_SIMPLIFY_DISTANCE_TOLERANCE = 2
 DEFAULT_DENSIFY_DISTANCE_SPACING = 50
+STEP_CACHE_COMPLETE_FILENAME = "complete"
+STEP_CACHE_FILE_HASHES_FILENAME = "file-hashes.json"
 WATER_FEATURES_TABLE = "water_features"
 VORONOI_EDGES_TABLE = "voronoi_edges"
 
@@ -61,6 +66,7 @@ def main():
   run_out_dir = test_out_dir
 
   
+  last_run_id = None
   run_dirs = glob.glob(os.path.join(test_out_dir, "*"))
   run_dirs = [int(os.path.split(run_dir)[1]) for run_dir in run_dirs]
   if len(run_dirs):
@@ -88,6 +94,18 @@ def main():
   voronoi_config_num = run_config["options"].get("voronoi_config_num", 2)
   simplify_dist_tolerance = run_config["options"].get("simplify_dist_tolerance", DEFAULT_SIMPLIFY_DISTANCE_TOLERANCE)
   densify_dist_spacing = run_config["options"].get("densify_dist_spacing", DEFAULT_DENSIFY_DISTANCE_SPACING)
+  simplify_mode_flag = "-networkSimplify" if run_config["options"].get("network_simplify") else ""
+  densify_mode_flag = "-adaptiveDensify" if run_config["options"].get("adaptive_densify") else ""
+  voronoi_tiles = run_config["options"].get("voronoi_tiles")
+  voronoi_tile_halo = run_config["options"].get("voronoi_tile_halo")
+  voronoi_parallelism = run_config["options"].get("voronoi_parallelism", multiprocessing.cpu_count())
+  #"external": voronoi-catchments (one process per tile).  "jvm": BuildVoronoiEdges (one thread per tile), 
+  #which reads the water features GeoPackage and writes the voronoi edges GeoPackage in step 3
+  voronoi_jvm = run_config["options"].get("voronoi_engine", "external") == "jvm"
+  #steps 2-4 run at the same time, connected by named pipes instead of intermediate files
+  voronoi_stream = run_config["options"].get("voronoi_stream") and not voronoi_tiles and not voronoi_jvm and args.start_step <= 2 and 4 <= args.last_step
+  streaming_procs = []
+  step_cache = StepCache(settings.get("step_cache_dir"), get_tool_files(settings))
 
   if args.start_step <= 1 and 1 <= args.last_step:
     print("")  
@@ -105,8 +123,10 @@ def main():
       print("Simplifying...")
       water_feature_simp_filename = "{}-{}.water.simp.gpkg".format(test_id, run_id)
       water_feature_simp_filename_with_path = os.path.join(run_out_dir, water_feature_simp_filename)    
-      cmd1 = "{} -cp {} ca.bc.gov.catchment.scripts.SimplifyThenDensity -i {} -o {} -simplify -simplifyDistanceTolerance {} -tables {}".format(settings.get("java_path"), settings.get("java_classpath"), water_feature_filename_with_path, water_feature_simp_filename_with_path, simplify_dist_tolerance, tables)
-      resp = call(cmd1.split())
+      cmd1 = "{} -cp {} ca.bc.gov.catchment.scripts.SimplifyThenDensity -i {} -o {} -simplify {} -simplifyDistanceTolerance {} -tables {}".format(settings.get("java_path"), settings.get("java_classpath"), water_feature_filename_with_path, water_feature_simp_filename_with_path, simplify_mode_flag, simplify_dist_tolerance, tables)
+      metrics_files = get_metrics_filenames(run_out_dir, test_id, run_id, "simplify")
+      cmd1 = "{} -metricsFile {}".format(cmd1, metrics_files[0])
+      resp = step_cache.run("simplify", cmd1, [water_feature_filename_with_path], [water_feature_simp_filename_with_path] + metrics_files)
       if resp != 0:
         print("Failure.  Pipeline execution stopped early.")
         exit(1);
@@ -116,8 +136,10 @@ def main():
       print("Densifying...")
       water_feature_simp_filename = "{}-{}.water.dens.gpkg".format(test_id, run_id)
       water_feature_simp_filename_with_path = os.path.join(run_out_dir, water_feature_simp_filename)    
-      cmd1 = "{} -cp {} ca.bc.gov.catchment.scripts.SimplifyThenDensity -i {} -o {} -densify -densifyDistanceSpacing {} -tables {}".format(settings.get("java_path"), settings.get("java_classpath"), water_feature_filename_with_path, water_feature_simp_filename_with_path, densify_dist_spacing, tables)
-      resp = call(cmd1.split())
+      cmd1 = "{} -cp {} ca.bc.gov.catchment.scripts.SimplifyThenDensity -i {} -o {} -densify {} -densifyDistanceSpacing {} -tables {}".format(settings.get("java_path"), settings.get("java_classpath"), water_feature_filename_with_path, water_feature_simp_filename_with_path, densify_mode_flag, densify_dist_spacing, tables)
+      metrics_files = get_metrics_filenames(run_out_dir, test_id, run_id, "densify")
+      cmd1 = "{} -metricsFile {}".format(cmd1, metrics_files[0])
+      resp = step_cache.run("densify", cmd1, [water_feature_filename_with_path], [water_feature_simp_filename_with_path] + metrics_files)
       if resp != 0:
         print("Failure.  Pipeline execution stopped early.")
         exit(1);
@@ -127,8 +149,10 @@ def main():
       print("Simplifying and Densifying...")
       water_feature_simp_dens_filename = "{}-{}.water.simp-dens.gpkg".format(test_id, run_id)
       water_feature_simp_dens_filename_with_path = os.path.join(run_out_dir, water_feature_simp_dens_filename)
-      cmd1 = "{} -cp {} ca.bc.gov.catchment.scripts.SimplifyThenDensity -i {} -o {} -simplify -simplifyDistanceTolerance {} -densify -densifyDistanceSpacing {} -tables {}".format(settings.get("java_path"), settings.get("java_classpath"), water_feature_filename_with_path, water_feature_simp_dens_filename_with_path, simplify_dist_tolerance, densify_dist_spacing, tables)
-      resp = call(cmd1.split())
+      cmd1 = "{} -cp {} ca.bc.gov.catchment.scripts.SimplifyThenDensity -i {} -o {} -simplify {} -simplifyDistanceTolerance {} -densify {} -densifyDistanceSpacing {} -tables {}".format(settings.get("java_path"), settings.get("java_classpath"), water_feature_filename_with_path, water_feature_simp_dens_filename_with_path, simplify_mode_flag, simplify_dist_tolerance, densify_mode_flag, densify_dist_spacing, tables)
+      metrics_files = get_metrics_filenames(run_out_dir, test_id, run_id, "simplify-densify")
+      cmd1 = "{} -metricsFile {}".format(cmd1, metrics_files[0])
+      resp = step_cache.run("simplify-densify", cmd1, [water_feature_filename_with_path], [water_feature_simp_dens_filename_with_path] + metrics_files)
       if resp != 0:
         print("Failure.  Pipeline execution stopped early.")
         exit(1);
@@ -145,15 +169,27 @@ def main():
       water_feature_snap_filename = "{}-{}.water.snap.gpkg".format(test_id, run_id)
       water_feature_snap_filename_with_path = os.path.join(run_out_dir, water_feature_snap_filename)
       cmd1b = "{} -cp {} ca.bc.gov.catchment.scripts.SnapToGrid -i {} -o {} -tables {} -precisionScale {}".format(settings.get("java_path"), settings.get("java_classpath"), prep_water_features_input_filename_with_path, water_feature_snap_filename_with_path, tables, precisionScale)
-      resp = call(cmd1b.split())
+      metrics_files = get_metrics_filenames(run_out_dir, test_id, run_id, "snap")
+      cmd1b = "{} -metricsFile {}".format(cmd1b, metrics_files[0])
+      resp = step_cache.run("snap", cmd1b, [prep_water_features_input_filename_with_path], [water_feature_snap_filename_with_path] + metrics_files)
       if resp != 0:
         print("Failure.  Pipeline execution stopped early.")
         exit(1);
       prep_water_features_input_filename_with_path = water_feature_snap_filename_with_path
 
     #check for valid topology (no crossings)
+    #if the previous run saved its crossing check results, only features that changed since then are re-checked
     print("Checking for crossings...")
-    cmd1c = "{} -cp {} ca.bc.gov.catchment.scripts.CheckCrosses -i {} -tables {}".format(settings.get("java_path"), settings.get("java_classpath"), prep_water_features_input_filename_with_path, tables)
+    crosses_fingerprint_filename_with_path = os.path.join(run_out_dir, "{}-{}.water.fingerprints.txt".format(test_id, run_id))
+    crosses_report_filename_with_path = os.path.join(run_out_dir, "{}-{}.water.crossings.txt".format(test_id, run_id))
+    cmd1c = "{} -cp {} ca.bc.gov.catchment.scripts.CheckCrosses -i {} -tables {} -fingerprintFile {} -crossingsFile {}".format(settings.get("java_path"), settings.get("java_classpath"), prep_water_features_input_filename_with_path, tables, crosses_fingerprint_filename_with_path, crosses_report_filename_with_path)
+    if last_run_id is not None:
+      last_run_out_dir = os.path.join(test_out_dir, "{}".format(last_run_id))
+      prev_fingerprint_filename_with_path = os.path.join(last_run_out_dir, "{}-{}.water.fingerprints.txt".format(test_id, last_run_id))
+      prev_report_filename_with_path = os.path.join(last_run_out_dir, "{}-{}.water.crossings.txt".format(test_id, last_run_id))
+      if os.path.exists(prev_fingerprint_filename_with_path) and os.path.exists(prev_report_filename_with_path):
+        cmd1c = "{} -prevFingerprintFile {} -prevCrossingsFile {}".format(cmd1c, prev_fingerprint_filename_with_path, prev_report_filename_with_path)
+    cmd1c = "{} -metricsFile {}".format(cmd1c, get_metrics_filenames(run_out_dir, test_id, run_id, "check-crosses")[0])
     resp = call(cmd1c.split())
     if resp != 0:
       print("Topological collapse detected in the snapped data set(s). {} crossings.".format(resp))
@@ -163,7 +199,11 @@ def main():
 
 
   #i/o filenames for step 2
-  voronoi_input_txt_filename = "{}-{}.water.voronoi-in.txt".format(test_id, run_id)
+  #when tiled, the voronoi input "txt" file is a tile index, and each tile has its own input and output files
+  if voronoi_tiles:
+    voronoi_input_txt_filename = "{}-{}.water.voronoi-in.tiles".format(test_id, run_id)
+  else:
+    voronoi_input_txt_filename = "{}-{}.water.voronoi-in.txt".format(test_id, run_id)
   voronoi_input_gpkg_filename = "{}-{}.water.voronoi-in.gpkg".format(test_id, run_id)
   voronoi_input_txt_filename_with_path = os.path.join(run_out_dir, voronoi_input_txt_filename)
   voronoi_input_gpkg_filename_with_path = os.path.join(run_out_dir, voronoi_input_gpkg_filename)
@@ -181,48 +221,146 @@ def main():
     elif run_config["input"].get("blacklist"):
       edge_filter = "-blacklistfilter {}".format(run_config["input"].get("blacklist"))
 
+    if voronoi_tiles and not voronoi_jvm:
+      edge_filter = "{} -tiles {}".format(edge_filter, voronoi_tiles)
+      if voronoi_tile_halo:
+        edge_filter = "{} -tileHalo {}".format(edge_filter, voronoi_tile_halo)
     
-    cmd2 = "{} -cp {} ca.bc.gov.catchment.scripts.PrepCgalVoronoiInput -i {} -outTextFile {} -outGeoPackageFile {} -bbox {} -bboxcrs {} -streams {} -linearboundaries {} {}".format(settings.get("java_path"), settings.get("java_classpath"), prep_water_features_input_filename_with_path, voronoi_input_txt_filename_with_path, voronoi_input_gpkg_filename_with_path, data_bbox, data_bbox_crs, streams_table, linearboundaries_table, edge_filter)
-    resp = call(cmd2.split())
-    if resp != 0:
-      print("Failure.  Pipeline execution stopped early.")
-      exit(1);
+    if voronoi_jvm:
+      #BuildVoronoiEdges only needs the water features GeoPackage
+      cmd2 = "{} -cp {} ca.bc.gov.catchment.scripts.PrepCgalVoronoiInput -i {} -outGeoPackageFile {} -bbox {} -bboxcrs {} -streams {} -linearboundaries {} {}".format(settings.get("java_path"), settings.get("java_classpath"), prep_water_features_input_filename_with_path, voronoi_input_gpkg_filename_with_path, data_bbox, data_bbox_crs, streams_table, linearboundaries_table, edge_filter)
+    else:
+      cmd2 = "{} -cp {} ca.bc.gov.catchment.scripts.PrepCgalVoronoiInput -i {} -outTextFile {} -outGeoPackageFile {} -bbox {} -bboxcrs {} -streams {} -linearboundaries {} {}".format(settings.get("java_path"), settings.get("java_classpath"), prep_water_features_input_filename_with_path, voronoi_input_txt_filename_with_path, voronoi_input_gpkg_filename_with_path, data_bbox, data_bbox_crs, streams_table, linearboundaries_table, edge_filter)
+    if voronoi_jvm:
+      resp = step_cache.run("voronoi-input-gpkg", cmd2, [prep_water_features_input_filename_with_path], [voronoi_input_gpkg_filename_with_path])
+      if resp != 0:
+        print("Failure.  Pipeline execution stopped early.")
+        exit(1);
+    elif voronoi_stream:
+      make_fifo(voronoi_input_txt_filename_with_path)
+      print (cmd2)
+      streaming_procs.append(Popen(cmd2.split()))
+    elif voronoi_tiles:
+      #the tile files aren't known until the step has run, so tiled runs aren't cached
+      resp = call(cmd2.split())
+      if resp != 0:
+        print("Failure.  Pipeline execution stopped early.")
+        exit(1);
+    else:
+      resp = step_cache.run("voronoi-input", cmd2, [prep_water_features_input_filename_with_path], [voronoi_input_txt_filename_with_path, voronoi_input_gpkg_filename_with_path])
+      if resp != 0:
+        print("Failure.  Pipeline execution stopped early.")
+        exit(1);
     
   #i/o filenames for step 3
   voronoi_output_wkt_filename = "{}-{}.voronoi-out.wkt".format(test_id, run_id)
   voronoi_output_wkt_filename_with_path = os.path.join(run_out_dir, voronoi_output_wkt_filename)
+  #the output of step 4 (or of step 3 with the jvm voronoi engine)
+  voronoi_output_gpkg_filename = "{}-{}.voronoi-out.gpkg".format(test_id, run_id)
+  voronoi_output_gpkg_filename_with_path = os.path.join(run_out_dir, voronoi_output_gpkg_filename)
 
   if args.start_step <= 3 and 3 <= args.last_step:
     print("")  
     print("---------------------------------------------------")
-    print(" Step 3: Generate Voronoi diagram as WKT lines")
+    if voronoi_jvm:
+      print(" Step 3: Generate Voronoi diagram as a GeoPackage (in the JVM)")
+    else:
+      print(" Step 3: Generate Voronoi diagram as WKT lines")
     print("---------------------------------------------------")
     print("")  
 
-    cmd3 = "{} {} {} {}".format(settings.get("voronoi_catchment_path"), voronoi_input_txt_filename_with_path, voronoi_output_wkt_filename_with_path, voronoi_config_num)
-    print (cmd3)
-    resp = call(cmd3.split())
-    if resp != 0:
-      print("Error {}".format(resp))
-      print("Failure.  Pipeline execution stopped early.")
-      exit(1);
-
-  #i/o filenames for step 4
-  voronoi_output_gpkg_filename = "{}-{}.voronoi-out.gpkg".format(test_id, run_id)
-  voronoi_output_gpkg_filename_with_path = os.path.join(run_out_dir, voronoi_output_gpkg_filename)
+    if voronoi_jvm:
+      cmd3 = "{} -Xmx4096m -cp {} ca.bc.gov.catchment.scripts.BuildVoronoiEdges -i {} -table {} -o {} -bbox {} -bboxcrs {} -threads {}".format(settings.get("java_path"), settings.get("java_classpath"), voronoi_input_gpkg_filename_with_path, WATER_FEATURES_TABLE, voronoi_output_gpkg_filename_with_path, data_bbox, data_bbox_crs, voronoi_parallelism)
+      if voronoi_tiles:
+        cmd3 = "{} -tiles {}".format(cmd3, voronoi_tiles)
+        if voronoi_tile_halo:
+          cmd3 = "{} -tileHalo {}".format(cmd3, voronoi_tile_halo)
+      metrics_files = get_metrics_filenames(run_out_dir, test_id, run_id, "voronoi")
+      cmd3 = "{} -metricsFile {}".format(cmd3, metrics_files[0])
+      print (cmd3)
+      resp = step_cache.run("voronoi-jvm", cmd3, [voronoi_input_gpkg_filename_with_path], [voronoi_output_gpkg_filename_with_path] + metrics_files)
+      if resp != 0:
+        print("Error {}".format(resp))
+        print("Failure.  Pipeline execution stopped early.")
+        exit(1);
+    elif voronoi_tiles:
+      #run one voronoi-catchments process per tile, at most voronoi_parallelism at a time
+      tile_cmds = []
+      tile_index_dir = os.path.dirname(voronoi_input_txt_filename_with_path)
+      with open(voronoi_input_txt_filename_with_path) as tile_index:
+        for line in tile_index:
+          pieces = line.rstrip("\n").split("\t")
+          if pieces[0] == "tile":
+            tile_cmds.append("{} {} {} {}".format(settings.get("voronoi_catchment_path"), os.path.join(tile_index_dir, pieces[2]), os.path.join(tile_index_dir, pieces[3]), voronoi_config_num))
+      running = []
+      failed = False
+      while (tile_cmds or running) and not failed:
+        while tile_cmds and len(running) < voronoi_parallelism:
+          cmd3 = tile_cmds.pop(0)
+          print (cmd3)
+          running.append(Popen(cmd3.split()))
+        running[0].wait()
+        for proc in [p for p in running if p.poll() is not None]:
+          running.remove(proc)
+          if proc.returncode != 0:
+            print("Error {}".format(proc.returncode))
+            failed = True
+      if failed:
+        for proc in running:
+          proc.kill()
+        print("Failure.  Pipeline execution stopped early.")
+        exit(1);
+    elif voronoi_stream:
+      make_fifo(voronoi_output_wkt_filename_with_path)
+      cmd3 = "{} {} {} {}".format(settings.get("voronoi_catchment_path"), voronoi_input_txt_filename_with_path, voronoi_output_wkt_filename_with_path, voronoi_config_num)
+      print (cmd3)
+      streaming_procs.append(Popen(cmd3.split()))
+    else:
+      cmd3 = "{} {} {} {}".format(settings.get("voronoi_catchment_path"), voronoi_input_txt_filename_with_path, voronoi_output_wkt_filename_with_path, voronoi_config_num)
+      print (cmd3)
+      resp = step_cache.run("voronoi", cmd3, [voronoi_input_txt_filename_with_path], [voronoi_output_wkt_filename_with_path])
+      if resp != 0:
+        print("Error {}".format(resp))
+        print("Failure.  Pipeline execution stopped early.")
+        exit(1);
 
-  if args.start_step <= 4 and 4 <= args.last_step:
+  #the jvm voronoi engine writes the GeoPackage in step 3
+  if args.start_step <= 4 and 4 <= args.last_step and not voronoi_jvm:
     print("")  
     print("---------------------------------------------------")
     print(" Step 4: Voronoi diagram to GeoPackage")
     print("---------------------------------------------------")
     print("")  
 
-    cmd4 = "{} -Xmx4096m -cp {} ca.bc.gov.catchment.scripts.WKTList2GeoPackage -i {} -o {} -bbox {} -bboxcrs {}".format(settings.get("java_path"), settings.get("java_classpath"), voronoi_output_wkt_filename_with_path, voronoi_output_gpkg_filename_with_path, data_bbox, data_bbox_crs)
-    resp = call(cmd4.split())
-    if resp != 0:
-      print("Failure.  Pipeline execution stopped early.")
-      exit(1);
+    if voronoi_tiles:
+      cmd4 = "{} -Xmx4096m -cp {} ca.bc.gov.catchment.scripts.StitchVoronoiTiles -tileIndex {} -o {} -bboxcrs {}".format(settings.get("java_path"), settings.get("java_classpath"), voronoi_input_txt_filename_with_path, voronoi_output_gpkg_filename_with_path, data_bbox_crs)
+    else:
+      cmd4 = "{} -Xmx4096m -cp {} ca.bc.gov.catchment.scripts.WKTList2GeoPackage -i {} -o {} -bbox {} -bboxcrs {}".format(settings.get("java_path"), settings.get("java_classpath"), voronoi_output_wkt_filename_with_path, voronoi_output_gpkg_filename_with_path, data_bbox, data_bbox_crs)
+      #sorting reads all of the input (to disk) before anything is written, which would defeat streaming
+      if not voronoi_stream:
+        cmd4 = "{} -hilbertSort".format(cmd4)
+    if voronoi_stream:
+      print (cmd4)
+      streaming_procs.append(Popen(cmd4.split()))
+      failed = wait_all(streaming_procs)
+      #the pipes are empty now.  remove them so later runs of single steps don't block on them
+      os.remove(voronoi_input_txt_filename_with_path)
+      os.remove(voronoi_output_wkt_filename_with_path)
+      if failed:
+        print("Failure.  Pipeline execution stopped early.")
+        exit(1);
+    elif voronoi_tiles:
+      resp = call(cmd4.split())
+      if resp != 0:
+        print("Failure.  Pipeline execution stopped early.")
+        exit(1);
+    else:
+      metrics_files = get_metrics_filenames(run_out_dir, test_id, run_id, "voronoi-gpkg")
+      cmd4 = "{} -metricsFile {}".format(cmd4, metrics_files[0])
+      resp = step_cache.run("voronoi-gpkg", cmd4, [voronoi_output_wkt_filename_with_path], [voronoi_output_gpkg_filename_with_path] + metrics_files)
+      if resp != 0:
+        print("Failure.  Pipeline execution stopped early.")
+        exit(1);
 
   #i/o filenames for step 5
   voronoi_output_cleaned_gpkg_filename = "{}-{}.voronoi-out.cleaned.gpkg".format(test_id, run_id)
@@ -236,7 +374,11 @@ def main():
     print("")  
 
     cmd5 = "{} -cp {} ca.bc.gov.catchment.scripts.CleanVoronoiOutput -voronoiEdgesFile {} -waterFeaturesFile {} -outFile {} -voronoiEdgesTable {} -waterFeaturesTable {} -startPhase 1".format(settings.get("java_path"), settings.get("java_classpath"), voronoi_output_gpkg_filename_with_path, voronoi_input_gpkg_filename_with_path, voronoi_output_cleaned_gpkg_filename_with_path, VORONOI_EDGES_TABLE, WATER_FEATURES_TABLE)
-    resp = call(cmd5.split())
+    if settings.get("index_cache_dir"):
+      cmd5 = "{} -waterFeaturesIndexCacheDir {}".format(cmd5, settings.get("index_cache_dir"))
+    metrics_files = get_metrics_filenames(run_out_dir, test_id, run_id, "clean")
+    cmd5 = "{} -metricsFile {}".format(cmd5, metrics_files[0])
+    resp = step_cache.run("clean", cmd5, [voronoi_output_gpkg_filename_with_path, voronoi_input_gpkg_filename_with_path], [voronoi_output_cleaned_gpkg_filename_with_path] + metrics_files)
     if resp != 0:
       print("Failure.  Pipeline execution stopped early.")
       exit(1);
@@ -253,5 +395,176 @@ def main():
   print("Pipeline done")
 
 
+class StepCache:
+  """
+  A content-addressed cache of the outputs of pipeline steps.  Each step is identified by a 
+  fingerprint of its command (with the output filenames left out, since they include the run id)
+  and the content of its input files.  When a step with the same fingerprint has already run, its 
+  outputs are copied from the cache instead of running it again.  The content of the tools (the jars 
+  on the java classpath and the voronoi-catchments binary) is part of every fingerprint, so 
+  rebuilding a tool invalidates the cache.
+
+  Outputs of a step are fingerprinted by the step's fingerprint (not rehashed), so a change to one
+  step's inputs or options causes that step and every step after it to run, and no others.
+  Other input files are hashed once, and the hash is remembered until their size or modification 
+  time changes.
+
+  With no cache folder, steps are always run.
+  """
+
+  def __init__(self, cache_dir, tool_files=[]):
+    self.cache_dir = cache_dir
+    self.tool_files = tool_files
+    self.tools_fingerprint = None
+    self.fingerprints = {}
+    self.file_hashes = {}
+    if cache_dir:
+      if not os.path.exists(cache_dir):
+        os.makedirs(cache_dir)
+      file_hashes_filename = os.path.join(cache_dir, STEP_CACHE_FILE_HASHES_FILENAME)
+      if os.path.exists(file_hashes_filename):
+        with open(file_hashes_filename) as f:
+          self.file_hashes = json.load(f)
+
+  def file_fingerprint(self, filename):
+    if filename in self.fingerprints:
+      return self.fingerprints[filename]
+    stat = os.stat(filename)
+    key = os.path.abspath(filename)
+    known = self.file_hashes.get(key)
+    if known and known["size"] == stat.st_size and known["mtime"] == stat.st_mtime:
+      return known["hash"]
+    h = hashlib.sha256()
+    with open(filename, "rb") as f:
+      for chunk in iter(lambda: f.read(1 << 20), b""):
+        h.update(chunk)
+    self.file_hashes[key] = {"size": stat.st_size, "mtime": stat.st_mtime, "hash": h.hexdigest()}
+    with open(os.path.join(self.cache_dir, STEP_CACHE_FILE_HASHES_FILENAME), "w") as f:
+      json.dump(self.file_hashes, f)
+    return h.hexdigest()
+
+  def get_tools_fingerprint(self):
+    if self.tools_fingerprint is None:
+      h = hashlib.sha256()
+      for filename in sorted(self.tool_files):
+        h.update("{} {}\n".format(filename, self.file_fingerprint(filename)).encode("utf-8"))
+      self.tools_fingerprint = h.hexdigest()
+    return self.tools_fingerprint
+
+  def step_fingerprint(self, name, cmd, inputs, outputs):
+    #replace longer filenames first, in case one filename contains another
+    for i, filename in sorted(enumerate(outputs), key=lambda o: -len(o[1])):
+      cmd = cmd.replace(filename, "<out{}>".format(i))
+    for filename in sorted(inputs, key=lambda f: -len(f)):
+      cmd = cmd.replace(filename, "<in:{}>".format(self.file_fingerprint(filename)))
+    return hashlib.sha256("{}\n{}\n{}".format(name, cmd, self.get_tools_fingerprint()).encode("utf-8")).hexdigest()
+
+  def run(self, name, cmd, inputs, outputs):
+    """
+    Runs the step's command, or restores its outputs from the cache.  Returns the exit code of the
+    command (0 if restored from the cache).
+    """
+    if not self.cache_dir:
+      return call(cmd.split())
+
+    fingerprint = self.step_fingerprint(name, cmd, inputs, outputs)
+    entry_dir = os.path.join(self.cache_dir, name, fingerprint)
+    cached_outputs = [os.path.join(entry_dir, "out{}{}".format(i, os.path.splitext(f)[1])) for i, f in enumerate(outputs)]
+    if os.path.exists(os.path.join(entry_dir, STEP_CACHE_COMPLETE_FILENAME)):
+      print("Unchanged since a previous run.  Using cached outputs of step '{}' ({})".format(name, fingerprint[:12]))
+      for cached, output in zip(cached_outputs, outputs):
+        link_or_copy(cached, output)
+    else:
+      #an output left by an earlier run may be linked to a cache entry, so remove it rather than 
+      #letting the step overwrite it in place
+      for output in outputs:
+        if os.path.exists(output):
+          os.remove(output)
+      resp = call(cmd.split())
+      if resp != 0:
+        return resp
+      if os.path.exists(entry_dir):
+        shutil.rmtree(entry_dir)
+      os.makedirs(entry_dir)
+      for cached, output in zip(cached_outputs, outputs):
+        link_or_copy(output, cached)
+      open(os.path.join(entry_dir, STEP_CACHE_COMPLETE_FILENAME), "w").close()
+
+    for i, output in enumerate(outputs):
+      self.fingerprints[output] = "{}.{}".format(fingerprint, i)
+    return 0
+
+def get_metrics_filenames(run_out_dir, test_id, run_id, step_name):
+  """
+  Returns the names of the JSON and Prometheus metrics files of a step (the Java tools write the
+  .prom file beside the .json file given by -metricsFile)
+  """
+  base = os.path.join(run_out_dir, "{}-{}.metrics.{}".format(test_id, run_id, step_name))
+  return [base + ".json", base + ".prom"]
+
+def get_tool_files(settings):
+  """
+  Returns the files of the tools that the steps run: the jars (and the files of class folders) on
+  the java classpath, and the voronoi-catchments binary
+  """
+  files = []
+  classpath = settings.get("java_classpath") or ""
+  for entry in classpath.split(os.pathsep):
+    if not entry:
+      continue
+    if os.path.basename(entry) == "*":
+      #a java classpath wildcard: every jar in the folder
+      files.extend(glob.glob(os.path.join(os.path.dirname(entry), "*.jar")) + glob.glob(os.path.join(os.path.dirname(entry), "*.JAR")))
+    elif os.path.isdir(entry):
+      for dirpath, dirnames, filenames in os.walk(entry):
+        files.extend(os.path.join(dirpath, f) for f in filenames)
+    elif os.path.isfile(entry):
+      files.append(entry)
+  voronoi_catchment_path = settings.get("voronoi_catchment_path")
+  if voronoi_catchment_path and os.path.isfile(voronoi_catchment_path):
+    files.append(voronoi_catchment_path)
+  return [os.path.abspath(f) for f in files]
+
+def link_or_copy(src, dest):
+  """
+  Hard links src to dest (fast, and uses no extra space), or copies it if they are on different
+  file systems.  GeoPackages are always copied: they are SQLite databases, which anything that opens 
+  them (e.g. QGIS) may write to, and a change to a linked file would also change the cache entry.
+  """
+  if os.path.exists(dest):
+    os.remove(dest)
+  if src.lower().endswith(".gpkg"):
+    shutil.copy2(src, dest)
+    return
+  try:
+    os.link(src, dest)
+  except OSError:
+    shutil.copy2(src, dest)
+
+def make_fifo(filename):
+  """
+  Creates a named pipe (replacing any existing file of that name)
+  """
+  if os.path.exists(filename):
+    os.remove(filename)
+  os.mkfifo(filename)
+
+def wait_all(procs):
+  """
+  Waits for each process to finish.  If one fails, the others are killed (so they don't block
+  forever on a pipe that will never be read or written).
+  Returns True if any process failed.
+  """
+  failed = False
+  for proc in procs:
+    if failed:
+      proc.kill()
+      continue
+    proc.wait()
+    if proc.returncode != 0:
+      print("Error {}".format(proc.returncode))
+      failed = True
+  return failed
+
 if __name__ == "__main__":
   main()
\ No newline at end of file
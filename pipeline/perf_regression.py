@@ -0,0 +1,371 @@
+"""
+Runs the Java tools of the pipeline on synthetic data (made by GenerateSyntheticData), measures each
+step, and compares the measurements with a baseline from an earlier run.
+
+Example usage:
+  python perf_regression.py -sizes 10000,100000 -threads 1,2,4 -save-baseline perf-baseline.json
+  python perf_regression.py -sizes 10000,100000 -threads 1,2,4 -baseline perf-baseline.json
+
+"""
+
+import os
+import sys
+import csv
+import json
+import time
+import shutil
+import sqlite3
+import argparse
+import platform
+import multiprocessing
+from subprocess import Popen, STDOUT
+
+DEFAULT_SETTINGS_FILENAME = "settings.json"
+DEFAULT_OUT_DIR = "perf-results"
+DEFAULT_SIZES = "10000"
+DEFAULT_THREADS = "1"
+DEFAULT_SEED = 1
+DEFAULT_JAVA_XMX = "4096m"
+DEFAULT_TIME_TOLERANCE = 0.25
+DEFAULT_MIN_TIME_DIFFERENCE = 1.0
+DEFAULT_MEMORY_TOLERANCE = 0.2
+RESULTS_FILENAME = "results.json"
+SCALING_FILENAME = "scaling.csv"
+STREAMS_TABLE = "STREAM_NETWORKS"
+LINEAR_BOUNDARIES_TABLE = "LINEAR_BOUNDARIES"
+WATER_FEATURES_TABLE = "water_features"
+VORONOI_EDGES_TABLE = "voronoi_edges"
+DATA_CRS = "EPSG:3005"
+WHITELIST = "EDGE_TYPE:1000,1050,1100,1150,1425,1500,1525,1550,1600,1800,1825,1850,1875,1900,1925,1950,1975,2000,2100,2300"
+#measurements compared with the baseline, and whether each is a time (the others are memory)
+COMPARED_MEASUREMENTS = [("wall_seconds", True), ("cpu_seconds", True), ("peak_rss_mb", False), ("peak_heap_mb", False)]
+
+def main():
+  argParser = argparse.ArgumentParser(description="runs the catchment delineation tools on synthetic data and checks for performance regressions")
+  argParser.add_argument('-settings', dest='settings', action='store', default=DEFAULT_SETTINGS_FILENAME, required=False, help='path to settings json file (java_path and java_classpath are used)')
+  argParser.add_argument('-out-dir', dest='out_dir', action='store', default=DEFAULT_OUT_DIR, required=False, help='folder for the data, outputs, logs and results')
+  argParser.add_argument('-sizes', dest='sizes', action='store', default=DEFAULT_SIZES, required=False, help='csv list of dataset sizes (# water features)')
+  argParser.add_argument('-threads', dest='threads', action='store', default=DEFAULT_THREADS, required=False, help='csv list of thread counts.  Steps that use threads are run once per count.')
+  argParser.add_argument('-seed', dest='seed', action='store', default=DEFAULT_SEED, required=False, help='seed of the synthetic data')
+  argParser.add_argument('-java-xmx', dest='java_xmx', action='store', default=DEFAULT_JAVA_XMX, required=False, help='max heap of each Java step (-Xmx)')
+  argParser.add_argument('-baseline', dest='baseline', action='store', default=None, required=False, help='results file of an earlier run to compare with')
+  argParser.add_argument('-save-baseline', dest='save_baseline', action='store', default=None, required=False, help='also save the results to this file, for use as a baseline')
+  argParser.add_argument('-time-tolerance', dest='time_tolerance', action='store', default=DEFAULT_TIME_TOLERANCE, required=False, help='allowed increase in wall and CPU time, as a fraction of the baseline')
+  argParser.add_argument('-min-time-difference', dest='min_time_difference', action='store', default=DEFAULT_MIN_TIME_DIFFERENCE, required=False, help='time increases (seconds) smaller than this are never regressions')
+  argParser.add_argument('-memory-tolerance', dest='memory_tolerance', action='store', default=DEFAULT_MEMORY_TOLERANCE, required=False, help='allowed increase in peak RSS and heap, as a fraction of the baseline')
+
+  try:
+    args = argParser.parse_args()
+  except argparse.ArgumentError as e:
+    argParser.print_help()
+    sys.exit(1)
+
+  #open settings file
+  try:
+    with open(args.settings) as f:
+      settings = json.load(f)
+  except IOError as e:
+    print("Unable to find settings file: {}".format(args.settings))
+    exit(1)
+  except (TypeError, ValueError) as e:
+    print(e)
+    print("Unable to parse settings file: {}".format(args.settings))
+    exit(1)
+
+  sizes = [int(size) for size in args.sizes.split(",")]
+  thread_counts = [int(threads) for threads in args.threads.split(",")]
+  java = "{} -Xmx{} -cp {}".format(settings.get("java_path"), args.java_xmx, settings.get("java_classpath"))
+
+  if not os.path.exists(args.out_dir):
+    os.makedirs(args.out_dir)
+
+  results = {
+    "environment": get_environment(),
+    "seed": int(args.seed),
+    "java_xmx": args.java_xmx,
+    "steps": []
+  }
+  for size in sizes:
+    size_dir = os.path.join(args.out_dir, "{}".format(size))
+    if os.path.exists(size_dir):
+      shutil.rmtree(size_dir)
+    os.makedirs(size_dir)
+    results["steps"] += run_chain(java, size_dir, size, thread_counts, int(args.seed))
+
+  with open(os.path.join(args.out_dir, RESULTS_FILENAME), "w") as f:
+    json.dump(results, f, indent=2)
+  if args.save_baseline:
+    with open(args.save_baseline, "w") as f:
+      json.dump(results, f, indent=2)
+    print("Saved baseline to {}".format(args.save_baseline))
+  save_scaling(os.path.join(args.out_dir, SCALING_FILENAME), results["steps"])
+  print_scaling(results["steps"])
+
+  if args.baseline:
+    with open(args.baseline) as f:
+      baseline = json.load(f)
+    regressions = compare(baseline, results, float(args.time_tolerance), float(args.min_time_difference), float(args.memory_tolerance))
+    if regressions:
+      print("")
+      print("{} regression(s) found".format(len(regressions)))
+      exit(1)
+    print("")
+    print("No regressions")
+
+def run_chain(java, size_dir, size, thread_counts, seed):
+  """
+  Runs each step of the chain on a dataset of the given size.  Steps that use threads are run once
+  per thread count (on the same input); the others once.
+  Returns the measurements of each step run.
+  """
+  print("")
+  print("---------------------------------------------------")
+  print(" Dataset of {} water features".format(size))
+  print("---------------------------------------------------")
+  print("")
+
+  def path(filename):
+    return os.path.join(size_dir, filename)
+
+  tables = "{},{}".format(STREAMS_TABLE, LINEAR_BOUNDARIES_TABLE)
+  water_gpkg = path("water.gpkg")
+  standin_wkt = path("standin.voronoi-out.wkt")
+  simp_dens_gpkg = path("water.simp-dens.gpkg")
+  snap_gpkg = path("water.snap.gpkg")
+  crossings_txt = path("water.crossings.txt")
+  voronoi_input_txt = path("water.voronoi-in.txt")
+  voronoi_input_gpkg = path("water.voronoi-in.gpkg")
+  voronoi_output_wkt = path("voronoi-out.wkt")
+  voronoi_output_gpkg = path("voronoi-out.gpkg")
+
+  measurements = []
+
+  #the voronoi edges made here stand in for the output of voronoi-catchments, which isn't run
+  cmd = "{} ca.bc.gov.catchment.scripts.GenerateSyntheticData -o {} -numFeatures {} -seed {} -voronoiOutputWktFile {}".format(java, water_gpkg, size, seed, standin_wkt)
+  measurements.append(run_step("generate", cmd, size_dir, size, 1, [water_gpkg, standin_wkt]))
+  bbox = read_bbox(os.path.join(size_dir, "generate.log"))
+
+  metrics_json = path("simplify-densify.metrics.json")
+  cmd = "{} ca.bc.gov.catchment.scripts.SimplifyThenDensity -i {} -o {} -simplify -simplifyDistanceTolerance 2 -densify -densifyDistanceSpacing 50 -tables {} -metricsFile {}".format(java, water_gpkg, simp_dens_gpkg, tables, metrics_json)
+  measurements.append(run_step("simplify-densify", cmd, size_dir, size, 1, [simp_dens_gpkg], metrics_json))
+
+  metrics_json = path("snap.metrics.json")
+  cmd = "{} ca.bc.gov.catchment.scripts.SnapToGrid -i {} -o {} -tables {} -precisionScale 10 -metricsFile {}".format(java, simp_dens_gpkg, snap_gpkg, tables, metrics_json)
+  measurements.append(run_step("snap", cmd, size_dir, size, 1, [snap_gpkg], metrics_json))
+
+  metrics_json = path("check-crosses.metrics.json")
+  cmd = "{} ca.bc.gov.catchment.scripts.CheckCrosses -i {} -tables {} -crossingsFile {} -metricsFile {}".format(java, snap_gpkg, tables, crossings_txt, metrics_json)
+  measurements.append(run_step("check-crosses", cmd, size_dir, size, 1, [crossings_txt], metrics_json))
+
+  cmd = "{} ca.bc.gov.catchment.scripts.PrepCgalVoronoiInput -i {} -outTextFile {} -outGeoPackageFile {} -bbox {} -bboxcrs {} -streams {} -linearboundaries {} -whitelistfilter {}".format(java, snap_gpkg, voronoi_input_txt, voronoi_input_gpkg, bbox, DATA_CRS, STREAMS_TABLE, LINEAR_BOUNDARIES_TABLE, WHITELIST)
+  measurements.append(run_step("voronoi-input", cmd, size_dir, size, 1, [voronoi_input_txt, voronoi_input_gpkg]))
+
+  measurements.append(run_standin_voronoi(standin_wkt, voronoi_output_wkt, size, [voronoi_output_wkt]))
+
+  metrics_json = path("voronoi-gpkg.metrics.json")
+  cmd = "{} ca.bc.gov.catchment.scripts.WKTList2GeoPackage -i {} -o {} -bbox {} -bboxcrs {} -hilbertSort -metricsFile {}".format(java, voronoi_output_wkt, voronoi_output_gpkg, bbox, DATA_CRS, metrics_json)
+  measurements.append(run_step("voronoi-gpkg", cmd, size_dir, size, 1, [voronoi_output_gpkg], metrics_json))
+
+  for threads in thread_counts:
+    cleaned_gpkg = path("voronoi-out.cleaned.{}.gpkg".format(threads))
+    metrics_json = path("clean.{}.metrics.json".format(threads))
+    cmd = "{} ca.bc.gov.catchment.scripts.CleanVoronoiOutput -voronoiEdgesFile {} -waterFeaturesFile {} -outFile {} -voronoiEdgesTable {} -waterFeaturesTable {} -startPhase 1 -edgeStore -danglerThreads {} -metricsFile {}".format(java, voronoi_output_gpkg, voronoi_input_gpkg, cleaned_gpkg, VORONOI_EDGES_TABLE, WATER_FEATURES_TABLE, threads, metrics_json)
+    measurements.append(run_step("clean", cmd, size_dir, size, threads, [cleaned_gpkg], metrics_json))
+
+  return measurements
+
+def run_step(name, cmd, size_dir, size, threads, outputs, metrics_filename=None):
+  """
+  Runs a step's command (with its output going to [step].log), and measures it.  The peak heap is
+  only known for steps that save metrics.
+  Returns the measurements.  Exits if the step fails.
+  """
+  print("{} ({} features, {} threads)".format(name, size, threads))
+  log_filename = os.path.join(size_dir, "{}{}.log".format(name, "" if threads == 1 else ".{}".format(threads)))
+  with open(log_filename, "w") as log:
+    start = time.time()
+    proc = Popen(cmd.split(), stdout=log, stderr=STDOUT)
+    cpu_seconds = None
+    peak_rss_mb = None
+    if hasattr(os, "wait4"):
+      #the resource usage of this child only (not of all children so far)
+      pid, status, usage = os.wait4(proc.pid, 0)
+      proc.returncode = os.WEXITSTATUS(status) if os.WIFEXITED(status) else -os.WTERMSIG(status)
+      cpu_seconds = usage.ru_utime + usage.ru_stime
+      #ru_maxrss is in bytes on macOS and kilobytes elsewhere
+      peak_rss_mb = usage.ru_maxrss / (1024.0 * 1024.0) if sys.platform == "darwin" else usage.ru_maxrss / 1024.0
+    else:
+      proc.wait()
+    wall_seconds = time.time() - start
+
+  if proc.returncode != 0:
+    print("Error {}.  See {}".format(proc.returncode, log_filename))
+    print("Failure.  Stopped early.")
+    exit(1)
+
+  peak_heap_mb = None
+  if metrics_filename and os.path.exists(metrics_filename):
+    with open(metrics_filename) as f:
+      jvm = json.load(f).get("jvm")
+    if jvm:
+      peak_heap_mb = jvm["peak_heap_bytes"] / (1024.0 * 1024.0)
+
+  measurement = {
+    "step": name,
+    "size": size,
+    "threads": threads,
+    "wall_seconds": wall_seconds,
+    "cpu_seconds": cpu_seconds,
+    "peak_rss_mb": peak_rss_mb,
+    "peak_heap_mb": peak_heap_mb,
+    "rows": count_rows(outputs)
+  }
+  print(" - {}".format(format_measurement(measurement)))
+  return measurement
+
+def run_standin_voronoi(standin_wkt, voronoi_output_wkt, size, outputs):
+  """
+  Stands in for voronoi-catchments: copies the pre-generated voronoi edges to the voronoi output
+  file, so the later steps read them as if voronoi-catchments had written them.
+  """
+  print("voronoi (stand-in)")
+  start = time.time()
+  shutil.copyfile(standin_wkt, voronoi_output_wkt)
+  measurement = {
+    "step": "voronoi-standin",
+    "size": size,
+    "threads": 1,
+    "wall_seconds": time.time() - start,
+    "cpu_seconds": None,
+    "peak_rss_mb": None,
+    "peak_heap_mb": None,
+    "rows": count_rows(outputs)
+  }
+  print(" - {}".format(format_measurement(measurement)))
+  return measurement
+
+def read_bbox(generate_log_filename):
+  """
+  Returns the bounds of the synthetic data, as printed by GenerateSyntheticData
+  """
+  with open(generate_log_filename) as f:
+    for line in f:
+      if line.startswith("- bounds"):
+        return line.split(":")[-1].strip()
+  print("Unable to find the bounds of the synthetic data in {}".format(generate_log_filename))
+  exit(1)
+
+def count_rows(filenames):
+  """
+  Returns the number of rows in each output: each feature table of a GeoPackage (keyed by
+  "[file]:[table]"), and the number of lines of any other file.
+  """
+  rows = {}
+  for filename in filenames:
+    basename = os.path.basename(filename)
+    if filename.endswith(".gpkg"):
+      conn = sqlite3.connect(filename)
+      try:
+        for (table,) in conn.execute("SELECT table_name FROM gpkg_contents WHERE data_type = 'features'").fetchall():
+          rows["{}:{}".format(basename, table)] = conn.execute('SELECT COUNT(*) FROM "{}"'.format(table)).fetchone()[0]
+      finally:
+        conn.close()
+    else:
+      with open(filename, "rb") as f:
+        rows[basename] = sum(1 for line in f)
+  return rows
+
+def format_measurement(m):
+  def fmt(value, unit):
+    return "n/a" if value is None else "{:.2f} {}".format(value, unit)
+  return "wall {}, cpu {}, peak rss {}, peak heap {}, rows {}".format(
+    fmt(m["wall_seconds"], "s"), fmt(m["cpu_seconds"], "s"), fmt(m["peak_rss_mb"], "MB"), fmt(m["peak_heap_mb"], "MB"), sum(m["rows"].values()))
+
+def get_environment():
+  return {
+    "platform": platform.platform(),
+    "python": platform.python_version(),
+    "cpu_count": multiprocessing.cpu_count(),
+    "timestamp": int(time.time())
+  }
+
+def save_scaling(filename, measurements):
+  """
+  Saves one row per step run (step, size, threads and measurements), for plotting scaling curves
+  """
+  with open(filename, "w") as f:
+    writer = csv.writer(f)
+    writer.writerow(["step", "size", "threads", "wall_seconds", "cpu_seconds", "peak_rss_mb", "peak_heap_mb", "rows"])
+    for m in measurements:
+      writer.writerow([m["step"], m["size"], m["threads"], m["wall_seconds"], m["cpu_seconds"], m["peak_rss_mb"], m["peak_heap_mb"], sum(m["rows"].values())])
+
+def print_scaling(measurements):
+  """
+  Prints the throughput of each step at each size, and the speedup of each threaded step over its
+  run with the fewest threads
+  """
+  print("")
+  print("Scaling")
+  print("-------")
+  for step in unique([m["step"] for m in measurements]):
+    runs = [m for m in measurements if m["step"] == step]
+    print(step)
+    for m in runs:
+      line = "  size {:>10}  threads {:>3}  {:>9.2f} s  {:>12.0f} features/s".format(m["size"], m["threads"], m["wall_seconds"], m["size"] / max(m["wall_seconds"], 1e-9))
+      first = min([r for r in runs if r["size"] == m["size"]], key=lambda r: r["threads"])
+      if first is not m:
+        line += "  speedup x{:.2f} over {} thread(s)".format(first["wall_seconds"] / max(m["wall_seconds"], 1e-9), first["threads"])
+      print(line)
+
+def compare(baseline, results, time_tolerance, min_time_difference, memory_tolerance):
+  """
+  Compares each step run with the run of the same step, size and threads in the baseline.  A time
+  or memory increase beyond the tolerance is a regression, as is any change in the output row
+  counts (the synthetic data is the same for a given seed, so they should never change).
+  Returns the list of regressions (also printed).
+  """
+  print("")
+  print("Comparison with baseline")
+  print("------------------------")
+  if baseline.get("seed") != results.get("seed") or baseline.get("java_xmx") != results.get("java_xmx"):
+    print("Warning: the baseline used a different seed or -Xmx")
+  if baseline["environment"].get("cpu_count") != results["environment"].get("cpu_count"):
+    print("Warning: the baseline was run with {} CPUs (now {})".format(baseline["environment"].get("cpu_count"), results["environment"].get("cpu_count")))
+
+  baseline_steps = {}
+  for m in baseline["steps"]:
+    baseline_steps[(m["step"], m["size"], m["threads"])] = m
+
+  regressions = []
+  for m in results["steps"]:
+    key = (m["step"], m["size"], m["threads"])
+    label = "{} (size {}, threads {})".format(*key)
+    before = baseline_steps.get(key)
+    if not before:
+      print("{}: not in baseline".format(label))
+      continue
+    for measurement, is_time in COMPARED_MEASUREMENTS:
+      old = before.get(measurement)
+      new = m.get(measurement)
+      if old is None or new is None:
+        continue
+      tolerance = time_tolerance if is_time else memory_tolerance
+      change = (new - old) / old if old > 0 else 0
+      if new > old * (1 + tolerance) and (not is_time or new - old >= min_time_difference):
+        regressions.append("{}: {} {:.2f} -> {:.2f} (+{:.0f}%)".format(label, measurement, old, new, change * 100))
+    if m["rows"] != before["rows"]:
+      regressions.append("{}: rows {} -> {}".format(label, before["rows"], m["rows"]))
+
+  for regression in regressions:
+    print("REGRESSION {}".format(regression))
+  return regressions
+
+def unique(values):
+  result = []
+  for value in values:
+    if value not in result:
+      result.append(value)
+  return result
+
+if __name__ == "__main__":
+  main()